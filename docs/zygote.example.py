@@ -0,0 +1,158 @@
+#!/usr/bin/env python3
+"""
+Example zygote (see "zygote" in docs/PROTOCOL.md).
+
+Preloads the worker module given as first argument and forks a child running
+the module's main() for each message; main() speaks the regular protocol on
+stdin/stdout. Without zygote environment variables, main() is run directly,
+so the same configuration also works with zygote disabled.
+
+usage: zygote.example.py MODULE
+"""
+
+import importlib
+import json
+import os
+import select
+import signal
+import socket
+import sys
+import traceback
+
+ENV_PORT = 'AMQP_PROCESS_MANAGER_ZYGOTE_PORT'
+ENV_TOKEN = 'AMQP_PROCESS_MANAGER_ZYGOTE_TOKEN'
+
+
+def send(*elements):
+    os.write(1, (json.dumps(list(elements)) + '\n').encode('utf-8'))
+
+
+def connect(port, token, child_id, stream):
+    sock = socket.create_connection(('127.0.0.1', port))
+    sock.sendall(('%s %s %s\n' % (token, child_id, stream)).encode('ascii'))
+    return sock
+
+
+def run_child(worker, port, token, child_id):
+    stdio = connect(port, token, child_id, 'stdio')
+    stderr = connect(port, token, child_id, 'stderr')
+
+    # replace the zygote's control pipes
+    os.dup2(stdio.fileno(), 0)
+    os.dup2(stdio.fileno(), 1)
+    os.dup2(stderr.fileno(), 2)
+    stdio.close()
+    stderr.close()
+
+    sys.stdin = open(0, 'r', encoding='utf-8', closefd=False)
+    sys.stdout = open(1, 'w', encoding='utf-8', buffering=1, closefd=False)
+    sys.stderr = open(2, 'w', encoding='utf-8', buffering=1, closefd=False)
+
+    exit_code = 0
+    try:
+        worker.main()
+    except SystemExit as ex:
+        exit_code = ex.code if isinstance(ex.code, int) else 1
+    except BaseException:
+        traceback.print_exc()
+        exit_code = 1
+    finally:
+        sys.stdout.flush()
+        sys.stderr.flush()
+
+    os._exit(exit_code)
+
+
+def main():
+    worker = importlib.import_module(sys.argv[1])
+
+    port = os.environ.pop(ENV_PORT, None)
+    token = os.environ.pop(ENV_TOKEN, None)
+    if port is None:
+        worker.main()
+        return
+    port = int(port)
+
+    # SIGCHLD wakes up select() to report exited children
+    wakeup_r, wakeup_w = os.pipe()
+    os.set_blocking(wakeup_r, False)
+    os.set_blocking(wakeup_w, False)
+    signal.set_wakeup_fd(wakeup_w)
+    signal.signal(signal.SIGCHLD, lambda signum, frame: None)
+
+    pids = {}
+    ids = {}
+
+    def reap():
+        while pids:
+            try:
+                pid, status = os.waitpid(-1, os.WNOHANG)
+            except ChildProcessError:
+                return
+            if pid == 0:
+                return
+
+            child_id = pids.pop(pid, None)
+            if child_id is None:
+                continue
+            del ids[child_id]
+
+            if os.WIFEXITED(status):
+                send('exited', child_id, str(os.WEXITSTATUS(status)))
+            else:
+                send('exited', child_id, str(128 + os.WTERMSIG(status)))
+
+    def handle(msg):
+        if msg[0] == 'fork':
+            child_id = msg[1]
+            try:
+                pid = os.fork()
+            except OSError as ex:
+                send('failed', child_id, str(ex))
+                return
+
+            if pid == 0:
+                signal.set_wakeup_fd(-1)
+                signal.signal(signal.SIGCHLD, signal.SIG_DFL)
+                os.close(wakeup_r)
+                os.close(wakeup_w)
+                run_child(worker, port, token, child_id)
+
+            pids[pid] = child_id
+            ids[child_id] = pid
+            send('forked', child_id, str(pid))
+        elif msg[0] == 'kill':
+            pid = ids.get(msg[1])
+            if pid is not None:
+                try:
+                    os.kill(pid, int(msg[2]))
+                except ProcessLookupError:
+                    pass
+
+    buffer = b''
+    while True:
+        readable, _, _ = select.select([0, wakeup_r], [], [])
+
+        if wakeup_r in readable:
+            try:
+                while os.read(wakeup_r, 512):
+                    pass
+            except BlockingIOError:
+                pass
+        reap()
+
+        if 0 in readable:
+            data = os.read(0, 65536)
+            if not data:
+                # manager is shutting down
+                break
+
+            buffer += data
+            while b'\n' in buffer:
+                line, buffer = buffer.split(b'\n', 1)
+                if line.strip():
+                    handle(json.loads(line.decode('utf-8')))
+
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,111 @@
+package de.glutrot.tools.amqpprocessmanager;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round trip of a single message through ProcessCommunicator against a
+ * trivial echo worker (sed turning a message into a result), both to a
+ * long-lived process (like pooled mode) and to a process spawned per message
+ * (like spawn mode, including process start and exit).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProcessCommunicatorBenchmark {
+    private static final String NAME = "benchmark";
+    private static final String ECHO_EXPRESSION = "s/^\\[\"message\",/[\"result\",/";
+    
+    @Param({"16", "4096", "65536"})
+    public int payloadSize;
+    
+    @Param({"threads", "eventloop"})
+    public String engine;
+    
+    private String payload;
+    private ProcessIOEventLoop eventLoop;
+    
+    private Process process;
+    private ProcessCommunicator communicator;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        char[] chars = new char[payloadSize];
+        Arrays.fill(chars, 'x');
+        payload = new String(chars);
+        
+        if ("eventloop".equals(engine)) {
+            eventLoop = new ProcessIOEventLoop(1, 2);
+        }
+        
+        // long-lived echo worker for pooled round trips
+        process = new ProcessBuilder("sed", "-u", ECHO_EXPRESSION).start();
+        communicator = createCommunicator(process);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        communicator.closeInput();
+        if (!process.waitFor(5, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+        }
+        
+        if (eventLoop != null) {
+            eventLoop.shutdown();
+        }
+    }
+    
+    private ProcessCommunicator createCommunicator(Process p) {
+        // watchdog is required by communicator but must not interfere
+        ProcessWatchdog watchdog = new ProcessWatchdog(p, 3600, 1000, NAME);
+        watchdog.disarm();
+        watchdog.start();
+        
+        ProcessCommunicator comm = new ProcessCommunicator(p, watchdog, NAME, false, false, null, eventLoop);
+        comm.start();
+        
+        return comm;
+    }
+    
+    private static ProcessCommunicator.Result checkResult(ProcessCommunicator.Result result) {
+        if ((result == null) || result.hasFailed()) {
+            throw new IllegalStateException("echo worker failed");
+        }
+        
+        return result;
+    }
+    
+    @Benchmark
+    public ProcessCommunicator.Result pooledRoundTrip() throws Exception {
+        return checkResult(communicator.sendRequest(payload).get(10, TimeUnit.SECONDS));
+    }
+    
+    @Benchmark
+    public ProcessCommunicator.Result spawnedRoundTrip() throws Exception {
+        // worker quits after the first line like a spawned process would
+        Process p = new ProcessBuilder("sed", "-u", "-e", ECHO_EXPRESSION, "-e", "q").start();
+        ProcessCommunicator comm = createCommunicator(p);
+        
+        comm.sendPlainMessage(payload);
+        ProcessCommunicator.Result result = comm.getFutureResult().get(10, TimeUnit.SECONDS);
+        p.waitFor(10, TimeUnit.SECONDS);
+        
+        return checkResult(result);
+    }
+}
@@ -0,0 +1,58 @@
+package de.glutrot.tools.amqpprocessmanager;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Raw cost of ProcessBuilder.start() (until the process has exited) using
+ * the different launch mechanisms of the JDK on Linux. The mechanism is read
+ * once per JVM, so each variant runs in its own fork. POSIX_SPAWN requires
+ * Java 12 or later on Linux; unsupported mechanisms fail the benchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class ProcessSpawnBenchmark {
+    private static final String LAUNCH_MECHANISM = "-Djdk.lang.Process.launchMechanism=";
+    
+    private final ProcessBuilder pb = new ProcessBuilder("/bin/true");
+    
+    private int spawn() throws Exception {
+        Process p = pb.start();
+        return p.waitFor();
+    }
+    
+    @Benchmark
+    @Fork(1)
+    public int defaultMechanism() throws Exception {
+        return spawn();
+    }
+    
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = LAUNCH_MECHANISM+"VFORK")
+    public int vfork() throws Exception {
+        return spawn();
+    }
+    
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = LAUNCH_MECHANISM+"FORK")
+    public int fork() throws Exception {
+        return spawn();
+    }
+    
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = LAUNCH_MECHANISM+"POSIX_SPAWN")
+    public int posixSpawn() throws Exception {
+        return spawn();
+    }
+}
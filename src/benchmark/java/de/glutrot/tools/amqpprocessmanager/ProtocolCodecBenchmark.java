@@ -0,0 +1,129 @@
+package de.glutrot.tools.amqpprocessmanager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding and decoding of protocol frames: JSON lines (ProtocolCodec) and
+ * length-prefixed binary frames (BinaryFrameCodec) for comparison.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolCodecBenchmark {
+    private final static Charset charset = Charset.forName("UTF-8");
+    
+    @Param({"16", "4096", "65536"})
+    public int payloadSize;
+    
+    /**
+     * Share of characters requiring escapes in JSON (quotes, control
+     * characters), in percent.
+     */
+    @Param({"0", "10"})
+    public int escapedPercentage;
+    
+    private String payload;
+    private String encodedLine;
+    private String heartbeatLine;
+    private byte[] encodedFrame;
+    
+    private final ProtocolCodec codec = new ProtocolCodec();
+    private final ProtocolCodec.Frame frame = new ProtocolCodec.Frame();
+    private final StringWriter writer = new StringWriter();
+    private final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    
+    @Setup
+    public void setUp() throws Exception {
+        char[] chars = new char[payloadSize];
+        Arrays.fill(chars, 'x');
+        if (escapedPercentage > 0) {
+            int step = 100 / escapedPercentage;
+            for (int i = 0; i < chars.length; i += step) {
+                chars[i] = ((i / step) % 2 == 0) ? '"' : '\n';
+            }
+        }
+        payload = new String(chars);
+        
+        StringWriter lineWriter = new StringWriter();
+        ProtocolCodec.writeArray(lineWriter, ProtocolCodec.KEYWORD_RESULT, "4711", payload);
+        encodedLine = lineWriter.toString();
+        
+        lineWriter = new StringWriter();
+        ProtocolCodec.writeArray(lineWriter, ProtocolCodec.KEYWORD_HEARTBEAT);
+        heartbeatLine = lineWriter.toString();
+        
+        ByteArrayOutputStream frameStream = new ByteArrayOutputStream();
+        BinaryFrameCodec.writeFrame(frameStream, BinaryFrameCodec.TYPE_RESULT, 4711, payload.getBytes(charset));
+        encodedFrame = frameStream.toByteArray();
+    }
+    
+    @Benchmark
+    public int encodeJson() throws Exception {
+        writer.getBuffer().setLength(0);
+        ProtocolCodec.writeArray(writer, ProtocolCodec.KEYWORD_MESSAGE, "4711", payload);
+        
+        return writer.getBuffer().length();
+    }
+    
+    @Benchmark
+    public String decodeJson() throws Exception {
+        codec.decode(encodedLine, frame);
+        
+        return frame.getString(2);
+    }
+    
+    @Benchmark
+    public String decodeJsonHeartbeat() throws Exception {
+        codec.decode(heartbeatLine, frame);
+        
+        return frame.getKeyword();
+    }
+    
+    @Benchmark
+    public int encodeBinary() throws Exception {
+        bos.reset();
+        BinaryFrameCodec.writeFrame(bos, BinaryFrameCodec.TYPE_MESSAGE, 4711, payload.getBytes(charset));
+        
+        return bos.size();
+    }
+    
+    @Benchmark
+    public void decodeBinary(final Blackhole blackhole) {
+        BinaryFrameCodec.Decoder decoder = new BinaryFrameCodec.Decoder(new BinaryFrameCodec.FrameHandler() {
+            @Override
+            public void handleFrame(byte type, int requestId, byte[] payload) {
+                blackhole.consume(payload);
+            }
+            
+            @Override
+            public void handleProtocolError(String message) {
+                throw new IllegalStateException(message);
+            }
+            
+            @Override
+            public void handleEndOfStream() {
+            }
+        });
+        
+        decoder.handleData(encodedFrame, encodedFrame.length);
+    }
+}
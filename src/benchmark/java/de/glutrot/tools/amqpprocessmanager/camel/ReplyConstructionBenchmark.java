@@ -0,0 +1,70 @@
+package de.glutrot.tools.amqpprocessmanager.camel;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Construction of reply messages as done by ReplyPublisher: ReplyEncoder
+ * wrapping the result into a JSON envelope followed by creating the reply
+ * headers from the request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReplyConstructionBenchmark {
+    @Param({"16", "4096", "65536"})
+    public int payloadSize;
+    
+    private CamelContext ctx;
+    private Message request;
+    private String output;
+    
+    @Setup
+    public void setUp() {
+        char[] chars = new char[payloadSize];
+        Arrays.fill(chars, 'x');
+        output = new String(chars);
+        
+        ctx = new DefaultCamelContext();
+        
+        // request as received from AMQP
+        Exchange exchange = new DefaultExchange(ctx);
+        request = exchange.getIn();
+        request.setHeader("rabbitmq.REPLY_TO", "amq.gen-benchmark");
+        request.setHeader("rabbitmq.CORRELATIONID", "4711");
+        request.setHeader("rabbitmq.EXPIRATION", "60000");
+        request.setHeader("rabbitmq.EXCHANGE_NAME", "benchmark");
+        request.setHeader("rabbitmq.ROUTING_KEY", "benchmark");
+    }
+    
+    @Benchmark
+    public byte[] encodeBody() {
+        return ReplyEncoder.encode(ReplyPublisher.STATE_SUCCESS, -1, output);
+    }
+    
+    @Benchmark
+    public void encodeBodyAndCreateHeaders(Blackhole blackhole) {
+        blackhole.consume(ReplyEncoder.encode(ReplyPublisher.STATE_SUCCESS, -1, output));
+        blackhole.consume(ReplyPublisher.createReplyHeaders(request, "application/json"));
+    }
+}
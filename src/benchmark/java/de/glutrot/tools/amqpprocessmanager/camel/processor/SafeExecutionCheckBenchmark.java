@@ -0,0 +1,92 @@
+package de.glutrot.tools.amqpprocessmanager.camel.processor;
+
+import de.glutrot.tools.amqpprocessmanager.beans.config.ProcessConfiguration;
+import de.glutrot.tools.amqpprocessmanager.beans.config.ProcessExecutionConfiguration;
+import de.glutrot.tools.amqpprocessmanager.camel.ReplyPublisher;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.TimeUnit;
+import org.apache.camel.CamelContext;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Pre-condition check run by ExternalTaskProcessor before each execution,
+ * against a read-only executable in a temporary working directory, both
+ * checked directly and through the cache used if a revalidation interval has
+ * been configured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SafeExecutionCheckBenchmark {
+    private Path workDir;
+    private Path executable;
+    private ExternalTaskProcessor processor;
+    private ExternalTaskProcessor cachedProcessor;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workDir = Files.createTempDirectory("amqpprocessmanager-benchmark");
+        executable = workDir.resolve("worker.sh");
+        Files.write(executable, "#!/bin/sh\n".getBytes("UTF-8"));
+        Files.setPosixFilePermissions(executable, PosixFilePermissions.fromString("r-x------"));
+        
+        ProcessConfiguration config = new ProcessConfiguration();
+        config.name = "benchmark";
+        config.execution = new ProcessExecutionConfiguration();
+        config.execution.executable = "."+File.separator+"worker.sh";
+        config.execution.workDir = workDir.toString();
+        
+        // write permission cannot be revoked from root
+        config.execution.allowWritableExecutable = "root".equals(System.getProperty("user.name"));
+        
+        // no messages are processed, so no replies are published
+        CamelContext ctx = new DefaultCamelContext();
+        ReplyPublisher replyPublisher = new ReplyPublisher(ctx, ctx.getEndpoint("direct:replies"));
+        
+        processor = new ExternalTaskProcessor(config, replyPublisher);
+        if (!processor.checkSafeExecution()) {
+            throw new IllegalStateException("pre-conditions are expected to be met");
+        }
+        
+        config.execution.safetyCheck.revalidateInterval = 60;
+        cachedProcessor = new ExternalTaskProcessor(config, replyPublisher);
+        cachedProcessor.start();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        cachedProcessor.stop();
+        
+        Files.setPosixFilePermissions(executable, PosixFilePermissions.fromString("rwx------"));
+        Files.deleteIfExists(executable);
+        Files.deleteIfExists(workDir);
+    }
+    
+    @Benchmark
+    public boolean checkSafeExecution() {
+        return processor.checkSafeExecution();
+    }
+    
+    @Benchmark
+    public boolean cachedSafetyCheck() {
+        return cachedProcessor.isSafeToExecute();
+    }
+}
@@ -0,0 +1,76 @@
+package de.glutrot.tools.amqpprocessmanager.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.qpid.server.SystemLauncher;
+
+/**
+ * In-JVM AMQP 0-9-1 broker (Apache Qpid Broker-J) holding everything in
+ * memory, so load tests do not require an external RabbitMQ server. A
+ * single user guest/guest is configured; all virtual host names are mapped
+ * to the default virtual host.
+ */
+public class EmbeddedBroker {
+    private static final Logger logger = Logger.getLogger(EmbeddedBroker.class.getName());
+    
+    private static final String INITIAL_CONFIGURATION = "loadtest-broker.json";
+    
+    private final int port;
+    private final File workDir;
+    private SystemLauncher launcher = null;
+    
+    /**
+     * @param port port to listen on, 0 to use any free port
+     * @param workDir directory the broker may write to
+     * @throws IOException if no free port could be found
+     */
+    public EmbeddedBroker(int port, File workDir) throws IOException {
+        this.port = (port > 0) ? port : findFreePort();
+        this.workDir = workDir;
+    }
+    
+    private static int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+    
+    public void start() throws Exception {
+        URL initialConfiguration = EmbeddedBroker.class.getClassLoader().getResource(INITIAL_CONFIGURATION);
+        if (initialConfiguration == null) {
+            throw new IOException("Broker configuration "+INITIAL_CONFIGURATION+" is missing from classpath");
+        }
+        
+        Map<String, String> context = new HashMap<>();
+        context.put("qpid.amqp_port", Integer.toString(port));
+        context.put("qpid.work_dir", workDir.getAbsolutePath());
+        
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put("type", "Memory");
+        attributes.put("initialConfigurationLocation", initialConfiguration.toExternalForm());
+        attributes.put("startupLoggedToSystemOut", false);
+        attributes.put("context", context);
+        
+        launcher = new SystemLauncher();
+        launcher.startup(attributes);
+        
+        logger.log(Level.INFO, "Embedded broker listening on port {0,number,#}", port);
+    }
+    
+    public void stop() {
+        if (launcher != null) {
+            launcher.shutdown();
+            launcher = null;
+        }
+    }
+    
+    public int getPort() {
+        return port;
+    }
+}
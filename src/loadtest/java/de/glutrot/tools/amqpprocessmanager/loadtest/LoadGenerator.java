@@ -0,0 +1,296 @@
+package de.glutrot.tools.amqpprocessmanager.loadtest;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import de.glutrot.tools.amqpprocessmanager.metrics.LatencyHistogram;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes RPC requests at a fixed rate (open loop) and collects the
+ * replies. Latency is measured from the time a request was supposed to be
+ * sent, so a stalled publisher does not hide queueing delays (coordinated
+ * omission). Only requests scheduled after the warmup period are counted.
+ */
+public class LoadGenerator {
+    private static final Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+    
+    private final static Charset charset = Charset.forName("UTF-8");
+    
+    private static final String HEADER_STATE = "state";
+    private static final String STATE_PARTIAL = "partial";
+    private static final String STATE_SUCCESS = "success";
+    
+    private static class Request {
+        private final long scheduledNanos;
+        private final boolean measured;
+        
+        public Request(long scheduledNanos, boolean measured) {
+            this.scheduledNanos = scheduledNanos;
+            this.measured = measured;
+        }
+    }
+    
+    private final LoadTestConfig config;
+    private final String exchange;
+    private final String routingKey;
+    
+    private Connection connection = null;
+    private Channel publishChannel = null;
+    private Channel replyChannel = null;
+    private String replyQueue = null;
+    
+    private final Map<String, Request> pending = new ConcurrentHashMap<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private long sent = 0;
+    private long skipped = 0;
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    
+    /**
+     * @param config load test configuration
+     * @param exchange exchange to publish requests to
+     * @param routingKey routing key to publish requests with
+     */
+    public LoadGenerator(LoadTestConfig config, String exchange, String routingKey) {
+        this.config = config;
+        this.exchange = exchange;
+        this.routingKey = routingKey;
+    }
+    
+    /**
+     * Connects to the broker and starts consuming replies.
+     * @param host broker host name
+     * @param port broker port
+     * @throws Exception if connection failed
+     */
+    public void connect(String host, int port) throws Exception {
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost(host);
+        factory.setPort(port);
+        factory.setUsername(config.username);
+        factory.setPassword(config.password);
+        if (config.vhost != null) {
+            factory.setVirtualHost(config.vhost);
+        }
+        
+        connection = factory.newConnection();
+        publishChannel = connection.createChannel();
+        replyChannel = connection.createChannel();
+        
+        replyQueue = replyChannel.queueDeclare().getQueue();
+        replyChannel.basicConsume(replyQueue, true, new DefaultConsumer(replyChannel) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+                handleReply(properties, body);
+            }
+        });
+    }
+    
+    /**
+     * Waits until the request queue has been declared by the manager.
+     * @param queue name of request queue
+     * @param timeoutMillis maximum time to wait (milliseconds)
+     * @throws Exception if queue did not become available in time
+     */
+    public void awaitQueue(String queue, long timeoutMillis) throws Exception {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        
+        while (true) {
+            // failed passive declaration closes the channel
+            Channel channel = connection.createChannel();
+            try {
+                channel.queueDeclarePassive(queue);
+                channel.close();
+                return;
+            } catch (IOException ex) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw ex;
+                }
+            }
+            
+            Thread.sleep(100);
+        }
+    }
+    
+    /**
+     * Publishes requests for warmup and measurement period, then waits for
+     * outstanding replies until they time out.
+     * @throws Exception if publishing failed
+     */
+    public void run() throws Exception {
+        byte[] payload = new byte[Math.max(0, config.payloadSize)];
+        Arrays.fill(payload, (byte) 'x');
+        
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / config.rate);
+        long replyTimeoutNanos = TimeUnit.SECONDS.toNanos(config.replyTimeout);
+        long startNanos = System.nanoTime();
+        long measureStartNanos = startNanos + TimeUnit.SECONDS.toNanos(config.warmup);
+        long endNanos = measureStartNanos + TimeUnit.SECONDS.toNanos(config.duration);
+        long nextExpiryNanos = startNanos;
+        
+        logger.log(Level.INFO, "Sending {0} messages/s of {1} bytes for {2}s (+{3}s warmup)...", new Object[]{config.rate, payload.length, config.duration, config.warmup});
+        
+        long requestNumber = 0;
+        while (true) {
+            long scheduledNanos = startNanos + requestNumber * intervalNanos;
+            if (scheduledNanos - endNanos >= 0) {
+                break;
+            }
+            
+            long waitNanos = scheduledNanos - System.nanoTime();
+            if (waitNanos > 0) {
+                LockSupport.parkNanos(waitNanos);
+            }
+            
+            long currentTimeNanos = System.nanoTime();
+            if (currentTimeNanos - nextExpiryNanos >= 0) {
+                expire(currentTimeNanos, replyTimeoutNanos);
+                nextExpiryNanos = currentTimeNanos + TimeUnit.SECONDS.toNanos(1);
+            }
+            
+            boolean measured = (scheduledNanos - measureStartNanos >= 0);
+            requestNumber++;
+            
+            if (pending.size() >= config.maxInFlight) {
+                if (measured) {
+                    skipped++;
+                }
+                continue;
+            }
+            
+            String correlationId = Long.toString(requestNumber);
+            pending.put(correlationId, new Request(scheduledNanos, measured));
+            
+            AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+                .correlationId(correlationId)
+                .replyTo(replyQueue)
+                .build();
+            publishChannel.basicPublish(exchange, routingKey, properties, payload);
+            
+            if (measured) {
+                sent++;
+            }
+        }
+        
+        // wait for outstanding replies
+        logger.log(Level.INFO, "Waiting for {0} outstanding replies...", pending.size());
+        long waitEndNanos = System.nanoTime() + replyTimeoutNanos;
+        while (!pending.isEmpty() && (System.nanoTime() - waitEndNanos < 0)) {
+            Thread.sleep(100);
+        }
+        
+        expire(System.nanoTime() + replyTimeoutNanos, replyTimeoutNanos);
+    }
+    
+    /**
+     * Counts requests as timed out whose replies are overdue.
+     * @param currentTimeNanos current time based on System.nanoTime()
+     * @param replyTimeoutNanos time to wait for replies
+     */
+    private void expire(long currentTimeNanos, long replyTimeoutNanos) {
+        Iterator<Request> it = pending.values().iterator();
+        while (it.hasNext()) {
+            Request request = it.next();
+            if (currentTimeNanos - request.scheduledNanos > replyTimeoutNanos) {
+                it.remove();
+                if (request.measured) {
+                    timedOut.incrementAndGet();
+                }
+            }
+        }
+    }
+    
+    private void handleReply(AMQP.BasicProperties properties, byte[] body) {
+        long currentTimeNanos = System.nanoTime();
+        
+        String state = getState(properties, body);
+        if (STATE_PARTIAL.equals(state)) {
+            return;
+        }
+        
+        String correlationId = properties.getCorrelationId();
+        Request request = (correlationId != null) ? pending.remove(correlationId) : null;
+        if ((request == null) || !request.measured) {
+            return;
+        }
+        
+        if (STATE_SUCCESS.equals(state)) {
+            succeeded.incrementAndGet();
+            latency.record(currentTimeNanos - request.scheduledNanos);
+        } else {
+            failed.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Reads the reply state from headers (binary protocol) or JSON body.
+     * @return reply state, null if unknown
+     */
+    private static String getState(AMQP.BasicProperties properties, byte[] body) {
+        Map<String, Object> headers = properties.getHeaders();
+        if ((headers != null) && (headers.get(HEADER_STATE) != null)) {
+            return headers.get(HEADER_STATE).toString();
+        }
+        
+        try {
+            JsonObject obj = new JsonParser().parse(new String(body, charset)).getAsJsonObject();
+            JsonElement state = obj.get(HEADER_STATE);
+            return (state != null) ? state.getAsString() : null;
+        } catch (Exception ex) {
+            logger.log(Level.FINE, "Failed to parse reply", ex);
+            return null;
+        }
+    }
+    
+    public void close() {
+        try {
+            if (connection != null) {
+                connection.close();
+            }
+        } catch (Exception ex) {
+            logger.log(Level.FINE, "Failed to close connection", ex);
+        }
+    }
+    
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+    
+    public long getSent() {
+        return sent;
+    }
+    
+    public long getSkipped() {
+        return skipped;
+    }
+    
+    public long getSucceeded() {
+        return succeeded.get();
+    }
+    
+    public long getFailed() {
+        return failed.get();
+    }
+    
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+}
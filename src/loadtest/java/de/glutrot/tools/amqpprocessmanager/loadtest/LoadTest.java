@@ -0,0 +1,243 @@
+package de.glutrot.tools.amqpprocessmanager.loadtest;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import de.glutrot.tools.amqpprocessmanager.beans.config.AMQPCommonSettings;
+import de.glutrot.tools.amqpprocessmanager.beans.config.Config;
+import de.glutrot.tools.amqpprocessmanager.beans.config.ProcessAMQPConfiguration;
+import de.glutrot.tools.amqpprocessmanager.beans.config.ProcessConfiguration;
+import de.glutrot.tools.amqpprocessmanager.beans.config.ProcessExecutionConfiguration;
+import de.glutrot.tools.amqpprocessmanager.camel.ProcessManagerRouteBuilder;
+import de.glutrot.tools.amqpprocessmanager.metrics.LatencyHistogram;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.camel.CamelContext;
+import org.apache.camel.impl.DefaultCamelContext;
+
+/**
+ * Runs the process manager against an AMQP broker (embedded unless
+ * configured otherwise) and a synthetic worker while publishing requests at
+ * a fixed rate, then reports throughput, latency and resource usage.
+ */
+public class LoadTest {
+    private static final Logger logger = Logger.getLogger(LoadTest.class.getName());
+    
+    private static final Charset charset = Charset.forName("UTF-8");
+    
+    private static final String NAME = "loadtest";
+    private static final String WORKER_SCRIPT = "synthetic-worker.sh";
+    private static final long QUEUE_TIMEOUT = 30000;
+    
+    private static final double NANOS_PER_MILLI = 1000000.0;
+    
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("usage: LoadTest CONFIG_FILE");
+            System.exit(2);
+        }
+        
+        LoadTestConfig loadTestConfig;
+        try (Reader reader = new InputStreamReader(new FileInputStream(args[0]), charset)) {
+            loadTestConfig = new Gson().fromJson(reader, LoadTestConfig.class);
+        }
+        
+        int exitCode = 1;
+        try {
+            LoadTestReport report = new LoadTest(loadTestConfig).run();
+            report.print(System.out);
+            
+            if (loadTestConfig.reportFile != null) {
+                writeReport(report, new File(loadTestConfig.reportFile));
+            }
+            
+            exitCode = 0;
+        } catch (Exception ex) {
+            logger.log(Level.SEVERE, "Load test failed", ex);
+        }
+        
+        // Camel and broker may leave non-daemon threads behind
+        System.exit(exitCode);
+    }
+    
+    private static void writeReport(LoadTestReport report, File file) throws IOException {
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), charset)) {
+            gson.toJson(report, writer);
+        }
+    }
+    
+    private final LoadTestConfig config;
+    
+    public LoadTest(LoadTestConfig config) {
+        this.config = config;
+    }
+    
+    public LoadTestReport run() throws Exception {
+        File workDir = Files.createTempDirectory("amqpprocessmanager-loadtest").toFile();
+        installWorker(workDir);
+        
+        EmbeddedBroker broker = null;
+        CamelContext camelContext = null;
+        LoadGenerator generator = null;
+        ResourceSampler sampler = new ResourceSampler();
+        
+        try {
+            String host = config.brokerHost;
+            int port = config.brokerPort;
+            if (host == null) {
+                broker = new EmbeddedBroker(port, new File(workDir, "broker"));
+                broker.start();
+                host = "localhost";
+                port = broker.getPort();
+            }
+            
+            Config managerConfig = createManagerConfig(host, port, workDir);
+            ProcessConfiguration procConfig = managerConfig.processes.get(0);
+            
+            camelContext = new DefaultCamelContext();
+            camelContext.addRoutes(new ProcessManagerRouteBuilder(managerConfig, camelContext));
+            camelContext.start();
+            
+            generator = new LoadGenerator(config, procConfig.amqp.exchange, procConfig.amqp.routingKey);
+            generator.connect(host, port);
+            generator.awaitQueue(procConfig.amqp.queue, QUEUE_TIMEOUT);
+            
+            sampler.start();
+            generator.run();
+            sampler.shutdown();
+            
+            return createReport(procConfig, generator, sampler);
+        } finally {
+            sampler.shutdown();
+            
+            if (generator != null) {
+                generator.close();
+            }
+            
+            if (camelContext != null) {
+                try {
+                    camelContext.stop();
+                } catch (Exception ex) {
+                    logger.log(Level.WARNING, "Failed to stop Camel", ex);
+                }
+            }
+            
+            if (broker != null) {
+                broker.stop();
+            }
+        }
+    }
+    
+    /**
+     * Copies the synthetic worker script from classpath to given directory.
+     * Permissions are restricted as required by pre-condition checks.
+     */
+    private static void installWorker(File workDir) throws IOException {
+        File script = new File(workDir, WORKER_SCRIPT);
+        try (InputStream is = LoadTest.class.getClassLoader().getResourceAsStream(WORKER_SCRIPT)) {
+            if (is == null) {
+                throw new IOException("Worker script "+WORKER_SCRIPT+" is missing from classpath");
+            }
+            
+            Files.copy(is, script.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        
+        Files.setPosixFilePermissions(script.toPath(), PosixFilePermissions.fromString("r-x------"));
+    }
+    
+    /**
+     * Creates the manager configuration for a single process running the
+     * synthetic worker, based on the optional process configuration supplied
+     * with the load test configuration.
+     */
+    private Config createManagerConfig(String host, int port, File workDir) {
+        Config managerConfig = new Config();
+        managerConfig.ioSettings = config.ioSettings;
+        
+        managerConfig.amqpCommonSettings = new AMQPCommonSettings();
+        managerConfig.amqpCommonSettings.hostname = host;
+        managerConfig.amqpCommonSettings.port = port;
+        managerConfig.amqpCommonSettings.username = config.username;
+        managerConfig.amqpCommonSettings.password = config.password;
+        managerConfig.amqpCommonSettings.vhost = config.vhost;
+        
+        ProcessConfiguration procConfig = (config.process != null) ? config.process : new ProcessConfiguration();
+        procConfig.name = NAME;
+        
+        if (procConfig.execution == null) {
+            procConfig.execution = new ProcessExecutionConfiguration();
+        }
+        
+        ProcessExecutionConfiguration execution = procConfig.execution;
+        if (ProcessExecutionConfiguration.PROTOCOL_BINARY.equals(execution.protocol)) {
+            throw new IllegalArgumentException("Synthetic worker only supports the JSON protocol");
+        }
+        
+        execution.workDir = workDir.getAbsolutePath();
+        execution.executable = "./"+WORKER_SCRIPT;
+        execution.args.clear();
+        execution.args.add(config.worker);
+        if (config.workerParameter != null) {
+            execution.args.add(config.workerParameter);
+        }
+        
+        if (ProcessExecutionConfiguration.MODE_SPAWN.equals(execution.mode)) {
+            execution.env.put("AMQP_LOADTEST_ONCE", "1");
+        }
+        
+        // root is always able to write, no matter which permissions are set
+        if ("root".equals(System.getProperty("user.name"))) {
+            execution.allowWritableExecutable = true;
+        }
+        
+        procConfig.amqp = new ProcessAMQPConfiguration();
+        procConfig.amqp.exchange = NAME;
+        procConfig.amqp.exchangeType = "direct";
+        procConfig.amqp.routingKey = NAME;
+        procConfig.amqp.queue = NAME;
+        
+        managerConfig.processes.add(procConfig);
+        
+        return managerConfig;
+    }
+    
+    private LoadTestReport createReport(ProcessConfiguration procConfig, LoadGenerator generator, ResourceSampler sampler) {
+        LoadTestReport report = new LoadTestReport();
+        report.worker = config.worker;
+        report.mode = procConfig.execution.mode;
+        report.rate = config.rate;
+        report.duration = config.duration;
+        report.payloadSize = config.payloadSize;
+        
+        report.sent = generator.getSent();
+        report.succeeded = generator.getSucceeded();
+        report.failed = generator.getFailed();
+        report.timedOut = generator.getTimedOut();
+        report.skipped = generator.getSkipped();
+        report.throughput = (config.duration > 0) ? (double) report.succeeded / config.duration : 0.0;
+        
+        LatencyHistogram latency = generator.getLatency();
+        report.latencyMeanMs = latency.getMeanNanos() / NANOS_PER_MILLI;
+        report.latencyP50Ms = latency.getPercentileNanos(50.0) / NANOS_PER_MILLI;
+        report.latencyP99Ms = latency.getPercentileNanos(99.0) / NANOS_PER_MILLI;
+        report.latencyP999Ms = latency.getPercentileNanos(99.9) / NANOS_PER_MILLI;
+        report.latencyMaxMs = latency.getMaxNanos() / NANOS_PER_MILLI;
+        
+        sampler.fillReport(report);
+        
+        return report;
+    }
+}
@@ -0,0 +1,27 @@
+package de.glutrot.tools.amqpprocessmanager.loadtest;
+
+import de.glutrot.tools.amqpprocessmanager.beans.config.IOSettings;
+import de.glutrot.tools.amqpprocessmanager.beans.config.ProcessConfiguration;
+
+public class LoadTestConfig {
+    public String brokerHost = null; // null = start embedded broker
+    public int brokerPort = 5672; // 0 = any free port (embedded broker only)
+    public String username = "guest";
+    public String password = "guest";
+    public String vhost = null;
+    
+    public double rate = 100.0; // messages per second
+    public int duration = 30; // seconds
+    public int warmup = 5; // seconds, not included in report
+    public int payloadSize = 1024; // bytes
+    public int maxInFlight = 1000; // messages are skipped while exceeded
+    public int replyTimeout = 30; // seconds
+    
+    public String worker = "echo"; // echo, sleep, cpu, heartbeat, crash or hang
+    public String workerParameter = null;
+    
+    public ProcessConfiguration process = null; // executable, workDir and amqp are set by harness
+    public IOSettings ioSettings = new IOSettings();
+    
+    public String reportFile = null; // write report as JSON if set
+}
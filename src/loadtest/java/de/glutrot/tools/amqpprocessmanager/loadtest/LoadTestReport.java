@@ -0,0 +1,45 @@
+package de.glutrot.tools.amqpprocessmanager.loadtest;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * Results of a load test run, covering only the measurement period (warmup
+ * excluded). Latencies are in milliseconds, measured from the time a request
+ * was scheduled to be sent until its final reply has been received.
+ */
+public class LoadTestReport {
+    public String worker;
+    public String mode;
+    public double rate; // configured messages per second
+    public int duration; // seconds
+    public int payloadSize; // bytes
+    
+    public long sent = 0;
+    public long succeeded = 0;
+    public long failed = 0;
+    public long timedOut = 0;
+    public long skipped = 0; // not sent because maxInFlight was exceeded
+    public double throughput = 0.0; // successful replies per second
+    
+    public double latencyMeanMs = 0.0;
+    public double latencyP50Ms = 0.0;
+    public double latencyP99Ms = 0.0;
+    public double latencyP999Ms = 0.0;
+    public double latencyMaxMs = 0.0;
+    
+    public int maxThreads = 0;
+    public double avgThreads = 0.0;
+    public double maxHeapUsedMB = 0.0;
+    public double avgHeapUsedMB = 0.0;
+    
+    public void print(PrintStream out) {
+        out.println("Load test report ("+worker+", "+mode+"):");
+        out.println(String.format(Locale.ROOT, "  rate:        %.1f msg/s for %d s, %d bytes per message", rate, duration, payloadSize));
+        out.println(String.format(Locale.ROOT, "  messages:    %d sent, %d succeeded, %d failed, %d timed out, %d skipped", sent, succeeded, failed, timedOut, skipped));
+        out.println(String.format(Locale.ROOT, "  throughput:  %.1f msg/s", throughput));
+        out.println(String.format(Locale.ROOT, "  latency:     mean %.2f ms, p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms", latencyMeanMs, latencyP50Ms, latencyP99Ms, latencyP999Ms, latencyMaxMs));
+        out.println(String.format(Locale.ROOT, "  threads:     max %d, avg %.1f", maxThreads, avgThreads));
+        out.println(String.format(Locale.ROOT, "  heap used:   max %.1f MB, avg %.1f MB", maxHeapUsedMB, avgHeapUsedMB));
+    }
+}
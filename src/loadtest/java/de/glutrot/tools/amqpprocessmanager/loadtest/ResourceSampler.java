@@ -0,0 +1,70 @@
+package de.glutrot.tools.amqpprocessmanager.loadtest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Samples thread count and heap usage of the JVM once per second while a load
+ * test is running. Since manager and load generator share the JVM, figures
+ * include both.
+ */
+public class ResourceSampler extends Thread {
+    private static final long SAMPLE_INTERVAL = 1000;
+    
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    
+    private volatile boolean shouldRun = true;
+    
+    private long samples = 0;
+    private int maxThreads = 0;
+    private long sumThreads = 0;
+    private long maxHeapUsed = 0;
+    private long sumHeapUsed = 0;
+    
+    public ResourceSampler() {
+        setName("LoadTestResourceSampler");
+        setDaemon(true);
+    }
+    
+    @Override
+    public void run() {
+        while (shouldRun) {
+            sample();
+            
+            try {
+                Thread.sleep(SAMPLE_INTERVAL);
+            } catch (InterruptedException ex) {
+                break;
+            }
+        }
+    }
+    
+    private synchronized void sample() {
+        int threads = threadBean.getThreadCount();
+        long heapUsed = memoryBean.getHeapMemoryUsage().getUsed();
+        
+        samples++;
+        sumThreads += threads;
+        sumHeapUsed += heapUsed;
+        maxThreads = Math.max(maxThreads, threads);
+        maxHeapUsed = Math.max(maxHeapUsed, heapUsed);
+    }
+    
+    public void shutdown() {
+        shouldRun = false;
+        interrupt();
+    }
+    
+    /**
+     * Copies sampled figures to the given report.
+     * @param report report to fill
+     */
+    public synchronized void fillReport(LoadTestReport report) {
+        report.maxThreads = maxThreads;
+        report.avgThreads = (samples > 0) ? (double) sumThreads / samples : 0.0;
+        report.maxHeapUsedMB = maxHeapUsed / (1024.0 * 1024.0);
+        report.avgHeapUsedMB = (samples > 0) ? sumHeapUsed / (1024.0 * 1024.0) / samples : 0.0;
+    }
+}
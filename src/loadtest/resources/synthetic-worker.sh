@@ -0,0 +1,55 @@
+#!/bin/sh
+# Synthetic worker for load tests, speaking the JSON protocol.
+#
+# usage: synthetic-worker.sh BEHAVIOUR [PARAMETER]
+#
+#   echo               replies with the message
+#   sleep SECONDS      sleeps before replying (fractions allowed)
+#   cpu ITERATIONS     burns CPU in a busy loop before replying
+#   heartbeat COUNT    sends COUNT heartbeats before replying
+#   crash              exits without replying
+#   hang               never replies (until killed by the watchdog)
+#
+# Handles messages until stdin is closed (pooled mode, also multiplexed)
+# or only a single message if AMQP_LOADTEST_ONCE is set (spawn mode).
+
+behaviour="$1"
+parameter="${2:-0}"
+
+while IFS= read -r line; do
+    # keep request ID (if multiplexed) and body as they are
+    rest="${line#\[\"message\",}"
+    
+    case "$behaviour" in
+        sleep)
+            sleep "$parameter"
+            ;;
+        cpu)
+            i=0
+            while [ "$i" -lt "$parameter" ]; do
+                i=$((i + 1))
+            done
+            ;;
+        heartbeat)
+            i=0
+            while [ "$i" -lt "$parameter" ]; do
+                printf '["heartbeat"]\n'
+                i=$((i + 1))
+            done
+            ;;
+        crash)
+            exit 1
+            ;;
+        hang)
+            while :; do
+                sleep 3600
+            done
+            ;;
+    esac
+    
+    printf '["result",%s\n' "$rest"
+    
+    if [ -n "$AMQP_LOADTEST_ONCE" ]; then
+        exit 0
+    fi
+done
@@ -0,0 +1,381 @@
+package de.glutrot.tools.amqpprocessmanager;
+
+import de.glutrot.tools.amqpprocessmanager.metrics.MetricsRegistry;
+import de.glutrot.tools.amqpprocessmanager.metrics.ProcessMetrics;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides if another process may be spawned, shared by all configured
+ * processes. Processes are only admitted while
+ * <ul>
+ * <li>the 1 minute load average (<code>/proc/loadavg</code>) is below maxLoadAverage</li>
+ * <li>available memory is at least minAvailableMemory, which is the lower
+ * of <code>MemAvailable</code> from <code>/proc/meminfo</code> and the
+ * remaining memory of the cgroup the manager runs in (v1 or v2, not counting
+ * inactive page cache)</li>
+ * <li>less than maxProcesses processes are running for all configured processes</li>
+ * <li>the spawn rate does not exceed maxSpawnRate, allowing bursts of
+ * spawnBurst processes (token bucket)</li>
+ * </ul>
+ * Callers which are not admitted wait until they are, for at most maxDelay,
+ * and should shed their work afterwards. System readings are sampled at most
+ * once per sampleInterval; limits which are 0 or cannot be read are not
+ * enforced.<br />
+ * <br />
+ * Each successful acquire() reserves a process which has to be released by
+ * calling release() once the process has been started (or failed to start),
+ * as running processes are only counted from then on.
+ */
+public class AdmissionController {
+    private static final Logger logger = Logger.getLogger(AdmissionController.class.getName());
+    
+    private static final Charset charset = Charset.forName("UTF-8");
+    
+    private static final File PROC_LOADAVG = new File("/proc/loadavg");
+    private static final File PROC_MEMINFO = new File("/proc/meminfo");
+    private static final File PROC_SELF_CGROUP = new File("/proc/self/cgroup");
+    private static final File CGROUP_ROOT = new File("/sys/fs/cgroup");
+    
+    // cgroup v1 reports "unlimited" as a huge number close to Long.MAX_VALUE
+    private static final long CGROUP_V1_UNLIMITED = Long.MAX_VALUE / 2;
+    
+    private final double maxLoadAverage;
+    private final long minAvailableMemory;
+    private final int maxProcesses;
+    private final double maxSpawnRate;
+    private final double spawnBurst;
+    private final long maxDelayNanos;
+    private final long sampleIntervalNanos;
+    
+    private final File cgroupMemoryLimit;
+    private final File cgroupMemoryUsage;
+    private final File cgroupMemoryStat;
+    private final String cgroupInactiveFileKey;
+    
+    private final Object syncObj = new Object();
+    private long lastSampleNanos = 0;
+    private boolean sampled = false;
+    private double loadAverage = -1.0;
+    private long availableMemory = -1;
+    private int reserved = 0;
+    private double tokens;
+    private long lastRefillNanos;
+    
+    /**
+     * @param maxLoadAverage maximum 1 minute load average (0 = unlimited)
+     * @param minAvailableMemory minimum available memory (bytes, 0 = unlimited)
+     * @param maxProcesses maximum number of processes running for all configured processes (0 = unlimited)
+     * @param maxSpawnRate maximum number of processes spawned per second (0 = unlimited)
+     * @param spawnBurst number of processes which may be spawned at once, exceeding maxSpawnRate
+     * @param maxDelay maximum time to wait for admission (milliseconds)
+     * @param sampleInterval minimum interval between reading system load and memory (milliseconds)
+     */
+    public AdmissionController(double maxLoadAverage, long minAvailableMemory, int maxProcesses, double maxSpawnRate, int spawnBurst, int maxDelay, int sampleInterval) {
+        this.maxLoadAverage = Math.max(0.0, maxLoadAverage);
+        this.minAvailableMemory = Math.max(0, minAvailableMemory);
+        this.maxProcesses = Math.max(0, maxProcesses);
+        this.maxSpawnRate = Math.max(0.0, maxSpawnRate);
+        this.spawnBurst = Math.max(1, spawnBurst);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDelay));
+        this.sampleIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, sampleInterval));
+        
+        tokens = this.spawnBurst;
+        lastRefillNanos = System.nanoTime();
+        
+        // locate memory controller of our own cgroup
+        File cgroupDirectory = findCgroupV2Directory();
+        if (cgroupDirectory != null) {
+            cgroupMemoryLimit = new File(cgroupDirectory, "memory.max");
+            cgroupMemoryUsage = new File(cgroupDirectory, "memory.current");
+            cgroupMemoryStat = new File(cgroupDirectory, "memory.stat");
+            cgroupInactiveFileKey = "inactive_file";
+        } else {
+            cgroupDirectory = findCgroupV1MemoryDirectory();
+            cgroupMemoryLimit = (cgroupDirectory != null) ? new File(cgroupDirectory, "memory.limit_in_bytes") : null;
+            cgroupMemoryUsage = (cgroupDirectory != null) ? new File(cgroupDirectory, "memory.usage_in_bytes") : null;
+            cgroupMemoryStat = (cgroupDirectory != null) ? new File(cgroupDirectory, "memory.stat") : null;
+            cgroupInactiveFileKey = "total_inactive_file";
+        }
+        
+        if ((this.minAvailableMemory > 0) && (cgroupDirectory != null)) {
+            logger.log(Level.INFO, "Admission control reads cgroup memory limits from {0}", cgroupDirectory.getPath());
+        }
+    }
+    
+    /**
+     * Waits until another process may be spawned, at most for maxDelay. If
+     * admitted, a process is reserved which has to be released by calling
+     * release().
+     * @param metrics metrics of the process to spawn, to count delays and sheds
+     * @param name name of the process to spawn, used for logging
+     * @return admitted? if not, work should be shed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean acquire(ProcessMetrics metrics, String name) throws InterruptedException {
+        long startTimeNanos = System.nanoTime();
+        boolean delayed = false;
+        
+        while (true) {
+            long currentTimeNanos = System.nanoTime();
+            long waitNanos;
+            String reason;
+            
+            synchronized (syncObj) {
+                reason = checkResources(currentTimeNanos);
+                if (reason == null) {
+                    waitNanos = takeToken(currentTimeNanos);
+                    if (waitNanos <= 0) {
+                        reserved++;
+                        return true;
+                    }
+                    
+                    reason = "spawn rate limit reached";
+                } else {
+                    waitNanos = sampleIntervalNanos;
+                }
+            }
+            
+            long remainingNanos = startTimeNanos + maxDelayNanos - currentTimeNanos;
+            if (remainingNanos <= 0) {
+                logger.log(Level.INFO, "Process {0}: Not admitted within {1,number,#}ms ({2}), shedding work", new Object[]{name, TimeUnit.NANOSECONDS.toMillis(currentTimeNanos - startTimeNanos), reason});
+                metrics.countAdmissionShed();
+                return false;
+            }
+            
+            if (!delayed) {
+                logger.log(Level.FINE, "Process {0}: Delaying spawn ({1})", new Object[]{name, reason});
+                metrics.countAdmissionDelayed();
+                delayed = true;
+            }
+            
+            TimeUnit.NANOSECONDS.sleep(Math.min(waitNanos, remainingNanos));
+        }
+    }
+    
+    /**
+     * Releases a process reserved by acquire() after it has been started or
+     * failed to start.
+     */
+    public void release() {
+        synchronized (syncObj) {
+            reserved--;
+        }
+    }
+    
+    /**
+     * Checks all limits except spawn rate. Must be called while holding
+     * syncObj.
+     * @param currentTimeNanos current time based on System.nanoTime()
+     * @return reason why no process may be spawned, null if resources are available
+     */
+    private String checkResources(long currentTimeNanos) {
+        if (!sampled || (currentTimeNanos - lastSampleNanos >= sampleIntervalNanos)) {
+            sample();
+            lastSampleNanos = currentTimeNanos;
+            sampled = true;
+        }
+        
+        if ((maxLoadAverage > 0) && (loadAverage >= maxLoadAverage)) {
+            return "load average "+Double.toString(loadAverage)+" exceeds "+Double.toString(maxLoadAverage);
+        }
+        
+        if ((minAvailableMemory > 0) && (availableMemory >= 0) && (availableMemory < minAvailableMemory)) {
+            return "available memory "+Long.toString(availableMemory)+" bytes below "+Long.toString(minAvailableMemory);
+        }
+        
+        if (maxProcesses > 0) {
+            int processes = MetricsRegistry.getInstance().getRunningProcessCount() + reserved;
+            if (processes >= maxProcesses) {
+                return Integer.toString(processes)+" processes running";
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Takes a token from the spawn rate bucket if available. Must be called
+     * while holding syncObj.
+     * @param currentTimeNanos current time based on System.nanoTime()
+     * @return 0 if a token has been taken, otherwise time until next token is available (nanoseconds)
+     */
+    private long takeToken(long currentTimeNanos) {
+        if (maxSpawnRate <= 0) {
+            return 0;
+        }
+        
+        tokens = Math.min(spawnBurst, tokens + (currentTimeNanos - lastRefillNanos) * maxSpawnRate / TimeUnit.SECONDS.toNanos(1));
+        lastRefillNanos = currentTimeNanos;
+        
+        if (tokens >= 1.0) {
+            tokens -= 1.0;
+            return 0;
+        }
+        
+        return Math.max(1, (long) Math.ceil((1.0 - tokens) / maxSpawnRate * TimeUnit.SECONDS.toNanos(1)));
+    }
+    
+    /**
+     * Reads current load average and available memory as far as required by
+     * configured limits. Values which cannot be read are set negative.
+     */
+    private void sample() {
+        if (maxLoadAverage > 0) {
+            loadAverage = readLoadAverage();
+        }
+        
+        if (minAvailableMemory > 0) {
+            long hostAvailable = readMemAvailable();
+            long cgroupAvailable = readCgroupAvailableMemory();
+            
+            if ((hostAvailable >= 0) && (cgroupAvailable >= 0)) {
+                availableMemory = Math.min(hostAvailable, cgroupAvailable);
+            } else {
+                availableMemory = Math.max(hostAvailable, cgroupAvailable);
+            }
+        }
+    }
+    
+    private double readLoadAverage() {
+        try {
+            List<String> lines = Files.readAllLines(PROC_LOADAVG.toPath(), charset);
+            if (!lines.isEmpty()) {
+                return Double.parseDouble(lines.get(0).trim().split("\\s+")[0]);
+            }
+        } catch (IOException | NumberFormatException ex) {
+            logger.log(Level.FINE, "Failed to read load average", ex);
+        }
+        
+        return -1.0;
+    }
+    
+    /**
+     * @return MemAvailable as reported by /proc/meminfo (bytes), -1 if unknown
+     */
+    private long readMemAvailable() {
+        try {
+            for (String line : Files.readAllLines(PROC_MEMINFO.toPath(), charset)) {
+                if (line.startsWith("MemAvailable:")) {
+                    String[] fields = line.split("\\s+");
+                    return Long.parseLong(fields[1]) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            logger.log(Level.FINE, "Failed to read available memory", ex);
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * @return memory remaining until the cgroup limit is reached (bytes), -1 if unknown or unlimited
+     */
+    private long readCgroupAvailableMemory() {
+        if (cgroupMemoryLimit == null) {
+            return -1;
+        }
+        
+        try {
+            String limitValue = readFirstLine(cgroupMemoryLimit);
+            if ((limitValue == null) || "max".equals(limitValue)) {
+                return -1;
+            }
+            
+            long limit = Long.parseLong(limitValue);
+            if (limit >= CGROUP_V1_UNLIMITED) {
+                return -1;
+            }
+            
+            long usage = Long.parseLong(readFirstLine(cgroupMemoryUsage));
+            
+            // page cache which can be reclaimed does not count as used
+            for (String line : Files.readAllLines(cgroupMemoryStat.toPath(), charset)) {
+                if (line.startsWith(cgroupInactiveFileKey+" ")) {
+                    usage -= Long.parseLong(line.substring(cgroupInactiveFileKey.length() + 1).trim());
+                    break;
+                }
+            }
+            
+            return Math.max(0, limit - Math.max(0, usage));
+        } catch (IOException | RuntimeException ex) {
+            logger.log(Level.FINE, "Failed to read cgroup memory", ex);
+        }
+        
+        return -1;
+    }
+    
+    private static String readFirstLine(File file) throws IOException {
+        List<String> lines = Files.readAllLines(file.toPath(), charset);
+        return lines.isEmpty() ? null : lines.get(0).trim();
+    }
+    
+    /**
+     * Finds the cgroup v2 directory of the manager, falling back to the root
+     * of the hierarchy (e.g. inside containers).
+     * @return directory holding memory.max, null if cgroup v2 is not used
+     */
+    private static File findCgroupV2Directory() {
+        String path = findCgroupPath("");
+        if (path != null) {
+            File directory = new File(CGROUP_ROOT, path);
+            if (new File(directory, "memory.max").isFile()) {
+                return directory;
+            }
+        }
+        
+        return new File(CGROUP_ROOT, "memory.max").isFile() ? CGROUP_ROOT : null;
+    }
+    
+    /**
+     * Finds the cgroup v1 memory controller directory of the manager, falling
+     * back to the root of the hierarchy (e.g. inside containers).
+     * @return directory holding memory.limit_in_bytes, null if not available
+     */
+    private static File findCgroupV1MemoryDirectory() {
+        File root = new File(CGROUP_ROOT, "memory");
+        
+        String path = findCgroupPath("memory");
+        if (path != null) {
+            File directory = new File(root, path);
+            if (new File(directory, "memory.limit_in_bytes").isFile()) {
+                return directory;
+            }
+        }
+        
+        return new File(root, "memory.limit_in_bytes").isFile() ? root : null;
+    }
+    
+    /**
+     * Reads the cgroup path of the manager from /proc/self/cgroup.
+     * @param controller controller to find path for, empty for cgroup v2
+     * @return cgroup path, null if not found
+     */
+    private static String findCgroupPath(String controller) {
+        try {
+            for (String line : Files.readAllLines(PROC_SELF_CGROUP.toPath(), charset)) {
+                // format: hierarchy-ID:controller-list:path
+                String[] fields = line.split(":", 3);
+                if (fields.length < 3) {
+                    continue;
+                }
+                
+                boolean matches = controller.isEmpty() ? "0".equals(fields[0]) && fields[1].isEmpty() : Arrays.asList(fields[1].split(",")).contains(controller);
+                if (matches) {
+                    return fields[2];
+                }
+            }
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "Failed to read cgroup of process", ex);
+        }
+        
+        return null;
+    }
+}
@@ -0,0 +1,176 @@
+package de.glutrot.tools.amqpprocessmanager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes and decodes IPC messages of the binary protocol variant (see
+ * ProcessCommunicator). Each frame consists of a 9 byte header followed by
+ * the raw payload:
+ * <ul>
+ * <li>1 byte frame type (see TYPE_* constants)</li>
+ * <li>4 bytes request ID (unsigned, big-endian), 0 if not multiplexed</li>
+ * <li>4 bytes payload length (big-endian)</li>
+ * </ul>
+ * Payloads are passed as they are without any encoding, except for file
+ * references (TYPE_MESSAGE_FILE, TYPE_RESULT_FILE) which hold a UTF-8
+ * encoded path and batches (TYPE_BATCH) which hold a sequence of items, each
+ * consisting of request ID, length and raw data encoded like a frame header.
+ */
+public class BinaryFrameCodec {
+    public static final byte TYPE_BATCH = 'B';
+    public static final byte TYPE_HEARTBEAT = 'H';
+    public static final byte TYPE_MESSAGE = 'M';
+    public static final byte TYPE_PARTIAL = 'P';
+    public static final byte TYPE_RESULT = 'R';
+    public static final byte TYPE_MESSAGE_FILE = 'm';
+    public static final byte TYPE_RESULT_FILE = 'r';
+    
+    public static final int HEADER_LENGTH = 9;
+    
+    /**
+     * Maximum accepted payload length of frames sent by processes.
+     */
+    public static final int MAX_PAYLOAD_LENGTH = 128 * 1024 * 1024;
+    
+    private static final byte[] EMPTY_PAYLOAD = new byte[0];
+    
+    /**
+     * Receives frames decoded by a Decoder.
+     */
+    public interface FrameHandler {
+        /**
+         * Called for each complete frame.
+         * @param type frame type
+         * @param requestId request ID (to be treated as unsigned), 0 if not set
+         * @param payload raw payload, owned by the handler
+         */
+        void handleFrame(byte type, int requestId, byte[] payload);
+        
+        /**
+         * Called once if data could not be decoded, no further frames will
+         * be passed afterwards.
+         * @param message description of error
+         */
+        void handleProtocolError(String message);
+        
+        /**
+         * Called once after the stream has been closed.
+         */
+        void handleEndOfStream();
+    }
+    
+    /**
+     * Decodes frames incrementally from data read from a process.
+     */
+    public static class Decoder implements ProcessIOEventLoop.DataHandler {
+        private final FrameHandler handler;
+        
+        private final byte[] header = new byte[HEADER_LENGTH];
+        private int headerLength = 0;
+        private byte[] payload = null;
+        private int payloadLength = 0;
+        private boolean failed = false;
+        
+        public Decoder(FrameHandler handler) {
+            this.handler = handler;
+        }
+        
+        @Override
+        public void handleData(byte[] buffer, int length) {
+            int pos = 0;
+            while ((pos < length) && !failed) {
+                // collect header
+                if (payload == null) {
+                    int copyLength = Math.min(HEADER_LENGTH - headerLength, length - pos);
+                    System.arraycopy(buffer, pos, header, headerLength, copyLength);
+                    headerLength += copyLength;
+                    pos += copyLength;
+                    
+                    if (headerLength < HEADER_LENGTH) {
+                        break;
+                    }
+                    
+                    int expectedLength = readInt(header, 5);
+                    if ((expectedLength < 0) || (expectedLength > MAX_PAYLOAD_LENGTH)) {
+                        failed = true;
+                        handler.handleProtocolError("invalid payload length "+Integer.toUnsignedString(expectedLength));
+                        break;
+                    }
+                    
+                    payload = (expectedLength > 0) ? new byte[expectedLength] : EMPTY_PAYLOAD;
+                    payloadLength = 0;
+                }
+                
+                // collect payload
+                int copyLength = Math.min(payload.length - payloadLength, length - pos);
+                System.arraycopy(buffer, pos, payload, payloadLength, copyLength);
+                payloadLength += copyLength;
+                pos += copyLength;
+                
+                if (payloadLength == payload.length) {
+                    byte[] completePayload = (payload == EMPTY_PAYLOAD) ? new byte[0] : payload;
+                    payload = null;
+                    headerLength = 0;
+                    
+                    handler.handleFrame(header[0], readInt(header, 1), completePayload);
+                }
+            }
+        }
+        
+        @Override
+        public void handleEndOfStream() {
+            if (!failed && ((headerLength > 0) || (payload != null))) {
+                failed = true;
+                handler.handleProtocolError("stream ended within frame");
+            }
+            
+            handler.handleEndOfStream();
+        }
+    }
+    
+    private static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16) | ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+    }
+    
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+    
+    /**
+     * Writes a single frame to given stream. The stream is not flushed.
+     * @param out stream to write to
+     * @param type frame type
+     * @param requestId request ID, 0 if not multiplexed
+     * @param payload raw payload
+     * @throws IOException if writing fails
+     */
+    public static void writeFrame(OutputStream out, byte type, int requestId, byte[] payload) throws IOException {
+        byte[] header = new byte[HEADER_LENGTH];
+        header[0] = type;
+        writeInt(header, 1, requestId);
+        writeInt(header, 5, payload.length);
+        
+        out.write(header);
+        out.write(payload);
+    }
+    
+    /**
+     * Writes a single item of a batch frame payload to given buffer.
+     * @param out buffer to write to
+     * @param requestId request ID of item
+     * @param data raw data of item
+     */
+    public static void writeBatchItem(ByteArrayOutputStream out, int requestId, byte[] data) {
+        byte[] header = new byte[8];
+        writeInt(header, 0, requestId);
+        writeInt(header, 4, data.length);
+        
+        out.write(header, 0, header.length);
+        out.write(data, 0, data.length);
+    }
+}
@@ -0,0 +1,169 @@
+package de.glutrot.tools.amqpprocessmanager;
+
+import de.glutrot.tools.amqpprocessmanager.beans.config.Config;
+import de.glutrot.tools.amqpprocessmanager.beans.config.ReloadSettings;
+import de.glutrot.tools.amqpprocessmanager.camel.ProcessManagerRouteBuilder;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reloads the configuration file on SIGHUP and, if requested, whenever the
+ * file changes. Reloads are run one at a time on a dedicated thread; requests
+ * arriving while a reload is pending are coalesced. The parsed configuration
+ * is applied by ProcessManagerRouteBuilder.reload(), so only routes of added,
+ * removed or changed processes are affected. If the file cannot be read or
+ * parsed, the running configuration is kept.
+ */
+public class ConfigReloader {
+    private static final Logger logger = Logger.getLogger(ConfigReloader.class.getName());
+    
+    private final File configFile;
+    private final ProcessManagerRouteBuilder routeBuilder;
+    private final ReloadSettings settings;
+    
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+    private WatchService watchService = null;
+    
+    /**
+     * @param configFile configuration file to reload
+     * @param routeBuilder route builder to apply reloaded configuration to
+     * @param settings reload settings, defaults are used if null
+     */
+    public ConfigReloader(File configFile, ProcessManagerRouteBuilder routeBuilder, ReloadSettings settings) {
+        this.configFile = configFile.getAbsoluteFile();
+        this.routeBuilder = routeBuilder;
+        this.settings = (settings != null) ? settings : new ReloadSettings();
+        
+        executor = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            Thread thread = new Thread(r, "ConfigReloader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Starts handling SIGHUP and watching the configuration file if requested.
+     */
+    public void start() {
+        try {
+            SignalHandlers.handle("HUP", () -> requestReload(0));
+        } catch (IllegalArgumentException ex) {
+            logger.log(Level.WARNING, "Unable to handle SIGHUP, configuration can not be reloaded by signal:", ex);
+        }
+        
+        if (settings.watch) {
+            startWatching();
+        }
+    }
+    
+    /**
+     * Stops watching the configuration file and cancels pending reloads.
+     */
+    public void stop() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "Failed to close watch service:", ex);
+            }
+        }
+        
+        executor.shutdownNow();
+    }
+    
+    /**
+     * Schedules a reload unless one is already pending.
+     * @param delayMillis time to wait before reloading (milliseconds)
+     */
+    public void requestReload(long delayMillis) {
+        if (!pending.compareAndSet(false, true)) {
+            return;
+        }
+        
+        try {
+            executor.schedule(this::reload, Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+        } catch (RuntimeException ex) {
+            pending.set(false);
+            logger.log(Level.FINE, "Unable to schedule reload:", ex);
+        }
+    }
+    
+    private void reload() {
+        // changes from now on need another reload
+        pending.set(false);
+        
+        logger.log(Level.INFO, "Reloading configuration from {0}", configFile);
+        
+        Config config;
+        try {
+            config = Main.readConfig(configFile);
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "Failed to read configuration from "+configFile+", keeping current configuration:", ex);
+            return;
+        }
+        
+        try {
+            routeBuilder.reload(config);
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "Failed to apply reloaded configuration:", ex);
+        }
+    }
+    
+    private void startWatching() {
+        Path file = configFile.toPath();
+        Path directory = file.getParent();
+        if (directory == null) {
+            return;
+        }
+        
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Unable to watch "+file+" for changes, configuration will only be reloaded on SIGHUP:", ex);
+            return;
+        }
+        
+        Thread watchThread = new Thread(() -> watch(file.getFileName()), "ConfigReloader watch");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+    
+    private void watch(Path fileName) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                return;
+            }
+            
+            for (WatchEvent<?> event : key.pollEvents()) {
+                // events may have been lost on overflow
+                if ((event.kind() == StandardWatchEventKinds.OVERFLOW) || fileName.equals(event.context())) {
+                    // editors may write files in multiple steps
+                    requestReload(settings.delay);
+                }
+            }
+            
+            if (!key.reset()) {
+                logger.log(Level.WARNING, "Directory of {0} is no longer accessible, configuration will only be reloaded on SIGHUP", configFile);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package de.glutrot.tools.amqpprocessmanager;
+
+import de.glutrot.tools.amqpprocessmanager.camel.ProcessManagerRouteBuilder;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.camel.CamelContext;
+
+/**
+ * Shuts down gracefully on SIGTERM or SIGINT: all process routes are drained
+ * (see ProcessManagerRouteBuilder.drain()) so messages being processed are
+ * completed and replied to instead of being redelivered, then Camel is
+ * stopped and the JVM exits. Signals are handled instead of using a shutdown
+ * hook as logging is already being shut down while hooks run. A second
+ * signal exits immediately, leaving all unacknowledged messages to be
+ * redelivered.
+ */
+public class GracefulShutdown {
+    private static final Logger logger = Logger.getLogger(GracefulShutdown.class.getName());
+    
+    private final CamelContext camelContext;
+    private final ProcessManagerRouteBuilder routeBuilder;
+    private final ConfigReloader reloader;
+    
+    private final AtomicBoolean shuttingDown = new AtomicBoolean(false);
+    
+    /**
+     * @param camelContext context to stop
+     * @param routeBuilder route builder to drain routes of
+     * @param reloader reloader to stop before draining, may be null
+     */
+    public GracefulShutdown(CamelContext camelContext, ProcessManagerRouteBuilder routeBuilder, ConfigReloader reloader) {
+        this.camelContext = camelContext;
+        this.routeBuilder = routeBuilder;
+        this.reloader = reloader;
+    }
+    
+    /**
+     * Starts handling SIGTERM and SIGINT.
+     */
+    public void install() {
+        for (String signalName : new String[]{"TERM", "INT"}) {
+            try {
+                SignalHandlers.handle(signalName, () -> handle(signalName));
+            } catch (IllegalArgumentException ex) {
+                logger.log(Level.WARNING, "Unable to handle SIG"+signalName+", unacknowledged messages will be redelivered on shutdown:", ex);
+            }
+        }
+    }
+    
+    private void handle(String signalName) {
+        if (!shuttingDown.compareAndSet(false, true)) {
+            logger.log(Level.WARNING, "Received SIG{0} again, exiting immediately", signalName);
+            System.exit(1);
+            return;
+        }
+        
+        logger.log(Level.INFO, "Received SIG{0}, shutting down gracefully (send again to exit immediately)", signalName);
+        
+        Thread thread = new Thread(this::shutdown, "GracefulShutdown");
+        thread.start();
+    }
+    
+    private void shutdown() {
+        int exitCode = 0;
+        
+        if (reloader != null) {
+            reloader.stop();
+        }
+        
+        try {
+            routeBuilder.drain();
+        } catch (InterruptedException ex) {
+            logger.log(Level.WARNING, "Interrupted while draining, remaining messages will be redelivered", ex);
+            exitCode = 1;
+        } catch (RuntimeException ex) {
+            logger.log(Level.WARNING, "Failed to drain, remaining messages will be redelivered:", ex);
+            exitCode = 1;
+        }
+        
+        try {
+            camelContext.stop();
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "Failed to stop Camel:", ex);
+            exitCode = 1;
+        }
+        
+        logger.log(Level.INFO, "Shutdown complete");
+        System.exit(exitCode);
+    }
+}
@@ -3,11 +3,16 @@ package de.glutrot.tools.amqpprocessmanager;
 import de.glutrot.tools.amqpprocessmanager.beans.config.Config;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 import de.glutrot.tools.amqpprocessmanager.camel.ProcessManagerRouteBuilder;
+import de.glutrot.tools.amqpprocessmanager.metrics.MetricsHttpServer;
+import de.glutrot.tools.amqpprocessmanager.metrics.MetricsRegistry;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.Charset;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -27,12 +32,15 @@ public class Main {
         parseArguments(args);
         Config config = readConfigOrExit();
         
-        CamelContext camelContext = configureCamel(config);
-        if (camelContext == null) {
+        CamelContext camelContext = new DefaultCamelContext();
+        ProcessManagerRouteBuilder routeBuilder = new ProcessManagerRouteBuilder(config, camelContext);
+        if (!configureCamel(camelContext, routeBuilder)) {
             System.err.println("Exiting because Camel failed to configure...");
             System.exit(1);
         }
         
+        MetricsHttpServer metricsServer = startMetricsServer(config);
+        
         logger.log(Level.INFO, "Starting Camel...");
         camelContext.start();
         while (camelContext.getStatus().isStarting()) {
@@ -40,27 +48,60 @@ public class Main {
         };
         
         logger.log(Level.INFO, "Camel started...");
+        
+        // processes can be reconfigured without restarting
+        ConfigReloader reloader = new ConfigReloader(new File(configFilePath), routeBuilder, config.reload);
+        reloader.start();
+        
+        // messages being processed are completed before shutting down
+        new GracefulShutdown(camelContext, routeBuilder, reloader).install();
+        
         ServiceStatus status = camelContext.getStatus();
         do {
             Thread.sleep(2000);
         } while (status.isStarted() || status.isSuspended() || status.isSuspending());
         
         logger.log(Level.INFO, "Camel stopped, shutting down...");
+        
+        reloader.stop();
+        
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+    }
+    
+    /**
+     * Starts the HTTP server exposing metrics if configured.
+     * @return started server, null if disabled or failed to start
+     */
+    private static MetricsHttpServer startMetricsServer(final Config config) {
+        if ((config.metrics == null) || (config.metrics.httpPort <= 0)) {
+            return null;
+        }
+        
+        MetricsHttpServer server = new MetricsHttpServer(MetricsRegistry.getInstance(), config.metrics.httpBindAddress, config.metrics.httpPort);
+        try {
+            server.start();
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "Failed to start metrics HTTP server, metrics are only available via JMX:", ex);
+            return null;
+        }
+        
+        return server;
     }
     
     /**
      * Configures Camel according to configuration.
-     * @return configured CamelContext if successful, else null
+     * @return true if successful, else false
      */
-    private static CamelContext configureCamel(final Config config) {
+    private static boolean configureCamel(final CamelContext camelContext, final ProcessManagerRouteBuilder routeBuilder) {
         try {
-            CamelContext camelContext = new DefaultCamelContext();
-            camelContext.addRoutes(new ProcessManagerRouteBuilder(config, camelContext));
-            return camelContext;
+            camelContext.addRoutes(routeBuilder);
+            return true;
         } catch (Exception ex) {
             System.err.println("Error while trying to configure Camel:");
             ex.printStackTrace();
-            return null;
+            return false;
         }
     }
     
@@ -115,9 +156,7 @@ public class Main {
         
         // parse config file
         try {
-            GsonBuilder gsonBuilder = new GsonBuilder();
-            Gson gson = gsonBuilder.create();
-            config = gson.fromJson(configFileReader, Config.class);
+            config = parseConfig(configFileReader);
         } catch (Exception ex) {
             System.err.println("Error while parsing config file "+configFilePath+":");
             ex.printStackTrace();
@@ -127,6 +166,31 @@ public class Main {
         return config;
     }
 
+    /**
+     * Reads the configuration file again, e.g. to reload it.
+     * @param configFile configuration file
+     * @return parsed configuration
+     * @throws IOException if the file could not be read
+     * @throws JsonParseException if the file could not be parsed
+     */
+    static Config readConfig(final File configFile) throws IOException, JsonParseException {
+        Charset charset = Charset.forName(defaultConfigFileCharset);
+        try (BufferedReader configFileReader = new BufferedReader(new InputStreamReader(new FileInputStream(configFile), charset))) {
+            return parseConfig(configFileReader);
+        }
+    }
+    
+    private static Config parseConfig(final Reader reader) throws JsonParseException {
+        GsonBuilder gsonBuilder = new GsonBuilder();
+        Gson gson = gsonBuilder.create();
+        Config config = gson.fromJson(reader, Config.class);
+        if (config == null) {
+            throw new JsonParseException("Config file is empty");
+        }
+        
+        return config;
+    }
+    
     private static void printHelpAndExit() {
         System.out.println("You can supply the path to the JSON-formatted config file to use for this instance. If that argument is missing, ~/"+defaultConfigFileName+" will be read instead.");
         System.exit(2);
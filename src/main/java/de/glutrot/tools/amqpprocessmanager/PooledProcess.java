@@ -0,0 +1,176 @@
+package de.glutrot.tools.amqpprocessmanager;
+
+import de.glutrot.tools.amqpprocessmanager.metrics.MetricsRegistry;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A long-lived process handling multiple messages one after another (or, if
+ * multiplexed, at the same time), linked with its own watchdog and
+ * communicator. The watchdog is only armed while requests are being
+ * processed, so idle processes do not need to send any heartbeats.
+ */
+public class PooledProcess {
+    private static final Logger logger = Logger.getLogger(PooledProcess.class.getName());
+    
+    private final Process process;
+    private final ProcessWatchdog watchdog;
+    private final ProcessCommunicator communicator;
+    private final String logPrefix;
+    
+    private final long startTimeMillis;
+    private volatile long lastUsedMillis;
+    private volatile int requestCount = 0;
+    private volatile int inFlight = 0;
+    
+    /**
+     * Spawns a new process to be held in a pool.
+     * @param pb ProcessBuilder to start the process with
+     * @param watchdogTimeout timeout after last heartbeat during a request (seconds)
+     * @param watchdogCheckInterval interval at which the watchdog should check process state (milliseconds)
+     * @param logStdErr forward stderr to log?
+     * @param multiplexed use multiplexed protocol to have multiple requests in flight?
+     * @param binary use binary protocol instead of JSON lines?
+     * @param spool directory to hand large messages over by files, null to always use pipes
+     * @param eventLoop event loop to handle process I/O with, null to use dedicated threads
+     * @param name process name used to identify it on logs
+     * @throws IOException if process could not be started
+     */
+    public PooledProcess(ProcessBuilder pb, int watchdogTimeout, int watchdogCheckInterval, boolean logStdErr, boolean multiplexed, boolean binary, SpoolDirectory spool, ProcessIOEventLoop eventLoop, String name) throws IOException {
+        long spawnStartNanos = System.nanoTime();
+        process = pb.start();
+        MetricsRegistry.getInstance().getProcessMetrics(name).recordSpawn(System.nanoTime() - spawnStartNanos);
+        startTimeMillis = System.currentTimeMillis();
+        lastUsedMillis = startTimeMillis;
+        
+        // process is idle until first request has been sent
+        watchdog = new ProcessWatchdog(process, watchdogTimeout, watchdogCheckInterval, name);
+        watchdog.disarm();
+        watchdog.start();
+        
+        communicator = new ProcessCommunicator(process, watchdog, name, multiplexed, binary, spool, eventLoop);
+        communicator.start();
+        
+        if (logStdErr) {
+            ProcessStdErrLogForwarder stdErrLogger = new ProcessStdErrLogForwarder(process, name, eventLoop);
+            stdErrLogger.start();
+        }
+        
+        logPrefix = "Pooled process "+name+" ("+watchdog.getUUID().toString()+"): ";
+        logger.log(Level.FINE, "{0}Started", logPrefix);
+    }
+    
+    /**
+     * Reserves the process for another request and arms the watchdog until
+     * all requests have been completed. Each reservation has to be followed
+     * by exactly one call to requestCompleted().
+     */
+    public synchronized void reserve() {
+        requestCount++;
+        inFlight++;
+        watchdog.arm();
+    }
+    
+    /**
+     * Sends a message to the process; the process has to be reserved before.
+     * @param msg message to send
+     * @param partialResultHandler receives partial results, may be null
+     * @param deadline deadline of request passed to the process (epoch milliseconds), 0 if none
+     * @return Future of process Result
+     */
+    public CompletableFuture<ProcessCommunicator.Result> sendRequest(String msg, Consumer<ProcessCommunicator.Result> partialResultHandler, long deadline) {
+        return communicator.sendRequest(msg, partialResultHandler, deadline);
+    }
+    
+    /**
+     * Sends a message holding raw data to the process; the process has to be
+     * reserved before.
+     * @param data message to send
+     * @param partialResultHandler receives partial results, may be null
+     * @param deadline deadline of request passed to the process (epoch milliseconds), 0 if none
+     * @return Future of process Result
+     */
+    public CompletableFuture<ProcessCommunicator.Result> sendRequest(byte[] data, Consumer<ProcessCommunicator.Result> partialResultHandler, long deadline) {
+        return communicator.sendRequest(data, partialResultHandler, deadline);
+    }
+    
+    /**
+     * Sends multiple messages to the process as a single batch; the process
+     * has to be reserved once for the whole batch before.
+     * @param items messages to send
+     * @param partialResultHandlers receive partial results for the message at the same index, may be null
+     * @return Futures of process Results, in order of messages
+     * @see ProcessCommunicator#sendBatch(java.util.List, java.util.List)
+     */
+    public List<CompletableFuture<ProcessCommunicator.Result>> sendBatch(List<byte[]> items, List<Consumer<ProcessCommunicator.Result>> partialResultHandlers) {
+        return communicator.sendBatch(items, partialResultHandlers);
+    }
+    
+    /**
+     * Marks a request as completed and disarms the watchdog if no other
+     * requests are in flight.
+     */
+    public synchronized void requestCompleted() {
+        inFlight--;
+        if (inFlight <= 0) {
+            inFlight = 0;
+            watchdog.disarm();
+        }
+        
+        lastUsedMillis = System.currentTimeMillis();
+    }
+    
+    /**
+     * Asks the process to shut down by closing its stdin. The watchdog is
+     * armed, so the process will be killed if it does not exit in time.
+     */
+    public void retire() {
+        logger.log(Level.FINE, "{0}Retiring after {1} requests", new Object[]{logPrefix, requestCount});
+        
+        communicator.closeInput();
+        watchdog.arm();
+    }
+    
+    /**
+     * Forcibly terminates the process.
+     */
+    public void kill() {
+        logger.log(Level.FINE, "{0}Killing", logPrefix);
+        
+        process.destroyForcibly();
+    }
+    
+    /**
+     * Adds a Callable to be called when the process has shut down.
+     * @param callback shutdown callback
+     * @see ProcessWatchdog#addShutdownCallback(java.util.concurrent.Callable)
+     */
+    public void addShutdownCallback(Callable<Void> callback) {
+        watchdog.addShutdownCallback(callback);
+    }
+    
+    public boolean isAlive() {
+        return process.isAlive();
+    }
+    
+    public int getInFlight() {
+        return inFlight;
+    }
+    
+    public int getRequestCount() {
+        return requestCount;
+    }
+    
+    public long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+    
+    public long getLastUsedMillis() {
+        return lastUsedMillis;
+    }
+}
@@ -1,42 +1,92 @@
 package de.glutrot.tools.amqpprocessmanager;
 
+import de.glutrot.tools.amqpprocessmanager.metrics.MetricsRegistry;
+import de.glutrot.tools.amqpprocessmanager.metrics.ProcessMetrics;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.json.simple.JSONArray;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
 
 /**
  * Handles simple IPC and links process and watchdog.
  * Communication is handled by one thread per direction, which requires start()
  * to be called after initialization and Process and ProcessWatchdog have been
- * started. UTF-8 will be used for communication (which <i>should</i> not matter
- * as JSON is being used).<br />
+ * started. If a ProcessIOEventLoop is given, stdout will be read by the event
+ * loop instead and messages are written to stdin directly by the calling
+ * thread, so no threads need to be started per process. UTF-8 will be used for
+ * communication (which <i>should</i> not matter as JSON is being used).<br />
  * <br />
  * While ProcessCommunicator is running, the process must not talk
  * in anything but one-line JSON encoded messages on its stdout pipe (stdout => reader).
- * The only messages supported to be received so far are watchdog heartbeats and result strings:
+ * The only messages supported to be received so far are watchdog heartbeats, partial results and result strings:
  * <ul>
  * <li><code>["heartbeat"]</code> forwards the heartbeat to the linked watchdog to extend process lifetime</li>
+ * <li><code>["partial", "..."]</code> passes a chunk of output to the partial result handler of the current request (also counts as heartbeat)</li>
  * <li><code>["result", "..."]</code> receives the result from second parameter</li>
  * </ul>
  * In turn, the process may receive input from stdin encoded in JSON format, one line per message (writer => stdin):
  * <ul>
  * <li>sendPlainMessage(String) submits <code>["message", "..."]</code> which contains a generic message to be consumed by the process</li>
  * </ul>
- * Process should flush its stdout after each message to ensure they are processed in time.
+ * Process should flush its stdout after each message to ensure they are processed in time.<br />
+ * <br />
+ * Long-lived (pooled) processes can be sent multiple messages, one after
+ * another, by using sendRequest(String) which returns a new Future for each
+ * request. The next request must not be sent before the previous Future has
+ * been resolved.<br />
+ * <br />
+ * In multiplexed mode, messages, results and heartbeats carry a request ID as
+ * their second element, so multiple requests can be in flight at the same
+ * time and results are routed to the Future of their request:
+ * <ul>
+ * <li><code>["message", "id", "..."]</code> is sent by sendRequest(String)</li>
+ * <li><code>["partial", "id", "..."]</code> passes a chunk of output to the partial result handler of request <code>id</code></li>
+ * <li><code>["result", "id", "..."]</code> resolves the Future of request <code>id</code></li>
+ * <li><code>["heartbeat", "id"]</code> extends process lifetime only if request <code>id</code> is still pending, <code>["heartbeat"]</code> is accepted as well</li>
+ * </ul>
+ * Multiple messages can also be sent at once by sendBatch(List, List) as
+ * <code>["batch", "id1", "...", "id2", "..."]</code>, results are returned
+ * per request ID as usual.<br />
+ * <br />
+ * If set to use the binary protocol, messages are exchanged as length-prefixed
+ * frames instead of JSON lines (see BinaryFrameCodec) and payloads are passed
+ * as raw bytes. Frame types correspond to the message keywords above; request
+ * IDs are only set when multiplexed. Results of such processes hold their
+ * output as byte array (see Result.getData()).<br />
+ * <br />
+ * If a SpoolDirectory is given, messages passed as byte array which reach its
+ * threshold are written to a file and only its path is sent to the process
+ * (<code>["message_file", "path", "length"]</code>, request ID as second
+ * element if multiplexed). Processes may return results as files located in
+ * the spool directory as well (<code>["result_file", "path"]</code>). Files
+ * are deleted once the result has been received or, at the latest, when the
+ * process shuts down.<br />
+ * <br />
+ * If a deadline is given when sending a message, the milliseconds remaining
+ * until then are appended as last element of <code>message</code> and
+ * <code>message_file</code> (e.g. <code>["message", "...", "1500"]</code>),
+ * so processes can limit their effort accordingly. Binary frames and batches
+ * do not carry deadlines.
  */
 public class ProcessCommunicator {
     private static final Logger logger = Logger.getLogger(ProcessCommunicator.class.getName());
@@ -47,115 +97,130 @@ public class ProcessCommunicator {
     
     private final static Charset charset = Charset.forName("UTF-8");
     
-    protected final FutureResult futureResult = new FutureResult();
+    private final Process process;
+    private final ProcessIOEventLoop eventLoop;
+    private final String name;
+    protected volatile FutureResult futureResult = new FutureResult(null);
+    
+    private final boolean multiplexed;
+    private final boolean binary;
+    private final SpoolDirectory spool;
+    private final Set<File> spoolFiles = ConcurrentHashMap.newKeySet();
+    private final Map<String, FutureResult> pendingResults = new ConcurrentHashMap<>();
+    private final AtomicLong lastRequestId = new AtomicLong();
+    private final ProcessMetrics metrics;
     
     /**
      * Future containing a Result which will notify observers upon calling
-     * setResult(...).
+     * setResult(...). Cancelling the Future forcibly terminates the process
+     * unless multiplexed, in which case only the request is being abandoned.
      */
-    public class FutureResult implements Future<Result> {
-        private final Object syncObj = new Object();
-        private Result result = null;
+    public class FutureResult extends CompletableFuture<Result> {
+        private final String requestId;
+        private final long createdNanos = System.nanoTime();
+        private volatile Consumer<Result> partialResultHandler = null;
+        private volatile boolean outputReceived = false;
+        private volatile boolean resultPending = false;
+        
+        /**
+         * @param requestId ID of multiplexed request, null if not multiplexed
+         */
+        protected FutureResult(String requestId) {
+            this.requestId = requestId;
+        }
+        
+        /**
+         * Records the time until the process sent anything regarding this
+         * request. Only the first call has any effect.
+         */
+        protected void outputReceived() {
+            if (outputReceived) {
+                return;
+            }
+            
+            outputReceived = true;
+            metrics.recordFirstOutput(System.nanoTime() - createdNanos);
+        }
+        
+        /**
+         * Passes a partial result to the handler registered for this request.
+         * Partial results received after the Future has been resolved or
+         * without any handler are dropped.
+         * @param partialResult chunk of output
+         */
+        protected void handlePartialResult(Result partialResult) {
+            Consumer<Result> handler = partialResultHandler;
+            if ((handler == null) || isDone()) {
+                logger.log(Level.FINE, "{0}No handler for partial result, dropping", logPrefix);
+                return;
+            }
+            
+            handler.accept(partialResult);
+        }
         
         /**
          * Sets result and notifies observers. Result should only be set once.
-         * If multiple results are being set, it is not safe to assume which one
-         * may be used by calling code.
+         * If multiple results are being set, only the first one will be used.
          * @param result result to store
          */
         protected void setResult(Result result) {
             logger.log(Level.FINE, logPrefix+"setting result on Future");
             
             if (result == null) {
-                logger.log(Level.WARNING, logPrefix+"Setting null result - Future will not terminate!");
+                logger.log(Level.WARNING, logPrefix+"Setting null result - observers will receive null!");
             }
             
-            synchronized (syncObj) {
-                if (this.result != null) {
-                    logger.log(Level.WARNING, logPrefix+"Result was already set - any but first Result may be used, previous Results may be lost!");
-                }
-                
-                this.result = result;
-                
-                syncObj.notifyAll();
+            if (!complete(result)) {
+                logger.log(Level.WARNING, logPrefix+"Result was already set (or Future has been cancelled) - only first Result will be used, further Results are lost!");
             }
         }
         
         @Override
-        public boolean cancel(boolean bln) {
-            // not implemented
-            return false;
-        }
-
-        @Override
-        public boolean isCancelled() {
-            // not implemented
-            return false;
-        }
-
-        @Override
-        public boolean isDone() {
-            boolean isDone = false;
-
-            synchronized (syncObj) {
-                isDone = (result != null);
-            }
-
-            return isDone;
-        }
-
-        @Override
-        public Result get() throws InterruptedException, ExecutionException {
-            Result copiedResult = null;
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
             
-            synchronized (syncObj) {
-                while (result == null) {
-                    syncObj.wait();
+            if (cancelled) {
+                if (requestId != null) {
+                    logger.log(Level.FINE, "{0}Request {1} has been cancelled", new Object[]{logPrefix, requestId});
+                    pendingResults.remove(requestId);
+                } else {
+                    logger.log(Level.INFO, "{0}Request has been cancelled, terminating process", logPrefix);
+                    process.destroyForcibly();
                 }
-                
-                copiedResult = result;
             }
             
-            return copiedResult;
-        }
-
-        @Override
-        public Result get(long duration, TimeUnit timeUnit) throws InterruptedException, ExecutionException, TimeoutException {
-            Result copiedResult = null;
-            
-            synchronized (syncObj) {
-                if (result != null) {
-                    syncObj.wait(timeUnit.toMillis(duration));
-                }
-                
-                copiedResult = result;
-            }
-            
-            if (copiedResult == null) {
-                throw new TimeoutException("wait for Result object timed out");
-            }
-            
-            return copiedResult;
+            return cancelled;
         }
     };
     
     /**
      * Result represents a process' result containing state (got data?)
-     * and plain String result output received from the process.
+     * and plain String result output received from the process, or raw
+     * output data if the binary protocol is being used.
      */
     public static class Result {
         private String output = null;
+        private byte[] data = null;
         private boolean hasFailed = false;
-
+        
         public Result(String output, boolean hasFailed) {
             this.output = output;
             this.hasFailed = hasFailed;
         }
         
+        public Result(byte[] data, boolean hasFailed) {
+            this.data = data;
+            this.hasFailed = hasFailed;
+        }
+        
         public String getOutput() {
             return output;
         }
         
+        public byte[] getData() {
+            return data;
+        }
+        
         public boolean hasFailed() {
             return hasFailed;
         }
@@ -164,46 +229,250 @@ public class ProcessCommunicator {
     /**
      * FromProcessThread manages communication from process to communicator by
      * reading the process' stdout stream. See documentation of ProcessCommunicator
-     * for details on supported messages.
+     * for details on supported messages. When using an event loop, the thread
+     * is not started and lines (or binary frames) are passed by the event loop
+     * instead.
      */
-    protected class FromProcessThread extends Thread {
+    protected class FromProcessThread extends Thread implements ProcessIOEventLoop.LineHandler, BinaryFrameCodec.FrameHandler {
         private final Logger logger = Logger.getLogger(FromProcessThread.class.getName());
         private String logPrefix = null;
         
         private ProcessWatchdog watchdog = null;
-        private BufferedReader br = null;
+        private final ProtocolCodec codec = new ProtocolCodec();
+        private final ProtocolCodec.Frame msg = new ProtocolCodec.Frame();
         
-        private boolean receivedResult = false;
+        private volatile boolean finished = false;
         
-        public FromProcessThread(Process process, ProcessWatchdog watchdog, String name) {
+        public FromProcessThread(ProcessWatchdog watchdog, String name) {
             this.watchdog = watchdog;
             
             logPrefix = "Reader for process "+name+": ";
-            
-            br = new BufferedReader(new InputStreamReader(process.getInputStream(), charset));
         }
         
-        private void handleResult(JSONArray msg) {
-            if (msg.size() != 2) {
+        private void handleResult(ProtocolCodec.Frame msg) {
+            int expectedSize = multiplexed ? 3 : 2;
+            if (msg.size() != expectedSize) {
                 logger.log(Level.WARNING, logPrefix+"Process sent result message with wrong number of arguments, ignoring message");
                 return;
             }
             
-            Object resultObj = msg.get(1);
-            String result = (resultObj instanceof String) ? (String) resultObj : null;
+            String requestId = multiplexed ? msg.getString(1) : null;
+            String result = msg.getString(expectedSize - 1);
             
-            if (result == null) {
-                logger.log(Level.WARNING, logPrefix+"Process sent invalid result (must be String and not null), ignoring message.");
+            if ((multiplexed && (requestId == null)) || (result == null)) {
+                logger.log(Level.WARNING, logPrefix+"Process sent invalid result (request ID and result must be Strings and not null), ignoring message.");
                 return;
             }
             
-            futureResult.setResult(new Result(result, false));
-            receivedResult = true;
+            completeRequest(requestId, new Result(result, false));
+        }
+        
+        private void handleResultFile(ProtocolCodec.Frame msg) {
+            int expectedSize = multiplexed ? 3 : 2;
+            if (msg.size() != expectedSize) {
+                logger.log(Level.WARNING, logPrefix+"Process sent result file message with wrong number of arguments, ignoring message");
+                return;
+            }
+            
+            String requestId = multiplexed ? msg.getString(1) : null;
+            String path = msg.getString(expectedSize - 1);
+            
+            if ((multiplexed && (requestId == null)) || (path == null)) {
+                logger.log(Level.WARNING, logPrefix+"Process sent invalid result file (request ID and path must be Strings and not null), ignoring message.");
+                return;
+            }
+            
+            completeRequestWithFile(requestId, path);
+        }
+        
+        /**
+         * Resolves the Future of given request with the content of a result
+         * file. As reading may block, the file is read outside of event loops.
+         * @param requestId ID of multiplexed request, null if not multiplexed
+         * @param path path of result file
+         */
+        private void completeRequestWithFile(String requestId, final String path) {
+            final FutureResult requestFutureResult = takeRequest(requestId);
+            if (requestFutureResult == null) {
+                return;
+            }
+            
+            requestFutureResult.outputReceived();
+            
+            if (eventLoop == null) {
+                requestFutureResult.setResult(readResultFile(path));
+                return;
+            }
+            
+            // end of stream must not fail the request while we are reading
+            requestFutureResult.resultPending = true;
+            eventLoop.execute(() -> requestFutureResult.setResult(readResultFile(path)));
+        }
+        
+        /**
+         * Reads a result file and deletes it afterwards. Only files located
+         * in the spool directory are accepted, request files we spooled
+         * ourselves are refused (see SpoolDirectory.isRequestFile(File)).
+         * @param path path of result file
+         * @return result holding file content, failed if file could not be read
+         */
+        private Result readResultFile(String path) {
+            if (spool == null) {
+                logger.log(Level.WARNING, "{0}Process sent a result file although spooling is disabled, failing request.", logPrefix);
+                return new Result((String) null, true);
+            }
+            
+            File file = new File(path);
+            if (!spool.contains(file)) {
+                logger.log(Level.WARNING, "{0}Process sent a result file outside of spool directory ({1}), failing request.", new Object[]{logPrefix, path});
+                return new Result((String) null, true);
+            }
+            
+            if (spool.isRequestFile(file)) {
+                logger.log(Level.WARNING, "{0}Process sent a request file as result file ({1}), failing request.", new Object[]{logPrefix, path});
+                return new Result((String) null, true);
+            }
+            
+            try {
+                byte[] data = Files.readAllBytes(file.toPath());
+                return binary ? new Result(data, false) : new Result(new String(data, charset), false);
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, logPrefix+"Failed to read result file "+path+", failing request:", ex);
+                return new Result((String) null, true);
+            } finally {
+                spool.delete(file);
+            }
+        }
+        
+        private void handlePartialResult(ProtocolCodec.Frame msg) {
+            int expectedSize = multiplexed ? 3 : 2;
+            if (msg.size() != expectedSize) {
+                logger.log(Level.WARNING, logPrefix+"Process sent partial result message with wrong number of arguments, ignoring message");
+                return;
+            }
+            
+            String requestId = multiplexed ? msg.getString(1) : null;
+            String output = msg.getString(expectedSize - 1);
+            
+            if ((multiplexed && (requestId == null)) || (output == null)) {
+                logger.log(Level.WARNING, logPrefix+"Process sent invalid partial result (request ID and output must be Strings and not null), ignoring message.");
+                return;
+            }
+            
+            passPartialResult(requestId, new Result(output, false));
+        }
+        
+        private void handleHeartbeat(ProtocolCodec.Frame msg) {
+            if (multiplexed && (msg.size() > 1)) {
+                String requestId = msg.getString(1);
+                if (requestId == null) {
+                    logger.log(Level.FINE, "{0}Ignoring heartbeat with invalid request ID", logPrefix);
+                    return;
+                }
+                
+                heartbeat(requestId);
+            } else {
+                heartbeat(null);
+            }
+        }
+        
+        /**
+         * Resolves the Future of given request.
+         * @param requestId ID of multiplexed request, null if not multiplexed
+         * @param result result to resolve Future with
+         */
+        private void completeRequest(String requestId, Result result) {
+            FutureResult requestFutureResult = takeRequest(requestId);
+            if (requestFutureResult == null) {
+                return;
+            }
+            
+            requestFutureResult.outputReceived();
+            requestFutureResult.setResult(result);
+        }
+        
+        /**
+         * Gets the Future of given request to be resolved by a result. The
+         * request is no longer pending afterwards.
+         * @param requestId ID of multiplexed request, null if not multiplexed
+         * @return Future to resolve, null if request is unknown or already resolved
+         */
+        private FutureResult takeRequest(String requestId) {
+            if (!multiplexed) {
+                FutureResult currentFutureResult = futureResult;
+                if (currentFutureResult.isDone() || currentFutureResult.resultPending) {
+                    logger.log(Level.WARNING, logPrefix+"Process sent a result although no request is pending, ignoring message.");
+                    return null;
+                }
+                
+                return currentFutureResult;
+            }
+            
+            FutureResult requestFutureResult = pendingResults.remove(requestId);
+            if (requestFutureResult == null) {
+                logger.log(Level.WARNING, logPrefix+"Process sent a result for unknown request ID "+requestId+", ignoring message.");
+            }
+            
+            return requestFutureResult;
+        }
+        
+        /**
+         * Passes a partial result to the handler of given request.
+         * @param requestId ID of multiplexed request, null if not multiplexed
+         * @param partialResult chunk of output
+         */
+        private void passPartialResult(String requestId, Result partialResult) {
+            FutureResult requestFutureResult;
+            if (multiplexed) {
+                requestFutureResult = pendingResults.get(requestId);
+                if (requestFutureResult == null) {
+                    logger.log(Level.WARNING, logPrefix+"Process sent a partial result for unknown request ID "+requestId+", ignoring message.");
+                    return;
+                }
+            } else {
+                requestFutureResult = futureResult;
+                if (requestFutureResult.isDone()) {
+                    logger.log(Level.WARNING, logPrefix+"Process sent a partial result although no request is pending, ignoring message.");
+                    return;
+                }
+            }
+            
+            // progress proves the process to be alive
+            watchdog.heartbeat();
+            
+            requestFutureResult.outputReceived();
+            requestFutureResult.handlePartialResult(partialResult);
+        }
+        
+        /**
+         * Forwards a heartbeat to the watchdog.
+         * @param requestId ID of multiplexed request the heartbeat was sent for, null if not given
+         */
+        private void heartbeat(String requestId) {
+            // heartbeats for requests which are no longer pending must not
+            // extend process lifetime
+            FutureResult requestFutureResult = (requestId != null) ? pendingResults.get(requestId) : (multiplexed ? null : futureResult);
+            if ((requestId != null) && (requestFutureResult == null)) {
+                logger.log(Level.FINE, "{0}Ignoring heartbeat for unknown request ID {1}", new Object[]{logPrefix, requestId});
+                return;
+            }
+            
+            watchdog.heartbeat();
+            metrics.countHeartbeat();
+            
+            if ((requestFutureResult != null) && !requestFutureResult.isDone()) {
+                requestFutureResult.outputReceived();
+            }
         }
         
         @Override
         public void run() {
-            JSONParser parser = new JSONParser();
+            if (binary) {
+                runBinary();
+                return;
+            }
+            
+            BufferedReader br = new BufferedReader(new InputStreamReader(process.getInputStream(), charset));
             
             try {
                 // read until stream closes
@@ -214,76 +483,175 @@ public class ProcessCommunicator {
                     if (line == null) {
                         break;
                     }
-
-                    // try to parse message container
-                    JSONArray msg = null;
-                    try {
-                        Object obj = parser.parse(line);
-                        if ((obj != null) && (obj instanceof JSONArray)) {
-                            msg = (JSONArray) obj;
-                        } else {
-                            logger.log(Level.WARNING, logPrefix+"Process sent no JSON array on root level, ignoring message");
-                        }
-                    } catch (ParseException ex) {
-                        logger.log(Level.WARNING, logPrefix+"Process sent something which wasn't valid JSON, ignoring message", ex);
-                    }
-                    
-                    // skip if no message could be read
-                    if (msg == null) {
-                        continue;
-                    }
                     
-                    // get message keyword
-                    Object keywordObject = (msg.size() > 0) ? msg.get(0) : null;
-                    String keyword = (keywordObject instanceof String) ? (String) keywordObject : null;
-                    if (keyword == null) {
-                        logger.log(Level.WARNING, logPrefix+"Process sent a JSON array without a keyword, ignoring message");
-                        continue;
-                    }
-                    logger.log(Level.FINE, "{0}Received keyword \"{1}\"", new Object[]{logPrefix, keyword});
-                    
-                    // handle message
-                    switch (keyword) {
-                        case "heartbeat":   watchdog.heartbeat();
-                                            break;
-                        
-                        case "result":      handleResult(msg);
-                                            break;
-                        
-                        default:            logger.log(Level.WARNING, "Process sent unknown IPC message keyword \""+keyword+"\"");
-                    }
+                    handleLine(line);
                 }
             } catch (IOException ex) {
                 logger.log(Level.FINE, logPrefix+"Reader caught exception, stopping", ex);
             }
             
-            // resolve Future to failed state if we did not receive any result
-            // NOTE: this is required to notify observers or they may wait forever
-            if (!receivedResult) {
-                futureResult.setResult(new Result(null, true));
+            handleEndOfStream();
+            
+            logger.log(Level.FINE, "{0}Thread terminating...", logPrefix);
+        }
+        
+        private void runBinary() {
+            InputStream in = process.getInputStream();
+            BinaryFrameCodec.Decoder decoder = new BinaryFrameCodec.Decoder(this);
+            byte[] buffer = new byte[8192];
+            
+            try {
+                // read until stream closes
+                int length;
+                while ((length = in.read(buffer)) >= 0) {
+                    decoder.handleData(buffer, length);
+                }
+            } catch (IOException ex) {
+                logger.log(Level.FINE, logPrefix+"Reader caught exception, stopping", ex);
             }
             
+            decoder.handleEndOfStream();
+            
             logger.log(Level.FINE, "{0}Thread terminating...", logPrefix);
         }
+        
+        @Override
+        public void handleFrame(byte type, int requestIdValue, byte[] payload) {
+            // request IDs are only used in multiplexed mode, 0 means none
+            String requestId = (multiplexed && (requestIdValue != 0)) ? Integer.toUnsignedString(requestIdValue) : null;
+            
+            if (logger.isLoggable(Level.FINE)) {
+                logger.log(Level.FINE, "{0}Received frame type {1}", new Object[]{logPrefix, (char) type});
+            }
+            
+            switch (type) {
+                case BinaryFrameCodec.TYPE_HEARTBEAT:   heartbeat(requestId);
+                                                        break;
+                
+                case BinaryFrameCodec.TYPE_PARTIAL:
+                case BinaryFrameCodec.TYPE_RESULT:
+                case BinaryFrameCodec.TYPE_RESULT_FILE: if (multiplexed && (requestId == null)) {
+                                                            logger.log(Level.WARNING, logPrefix+"Process sent a frame without request ID, ignoring message.");
+                                                        } else if (type == BinaryFrameCodec.TYPE_PARTIAL) {
+                                                            passPartialResult(requestId, new Result(payload, false));
+                                                        } else if (type == BinaryFrameCodec.TYPE_RESULT_FILE) {
+                                                            completeRequestWithFile(requestId, new String(payload, charset));
+                                                        } else {
+                                                            completeRequest(requestId, new Result(payload, false));
+                                                        }
+                                                        break;
+                
+                default:                                logger.log(Level.WARNING, "Process sent unknown IPC frame type "+(type & 0xFF));
+            }
+        }
+        
+        @Override
+        public void handleProtocolError(String message) {
+            // framing cannot be recovered, so the process is unusable
+            logger.log(Level.WARNING, "{0}Process violated binary protocol ({1}), terminating process!", new Object[]{logPrefix, message});
+            process.destroyForcibly();
+        }
+        
+        @Override
+        public void handleLine(String line) {
+            // try to decode message container, skip if no message could be read
+            // NOTE: msg is reused for all lines and must not be held on to
+            try {
+                codec.decode(line, msg);
+            } catch (ProtocolCodec.DecodeException ex) {
+                logger.log(Level.WARNING, logPrefix+"Process sent something which wasn't a valid JSON array ("+ex.getMessage()+"), ignoring message");
+                return;
+            }
+            
+            // get message keyword
+            String keyword = msg.getKeyword();
+            if (keyword == null) {
+                logger.log(Level.WARNING, logPrefix+"Process sent a JSON array without a keyword, ignoring message");
+                return;
+            }
+            
+            // avoid allocations for chatty messages such as heartbeats
+            if (logger.isLoggable(Level.FINE)) {
+                logger.log(Level.FINE, "{0}Received keyword \"{1}\"", new Object[]{logPrefix, keyword});
+            }
+            
+            // handle message
+            switch (keyword) {
+                case ProtocolCodec.KEYWORD_HEARTBEAT:   handleHeartbeat(msg);
+                                                        break;
+                
+                case ProtocolCodec.KEYWORD_PARTIAL:     handlePartialResult(msg);
+                                                        break;
+                
+                case ProtocolCodec.KEYWORD_RESULT:      handleResult(msg);
+                                                        break;
+                
+                case ProtocolCodec.KEYWORD_RESULT_FILE: handleResultFile(msg);
+                                                        break;
+                
+                default:                                logger.log(Level.WARNING, "Process sent unknown IPC message keyword \""+keyword+"\"");
+            }
+        }
+        
+        @Override
+        public void handleEndOfStream() {
+            // process is most likely about to exit
+            watchdog.outputClosed();
+            
+            // resolve Future to failed state if we did not receive any result
+            // NOTE: this is required to notify observers or they may wait forever
+            finished = true;
+            FutureResult currentFutureResult = futureResult;
+            if (!currentFutureResult.isDone() && !currentFutureResult.resultPending) {
+                currentFutureResult.setResult(new Result((String) null, true));
+            }
+            failPendingResults();
+        }
+        
+        /**
+         * Checks if the reader has stopped, so no more results will be received.
+         * @return reader stopped?
+         */
+        public boolean isFinished() {
+            return finished;
+        }
     }
     
+    /**
+     * ToProcessThread sends queued messages to the process' stdin stream. If
+     * set to write directly, the thread is not started and messages are
+     * written by the thread queuing them instead.
+     */
     protected static class ToProcessThread extends Thread {
         private static final Logger logger = Logger.getLogger(ToProcessThread.class.getName());
         
+        /**
+         * Message to be written, encoded when being written.
+         */
+        private interface PendingMessage {
+            void write() throws IOException;
+        }
+        
         private String logPrefix = null;
+        private BufferedOutputStream bos = null;
         private BufferedWriter bw = null;
-        private boolean streamOpen = true;
-        private final LinkedList<String> sendQueue = new LinkedList<>();
+        private volatile boolean streamOpen = true;
+        private final LinkedList<PendingMessage> sendQueue = new LinkedList<>();
+        private final boolean direct;
+        private final Object writeLock = new Object();
         
-        public ToProcessThread(Process process, String name) {
+        public ToProcessThread(Process process, String name, boolean direct) {
             logPrefix = "Writer for process "+name+": ";
+            this.direct = direct;
             
-            bw = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), charset));
+            // only one of both is used, depending on protocol
+            bos = new BufferedOutputStream(process.getOutputStream());
+            bw = new BufferedWriter(new OutputStreamWriter(bos, charset));
         }
         
         @Override
         public void run() {
-            String msg = null;
+            PendingMessage msg = null;
             while (true) {
                 // get message from queue
                 synchronized (sendQueue) {
@@ -319,9 +687,7 @@ public class ProcessCommunicator {
                 
                 // send message to process
                 try {
-                    bw.write(msg);
-                    bw.newLine();
-                    bw.flush();
+                    msg.write();
                     
                     logger.log(Level.FINE, logPrefix+"Message sent to process");
                 } catch (IOException ex) {
@@ -341,15 +707,42 @@ public class ProcessCommunicator {
         }
         
         /**
-         * Queues the given IPC-encoded message to be sent to the process unless
+         * Queues the given IPC message to be sent to the process unless
          * stream has already been closed. Monitors on sendQueue will be notified
-         * upon queuing.
-         * @param msg encoded message to send to as defined by ProcessCommunicator
+         * upon queuing. The message is encoded when being written.
+         * @param msg elements of message to send as defined by ProcessCommunicator, starting with keyword
+         * @return success? (false if stream has been closed)
+         */
+        public boolean queueMessage(final String... msg) {
+            return queue(() -> {
+                ProtocolCodec.writeArray(bw, msg);
+                bw.newLine();
+                bw.flush();
+            });
+        }
+        
+        /**
+         * Queues the given binary frame to be sent to the process unless
+         * stream has already been closed.
+         * @param type frame type
+         * @param requestId request ID, 0 if not multiplexed
+         * @param payload raw payload
          * @return success? (false if stream has been closed)
          */
-        public boolean queueMessage(String msg) {
+        public boolean queueFrame(final byte type, final int requestId, final byte[] payload) {
+            return queue(() -> {
+                BinaryFrameCodec.writeFrame(bos, type, requestId, payload);
+                bos.flush();
+            });
+        }
+        
+        private boolean queue(PendingMessage msg) {
             boolean localStreamOpen;
             
+            if (direct) {
+                return writeMessage(msg);
+            }
+            
             logger.log(Level.FINE, "{0}Queuing message to be sent to process...", logPrefix);
             
             synchronized (sendQueue) {
@@ -363,6 +756,35 @@ public class ProcessCommunicator {
             return streamOpen;
         }
         
+        /**
+         * Writes the given message to the process on the calling thread.
+         * @param msg message to send
+         * @return success? (false if stream has been closed)
+         */
+        private boolean writeMessage(PendingMessage msg) {
+            synchronized (writeLock) {
+                if (!streamOpen) {
+                    return false;
+                }
+                
+                try {
+                    msg.write();
+                    
+                    logger.log(Level.FINE, logPrefix+"Message sent to process");
+                } catch (IOException ex) {
+                    logger.log(Level.FINE, logPrefix+"Exception while sending message to process:", ex);
+                    
+                    synchronized (sendQueue) {
+                        streamOpen = false;
+                    }
+                    
+                    return false;
+                }
+            }
+            
+            return true;
+        }
+        
         /**
          * Shuts the thread down (use after process has terminated).
          */
@@ -390,12 +812,47 @@ public class ProcessCommunicator {
      * @param name process name used to identify it on logs
      */
     public ProcessCommunicator(Process process, ProcessWatchdog watchdog, String name) {
+        this(process, watchdog, name, false);
+    }
+    
+    /**
+     * Initializes a new communicator instance to be linked with given process
+     * and its watchdog.
+     * @param process process to communicate with
+     * @param watchdog watchdog monitoring the given process
+     * @param name process name used to identify it on logs
+     * @param multiplexed use multiplexed protocol with request IDs?
+     */
+    public ProcessCommunicator(Process process, ProcessWatchdog watchdog, String name, boolean multiplexed) {
+        this(process, watchdog, name, multiplexed, false, null, null);
+    }
+    
+    /**
+     * Initializes a new communicator instance to be linked with given process
+     * and its watchdog.
+     * @param process process to communicate with
+     * @param watchdog watchdog monitoring the given process
+     * @param name process name used to identify it on logs
+     * @param multiplexed use multiplexed protocol with request IDs?
+     * @param binary use binary protocol instead of JSON lines?
+     * @param spool directory to hand large messages over by files, null to always use pipes
+     * @param eventLoop event loop to read stdout with, null to use dedicated threads
+     */
+    public ProcessCommunicator(Process process, ProcessWatchdog watchdog, String name, boolean multiplexed, boolean binary, SpoolDirectory spool, ProcessIOEventLoop eventLoop) {
         super();
         
+        this.process = process;
+        this.multiplexed = multiplexed;
+        this.binary = binary;
+        this.spool = spool;
+        this.eventLoop = eventLoop;
+        this.name = name;
+        this.metrics = MetricsRegistry.getInstance().getProcessMetrics(name);
+        
         logPrefix = "Communicator for process "+name+": ";
         
-        fromProcessThread = new FromProcessThread(process, watchdog, name);
-        toProcessThread = new ToProcessThread(process, name);
+        fromProcessThread = new FromProcessThread(watchdog, name);
+        toProcessThread = new ToProcessThread(process, name, eventLoop != null);
         
         // Writer thread does not break when stream is closed because it waits
         // on the send queue instead, so we have to wake it up.
@@ -403,14 +860,24 @@ public class ProcessCommunicator {
         // on its own as soon as the stream is closed.
         watchdog.addShutdownCallback(() -> {
             toProcessThread.shutdown();
+            deleteSpoolFiles();
             return null;
         });
     }
     
     /**
-     * Starts communication threads.
+     * Starts communication threads or registers with the event loop.
      */
     public void start() {
+        if (eventLoop != null) {
+            if (binary) {
+                eventLoop.register(process, process.getInputStream(), new BinaryFrameCodec.Decoder(fromProcessThread), name);
+            } else {
+                eventLoop.register(process, process.getInputStream(), fromProcessThread, name);
+            }
+            return;
+        }
+        
         fromProcessThread.start();
         toProcessThread.start();
     }
@@ -419,24 +886,352 @@ public class ProcessCommunicator {
      * Result will become available during communication or at latest after
      * stream connection has been terminated. As this is an asynchronous
      * operation, you can use this method to get a Future for the Result
-     * (non-blocking).
+     * (non-blocking) to wait on or register callbacks with.
      * @return Future of process Result
      */
-    public Future<Result> getFutureResult() {
+    public CompletableFuture<Result> getFutureResult() {
         return futureResult;
     };
     
+    /**
+     * Sends another message to a long-lived process and returns a new Future
+     * for its Result. Unless multiplexed, must only be called after the Future
+     * of the previous request has been resolved. If the message cannot be
+     * sent, the returned Future will already be resolved to a failed Result.
+     * @param msg message to send
+     * @return Future of process Result for this message
+     */
+    public CompletableFuture<Result> sendRequest(String msg) {
+        return sendRequest(msg, null);
+    }
     
-    public boolean sendPlainMessage(String msg) {
-        if (msg == null) {
+    /**
+     * Sends another message to a long-lived process and returns a new Future
+     * for its Result, see sendRequest(String). Partial results sent by the
+     * process for this message are passed to the given handler on the
+     * reading thread before the Future gets resolved.
+     * @param msg message to send
+     * @param partialResultHandler receives partial results, may be null
+     * @return Future of process Result for this message
+     */
+    public CompletableFuture<Result> sendRequest(String msg, Consumer<Result> partialResultHandler) {
+        return sendRequest(msg, null, partialResultHandler, 0);
+    }
+    
+    /**
+     * Sends another message holding raw data to a long-lived process, see
+     * sendRequest(String, Consumer). Data is passed untouched if the binary
+     * protocol is being used and decoded as UTF-8 otherwise.
+     * @param data message to send
+     * @param partialResultHandler receives partial results, may be null
+     * @return Future of process Result for this message
+     */
+    public CompletableFuture<Result> sendRequest(byte[] data, Consumer<Result> partialResultHandler) {
+        return sendRequest(null, data, partialResultHandler, 0);
+    }
+    
+    /**
+     * Sends another message to a long-lived process, see
+     * sendRequest(String, Consumer). The time remaining until the given
+     * deadline is passed along with the message (JSON protocol only).
+     * @param msg message to send
+     * @param partialResultHandler receives partial results, may be null
+     * @param deadline deadline of request (epoch milliseconds), 0 if none
+     * @return Future of process Result for this message
+     */
+    public CompletableFuture<Result> sendRequest(String msg, Consumer<Result> partialResultHandler, long deadline) {
+        return sendRequest(msg, null, partialResultHandler, deadline);
+    }
+    
+    /**
+     * Sends another message holding raw data to a long-lived process, see
+     * sendRequest(byte[], Consumer) and sendRequest(String, Consumer, long).
+     * @param data message to send
+     * @param partialResultHandler receives partial results, may be null
+     * @param deadline deadline of request (epoch milliseconds), 0 if none
+     * @return Future of process Result for this message
+     */
+    public CompletableFuture<Result> sendRequest(byte[] data, Consumer<Result> partialResultHandler, long deadline) {
+        return sendRequest(null, data, partialResultHandler, deadline);
+    }
+    
+    private CompletableFuture<Result> sendRequest(String msg, byte[] data, Consumer<Result> partialResultHandler, long deadline) {
+        long requestIdValue = 0;
+        String requestId = null;
+        if (multiplexed) {
+            requestIdValue = nextRequestId();
+            requestId = Long.toString(requestIdValue);
+        }
+        
+        FutureResult requestFutureResult = new FutureResult(requestId);
+        requestFutureResult.partialResultHandler = partialResultHandler;
+        
+        if (multiplexed) {
+            pendingResults.put(requestId, requestFutureResult);
+        } else {
+            futureResult = requestFutureResult;
+        }
+        
+        // reader may already have stopped in which case it would never resolve
+        // the new Future
+        if (fromProcessThread.isFinished() || !queueMessage(requestIdValue, msg, data, deadline, requestFutureResult)) {
+            if (multiplexed) {
+                pendingResults.remove(requestId);
+            }
+            
+            if (!requestFutureResult.isDone()) {
+                requestFutureResult.setResult(new Result((String) null, true));
+            }
+        }
+        
+        return requestFutureResult;
+    }
+    
+    /**
+     * Sends multiple messages to a multiplexed process at once as a single
+     * batch message. Each message gets its own request ID and Future, so
+     * results are handled the same way as for separate requests. If the batch
+     * cannot be sent, all returned Futures will already be resolved to failed
+     * Results. Batches are never spooled.
+     * @param items messages to send, passed untouched if the binary protocol is being used and decoded as UTF-8 otherwise
+     * @param partialResultHandlers receive partial results for the message at the same index, may be null
+     * @return Futures of process Results, in order of messages
+     */
+    public List<CompletableFuture<Result>> sendBatch(List<byte[]> items, List<Consumer<Result>> partialResultHandlers) {
+        if (!multiplexed) {
+            throw new IllegalStateException("batches require request IDs, communicator has to be multiplexed");
+        }
+        
+        int size = items.size();
+        List<CompletableFuture<Result>> futureResults = new ArrayList<>(size);
+        List<String> requestIds = new ArrayList<>(size);
+        
+        ByteArrayOutputStream payload = binary ? new ByteArrayOutputStream() : null;
+        String[] msg = binary ? null : new String[1 + 2 * size];
+        if (!binary) {
+            msg[0] = ProtocolCodec.KEYWORD_BATCH;
+        }
+        
+        for (int i = 0; i < size; i++) {
+            long requestIdValue = nextRequestId();
+            String requestId = Long.toString(requestIdValue);
+            byte[] data = items.get(i);
+            
+            FutureResult requestFutureResult = new FutureResult(requestId);
+            requestFutureResult.partialResultHandler = (partialResultHandlers != null) ? partialResultHandlers.get(i) : null;
+            pendingResults.put(requestId, requestFutureResult);
+            
+            futureResults.add(requestFutureResult);
+            requestIds.add(requestId);
+            
+            if (binary) {
+                BinaryFrameCodec.writeBatchItem(payload, (int) requestIdValue, (data != null) ? data : new byte[0]);
+            } else {
+                msg[1 + 2 * i] = requestId;
+                msg[2 + 2 * i] = (data != null) ? new String(data, charset) : "";
+            }
+        }
+        
+        // reader may already have stopped in which case it would never resolve
+        // the new Futures
+        boolean sent = false;
+        if (!fromProcessThread.isFinished()) {
+            sent = binary ? toProcessThread.queueFrame(BinaryFrameCodec.TYPE_BATCH, 0, payload.toByteArray()) : toProcessThread.queueMessage(msg);
+        }
+        
+        if (!sent) {
+            for (String requestId : requestIds) {
+                FutureResult requestFutureResult = pendingResults.remove(requestId);
+                if ((requestFutureResult != null) && !requestFutureResult.isDone()) {
+                    requestFutureResult.setResult(new Result((String) null, true));
+                }
+            }
+        }
+        
+        return futureResults;
+    }
+    
+    /**
+     * Generates the next request ID. Binary frames only hold 32 bit request
+     * IDs with 0 meaning none, so IDs wrap around skipping 0.
+     * @return next request ID
+     */
+    private long nextRequestId() {
+        long requestIdValue;
+        do {
+            requestIdValue = lastRequestId.incrementAndGet();
+            if (binary) {
+                requestIdValue &= 0xFFFFFFFFL;
+            }
+        } while (requestIdValue == 0);
+        
+        return requestIdValue;
+    }
+    
+    /**
+     * Encodes the given message according to protocol and queues it to be
+     * sent to the process. Either msg or data has to be given.
+     * @param requestIdValue ID of multiplexed request, 0 if not multiplexed
+     * @param msg message to send as String
+     * @param data message to send as raw data
+     * @param deadline deadline of request (epoch milliseconds), 0 if none
+     * @param requestFutureResult Future of request, spool files are deleted once resolved
+     * @return success?
+     */
+    private boolean queueMessage(long requestIdValue, String msg, byte[] data, long deadline, FutureResult requestFutureResult) {
+        if ((msg == null) && (data == null)) {
             logger.log(Level.WARNING, logPrefix+"Tried to send null message; unable to comply by protocol, ignoring message...");
             return false;
         }
         
-        JSONArray arr = new JSONArray();
-        arr.add("message");
-        arr.add(msg);
+        if ((data != null) && (spool != null) && spool.shouldSpool(data.length)) {
+            return queueMessageFile(requestIdValue, data, deadline, requestFutureResult);
+        }
+        
+        if (binary) {
+            return toProcessThread.queueFrame(BinaryFrameCodec.TYPE_MESSAGE, (int) requestIdValue, (data != null) ? data : msg.getBytes(charset));
+        }
+        
+        if (msg == null) {
+            msg = new String(data, charset);
+        }
+        
+        if (multiplexed) {
+            return toProcessThread.queueMessage(withDeadline(deadline, ProtocolCodec.KEYWORD_MESSAGE, Long.toString(requestIdValue), msg));
+        } else {
+            return toProcessThread.queueMessage(withDeadline(deadline, ProtocolCodec.KEYWORD_MESSAGE, msg));
+        }
+    }
+    
+    /**
+     * Writes the given message to a spool file and queues a message pointing
+     * the process to it.
+     * @param requestIdValue ID of multiplexed request, 0 if not multiplexed
+     * @param data message to send
+     * @param deadline deadline of request (epoch milliseconds), 0 if none
+     * @param requestFutureResult Future of request, file is deleted once resolved
+     * @return success?
+     */
+    private boolean queueMessageFile(long requestIdValue, byte[] data, long deadline, FutureResult requestFutureResult) {
+        final File file;
+        try {
+            file = spool.write(data);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, logPrefix+"Failed to write spool file:", ex);
+            return false;
+        }
+        
+        spoolFiles.add(file);
+        requestFutureResult.whenComplete((result, ex) -> deleteSpoolFile(file));
+        
+        logger.log(Level.FINE, "{0}Spooled message of {1} bytes to {2}", new Object[]{logPrefix, data.length, file.getPath()});
         
-        return toProcessThread.queueMessage(arr.toJSONString());
+        String path = file.getPath();
+        if (binary) {
+            return toProcessThread.queueFrame(BinaryFrameCodec.TYPE_MESSAGE_FILE, (int) requestIdValue, path.getBytes(charset));
+        } else if (multiplexed) {
+            return toProcessThread.queueMessage(withDeadline(deadline, ProtocolCodec.KEYWORD_MESSAGE_FILE, Long.toString(requestIdValue), path, Integer.toString(data.length)));
+        } else {
+            return toProcessThread.queueMessage(withDeadline(deadline, ProtocolCodec.KEYWORD_MESSAGE_FILE, path, Integer.toString(data.length)));
+        }
+    }
+    
+    /**
+     * Appends the time remaining until given deadline to a message if set.
+     * @param deadline deadline (epoch milliseconds), 0 if none
+     * @param elements message elements
+     * @return message elements, extended by remaining milliseconds if deadline is set
+     */
+    private static String[] withDeadline(long deadline, String... elements) {
+        if (deadline <= 0) {
+            return elements;
+        }
+        
+        String[] extended = Arrays.copyOf(elements, elements.length + 1);
+        extended[elements.length] = Long.toString(Math.max(0, deadline - System.currentTimeMillis()));
+        
+        return extended;
+    }
+    
+    private void deleteSpoolFile(File file) {
+        if (spoolFiles.remove(file)) {
+            spool.delete(file);
+        }
+    }
+    
+    /**
+     * Deletes all spool files which are still held for this process.
+     */
+    private void deleteSpoolFiles() {
+        for (File file : spoolFiles) {
+            deleteSpoolFile(file);
+        }
+    }
+    
+    /**
+     * Resolves all pending multiplexed requests to failed state.
+     */
+    private void failPendingResults() {
+        for (String requestId : pendingResults.keySet()) {
+            FutureResult requestFutureResult = pendingResults.remove(requestId);
+            if ((requestFutureResult != null) && !requestFutureResult.isDone()) {
+                requestFutureResult.setResult(new Result((String) null, true));
+            }
+        }
+    }
+    
+    /**
+     * Closes the process' stdin which signals a long-lived process to shut
+     * down after it has finished its current work.
+     */
+    public void closeInput() {
+        toProcessThread.shutdown();
+    }
+    
+    /**
+     * Sets the handler to receive partial results for the message sent by
+     * sendPlainMessage(String). Must be set before sending the message.
+     * @param partialResultHandler receives partial results, may be null
+     */
+    public void setPartialResultHandler(Consumer<Result> partialResultHandler) {
+        futureResult.partialResultHandler = partialResultHandler;
+    }
+    
+    public boolean sendPlainMessage(String msg) {
+        return queueMessage(0, msg, null, 0, futureResult);
+    }
+    
+    /**
+     * Sends a message holding raw data to a process handling a single
+     * message. Data is passed untouched if the binary protocol is being used
+     * and decoded as UTF-8 otherwise.
+     * @param data message to send
+     * @return success?
+     */
+    public boolean sendPlainMessage(byte[] data) {
+        return queueMessage(0, null, data, 0, futureResult);
+    }
+    
+    /**
+     * Sends a message to a process handling a single message, see
+     * sendPlainMessage(String). The time remaining until the given deadline
+     * is passed along with the message (JSON protocol only).
+     * @param msg message to send
+     * @param deadline deadline of message (epoch milliseconds), 0 if none
+     * @return success?
+     */
+    public boolean sendPlainMessage(String msg, long deadline) {
+        return queueMessage(0, msg, null, deadline, futureResult);
+    }
+    
+    /**
+     * Sends a message holding raw data to a process handling a single
+     * message, see sendPlainMessage(byte[]) and sendPlainMessage(String, long).
+     * @param data message to send
+     * @param deadline deadline of message (epoch milliseconds), 0 if none
+     * @return success?
+     */
+    public boolean sendPlainMessage(byte[] data, long deadline) {
+        return queueMessage(0, null, data, deadline, futureResult);
     }
 }
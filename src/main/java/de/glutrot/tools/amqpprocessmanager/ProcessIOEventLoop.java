@@ -0,0 +1,373 @@
+package de.glutrot.tools.amqpprocessmanager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the output pipes (stdout/stderr) of all processes from a small fixed
+ * number of event loop threads instead of one blocking reader thread per
+ * pipe. Pipes are assigned to loops round-robin upon registration.<br />
+ * <br />
+ * As the JVM does not provide selectable channels for process pipes, each loop
+ * polls its pipes for available data and only reads what can be read without
+ * blocking into a reusable buffer which is passed to the registered
+ * DataHandler on the loop thread, so handlers must not block. LineHandlers
+ * are fed by a LineFramer which frames lines incrementally (LF, CRLF and CR
+ * are accepted as line endings). If a loop did not find any data, it backs
+ * off exponentially up to maxPollInterval.<br />
+ * <br />
+ * After a process has terminated, remaining output is read until end of
+ * stream by a short-lived drain task to ensure a loop never blocks on a pipe
+ * which has been inherited by another process.
+ */
+public class ProcessIOEventLoop {
+    private static final Logger logger = Logger.getLogger(ProcessIOEventLoop.class.getName());
+    private final static Charset charset = Charset.forName("UTF-8");
+    
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_READS_PER_PIPE = 16;
+    private static final long MIN_POLL_INTERVAL_NANOS = TimeUnit.MICROSECONDS.toNanos(20);
+    
+    /**
+     * Receives lines read from a pipe.
+     */
+    public interface LineHandler {
+        /**
+         * Called for each complete line (without line ending).
+         * @param line line read from pipe
+         */
+        void handleLine(String line);
+        
+        /**
+         * Called once after the pipe has been closed, no further lines will
+         * be passed afterwards.
+         */
+        void handleEndOfStream();
+    }
+    
+    /**
+     * Receives raw data read from a pipe.
+     */
+    public interface DataHandler {
+        /**
+         * Called for each chunk of data read from the pipe. The buffer is
+         * reused after returning, so data has to be copied if needed later.
+         * @param buffer buffer holding data read from pipe
+         * @param length number of bytes in buffer
+         */
+        void handleData(byte[] buffer, int length);
+        
+        /**
+         * Called once after the pipe has been closed, no further data will
+         * be passed afterwards.
+         */
+        void handleEndOfStream();
+    }
+    
+    /**
+     * Frames data into lines and passes them to a LineHandler.
+     */
+    public static class LineFramer implements DataHandler {
+        private final LineHandler handler;
+        private final String logPrefix;
+        
+        private byte[] lineBuffer = new byte[256];
+        private int lineLength = 0;
+        private boolean skipNextLF = false;
+        
+        /**
+         * @param handler handler to pass lines to
+         * @param name process name used to identify it on logs
+         */
+        public LineFramer(LineHandler handler, String name) {
+            this.handler = handler;
+            this.logPrefix = "Pipe of process "+name+": ";
+        }
+        
+        @Override
+        public void handleData(byte[] buffer, int length) {
+            for (int i = 0; i < length; i++) {
+                byte b = buffer[i];
+                
+                if (b == '\n') {
+                    if (skipNextLF) {
+                        skipNextLF = false;
+                        continue;
+                    }
+                    
+                    emitLine();
+                } else if (b == '\r') {
+                    skipNextLF = true;
+                    emitLine();
+                } else {
+                    skipNextLF = false;
+                    
+                    if (lineLength == lineBuffer.length) {
+                        byte[] newLineBuffer = new byte[lineBuffer.length * 2];
+                        System.arraycopy(lineBuffer, 0, newLineBuffer, 0, lineLength);
+                        lineBuffer = newLineBuffer;
+                    }
+                    
+                    lineBuffer[lineLength++] = b;
+                }
+            }
+        }
+        
+        private void emitLine() {
+            String line = new String(lineBuffer, 0, lineLength, charset);
+            lineLength = 0;
+            
+            try {
+                handler.handleLine(line);
+            } catch (Exception ex) {
+                logger.log(Level.WARNING, logPrefix+"Exception while handling line:", ex);
+            }
+        }
+        
+        /**
+         * Passes any incomplete last line and notifies the handler about end
+         * of stream.
+         */
+        @Override
+        public void handleEndOfStream() {
+            if (lineLength > 0) {
+                emitLine();
+            }
+            
+            handler.handleEndOfStream();
+        }
+    }
+    
+    /**
+     * State of a single registered pipe.
+     */
+    private static class Pipe {
+        private final Process process;
+        private final InputStream in;
+        private final DataHandler handler;
+        private final String logPrefix;
+        
+        public Pipe(Process process, InputStream in, DataHandler handler, String name) {
+            this.process = process;
+            this.in = in;
+            this.handler = handler;
+            this.logPrefix = "Pipe of process "+name+": ";
+        }
+        
+        public void feed(byte[] buffer, int length) {
+            try {
+                handler.handleData(buffer, length);
+            } catch (Exception ex) {
+                logger.log(Level.WARNING, logPrefix+"Exception while handling data:", ex);
+            }
+        }
+        
+        /**
+         * Closes the stream and notifies the handler about end of stream.
+         */
+        public void close() {
+            try {
+                in.close();
+            } catch (IOException ex) {
+                logger.log(Level.FINE, logPrefix+"Failed to close stream", ex);
+            }
+            
+            try {
+                handler.handleEndOfStream();
+            } catch (Exception ex) {
+                logger.log(Level.WARNING, logPrefix+"Exception while handling end of stream:", ex);
+            }
+        }
+    }
+    
+    /**
+     * One event loop thread serving a share of all pipes.
+     */
+    private class Loop extends Thread {
+        private final ConcurrentLinkedQueue<Pipe> newPipes = new ConcurrentLinkedQueue<>();
+        private final List<Pipe> pipes = new ArrayList<>();
+        private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+        
+        public Loop(int index) {
+            super("ProcessIOEventLoop-"+index);
+            setDaemon(true);
+        }
+        
+        public void register(Pipe pipe) {
+            newPipes.add(pipe);
+            LockSupport.unpark(this);
+        }
+        
+        @Override
+        public void run() {
+            long pollIntervalNanos = MIN_POLL_INTERVAL_NANOS;
+            
+            while (!isShutdown) {
+                Pipe newPipe;
+                while ((newPipe = newPipes.poll()) != null) {
+                    pipes.add(newPipe);
+                    pollIntervalNanos = MIN_POLL_INTERVAL_NANOS;
+                }
+                
+                boolean hadData = false;
+                Iterator<Pipe> it = pipes.iterator();
+                while (it.hasNext()) {
+                    Pipe pipe = it.next();
+                    
+                    try {
+                        int reads = 0;
+                        int available;
+                        while ((reads < MAX_READS_PER_PIPE) && ((available = pipe.in.available()) > 0)) {
+                            int length = pipe.in.read(readBuffer, 0, Math.min(available, readBuffer.length));
+                            if (length < 0) {
+                                break;
+                            }
+                            
+                            pipe.feed(readBuffer, length);
+                            hadData = true;
+                            reads++;
+                        }
+                        
+                        // hand over to drain task once process has terminated
+                        // and there is nothing left which we can read safely
+                        if ((reads == 0) && !pipe.process.isAlive()) {
+                            it.remove();
+                            drain(pipe);
+                        }
+                    } catch (IOException ex) {
+                        logger.log(Level.FINE, pipe.logPrefix+"Reading caught exception, closing", ex);
+                        it.remove();
+                        pipe.close();
+                    }
+                }
+                
+                // back off while there is nothing to read
+                if (hadData) {
+                    pollIntervalNanos = MIN_POLL_INTERVAL_NANOS;
+                } else {
+                    LockSupport.parkNanos(this, pollIntervalNanos);
+                    pollIntervalNanos = Math.min(pollIntervalNanos * 2, maxPollIntervalNanos);
+                }
+            }
+        }
+    }
+    
+    private final Loop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final long maxPollIntervalNanos;
+    private volatile boolean isShutdown = false;
+    
+    private final ExecutorService drainExecutor = Executors.newCachedThreadPool((Runnable r) -> {
+        Thread thread = new Thread(r, "ProcessIOEventLoop drain");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    /**
+     * Starts a new set of event loops.
+     * @param threads number of event loop threads, 0 to use number of available processors
+     * @param maxPollInterval maximum interval to poll pipes at while idle (milliseconds)
+     */
+    public ProcessIOEventLoop(int threads, long maxPollInterval) {
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        
+        maxPollIntervalNanos = Math.max(MIN_POLL_INTERVAL_NANOS, TimeUnit.MILLISECONDS.toNanos(maxPollInterval));
+        
+        logger.log(Level.INFO, "Starting {0} I/O event loops", threads);
+        
+        loops = new Loop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new Loop(i);
+            loops[i].start();
+        }
+    }
+    
+    /**
+     * Registers an output stream of given process to be read line by line by
+     * an event loop.
+     * @param process process the stream belongs to
+     * @param in stream to read from (stdout or stderr of process)
+     * @param handler receives all lines and end of stream
+     * @param name process name used to identify it on logs
+     */
+    public void register(Process process, InputStream in, LineHandler handler, String name) {
+        register(process, in, new LineFramer(handler, name), name);
+    }
+    
+    /**
+     * Registers an output stream of given process to be read by an event
+     * loop.
+     * @param process process the stream belongs to
+     * @param in stream to read from (stdout or stderr of process)
+     * @param handler receives all data and end of stream
+     * @param name process name used to identify it on logs
+     */
+    public void register(Process process, InputStream in, DataHandler handler, String name) {
+        Loop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        loop.register(new Pipe(process, in, handler, name));
+    }
+    
+    /**
+     * Runs the given task outside of event loops, for handlers which need to
+     * block (e.g. on file I/O). Tasks are run on the calling thread after
+     * shutdown.
+     * @param task task to run
+     */
+    public void execute(Runnable task) {
+        try {
+            drainExecutor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            task.run();
+        }
+    }
+    
+    /**
+     * Stops all event loops. Registered pipes will not be served any more.
+     */
+    public void shutdown() {
+        isShutdown = true;
+        
+        for (Loop loop : loops) {
+            LockSupport.unpark(loop);
+        }
+        
+        drainExecutor.shutdown();
+    }
+    
+    /**
+     * Reads remaining data until end of stream outside of event loops as we
+     * cannot tell if the read would block.
+     * @param pipe pipe to drain
+     */
+    private void drain(final Pipe pipe) {
+        drainExecutor.execute(() -> {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            
+            try {
+                int length;
+                while ((length = pipe.in.read(buffer)) >= 0) {
+                    pipe.feed(buffer, length);
+                }
+            } catch (IOException ex) {
+                logger.log(Level.FINE, pipe.logPrefix+"Draining caught exception, closing", ex);
+            }
+            
+            pipe.close();
+        });
+    }
+}
@@ -0,0 +1,411 @@
+package de.glutrot.tools.amqpprocessmanager;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a number of long-lived processes for one process configuration which
+ * are being reused for multiple requests instead of spawning a new process
+ * per message. Processes are handed out by acquire() and have to be returned
+ * by release(...) after each request.<br />
+ * <br />
+ * Pool size is kept between minSize and maxSize. A maintenance thread (started
+ * by start()) spawns processes to satisfy minSize, reaps processes which have
+ * been idle for longer than idleTimeout and recycles idle processes exceeding
+ * maxLifetime. Processes are also recycled upon release after they have
+ * handled maxRequests messages. Processes which die (e.g. because they have
+ * been killed by their watchdog) are removed from the pool and replaced if
+ * necessary.<br />
+ * <br />
+ * Multiplexed processes can be handed out for up to maxConcurrentRequests
+ * requests at the same time. A busy process is filled up to that limit before
+ * another process gets spawned.
+ */
+public class ProcessPool {
+    private static final Logger logger = Logger.getLogger(ProcessPool.class.getName());
+    
+    private static final long MAINTENANCE_INTERVAL_MILLIS = 1000;
+    
+    private final ProcessBuilder pb;
+    private final String name;
+    private final String logPrefix;
+    private final BooleanSupplier spawnCondition;
+    
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+    private final int maxRequests;
+    private final long maxLifetimeMillis;
+    private final int maxConcurrentRequests;
+    
+    private final int watchdogTimeout;
+    private final int watchdogCheckInterval;
+    private final boolean logStdErr;
+    private final boolean multiplexed;
+    private final boolean binary;
+    private final SpoolDirectory spool;
+    private final ProcessIOEventLoop eventLoop;
+    
+    private final Object syncObj = new Object();
+    private final LinkedList<PooledProcess> availableProcesses = new LinkedList<>(); // processes with free capacity, most recently used first
+    private final Set<PooledProcess> allProcesses = new HashSet<>();
+    private int spawning = 0;
+    private boolean isShutdown = false;
+    
+    private MaintenanceThread maintenanceThread = null;
+    
+    /**
+     * Maintains pool size in the background, see ProcessPool.
+     */
+    protected class MaintenanceThread extends Thread {
+        @Override
+        public void run() {
+            logger.log(Level.FINE, "{0}Maintenance started", logPrefix);
+            
+            while (true) {
+                List<PooledProcess> retireProcesses = new LinkedList<>();
+                int missing;
+                
+                synchronized (syncObj) {
+                    if (isShutdown) {
+                        break;
+                    }
+                    
+                    // reap processes which idled for too long or exceeded
+                    // their lifetime, least recently used first
+                    long currentTimeMillis = System.currentTimeMillis();
+                    Iterator<PooledProcess> it = availableProcesses.descendingIterator();
+                    while (it.hasNext()) {
+                        PooledProcess process = it.next();
+                        if (process.getInFlight() > 0) {
+                            continue;
+                        }
+                        
+                        boolean idledTooLong = (currentTimeMillis - process.getLastUsedMillis() > idleTimeoutMillis) && (allProcesses.size() > minSize);
+                        if (idledTooLong || isLifetimeExceeded(process, currentTimeMillis)) {
+                            it.remove();
+                            allProcesses.remove(process);
+                            retireProcesses.add(process);
+                        }
+                    }
+                    
+                    // reserve slots for processes missing to satisfy minimum size
+                    missing = minSize - (allProcesses.size() + spawning);
+                    if (missing > 0) {
+                        spawning += missing;
+                    }
+                }
+                
+                for (PooledProcess process : retireProcesses) {
+                    process.retire();
+                }
+                
+                for (int i = 0; i < missing; i++) {
+                    PooledProcess process = null;
+                    try {
+                        if (spawnCondition.getAsBoolean()) {
+                            process = spawn();
+                        } else {
+                            logger.log(Level.WARNING, "{0}Pre-conditions failed, not spawning processes for minimum pool size", logPrefix);
+                        }
+                    } catch (IOException ex) {
+                        logger.log(Level.WARNING, logPrefix+"Failed to spawn process for minimum pool size", ex);
+                    }
+                    
+                    synchronized (syncObj) {
+                        spawning--;
+                        
+                        if (process != null) {
+                            addIdle(process);
+                        }
+                    }
+                }
+                
+                // wait for next run (early wake-up if a process died)
+                synchronized (syncObj) {
+                    if (isShutdown) {
+                        break;
+                    }
+                    
+                    try {
+                        syncObj.wait(MAINTENANCE_INTERVAL_MILLIS);
+                    } catch (InterruptedException ex) {
+                        logger.log(Level.FINE, logPrefix+"Maintenance got interrupted:", ex);
+                    }
+                }
+            }
+            
+            logger.log(Level.FINE, "{0}Maintenance stopped", logPrefix);
+        }
+    }
+    
+    /**
+     * Initializes a new pool; call start() to spawn processes for minimum pool
+     * size and begin maintenance.
+     * @param pb ProcessBuilder to spawn processes with
+     * @param minSize minimum number of processes to keep alive
+     * @param maxSize maximum number of processes to run at the same time
+     * @param idleTimeout time after which processes exceeding minSize are shut down if idle (seconds)
+     * @param maxRequests number of requests after which a process is recycled (0 = unlimited)
+     * @param maxLifetime time after which a process is recycled (seconds, 0 = unlimited)
+     * @param maxConcurrentRequests maximum number of requests in flight per process (only used if multiplexed)
+     * @param watchdogTimeout timeout after last heartbeat during a request (seconds)
+     * @param watchdogCheckInterval interval at which watchdogs should check process state (milliseconds)
+     * @param logStdErr forward stderr of processes to log?
+     * @param multiplexed use multiplexed protocol to have multiple requests in flight per process?
+     * @param binary use binary protocol instead of JSON lines?
+     * @param spool directory to hand large messages over by files, null to always use pipes
+     * @param eventLoop event loop to handle process I/O with, null to use dedicated threads
+     * @param spawnCondition checked before spawning processes in background, processes will not be spawned unless true
+     * @param name process name to help identifying the pool on logs
+     */
+    public ProcessPool(ProcessBuilder pb, int minSize, int maxSize, int idleTimeout, int maxRequests, int maxLifetime, int maxConcurrentRequests, int watchdogTimeout, int watchdogCheckInterval, boolean logStdErr, boolean multiplexed, boolean binary, SpoolDirectory spool, ProcessIOEventLoop eventLoop, BooleanSupplier spawnCondition, String name) {
+        this.pb = pb;
+        this.name = name;
+        this.spawnCondition = spawnCondition;
+        
+        logPrefix = "Pool for process "+name+": ";
+        
+        if (maxSize < 1) {
+            logger.log(Level.WARNING, "{0}Maximum size must be at least 1, using 1 instead of {1}", new Object[]{logPrefix, maxSize});
+            maxSize = 1;
+        }
+        
+        if (minSize > maxSize) {
+            logger.log(Level.WARNING, "{0}Minimum size exceeds maximum size, limiting to {1}", new Object[]{logPrefix, maxSize});
+            minSize = maxSize;
+        }
+        
+        this.minSize = Math.max(0, minSize);
+        this.maxSize = maxSize;
+        this.idleTimeoutMillis = idleTimeout * 1000L;
+        this.maxRequests = maxRequests;
+        this.maxLifetimeMillis = maxLifetime * 1000L;
+        this.maxConcurrentRequests = multiplexed ? Math.max(1, maxConcurrentRequests) : 1;
+        
+        this.watchdogTimeout = watchdogTimeout;
+        this.watchdogCheckInterval = watchdogCheckInterval;
+        this.logStdErr = logStdErr;
+        this.multiplexed = multiplexed;
+        this.binary = binary;
+        this.spool = spool;
+        this.eventLoop = eventLoop;
+    }
+    
+    /**
+     * Starts pool maintenance which also spawns processes for minimum pool size.
+     */
+    public void start() {
+        synchronized (syncObj) {
+            if (maintenanceThread != null) {
+                return;
+            }
+            
+            maintenanceThread = new MaintenanceThread();
+        }
+        
+        logger.log(Level.INFO, "{0}Starting with size {1}-{2}", new Object[]{logPrefix, minSize, maxSize});
+        maintenanceThread.start();
+    }
+    
+    /**
+     * Shuts the pool down. Idle processes are retired immediately, busy
+     * processes will be retired when they are being released.
+     */
+    public void shutdown() {
+        List<PooledProcess> retireProcesses = new LinkedList<>();
+        
+        synchronized (syncObj) {
+            isShutdown = true;
+            
+            for (PooledProcess process : availableProcesses) {
+                if (process.getInFlight() == 0) {
+                    retireProcesses.add(process);
+                }
+            }
+            
+            availableProcesses.clear();
+            allProcesses.removeAll(retireProcesses);
+            
+            syncObj.notifyAll();
+        }
+        
+        logger.log(Level.INFO, "{0}Shutting down, retiring {1} idle processes", new Object[]{logPrefix, retireProcesses.size()});
+        
+        for (PooledProcess process : retireProcesses) {
+            process.retire();
+        }
+    }
+    
+    /**
+     * Gets a process with free capacity from the pool or spawns a new one if
+     * the pool has not reached its maximum size yet. Blocks until a process
+     * becomes available. The process has to be returned by calling
+     * release(...) when the request has been completed.
+     * @return reserved process to send exactly one request to
+     * @throws InterruptedException if interrupted while waiting for a process
+     * @throws IOException if a new process had to be spawned but failed to start
+     */
+    public PooledProcess acquire() throws InterruptedException, IOException {
+        synchronized (syncObj) {
+            while (true) {
+                if (isShutdown) {
+                    throw new IllegalStateException("pool for process "+name+" has been shut down");
+                }
+                
+                // reuse most recently used process which is still alive
+                while (!availableProcesses.isEmpty()) {
+                    PooledProcess process = availableProcesses.getFirst();
+                    if (!process.isAlive()) {
+                        availableProcesses.removeFirst();
+                        allProcesses.remove(process);
+                        continue;
+                    }
+                    
+                    process.reserve();
+                    if (!hasCapacity(process)) {
+                        availableProcesses.removeFirst();
+                    }
+                    
+                    return process;
+                }
+                
+                // reserve slot to spawn a new process if pool is not full yet
+                if (allProcesses.size() + spawning < maxSize) {
+                    spawning++;
+                    break;
+                }
+                
+                syncObj.wait();
+            }
+        }
+        
+        // spawn outside of lock as it may take a while
+        PooledProcess process = null;
+        try {
+            process = spawn();
+            process.reserve();
+            return process;
+        } finally {
+            synchronized (syncObj) {
+                spawning--;
+                
+                // share new process with other requests if possible
+                if ((process != null) && hasCapacity(process) && !isShutdown) {
+                    availableProcesses.addFirst(process);
+                }
+                
+                syncObj.notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Returns a process to the pool after a request has been completed.
+     * Processes which are not healthy any more are killed, processes which
+     * exceeded maximum requests or lifetime will be retired.
+     * @param process process previously acquired from this pool
+     * @param healthy process completed its request normally?
+     */
+    public void release(PooledProcess process, boolean healthy) {
+        process.requestCompleted();
+        
+        boolean shouldKill = !healthy || !process.isAlive();
+        boolean shouldRetire = false;
+        
+        synchronized (syncObj) {
+            if (shouldKill) {
+                allProcesses.remove(process);
+                availableProcesses.remove(process);
+            } else if (isShutdown || isExhausted(process) || isLifetimeExceeded(process, System.currentTimeMillis())) {
+                // no new requests; retire once all requests have completed
+                availableProcesses.remove(process);
+                if ((process.getInFlight() == 0) && allProcesses.remove(process)) {
+                    shouldRetire = true;
+                }
+            } else if (!availableProcesses.contains(process)) {
+                availableProcesses.addFirst(process);
+            }
+            
+            syncObj.notifyAll();
+        }
+        
+        if (shouldKill) {
+            logger.log(Level.FINE, "{0}Process did not complete request normally, killing it", logPrefix);
+            process.kill();
+        } else if (shouldRetire) {
+            process.retire();
+        }
+    }
+    
+    /**
+     * Checks if a process can accept another request. Must be called with
+     * lock on syncObj held.
+     * @param process process to check
+     * @return process may be reserved for another request?
+     */
+    private boolean hasCapacity(PooledProcess process) {
+        return (process.getInFlight() < maxConcurrentRequests) && !isExhausted(process);
+    }
+    
+    private boolean isExhausted(PooledProcess process) {
+        return (maxRequests > 0) && (process.getRequestCount() >= maxRequests);
+    }
+    
+    private boolean isLifetimeExceeded(PooledProcess process, long currentTimeMillis) {
+        return (maxLifetimeMillis > 0) && (currentTimeMillis - process.getStartTimeMillis() > maxLifetimeMillis);
+    }
+    
+    /**
+     * Adds a new process to the list of available processes. Must be called
+     * with lock on syncObj held.
+     * @param process newly spawned process
+     */
+    private void addIdle(PooledProcess process) {
+        if (isShutdown) {
+            allProcesses.remove(process);
+            process.retire();
+            return;
+        }
+        
+        availableProcesses.addLast(process);
+        syncObj.notifyAll();
+    }
+    
+    /**
+     * Spawns a new process and registers it with the pool. The caller has
+     * to reserve a slot before by incrementing spawning.
+     * @return newly spawned process
+     * @throws IOException if process failed to start
+     */
+    private PooledProcess spawn() throws IOException {
+        logger.log(Level.INFO, "{0}Spawning process...", logPrefix);
+        
+        final PooledProcess process = new PooledProcess(pb, watchdogTimeout, watchdogCheckInterval, logStdErr, multiplexed, binary, spool, eventLoop, name);
+        
+        synchronized (syncObj) {
+            allProcesses.add(process);
+        }
+        
+        // remove from pool when process dies and wake up maintenance to
+        // replace it if needed
+        process.addShutdownCallback(() -> {
+            synchronized (syncObj) {
+                allProcesses.remove(process);
+                availableProcesses.remove(process);
+                syncObj.notifyAll();
+            }
+            
+            return null;
+        });
+        
+        return process;
+    }
+}
@@ -8,30 +8,60 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Logs all stderr output from a given Process on INFO level.
+ * Logs all stderr output from a given Process on INFO level. Output is read
+ * by a dedicated thread unless a ProcessIOEventLoop is given.
  */
-public class ProcessStdErrLogForwarder extends Thread {
+public class ProcessStdErrLogForwarder extends Thread implements ProcessIOEventLoop.LineHandler {
     private static final Logger logger = Logger.getLogger(ProcessStdErrLogForwarder.class.getName());
     private final static Charset charset = Charset.forName("UTF-8");
     
+    private final Process p;
     private final String name;
     private final String logPrefix;
+    private final ProcessIOEventLoop eventLoop;
     
     private BufferedReader br = null;
-
+    
     /**
      * Initializes logging of stderr from given process.
      * @param p process to grab stderr from
      * @param name process name for identification on log output
      */
     public ProcessStdErrLogForwarder(Process p, String name) {
-        br = new BufferedReader(new InputStreamReader(p.getErrorStream(), charset));
+        this(p, name, null);
+    }
+    
+    /**
+     * Initializes logging of stderr from given process.
+     * @param p process to grab stderr from
+     * @param name process name for identification on log output
+     * @param eventLoop event loop to read stderr with, null to use a dedicated thread
+     */
+    public ProcessStdErrLogForwarder(Process p, String name, ProcessIOEventLoop eventLoop) {
+        this.p = p;
         this.name = name;
+        this.eventLoop = eventLoop;
         logPrefix = "Process "+name+" printed to stderr: ";
     }
     
+    /**
+     * Starts forwarding, either on a dedicated thread or by registering with
+     * the event loop.
+     */
+    @Override
+    public synchronized void start() {
+        if (eventLoop != null) {
+            eventLoop.register(p, p.getErrorStream(), this, name);
+            return;
+        }
+        
+        super.start();
+    }
+    
     @Override
     public void run() {
+        br = new BufferedReader(new InputStreamReader(p.getErrorStream(), charset));
+        
         try {
             while (true) {
                 String line = br.readLine();
@@ -40,13 +70,23 @@ public class ProcessStdErrLogForwarder extends Thread {
                     break;
                 }
                 
-                logger.log(Level.INFO, "{0}{1}", new Object[]{logPrefix, line});
+                handleLine(line);
             }
         } catch (IOException ex) {
             logger.log(Level.FINE, "Process "+name+": failed reading from stderr stream");
         }
         
-        logger.log(Level.FINE, "Process "+name+": stderr forwarding stopped");
+        handleEndOfStream();
     }
     
+    @Override
+    public void handleLine(String line) {
+        logger.log(Level.INFO, "{0}{1}", new Object[]{logPrefix, line});
+    }
+    
+    @Override
+    public void handleEndOfStream() {
+        logger.log(Level.FINE, "Process "+name+": stderr forwarding stopped");
+    }
+
 }
@@ -1,38 +1,67 @@
 package de.glutrot.tools.amqpprocessmanager;
 
+import de.glutrot.tools.amqpprocessmanager.metrics.MetricsRegistry;
+import de.glutrot.tools.amqpprocessmanager.metrics.ProcessMetrics;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * When spawned as a thread (call .start()), ProcessWatchdog monitors the given
- * Process' alive status and tries to forcibly terminate it upon timeout. Timeout
- * can be prevented by calling heartbeat(). Watchdog thread will terminate when
- * process ends. Additionally, log messages will be written with WARN level after
+ * When started (call .start()), ProcessWatchdog monitors the given Process'
+ * alive status and tries to forcibly terminate it upon timeout. Timeout
+ * can be prevented by calling heartbeat(). Monitoring will stop when process
+ * ends. Additionally, log messages will be written with WARN level after
  * timeout exceeded and FINE level if process terminated on its own or has not
- * been seen alive by the watchdog. Resolution of benchmark times is affected by
- * checkInterval (if set to 200ms, benchmark results won't show anything &lt;200ms).
+ * been seen alive by the watchdog.<br />
+ * <br />
+ * Watchdogs do not run threads on their own but are checked by the shared
+ * WatchdogScheduler: Timeouts are scheduled exactly at their deadline,
+ * heartbeats only record the current time without any locking. Process
+ * termination is checked every checkInterval and additionally in quick
+ * succession after the process closed its stdout, so benchmark times are
+ * usually not affected by checkInterval.<br />
+ * <br />
+ * Additionally, a hard deadline can be set (see setDeadline()) which is not
+ * extended by heartbeats, e.g. when the caller will not wait any longer for
+ * the result.
  */
-public class ProcessWatchdog extends Thread {
+public class ProcessWatchdog {
     private static final Logger logger = Logger.getLogger(ProcessWatchdog.class.getName());
     private final UUID uuid = UUID.randomUUID();
     
+    private static final long EXPECTED_EXIT_FIRST_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    
+    private final WatchdogScheduler scheduler = WatchdogScheduler.getInstance();
+    private final ProcessMetrics metrics;
+    
     private Process process = null;
     private int timeout = 30; // seconds!
-    private long checkInterval = 200; // milliseconds!
+    private long timeoutNanos = 0;
+    private long checkIntervalNanos = 0;
     private String name = null;
     
     // for logging repeated warnings about stuck processes
-    private long hangThresholdMillis = -1;
-    private long hangThresholdLastWarned = -1;
+    private long hangThresholdNanos = -1;
+    private long hangThresholdLastWarned = 0;
+    private boolean hangWarned = false;
     
     private final Object syncObj = new Object();
-    private long startTimeMillis = -1;
-    private long latestExpectedTimeMillis = -1;
-    private long firstTimeTerminationMillis = -1;
+    private volatile long lastHeartbeatNanos = 0;
+    private volatile long hardDeadlineNanos = 0;
+    private volatile boolean hasHardDeadline = false;
+    private volatile boolean armed = true;
+    private final AtomicBoolean timeoutScheduled = new AtomicBoolean(false);
+    private boolean wasAliveAtStart = false;
+    private long startTimeNanos = 0;
+    private boolean isTerminating = false;
+    private long firstTimeTerminationNanos = 0;
+    private long expectedExitCheckNanos = 0;
+    private boolean finished = false;
     private String logPrefix = null;
     
     private List<Callable<Void>> shutdownCallbacks = new LinkedList<>();
@@ -41,7 +70,7 @@ public class ProcessWatchdog extends Thread {
      * Initializes a watchdog with given properties.
      * @param process Process to monitor and terminate
      * @param timeout timeout after last heartbeat upon which Process will be terminated (seconds)
-     * @param checkInterval interval at which the watchdog should check Process state (milliseconds)
+     * @param checkInterval interval at which the watchdog should check if the Process is still alive (milliseconds)
      * @param name process name to help identifying the Process
      */
     public ProcessWatchdog(Process process, int timeout, long checkInterval, String name) {
@@ -49,32 +78,87 @@ public class ProcessWatchdog extends Thread {
         
         this.process = process;
         this.timeout = timeout;
-        this.checkInterval = checkInterval;
+        this.timeoutNanos = TimeUnit.SECONDS.toNanos(timeout);
+        this.checkIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, checkInterval));
+        this.name = name;
+        this.metrics = MetricsRegistry.getInstance().getProcessMetrics(name);
         
         // warn if threads still did not terminate after double timeout
         // (one to kill + one after kill)
-        hangThresholdMillis = timeout * 1000;
-        
-        // remember start if process is already alive
-        if (process.isAlive()) {
-            startTimeMillis = System.currentTimeMillis();
-        }
+        hangThresholdNanos = timeoutNanos;
         
         logPrefix = "Watchdog "+uuid.toString()+" for process "+name+": ";
     }
     
+    /**
+     * Starts monitoring the process with an implicit heartbeat.
+     */
+    public void start() {
+        logger.log(Level.FINE, logPrefix+"Starting with timeout set to "+Integer.toString(timeout)+" seconds...");
+        
+        long currentTimeNanos = System.nanoTime();
+        startTimeNanos = currentTimeNanos;
+        wasAliveAtStart = process.isAlive();
+        
+        heartbeat();
+        scheduleTimeout();
+        scheduler.schedule(this, WatchdogScheduler.CheckType.LIVENESS, nextLivenessCheck(currentTimeNanos));
+    }
+    
     /**
      * Tells watchdog that the monitored process is still alive (resets
      * timeout countdown).
      */
     public void heartbeat() {
-        synchronized (syncObj) {
-            latestExpectedTimeMillis = System.currentTimeMillis() + timeout*1000;
-        }
+        lastHeartbeatNanos = System.nanoTime();
         
         logger.log(Level.FINER, "{0}Processed heartbeat call", logPrefix);
     }
     
+    /**
+     * Suspends the timeout countdown, e.g. while a pooled process is idle and
+     * thus not expected to send any heartbeats. Termination which has already
+     * been started will not be stopped.
+     */
+    public void disarm() {
+        armed = false;
+        
+        logger.log(Level.FINER, "{0}Disarmed", logPrefix);
+    }
+    
+    /**
+     * Resumes the timeout countdown after disarm() with an implicit heartbeat.
+     */
+    public void arm() {
+        heartbeat();
+        armed = true;
+        scheduleTimeout();
+        
+        logger.log(Level.FINER, "{0}Armed", logPrefix);
+    }
+    
+    /**
+     * Sets a hard deadline after which the process will be terminated no
+     * matter if heartbeats are still being received. Must be called before
+     * start().
+     * @param deadlineNanos deadline based on System.nanoTime()
+     */
+    public void setDeadline(long deadlineNanos) {
+        hardDeadlineNanos = deadlineNanos;
+        hasHardDeadline = true;
+        
+        logger.log(Level.FINE, "{0}Deadline set to {1,number,#}ms from now", new Object[]{logPrefix, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime())});
+    }
+    
+    /**
+     * Tells watchdog that the process closed its output, so it is expected to
+     * exit soon. Liveness will be checked in quick succession to notice the
+     * termination early.
+     */
+    public void outputClosed() {
+        scheduler.schedule(this, WatchdogScheduler.CheckType.EXPECTED_EXIT, System.nanoTime() + EXPECTED_EXIT_FIRST_CHECK_NANOS);
+    }
+    
     /**
      * Returns the unique ID used to identify this watchdog instance.
      * @return watchdog UUID
@@ -83,75 +167,175 @@ public class ProcessWatchdog extends Thread {
         return uuid;
     }
     
-    @Override
-    public void run() {
-        logger.log(Level.FINE, logPrefix+"Starting with timeout set to "+Integer.toString(timeout)+" seconds...");
+    /**
+     * Schedules a timeout check at the current deadline unless one is already
+     * pending; a pending check will reschedule itself if the deadline has been
+     * extended meanwhile.
+     */
+    private void scheduleTimeout() {
+        if (armed && timeoutScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(this, WatchdogScheduler.CheckType.TIMEOUT, currentDeadline());
+        }
+    }
+    
+    /**
+     * Returns the time after which the process is considered to have timed
+     * out: timeout after last heartbeat, capped by the hard deadline if set.
+     * @return deadline based on System.nanoTime()
+     */
+    private long currentDeadline() {
+        long deadlineNanos = lastHeartbeatNanos + timeoutNanos;
+        if (hasHardDeadline && (hardDeadlineNanos - deadlineNanos < 0)) {
+            deadlineNanos = hardDeadlineNanos;
+        }
         
-        // initialize variables by starting with an implicit heartbeat
-        heartbeat();
+        return deadlineNanos;
+    }
+    
+    private long nextLivenessCheck(long currentTimeNanos) {
+        // align checks to a common grid so watchdogs using the same interval
+        // are checked at once
+        return (Math.floorDiv(currentTimeNanos, checkIntervalNanos) + 1) * checkIntervalNanos;
+    }
+    
+    /**
+     * Called by scheduler when a timeout check is due. Terminates the process
+     * if the deadline has passed, otherwise reschedules the check to the
+     * current deadline.
+     * @param currentTimeNanos current time based on System.nanoTime()
+     */
+    void checkTimeout(long currentTimeNanos) {
+        if (!isMonitoring(currentTimeNanos)) {
+            timeoutScheduled.set(false);
+            return;
+        }
         
-        while (process.isAlive()) {
-            // remember process start
-            if (startTimeMillis < 0) {
-                startTimeMillis = System.currentTimeMillis();
+        if (!isTerminating) {
+            // stop checking while disarmed; check again in case we got
+            // armed concurrently
+            if (!armed) {
+                timeoutScheduled.set(false);
+                scheduleTimeout();
+                return;
             }
             
-            // get a local copy of latest expected time for process to have finished
-            long latestExpectedTimeMillis;
-            synchronized (syncObj) {
-                latestExpectedTimeMillis = this.latestExpectedTimeMillis;
+            // reschedule if deadline has been extended by a heartbeat
+            long deadlineNanos = currentDeadline();
+            if (deadlineNanos - currentTimeNanos > 0) {
+                scheduler.schedule(this, WatchdogScheduler.CheckType.TIMEOUT, deadlineNanos);
+                return;
             }
             
-            // get a snapshot of current time
-            long currentTimeMillis = System.currentTimeMillis();
-            
-            // try to terminate process if timeout passed
-            if (currentTimeMillis > latestExpectedTimeMillis) {
-                if (firstTimeTerminationMillis < 0) {
-                    // log first time termination
-                    logger.log(Level.WARNING, logPrefix+"Process timed out (>="+Integer.toString(timeout)+" seconds since last heartbeat), trying to terminate...");
-                    firstTimeTerminationMillis = currentTimeMillis;
-                } else if ((currentTimeMillis - firstTimeTerminationMillis > hangThresholdMillis) && (currentTimeMillis - hangThresholdLastWarned >= hangThresholdMillis)) {
-                    // log repeatedly if process appears to be stuck indefinitely
-                    // QUESTION: send mail?
-                    logger.log(Level.WARNING, logPrefix+"Tried to terminate process but it is still hanging after "+Long.toString((currentTimeMillis - firstTimeTerminationMillis) / 1000)+" seconds...");
-                    hangThresholdLastWarned = currentTimeMillis;
-                }
-                
-                // try to terminate
-                process.destroyForcibly();
+            // log first time termination
+            if (hasHardDeadline && (currentTimeNanos - hardDeadlineNanos >= 0)) {
+                logger.log(Level.WARNING, "{0}Process exceeded deadline of its request, trying to terminate...", logPrefix);
+            } else {
+                logger.log(Level.WARNING, logPrefix+"Process timed out (>="+Integer.toString(timeout)+" seconds since last heartbeat), trying to terminate...");
+            }
+            firstTimeTerminationNanos = currentTimeNanos;
+            isTerminating = true;
+            metrics.countWatchdogTermination();
+        } else if ((currentTimeNanos - firstTimeTerminationNanos > hangThresholdNanos) && (!hangWarned || (currentTimeNanos - hangThresholdLastWarned >= hangThresholdNanos))) {
+            // log repeatedly if process appears to be stuck indefinitely
+            // QUESTION: send mail?
+            logger.log(Level.WARNING, logPrefix+"Tried to terminate process but it is still hanging after "+Long.toString(TimeUnit.NANOSECONDS.toSeconds(currentTimeNanos - firstTimeTerminationNanos))+" seconds...");
+            hangThresholdLastWarned = currentTimeNanos;
+            hangWarned = true;
+        }
+        
+        // try to terminate, repeat until process is gone
+        process.destroyForcibly();
+        scheduler.schedule(this, WatchdogScheduler.CheckType.TIMEOUT, currentTimeNanos + checkIntervalNanos);
+    }
+    
+    /**
+     * Called by scheduler when a periodic liveness check is due.
+     * @param currentTimeNanos current time based on System.nanoTime()
+     */
+    void checkLiveness(long currentTimeNanos) {
+        if (isMonitoring(currentTimeNanos)) {
+            scheduler.schedule(this, WatchdogScheduler.CheckType.LIVENESS, nextLivenessCheck(currentTimeNanos));
+        }
+    }
+    
+    /**
+     * Called by scheduler when a process is expected to exit soon. Checks are
+     * repeated with exponential backoff until they reach checkInterval.
+     * @param currentTimeNanos current time based on System.nanoTime()
+     */
+    void checkExpectedExit(long currentTimeNanos) {
+        if (!isMonitoring(currentTimeNanos)) {
+            return;
+        }
+        
+        expectedExitCheckNanos = (expectedExitCheckNanos <= 0) ? EXPECTED_EXIT_FIRST_CHECK_NANOS : expectedExitCheckNanos * 2;
+        if (expectedExitCheckNanos < checkIntervalNanos) {
+            scheduler.schedule(this, WatchdogScheduler.CheckType.EXPECTED_EXIT, currentTimeNanos + expectedExitCheckNanos);
+        }
+    }
+    
+    /**
+     * Checks if process is still alive and finishes monitoring if not.
+     * @param currentTimeNanos current time based on System.nanoTime()
+     * @return process still alive and being monitored?
+     */
+    private boolean isMonitoring(long currentTimeNanos) {
+        synchronized (syncObj) {
+            if (finished) {
+                return false;
             }
             
-            // wait before next check
-            try {
-                Thread.sleep(checkInterval);
-            } catch (InterruptedException ex) {
-                logger.log(Level.FINE, logPrefix+"Timer got interrupted:", ex);
+            if (process.isAlive()) {
+                return true;
             }
         }
         
-        // log outcome
-        long currentTimeMillis = System.currentTimeMillis();
-        boolean wasTerminated = (firstTimeTerminationMillis >= 0);
-        if (wasTerminated) {
-            logger.log(Level.WARNING, logPrefix+"Terminated in <"+Long.toString(currentTimeMillis - firstTimeTerminationMillis)+"ms (exit code "+Integer.toString(process.exitValue())+")");
-        } else if (startTimeMillis < 0) {
-            logger.log(Level.FINE, logPrefix+"Process wasn't alive when we started. (exit code "+Integer.toString(process.exitValue())+")");
-        } else {
-            logger.log(Level.FINE, logPrefix+"Process completed without timeout in <"+Long.toString(currentTimeMillis - startTimeMillis)+"ms (exit code "+Integer.toString(process.exitValue())+")");
-        }
+        finish(currentTimeNanos);
         
+        return false;
+    }
+    
+    /**
+     * Logs outcome and notifies shutdown callbacks after the process has
+     * terminated. Only the first call has any effect.
+     * @param currentTimeNanos current time based on System.nanoTime()
+     */
+    private void finish(long currentTimeNanos) {
         // notify observers by calling registered shutdown callbacks
-        // NOTE: process.isAlive() has to return false by now to avoid new
-        //       callbacks getting registered late (accomplished by while loop above)
-        List<Callable<Void>> localShutdownCallbacks;
+        // NOTE: finished has to be set while holding the lock to avoid new
+        //       callbacks getting registered late
+        final List<Callable<Void>> localShutdownCallbacks;
         synchronized (syncObj) {
+            if (finished) {
+                return;
+            }
+            
+            finished = true;
             localShutdownCallbacks = new LinkedList<>(shutdownCallbacks);
+            shutdownCallbacks.clear();
+        }
+        
+        metrics.processExited();
+        if (wasAliveAtStart) {
+            metrics.recordProcessLifetime(currentTimeNanos - startTimeNanos);
+        }
+        
+        // log outcome
+        if (isTerminating) {
+            logger.log(Level.WARNING, logPrefix+"Terminated in <"+Long.toString(TimeUnit.NANOSECONDS.toMillis(currentTimeNanos - firstTimeTerminationNanos) + 1)+"ms (exit code "+Integer.toString(process.exitValue())+")");
+        } else if (!wasAliveAtStart) {
+            logger.log(Level.FINE, logPrefix+"Process wasn't alive when we started. (exit code "+Integer.toString(process.exitValue())+")");
+        } else {
+            logger.log(Level.FINE, logPrefix+"Process completed without timeout in <"+Long.toString(TimeUnit.NANOSECONDS.toMillis(currentTimeNanos - startTimeNanos) + 1)+"ms (exit code "+Integer.toString(process.exitValue())+")");
         }
         
         if (localShutdownCallbacks.isEmpty()) {
             logger.log(Level.FINE, "{0}no shutdown callbacks registered", logPrefix);
-        } else {
+            return;
+        }
+        
+        // run callbacks outside of scheduler thread as they may take a while
+        scheduler.dispatchCallback(() -> {
             logger.log(Level.FINE, "{0}Notifying {1} shutdown callbacks", new Object[]{logPrefix, localShutdownCallbacks.size()});
             
             for (Callable<Void> callback : localShutdownCallbacks) {
@@ -163,20 +347,20 @@ public class ProcessWatchdog extends Thread {
             }
             
             logger.log(Level.FINE, "{0}Called all shut down callbacks.", logPrefix);
-        }
+        });
     }
     
     /**
      * Adds a Callable to be called when process is being shut down. If process
-     * is already dead when trying to add the callback, callback will be run
-     * immediately.
+     * has already been seen dead when trying to add the callback, callback
+     * will be run immediately.
      * @param callback shutdown callback
      */
     public void addShutdownCallback(Callable<Void> callback) {
         boolean alreadyDead = false;
         
         synchronized (syncObj) {
-            alreadyDead = !process.isAlive();
+            alreadyDead = finished;
             
             if (!alreadyDead) {
                 shutdownCallbacks.add(callback);
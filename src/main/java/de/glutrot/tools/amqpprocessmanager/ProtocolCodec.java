@@ -0,0 +1,409 @@
+package de.glutrot.tools.amqpprocessmanager;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Encodes and decodes IPC messages of the line-based JSON protocol (see
+ * ProcessCommunicator) without building a JSON DOM. Messages are JSON arrays
+ * whose elements are expected to be strings.<br />
+ * <br />
+ * Decoding fills a reusable Frame. Known keywords are matched in place, so
+ * decoding messages consisting only of a keyword (such as heartbeats) does
+ * not allocate any memory. String elements are unescaped in a single pass,
+ * using a reusable buffer only if they contain escape sequences. Elements
+ * which are not strings are skipped and reported as null.<br />
+ * <br />
+ * Encoding writes escaped strings directly to the given Writer.<br />
+ * <br />
+ * Instances are not thread-safe, each reader should use its own codec.
+ */
+public class ProtocolCodec {
+    public static final String KEYWORD_BATCH = "batch";
+    public static final String KEYWORD_HEARTBEAT = "heartbeat";
+    public static final String KEYWORD_MESSAGE = "message";
+    public static final String KEYWORD_MESSAGE_FILE = "message_file";
+    public static final String KEYWORD_PARTIAL = "partial";
+    public static final String KEYWORD_RESULT = "result";
+    public static final String KEYWORD_RESULT_FILE = "result_file";
+    
+    private static final String[] KNOWN_KEYWORDS = new String[]{ KEYWORD_BATCH, KEYWORD_HEARTBEAT, KEYWORD_MESSAGE, KEYWORD_MESSAGE_FILE, KEYWORD_PARTIAL, KEYWORD_RESULT, KEYWORD_RESULT_FILE };
+    
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    
+    private final StringBuilder unescapeBuffer = new StringBuilder();
+    
+    /**
+     * Decoded message, to be reused for decoding further messages.
+     */
+    public static class Frame {
+        private String[] elements = new String[4];
+        private int size = 0;
+        
+        /**
+         * Returns the message keyword (first element).
+         * @return keyword, null if message is empty or first element is no string
+         */
+        public String getKeyword() {
+            return (size > 0) ? elements[0] : null;
+        }
+        
+        /**
+         * Returns the number of elements including the keyword.
+         * @return number of elements
+         */
+        public int size() {
+            return size;
+        }
+        
+        /**
+         * Returns the element at given index (keyword is at index 0).
+         * @param index index of element
+         * @return element, null if out of range or not a string
+         */
+        public String getString(int index) {
+            return ((index >= 0) && (index < size)) ? elements[index] : null;
+        }
+        
+        private void add(String element) {
+            if (size == elements.length) {
+                elements = Arrays.copyOf(elements, elements.length * 2);
+            }
+            
+            elements[size++] = element;
+        }
+        
+        private void clear() {
+            Arrays.fill(elements, 0, size, null);
+            size = 0;
+        }
+    }
+    
+    /**
+     * Thrown if a message could not be decoded.
+     */
+    public static class DecodeException extends Exception {
+        private static final long serialVersionUID = 1L;
+        
+        public DecodeException(String message) {
+            super(message);
+        }
+    }
+    
+    /**
+     * Decodes a single line into given frame. The frame is cleared before.
+     * @param line line received from process
+     * @param frame frame to hold decoded elements
+     * @throws ProtocolCodec.DecodeException if line does not hold a valid JSON array
+     */
+    public void decode(String line, Frame frame) throws DecodeException {
+        frame.clear();
+        
+        int length = line.length();
+        int pos = skipWhitespace(line, 0);
+        if ((pos >= length) || (line.charAt(pos) != '[')) {
+            throw new DecodeException("no JSON array on root level");
+        }
+        
+        pos = skipWhitespace(line, pos + 1);
+        if ((pos < length) && (line.charAt(pos) == ']')) {
+            checkEnd(line, pos + 1);
+            return;
+        }
+        
+        while (true) {
+            if (pos >= length) {
+                throw new DecodeException("unexpected end of message");
+            }
+            
+            if (line.charAt(pos) == '"') {
+                pos = decodeString(line, pos, frame);
+            } else {
+                pos = skipValue(line, pos);
+                frame.add(null);
+            }
+            
+            pos = skipWhitespace(line, pos);
+            if (pos >= length) {
+                throw new DecodeException("unexpected end of message");
+            }
+            
+            char ch = line.charAt(pos);
+            if (ch == ']') {
+                checkEnd(line, pos + 1);
+                return;
+            } else if (ch != ',') {
+                throw new DecodeException("expected , or ] at position "+pos);
+            }
+            
+            pos = skipWhitespace(line, pos + 1);
+        }
+    }
+    
+    private static int skipWhitespace(String line, int pos) {
+        int length = line.length();
+        while (pos < length) {
+            char ch = line.charAt(pos);
+            if ((ch != ' ') && (ch != '\t') && (ch != '\n') && (ch != '\r')) {
+                break;
+            }
+            pos++;
+        }
+        
+        return pos;
+    }
+    
+    private static void checkEnd(String line, int pos) throws DecodeException {
+        if (skipWhitespace(line, pos) != line.length()) {
+            throw new DecodeException("unexpected data after array at position "+pos);
+        }
+    }
+    
+    /**
+     * Decodes the string starting with the quote at given position and adds
+     * it to the frame.
+     * @return position after closing quote
+     */
+    private int decodeString(String line, int pos, Frame frame) throws DecodeException {
+        int length = line.length();
+        int start = pos + 1;
+        
+        // find end of string, stop at first escape sequence
+        int i = start;
+        char ch = 0;
+        while (i < length) {
+            ch = line.charAt(i);
+            if ((ch == '"') || (ch == '\\')) {
+                break;
+            } else if (ch < 0x20) {
+                throw new DecodeException("unescaped control character at position "+i);
+            }
+            i++;
+        }
+        
+        if (i >= length) {
+            throw new DecodeException("unterminated string at position "+pos);
+        }
+        
+        // fast path: no escape sequences
+        if (ch == '"') {
+            String element = (frame.size == 0) ? matchKeyword(line, start, i - start) : null;
+            if (element == null) {
+                element = line.substring(start, i);
+            }
+            
+            frame.add(element);
+            return i + 1;
+        }
+        
+        // continue with unescaping from first escape sequence
+        unescapeBuffer.setLength(0);
+        unescapeBuffer.append(line, start, i);
+        
+        while (true) {
+            if (i >= length) {
+                throw new DecodeException("unterminated string at position "+pos);
+            }
+            
+            ch = line.charAt(i++);
+            if (ch == '"') {
+                break;
+            } else if (ch < 0x20) {
+                throw new DecodeException("unescaped control character at position "+(i - 1));
+            } else if (ch != '\\') {
+                unescapeBuffer.append(ch);
+                continue;
+            }
+            
+            if (i >= length) {
+                throw new DecodeException("unterminated escape sequence at position "+(i - 1));
+            }
+            
+            ch = line.charAt(i++);
+            switch (ch) {
+                case '"':
+                case '\\':
+                case '/':   unescapeBuffer.append(ch);
+                            break;
+                
+                case 'b':   unescapeBuffer.append('\b');
+                            break;
+                
+                case 'f':   unescapeBuffer.append('\f');
+                            break;
+                
+                case 'n':   unescapeBuffer.append('\n');
+                            break;
+                
+                case 'r':   unescapeBuffer.append('\r');
+                            break;
+                
+                case 't':   unescapeBuffer.append('\t');
+                            break;
+                
+                case 'u':   if (i + 4 > length) {
+                                throw new DecodeException("incomplete unicode escape sequence at position "+(i - 2));
+                            }
+                            int codeUnit = 0;
+                            for (int j = 0; j < 4; j++) {
+                                int digit = Character.digit(line.charAt(i++), 16);
+                                if (digit < 0) {
+                                    throw new DecodeException("invalid unicode escape sequence at position "+(i - 3 - j));
+                                }
+                                codeUnit = (codeUnit << 4) | digit;
+                            }
+                            unescapeBuffer.append((char) codeUnit);
+                            break;
+                
+                default:    throw new DecodeException("invalid escape sequence at position "+(i - 2));
+            }
+        }
+        
+        frame.add(unescapeBuffer.toString());
+        return i;
+    }
+    
+    /**
+     * Returns the constant of a known keyword if it matches given region.
+     * @return keyword constant, null if region does not match any known keyword
+     */
+    private static String matchKeyword(String line, int start, int length) {
+        for (String keyword : KNOWN_KEYWORDS) {
+            if ((keyword.length() == length) && line.regionMatches(start, keyword, 0, length)) {
+                return keyword;
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Skips a value which is not a string (literal, number, object or array).
+     * @return position after value
+     */
+    private static int skipValue(String line, int pos) throws DecodeException {
+        int length = line.length();
+        int start = pos;
+        int depth = 0;
+        boolean inString = false;
+        
+        while (pos < length) {
+            char ch = line.charAt(pos);
+            
+            if (inString) {
+                if (ch == '\\') {
+                    pos++;
+                } else if (ch == '"') {
+                    inString = false;
+                }
+            } else if (ch == '"') {
+                if (depth == 0) {
+                    break;
+                }
+                inString = true;
+            } else if ((ch == '[') || (ch == '{')) {
+                depth++;
+            } else if ((ch == ']') || (ch == '}')) {
+                if (depth == 0) {
+                    break;
+                }
+                
+                depth--;
+                if (depth == 0) {
+                    pos++;
+                    break;
+                }
+            } else if ((depth == 0) && ((ch == ',') || (ch == ' ') || (ch == '\t') || (ch == '\n') || (ch == '\r'))) {
+                break;
+            }
+            
+            pos++;
+        }
+        
+        if ((pos == start) || (depth > 0) || inString) {
+            throw new DecodeException("invalid value at position "+start);
+        }
+        
+        return pos;
+    }
+    
+    /**
+     * Writes a JSON array of given strings to the writer.
+     * @param writer writer to encode message to
+     * @param elements elements of message, starting with keyword; null elements are written as JSON null
+     * @throws IOException if writing fails
+     */
+    public static void writeArray(Writer writer, String... elements) throws IOException {
+        writer.write('[');
+        
+        for (int i = 0; i < elements.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            
+            writeString(writer, elements[i]);
+        }
+        
+        writer.write(']');
+    }
+    
+    /**
+     * Writes given string as JSON string to the writer, escaping it in a
+     * single pass.
+     * @param writer writer to encode string to
+     * @param s string to encode, null is written as JSON null
+     * @throws IOException if writing fails
+     */
+    public static void writeString(Writer writer, String s) throws IOException {
+        if (s == null) {
+            writer.write("null");
+            return;
+        }
+        
+        writer.write('"');
+        
+        int length = s.length();
+        int runStart = 0;
+        for (int i = 0; i < length; i++) {
+            char ch = s.charAt(i);
+            if ((ch >= 0x20) && (ch != '"') && (ch != '\\')) {
+                continue;
+            }
+            
+            // flush unescaped run before escaping character
+            writer.write(s, runStart, i - runStart);
+            runStart = i + 1;
+            
+            switch (ch) {
+                case '"':   writer.write("\\\"");
+                            break;
+                
+                case '\\':  writer.write("\\\\");
+                            break;
+                
+                case '\b':  writer.write("\\b");
+                            break;
+                
+                case '\f':  writer.write("\\f");
+                            break;
+                
+                case '\n':  writer.write("\\n");
+                            break;
+                
+                case '\r':  writer.write("\\r");
+                            break;
+                
+                case '\t':  writer.write("\\t");
+                            break;
+                
+                default:    writer.write("\\u00");
+                            writer.write(HEX_DIGITS[ch >> 4]);
+                            writer.write(HEX_DIGITS[ch & 0xF]);
+            }
+        }
+        
+        writer.write(s, runStart, length - runStart);
+        writer.write('"');
+    }
+}
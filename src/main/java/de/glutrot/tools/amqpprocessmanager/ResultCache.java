@@ -0,0 +1,383 @@
+package de.glutrot.tools.amqpprocessmanager;
+
+import de.glutrot.tools.amqpprocessmanager.metrics.MetricsRegistry;
+import de.glutrot.tools.amqpprocessmanager.metrics.ProcessMetrics;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches results of successful executions so identical requests to
+ * deterministic processes do not have to run them again. Results are keyed
+ * by a SHA-256 hash of the request body and optionally selected headers.<br />
+ * <br />
+ * Results are held in memory for a limited time (TTL), bounded by number of
+ * entries and total size with least recently used entries being evicted
+ * first. If a directory is configured, evicted entries are moved to disk
+ * (also bounded by size) and read back on demand.<br />
+ * <br />
+ * Identical requests arriving while a request is still being executed are
+ * not executed again but attach to the running execution (single-flight):
+ * lookup() registers the first caller as executing the request, which then
+ * has to report the result via complete() to resolve all waiting requests,
+ * or call abandon() if the request will not be executed after all.
+ */
+public class ResultCache {
+    private static final Logger logger = Logger.getLogger(ResultCache.class.getName());
+    
+    private static final Charset charset = Charset.forName("UTF-8");
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final String KEY_PATTERN = "[0-9a-f]{64}";
+    
+    private static class Entry {
+        private final ProcessCommunicator.Result result;
+        private final long expirationTime;
+        private final long size;
+        
+        public Entry(ProcessCommunicator.Result result, long expirationTime) {
+            this.result = result;
+            this.expirationTime = expirationTime;
+            this.size = (result.getData() != null) ? result.getData().length : 2L * result.getOutput().length();
+        }
+    }
+    
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final long maxSize;
+    private final List<String> keyHeaders;
+    private final File diskDirectory;
+    private final long diskMaxSize;
+    private final String logPrefix;
+    private final ProcessMetrics metrics;
+    
+    // all guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+    private final LinkedHashMap<String, Long> diskEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskSize = 0;
+    private final Map<String, CompletableFuture<ProcessCommunicator.Result>> inFlight = new HashMap<>();
+    
+    /**
+     * @param ttl time to keep results (seconds)
+     * @param maxEntries maximum number of results to keep in memory
+     * @param maxSize maximum total size of results to keep in memory (bytes)
+     * @param keyHeaders headers to include in keys in addition to body, null for none
+     * @param diskDirectory existing directory to move evicted results to, null to keep results only in memory
+     * @param diskMaxSize maximum total size of results to keep on disk (bytes)
+     * @param name process name used for logging and metrics
+     * @throws IOException if directory is not writable or could not be cleared
+     */
+    public ResultCache(int ttl, int maxEntries, long maxSize, List<String> keyHeaders, File diskDirectory, long diskMaxSize, String name) throws IOException {
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(Math.max(0, ttl));
+        this.maxEntries = Math.max(0, maxEntries);
+        this.maxSize = Math.max(0, maxSize);
+        this.keyHeaders = (keyHeaders != null) ? new ArrayList<>(keyHeaders) : new ArrayList<>();
+        this.diskDirectory = diskDirectory;
+        this.diskMaxSize = Math.max(0, diskMaxSize);
+        this.logPrefix = "Process "+name+": ";
+        this.metrics = MetricsRegistry.getInstance().getProcessMetrics(name);
+        
+        if (diskDirectory != null) {
+            if (!diskDirectory.isDirectory() || !diskDirectory.canWrite()) {
+                throw new IOException("Cache directory does not exist or is not writable: "+diskDirectory.getPath());
+            }
+            
+            // results of previous runs may no longer be valid
+            File[] files = diskDirectory.listFiles((dir, fileName) -> fileName.matches(KEY_PATTERN));
+            if (files != null) {
+                for (File file : files) {
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+        }
+    }
+    
+    /**
+     * Calculates the key of a request.
+     * @param body request body
+     * @param headers request headers (only configured headers are used)
+     * @return key (hex-encoded SHA-256 hash)
+     */
+    public String createKey(byte[] body, Map<String, Object> headers) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+        
+        for (String header : keyHeaders) {
+            Object value = (headers != null) ? headers.get(header) : null;
+            
+            // length-prefix all parts so they cannot be shifted into each other
+            updateWithLength(digest, header.getBytes(charset));
+            updateWithLength(digest, (value != null) ? value.toString().getBytes(charset) : new byte[0]);
+        }
+        
+        if (body != null) {
+            digest.update(body);
+        }
+        
+        byte[] hash = digest.digest();
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX_DIGITS[hash[i] & 0xF];
+        }
+        
+        return new String(hex);
+    }
+    
+    private static void updateWithLength(MessageDigest digest, byte[] bytes) {
+        int length = bytes.length;
+        digest.update(new byte[]{ (byte) (length >> 24), (byte) (length >> 16), (byte) (length >> 8), (byte) length });
+        digest.update(bytes);
+    }
+    
+    /**
+     * Looks up the result for given key. If neither a cached result nor a
+     * running execution is found, the caller is registered as executing the
+     * request and must call complete() once the result is available.
+     * @param key key of request, see createKey
+     * @return future resolving to the result: completed if cached, pending if an identical request is being executed; null if caller has to execute the request
+     */
+    public CompletableFuture<ProcessCommunicator.Result> lookup(String key) {
+        CompletableFuture<ProcessCommunicator.Result> future;
+        boolean readFromDisk;
+        
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.expirationTime > now) {
+                    metrics.countCacheHit();
+                    return CompletableFuture.completedFuture(entry.result);
+                }
+                
+                remove(key);
+            }
+            
+            future = inFlight.get(key);
+            if (future != null) {
+                metrics.countCacheCoalesced();
+                return future;
+            }
+            
+            // identical requests wait for us from now on, even while reading
+            // from disk
+            future = new CompletableFuture<>();
+            inFlight.put(key, future);
+            
+            readFromDisk = diskEntries.containsKey(key);
+        }
+        
+        if (readFromDisk) {
+            ProcessCommunicator.Result result = readFromDisk(key);
+            if (result != null) {
+                metrics.countCacheHit();
+                complete(key, result);
+                return future;
+            }
+        }
+        
+        metrics.countCacheMiss();
+        return null;
+    }
+    
+    /**
+     * Reports the result of an execution registered by lookup(). Successful
+     * results are cached and all identical requests waiting for the
+     * execution are resolved (also with failed results).
+     * @param key key of request
+     * @param result result of execution, null if execution failed
+     */
+    public void complete(String key, ProcessCommunicator.Result result) {
+        boolean cache = (result != null) && !result.hasFailed() && ((result.getData() != null) || (result.getOutput() != null)) && (ttlMillis > 0);
+        
+        CompletableFuture<ProcessCommunicator.Result> future;
+        List<Map.Entry<String, Entry>> evicted = new ArrayList<>();
+        
+        synchronized (this) {
+            future = inFlight.remove(key);
+            
+            if (cache) {
+                Entry entry = new Entry(result, System.currentTimeMillis() + ttlMillis);
+                if ((entry.size <= maxSize) && (maxEntries > 0)) {
+                    remove(key);
+                    removeFromDisk(key);
+                    entries.put(key, entry);
+                    size += entry.size;
+                    
+                    // evict least recently used entries
+                    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+                    while (((size > maxSize) || (entries.size() > maxEntries)) && it.hasNext()) {
+                        Map.Entry<String, Entry> mapEntry = it.next();
+                        it.remove();
+                        size -= mapEntry.getValue().size;
+                        evicted.add(mapEntry);
+                    }
+                }
+            }
+        }
+        
+        if (future != null) {
+            future.complete(result);
+        }
+        
+        if (diskDirectory != null) {
+            for (Map.Entry<String, Entry> mapEntry : evicted) {
+                writeToDisk(mapEntry.getKey(), mapEntry.getValue());
+            }
+        }
+    }
+    
+    /**
+     * Gives up an execution registered by lookup() without a result, e.g.
+     * because its message has been requeued. Identical requests waiting for
+     * the execution are cancelled (their futures complete exceptionally with
+     * a CancellationException) and have to be executed or requeued by
+     * themselves; the next lookup() registers a new execution.
+     * @param key key of request
+     */
+    public void abandon(String key) {
+        CompletableFuture<ProcessCommunicator.Result> future;
+        synchronized (this) {
+            future = inFlight.remove(key);
+        }
+        
+        if (future != null) {
+            future.completeExceptionally(new CancellationException("execution of request has been abandoned"));
+        }
+    }
+    
+    /**
+     * Removes an entry from memory. Must be called while holding the lock.
+     */
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            size -= entry.size;
+        }
+    }
+    
+    /**
+     * Removes an entry from disk index. File is deleted by caller or left to
+     * be overwritten. Must be called while holding the lock.
+     */
+    private void removeFromDisk(String key) {
+        Long fileSize = diskEntries.remove(key);
+        if (fileSize != null) {
+            diskSize -= fileSize;
+        }
+    }
+    
+    private void writeToDisk(String key, Entry entry) {
+        if (entry.expirationTime <= System.currentTimeMillis()) {
+            return;
+        }
+        
+        boolean binary = (entry.result.getData() != null);
+        byte[] data = binary ? entry.result.getData() : entry.result.getOutput().getBytes(charset);
+        if (data.length > diskMaxSize) {
+            return;
+        }
+        
+        // write to a temporary file (only readable by current user) first,
+        // so readers never see partial files
+        Path tempPath = null;
+        try {
+            tempPath = Files.createTempFile(diskDirectory.toPath(), key, ".tmp");
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+                dos.writeLong(entry.expirationTime);
+                dos.writeBoolean(binary);
+                dos.writeInt(data.length);
+                dos.write(data);
+            }
+            
+            Files.move(tempPath, new File(diskDirectory, key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, logPrefix+"Failed to write cached result to disk", ex);
+            deleteQuietly(tempPath);
+            return;
+        }
+        
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            removeFromDisk(key);
+            diskEntries.put(key, (long) data.length);
+            diskSize += data.length;
+            
+            Iterator<Map.Entry<String, Long>> it = diskEntries.entrySet().iterator();
+            while ((diskSize > diskMaxSize) && it.hasNext()) {
+                Map.Entry<String, Long> mapEntry = it.next();
+                it.remove();
+                diskSize -= mapEntry.getValue();
+                evicted.add(mapEntry.getKey());
+            }
+        }
+        
+        for (String evictedKey : evicted) {
+            deleteQuietly(new File(diskDirectory, evictedKey).toPath());
+        }
+    }
+    
+    private ProcessCommunicator.Result readFromDisk(String key) {
+        Path path = new File(diskDirectory, key).toPath();
+        
+        ProcessCommunicator.Result result = null;
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            long expirationTime = dis.readLong();
+            boolean binary = dis.readBoolean();
+            byte[] data = new byte[dis.readInt()];
+            dis.readFully(data);
+            
+            if (expirationTime > System.currentTimeMillis()) {
+                result = binary ? new ProcessCommunicator.Result(data, false) : new ProcessCommunicator.Result(new String(data, charset), false);
+            }
+        } catch (IOException ex) {
+            logger.log(Level.FINE, logPrefix+"Failed to read cached result from disk", ex);
+        }
+        
+        // entries are moved back to memory (or dropped if expired)
+        synchronized (this) {
+            removeFromDisk(key);
+        }
+        deleteQuietly(path);
+        
+        return result;
+    }
+    
+    private void deleteQuietly(Path path) {
+        if (path == null) {
+            return;
+        }
+        
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ex) {
+            logger.log(Level.FINE, logPrefix+"Failed to delete cache file "+path, ex);
+        }
+    }
+}
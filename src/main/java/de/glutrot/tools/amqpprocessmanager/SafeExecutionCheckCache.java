@@ -0,0 +1,296 @@
+package de.glutrot.tools.amqpprocessmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches the result of the pre-condition check run before executing a
+ * process, so file system metadata does not have to be read for each message
+ * (which is expensive e.g. on network file systems). The cached result is
+ * invalidated
+ * <ul>
+ * <li>by a WatchService as soon as the working directory or executable
+ * (including the target of a symbolic link) is created, deleted or
+ * modified, which also covers permission changes</li>
+ * <li>after revalidateInterval has passed, as a fallback for file systems
+ * which do not report changes (e.g. NFS)</li>
+ * </ul>
+ * The check is then run again on next use. If requested, the executable is
+ * additionally pinned by the SHA-256 hash of its content on first successful
+ * check; if the content changes later on (e.g. the executable has been
+ * swapped), the check fails until the manager is restarted.
+ */
+public class SafeExecutionCheckCache {
+    private static final Logger logger = Logger.getLogger(SafeExecutionCheckCache.class.getName());
+    
+    private static final int HASH_BUFFER_SIZE = 65536;
+    
+    private final BooleanSupplier check;
+    private final File executable;
+    private final long revalidateIntervalNanos;
+    private final boolean pinExecutable;
+    private final String name;
+    private final String logPrefix;
+    
+    // names to watch for changes, by directory
+    private final Map<Path, Set<Path>> watchedNames = new HashMap<>();
+    private final Map<Path, WatchKey> watchKeys = new HashMap<>();
+    private WatchService watchService = null;
+    private Thread watchThread = null;
+    
+    private final Object syncObj = new Object();
+    private volatile long generation = 0;
+    private volatile long validGeneration = -1;
+    private volatile long validUntilNanos = 0;
+    private volatile boolean safe = false;
+    private byte[] pinnedHash = null;
+    
+    /**
+     * @param check actual pre-condition check
+     * @param workDir working directory of the process
+     * @param executable executable of the process
+     * @param revalidateInterval interval after which the check is run again even without any changes having been noticed (seconds)
+     * @param watch watch working directory and executable for changes?
+     * @param pinExecutable fail check if executable content changes?
+     * @param name process name used to identify log messages
+     */
+    public SafeExecutionCheckCache(BooleanSupplier check, File workDir, File executable, int revalidateInterval, boolean watch, boolean pinExecutable, String name) {
+        this.check = check;
+        this.executable = executable;
+        this.revalidateIntervalNanos = TimeUnit.SECONDS.toNanos(Math.max(1, revalidateInterval));
+        this.pinExecutable = pinExecutable;
+        this.name = name;
+        this.logPrefix = "Process "+name+": ";
+        
+        if (watch) {
+            addWatchedFile(workDir);
+            addWatchedFile(executable);
+        }
+    }
+    
+    /**
+     * Adds a file to watch for changes, as given and after resolving
+     * symbolic links.
+     * @param file file to watch
+     */
+    private void addWatchedFile(File file) {
+        if (file == null) {
+            return;
+        }
+        
+        Path path = file.toPath().toAbsolutePath().normalize();
+        addWatchedPath(path);
+        
+        try {
+            addWatchedPath(path.toRealPath());
+        } catch (IOException ex) {
+            logger.log(Level.FINE, logPrefix+"Unable to resolve "+path+" for watching:", ex);
+        }
+    }
+    
+    private void addWatchedPath(Path path) {
+        Path parent = path.getParent();
+        Path fileName = path.getFileName();
+        if ((parent != null) && (fileName != null)) {
+            watchedNames.computeIfAbsent(parent, (k) -> new HashSet<>()).add(fileName);
+        }
+    }
+    
+    /**
+     * Starts watching for changes if requested.
+     */
+    public void start() {
+        if (watchedNames.isEmpty()) {
+            return;
+        }
+        
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, logPrefix+"Unable to watch executable for changes, pre-conditions will only be checked every "+Long.toString(TimeUnit.NANOSECONDS.toSeconds(revalidateIntervalNanos))+" seconds:", ex);
+            return;
+        }
+        
+        registerWatches();
+        
+        watchThread = new Thread(this::watch, "SafeExecutionCheckCache "+name);
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+    
+    /**
+     * Stops watching for changes.
+     */
+    public void stop() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ex) {
+                logger.log(Level.FINE, logPrefix+"Failed to close watch service:", ex);
+            }
+        }
+    }
+    
+    /**
+     * Registers all watched directories which are not registered (anymore),
+     * e.g. because they have been deleted and recreated meanwhile.
+     */
+    private void registerWatches() {
+        if (watchService == null) {
+            return;
+        }
+        
+        synchronized (watchKeys) {
+            for (Path directory : watchedNames.keySet()) {
+                WatchKey key = watchKeys.get(directory);
+                if ((key != null) && key.isValid()) {
+                    continue;
+                }
+                
+                try {
+                    watchKeys.put(directory, directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY));
+                } catch (IOException | ClosedWatchServiceException ex) {
+                    logger.log(Level.FINE, logPrefix+"Unable to watch "+directory+" for changes:", ex);
+                }
+            }
+        }
+    }
+    
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                return;
+            }
+            
+            Set<Path> names = watchedNames.get((Path) key.watchable());
+            for (WatchEvent<?> event : key.pollEvents()) {
+                // events may have been lost on overflow
+                boolean relevant = (event.kind() == StandardWatchEventKinds.OVERFLOW) || ((names != null) && names.contains((Path) event.context()));
+                if (relevant) {
+                    logger.log(Level.FINE, "{0}{1} changed, pre-conditions will be checked again", new Object[]{logPrefix, event.context()});
+                    invalidate();
+                }
+            }
+            
+            // directory is gone; registration is retried on next check
+            if (!key.reset()) {
+                invalidate();
+            }
+        }
+    }
+    
+    /**
+     * Discards the cached result, so the check will be run again on next use.
+     */
+    public void invalidate() {
+        synchronized (syncObj) {
+            generation++;
+        }
+    }
+    
+    /**
+     * Returns the cached result of the pre-condition check, running the check
+     * if there is no valid result.
+     * @return safe to execute?
+     */
+    public boolean isSafe() {
+        if ((validGeneration == generation) && (validUntilNanos - System.nanoTime() > 0)) {
+            return safe;
+        }
+        
+        return revalidate();
+    }
+    
+    private boolean revalidate() {
+        synchronized (syncObj) {
+            // another thread may have revalidated meanwhile
+            long currentGeneration = generation;
+            if ((validGeneration == currentGeneration) && (validUntilNanos - System.nanoTime() > 0)) {
+                return safe;
+            }
+            
+            registerWatches();
+            
+            boolean result = check.getAsBoolean() && checkPinnedExecutable();
+            
+            safe = result;
+            validUntilNanos = System.nanoTime() + revalidateIntervalNanos;
+            validGeneration = currentGeneration;
+            
+            return result;
+        }
+    }
+    
+    /**
+     * Checks the executable's content against the hash pinned on first call.
+     * Must be called while holding syncObj.
+     * @return executable unchanged (or not pinned)?
+     */
+    private boolean checkPinnedExecutable() {
+        if (!pinExecutable) {
+            return true;
+        }
+        
+        byte[] hash;
+        try {
+            hash = hashFile(executable);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, logPrefix+"Unable to hash executable for pinning:", ex);
+            return false;
+        }
+        
+        if (pinnedHash == null) {
+            pinnedHash = hash;
+            return true;
+        }
+        
+        if (!Arrays.equals(pinnedHash, hash)) {
+            logger.log(Level.WARNING, "{0}Content of executable {1} has changed since it has been pinned, restart to accept the new executable!", new Object[]{logPrefix, executable});
+            return false;
+        }
+        
+        return true;
+    }
+    
+    private static byte[] hashFile(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException("SHA-256 is not available", ex);
+        }
+        
+        byte[] buffer = new byte[HASH_BUFFER_SIZE];
+        try (InputStream is = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = is.read(buffer)) >= 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        
+        return digest.digest();
+    }
+}
@@ -0,0 +1,76 @@
+package de.glutrot.tools.amqpprocessmanager;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Installs handlers for POSIX signals such as SIGHUP and SIGTERM.<br />
+ * <br />
+ * Java has no public API to handle signals; shutdown hooks only run once the
+ * JVM is already exiting and cannot react to SIGHUP at all. We therefore rely
+ * on sun.misc.Signal, which is provided by all common JVMs. It is accessed by
+ * reflection only, as javac reports proprietary API warnings on any direct
+ * use which cannot be suppressed. All uses of it are kept in this class, so
+ * it is the only place to change if that API ever goes away.
+ */
+public class SignalHandlers {
+    private SignalHandlers() {
+        // static methods only
+    }
+    
+    /**
+     * Replaces the handler of the given signal. Handlers are run on a thread
+     * of the JVM and should return quickly.
+     * @param name signal name without "SIG" prefix (e.g. "HUP")
+     * @param handler handler to run each time the signal is received
+     * @throws IllegalArgumentException if the signal is unknown on this platform or reserved by the JVM
+     * @throws UnsupportedOperationException if the JVM does not provide sun.misc.Signal
+     */
+    public static void handle(String name, Runnable handler) {
+        Class<?> signalClass;
+        Class<?> handlerClass;
+        Constructor<?> signalConstructor;
+        Method handleMethod;
+        try {
+            signalClass = Class.forName("sun.misc.Signal");
+            handlerClass = Class.forName("sun.misc.SignalHandler");
+            signalConstructor = signalClass.getConstructor(String.class);
+            handleMethod = signalClass.getMethod("handle", signalClass, handlerClass);
+        } catch (ClassNotFoundException | NoSuchMethodException ex) {
+            throw new UnsupportedOperationException("signal handling is not supported by this JVM", ex);
+        }
+        
+        // SignalHandler has a single method handle(Signal)
+        Object signalHandler = Proxy.newProxyInstance(handlerClass.getClassLoader(), new Class<?>[]{ handlerClass }, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    
+                    default:
+                        return "SignalHandler for SIG"+name;
+                }
+            }
+            
+            handler.run();
+            return null;
+        });
+        
+        try {
+            handleMethod.invoke(null, signalConstructor.newInstance(name), signalHandler);
+        } catch (InvocationTargetException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new UnsupportedOperationException("failed to install handler for SIG"+name, cause);
+        } catch (ReflectiveOperationException ex) {
+            throw new UnsupportedOperationException("failed to install handler for SIG"+name, ex);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package de.glutrot.tools.amqpprocessmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Directory used to hand large messages over to processes as files instead of
+ * passing them through pipes. Messages of at least threshold bytes are written
+ * once to a new file which is only readable by the current user; processes
+ * may also return large results as files placed in the same directory.<br />
+ * <br />
+ * Using a directory on a memory-backed file system (such as tmpfs) avoids
+ * any disk I/O. SpoolDirectory does not track files, so callers have to
+ * delete them when they are no longer needed.
+ */
+public class SpoolDirectory {
+    private static final Logger logger = Logger.getLogger(SpoolDirectory.class.getName());
+    
+    private static final String REQUEST_FILE_SUFFIX = ".msg";
+    
+    private final File directory;
+    private final String canonicalPath;
+    private final int threshold;
+    private final String filePrefix;
+    
+    /**
+     * @param directory existing directory to store files in
+     * @param threshold minimum message size to be spooled (bytes)
+     * @param name process name used to prefix file names
+     * @throws IOException if directory does not exist or is not writable
+     */
+    public SpoolDirectory(File directory, int threshold, String name) throws IOException {
+        if (!directory.isDirectory() || !directory.canWrite()) {
+            throw new IOException("Spool directory does not exist or is not writable: "+directory.getPath());
+        }
+        
+        this.directory = directory;
+        this.canonicalPath = directory.getCanonicalPath();
+        this.threshold = Math.max(0, threshold);
+        this.filePrefix = ((name != null) ? name.replaceAll("[^A-Za-z0-9_-]", "_") : "process")+"-";
+    }
+    
+    /**
+     * Checks if a message of given size should be spooled.
+     * @param length size of message (bytes)
+     * @return spool message?
+     */
+    public boolean shouldSpool(int length) {
+        return length >= threshold;
+    }
+    
+    /**
+     * Writes the given data to a new file.
+     * @param data data to write
+     * @return file holding data
+     * @throws IOException if file could not be written
+     */
+    public File write(byte[] data) throws IOException {
+        Path path = Files.createTempFile(directory.toPath(), filePrefix, REQUEST_FILE_SUFFIX);
+        
+        try {
+            Files.write(path, data);
+        } catch (IOException ex) {
+            Files.deleteIfExists(path);
+            throw ex;
+        }
+        
+        return path.toFile();
+    }
+    
+    /**
+     * Checks if given file is located directly in the spool directory, so
+     * processes cannot make us read (and delete) files elsewhere.
+     * @param file file to check
+     * @return located in spool directory?
+     */
+    public boolean contains(File file) {
+        try {
+            File parent = file.getCanonicalFile().getParentFile();
+            return (parent != null) && parent.getPath().equals(canonicalPath);
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "Failed to resolve path of "+file.getPath(), ex);
+            return false;
+        }
+    }
+    
+    /**
+     * Checks if given file has been named like files written by write(byte[])
+     * (by any process sharing the directory). Such files hold pending
+     * requests and must not be accepted as results.
+     * @param file file to check
+     * @return request file?
+     */
+    public boolean isRequestFile(File file) {
+        return file.getName().endsWith(REQUEST_FILE_SUFFIX);
+    }
+    
+    /**
+     * Deletes the given file if it exists.
+     * @param file file to delete
+     */
+    public void delete(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Failed to delete spool file "+file.getPath()+":", ex);
+        }
+    }
+    
+    public File getDirectory() {
+        return directory;
+    }
+}
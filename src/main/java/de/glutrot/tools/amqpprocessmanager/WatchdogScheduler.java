@@ -0,0 +1,190 @@
+package de.glutrot.tools.amqpprocessmanager;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Single shared scheduler running the checks of all ProcessWatchdogs on one
+ * thread. Checks are kept in a priority queue ordered by their deadline
+ * (System.nanoTime() based) and the scheduler thread sleeps exactly until
+ * the earliest deadline is due, so timeouts fire at their deadline instead
+ * of the next poll tick. Shutdown callbacks are run on a separate executor
+ * so slow callbacks cannot delay other watchdogs.<br />
+ * <br />
+ * Use WatchdogScheduler.getInstance() to get the shared instance.
+ */
+public class WatchdogScheduler {
+    private static final Logger logger = Logger.getLogger(WatchdogScheduler.class.getName());
+    
+    private static Object lockObj = new Object();
+    private static WatchdogScheduler instance = null;
+    
+    /**
+     * Type of check to be run when deadline is due.
+     */
+    public enum CheckType {
+        /**
+         * watchdog timeout (see ProcessWatchdog.checkTimeout(long))
+         */
+        TIMEOUT,
+        
+        /**
+         * periodic liveness check (see ProcessWatchdog.checkLiveness(long))
+         */
+        LIVENESS,
+        
+        /**
+         * additional liveness check after process closed its output and is
+         * expected to exit soon (see ProcessWatchdog.checkExpectedExit(long))
+         */
+        EXPECTED_EXIT
+    }
+    
+    private static class ScheduledCheck implements Comparable<ScheduledCheck> {
+        private final long deadlineNanos;
+        private final ProcessWatchdog watchdog;
+        private final CheckType type;
+        
+        public ScheduledCheck(long deadlineNanos, ProcessWatchdog watchdog, CheckType type) {
+            this.deadlineNanos = deadlineNanos;
+            this.watchdog = watchdog;
+            this.type = type;
+        }
+        
+        @Override
+        public int compareTo(ScheduledCheck other) {
+            // nanoTime values must only be compared by difference
+            long diff = deadlineNanos - other.deadlineNanos;
+            return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+        }
+    }
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final PriorityQueue<ScheduledCheck> queue = new PriorityQueue<>();
+    
+    private final ExecutorService callbackExecutor = Executors.newCachedThreadPool((Runnable r) -> {
+        Thread thread = new Thread(r, "WatchdogScheduler callback");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private final Thread thread = new Thread("WatchdogScheduler") {
+        @Override
+        public void run() {
+            runChecks();
+        }
+    };
+    
+    /**
+     * Returns a single shared instance of the scheduler.
+     * @return shared instance
+     */
+    public static WatchdogScheduler getInstance() {
+        synchronized (lockObj) {
+            if (instance == null) {
+                instance = new WatchdogScheduler();
+                instance.thread.setDaemon(true);
+                instance.thread.start();
+            }
+        }
+        
+        return instance;
+    }
+    
+    /**
+     * Schedules a check to be run for given watchdog at given time.
+     * @param watchdog watchdog to check
+     * @param type type of check to run
+     * @param deadlineNanos time to run check at, based on System.nanoTime()
+     */
+    public void schedule(ProcessWatchdog watchdog, CheckType type, long deadlineNanos) {
+        ScheduledCheck check = new ScheduledCheck(deadlineNanos, watchdog, type);
+        
+        lock.lock();
+        try {
+            queue.add(check);
+            
+            // wake up scheduler if new check is due before any other
+            if (queue.peek() == check) {
+                changed.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Runs the given callback on a separate thread.
+     * @param callback callback to run
+     */
+    public void dispatchCallback(Runnable callback) {
+        callbackExecutor.execute(callback);
+    }
+    
+    private void runChecks() {
+        List<ScheduledCheck> dueChecks = new LinkedList<>();
+        
+        while (true) {
+            // wait until next check is due and collect all due checks
+            lock.lock();
+            try {
+                ScheduledCheck next = queue.peek();
+                if (next == null) {
+                    changed.await();
+                    continue;
+                }
+                
+                long waitNanos = next.deadlineNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    changed.awaitNanos(waitNanos);
+                    continue;
+                }
+                
+                long currentTimeNanos = System.nanoTime();
+                while (((next = queue.peek()) != null) && (next.deadlineNanos - currentTimeNanos <= 0)) {
+                    dueChecks.add(queue.poll());
+                }
+            } catch (InterruptedException ex) {
+                logger.log(Level.FINE, "Scheduler got interrupted:", ex);
+                continue;
+            } finally {
+                lock.unlock();
+            }
+            
+            // run checks outside of lock, they may reschedule
+            for (ScheduledCheck check : dueChecks) {
+                try {
+                    runCheck(check);
+                } catch (Exception ex) {
+                    logger.log(Level.WARNING, "Exception while running watchdog check:", ex);
+                }
+            }
+            
+            dueChecks.clear();
+        }
+    }
+    
+    private void runCheck(ScheduledCheck check) {
+        ProcessWatchdog watchdog = check.watchdog;
+        long currentTimeNanos = System.nanoTime();
+        
+        switch (check.type) {
+            case TIMEOUT:       watchdog.checkTimeout(currentTimeNanos);
+                                break;
+            
+            case LIVENESS:      watchdog.checkLiveness(currentTimeNanos);
+                                break;
+            
+            case EXPECTED_EXIT: watchdog.checkExpectedExit(currentTimeNanos);
+                                break;
+        }
+    }
+}
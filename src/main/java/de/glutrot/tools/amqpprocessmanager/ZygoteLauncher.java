@@ -0,0 +1,791 @@
+package de.glutrot.tools.amqpprocessmanager;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Launches processes by asking a long-lived "zygote" to fork them instead of
+ * spawning a new process for each message. The zygote is the configured
+ * executable, started once in zygote mode, so it can preload everything
+ * needed to handle a message (e.g. interpreter and modules) before forking.
+ * See docs/PROTOCOL.md for details.<br />
+ * <br />
+ * Java cannot pass file descriptors over Unix sockets, so forked children
+ * connect back to a server socket bound to the loopback interface instead,
+ * authenticated by a random token which is only passed to the zygote through
+ * its environment. Each child opens one connection for stdin/stdout and
+ * another one for stderr. Children are returned as regular Process instances,
+ * so they can be handled like spawned processes; exit codes are reported and
+ * signals are sent by the zygote.<br />
+ * <br />
+ * The zygote is restarted on next fork if it has exited.
+ */
+public class ZygoteLauncher {
+    private static final Logger logger = Logger.getLogger(ZygoteLauncher.class.getName());
+    private static final Charset charset = Charset.forName("UTF-8");
+    
+    public static final String ENV_PORT = "AMQP_PROCESS_MANAGER_ZYGOTE_PORT";
+    public static final String ENV_TOKEN = "AMQP_PROCESS_MANAGER_ZYGOTE_TOKEN";
+    
+    private static final String KEYWORD_FORK = "fork";
+    private static final String KEYWORD_KILL = "kill";
+    private static final String KEYWORD_FORKED = "forked";
+    private static final String KEYWORD_FAILED = "failed";
+    private static final String KEYWORD_EXITED = "exited";
+    
+    private static final String STREAM_STDIO = "stdio";
+    private static final String STREAM_STDERR = "stderr";
+    
+    private static final String SIGNAL_TERM = "15";
+    private static final String SIGNAL_KILL = "9";
+    
+    private static final int TOKEN_LENGTH = 32;
+    private static final int MAX_HANDSHAKE_LENGTH = 256;
+    private static final int HANDSHAKE_TIMEOUT = 1000;
+    private static final int EXIT_CODE_UNKNOWN = -1;
+    
+    private final ProcessBuilder pb;
+    private final long forkTimeoutNanos;
+    private final boolean logStdErr;
+    private final ProcessIOEventLoop eventLoop;
+    private final BooleanSupplier spawnCondition;
+    private final String name;
+    private final String logPrefix;
+    
+    // handshakes may take up to their timeout, so they must not block
+    // accepting further connections
+    private final ExecutorService handshakeExecutor;
+    
+    private final AtomicLong lastId = new AtomicLong();
+    private final Map<String, ForkedProcess> processes = new ConcurrentHashMap<>();
+    
+    private final Object syncObj = new Object();
+    private ServerSocket serverSocket = null;
+    private byte[] token = null;
+    private Zygote zygote = null;
+    private volatile boolean isShutdown = false;
+    
+    /**
+     * Process forked by the zygote, communicating through sockets.
+     */
+    private class ForkedProcess extends Process {
+        private final String id;
+        private final Zygote parent;
+        
+        // forked message and both connections
+        private final CountDownLatch started = new CountDownLatch(3);
+        private final CountDownLatch exited = new CountDownLatch(1);
+        private volatile String failure = null;
+        private volatile int exitCode = EXIT_CODE_UNKNOWN;
+        
+        private Connection stdio = null;
+        private Connection stderr = null;
+        
+        public ForkedProcess(String id, Zygote parent) {
+            this.id = id;
+            this.parent = parent;
+        }
+        
+        /**
+         * Attaches a connection opened by the child.
+         * @param stream stream identifier sent by the child
+         * @param socket connected socket
+         * @return accepted? false if stream is unknown or already connected
+         */
+        public synchronized boolean connect(String stream, Socket socket) {
+            if (STREAM_STDIO.equals(stream) && (stdio == null)) {
+                stdio = new Connection(socket);
+            } else if (STREAM_STDERR.equals(stream) && (stderr == null)) {
+                stderr = new Connection(socket);
+            } else {
+                return false;
+            }
+            
+            started.countDown();
+            return true;
+        }
+        
+        public void forked() {
+            started.countDown();
+        }
+        
+        /**
+         * Marks the process as failed to start, releasing the thread waiting
+         * for it.
+         * @param message reason
+         */
+        public void failed(String message) {
+            failure = message;
+            while (started.getCount() > 0) {
+                started.countDown();
+            }
+        }
+        
+        public void exited(int exitCode) {
+            this.exitCode = exitCode;
+            exited.countDown();
+            processes.remove(id);
+            
+            // release anyone still waiting for the start
+            if (started.getCount() > 0) {
+                failed("process exited with code "+Integer.toString(exitCode)+" before it was connected");
+            }
+            
+            synchronized (this) {
+                if (stdio != null) {
+                    stdio.processExited();
+                }
+                
+                // nobody reads stderr if it is not logged
+                if (stderr != null) {
+                    if (logStdErr) {
+                        stderr.processExited();
+                    } else {
+                        stderr.close();
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Waits until the process has been forked and connected.
+         * @param timeoutNanos maximum time to wait
+         * @throws IOException if the process could not be started
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public void awaitStarted(long timeoutNanos) throws IOException, InterruptedException {
+            if (!started.await(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                failure = "timed out waiting for process to be forked";
+            }
+            
+            if (failure != null) {
+                destroyForcibly();
+                closeConnections();
+                throw new IOException("Zygote failed to fork process: "+failure);
+            }
+        }
+        
+        private synchronized void closeConnections() {
+            if (stdio != null) {
+                stdio.close();
+            }
+            
+            if (stderr != null) {
+                stderr.close();
+            }
+        }
+        
+        @Override
+        public OutputStream getOutputStream() {
+            return stdio.getOutputStream();
+        }
+        
+        @Override
+        public InputStream getInputStream() {
+            return stdio.getInputStream();
+        }
+        
+        @Override
+        public InputStream getErrorStream() {
+            return stderr.getInputStream();
+        }
+        
+        @Override
+        public int waitFor() throws InterruptedException {
+            exited.await();
+            return exitCode;
+        }
+        
+        @Override
+        public boolean waitFor(long timeout, TimeUnit unit) throws InterruptedException {
+            return exited.await(timeout, unit);
+        }
+        
+        @Override
+        public int exitValue() {
+            if (exited.getCount() > 0) {
+                throw new IllegalThreadStateException("process has not exited");
+            }
+            
+            return exitCode;
+        }
+        
+        @Override
+        public boolean isAlive() {
+            return (exited.getCount() > 0);
+        }
+        
+        @Override
+        public void destroy() {
+            if (isAlive()) {
+                parent.send(KEYWORD_KILL, id, SIGNAL_TERM);
+            }
+        }
+        
+        @Override
+        public Process destroyForcibly() {
+            if (isAlive()) {
+                parent.send(KEYWORD_KILL, id, SIGNAL_KILL);
+            }
+            
+            return this;
+        }
+    }
+    
+    /**
+     * Socket connected to a forked process. Closing the output stream only
+     * closes the process' stdin. The socket is closed once the process has
+     * exited and all output has been read, so no output gets lost.
+     */
+    private static class Connection {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private boolean inputEnded = false;
+        private boolean processExited = false;
+        private boolean closed = false;
+        
+        public Connection(Socket socket) {
+            this.socket = socket;
+            
+            InputStream socketIn = null;
+            OutputStream socketOut = null;
+            try {
+                socketIn = socket.getInputStream();
+                socketOut = socket.getOutputStream();
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "Failed to get streams of zygote connection", ex);
+                close();
+            }
+            
+            in = new ConnectionInputStream(socketIn);
+            out = new ConnectionOutputStream(socketOut);
+        }
+        
+        public InputStream getInputStream() {
+            return in;
+        }
+        
+        public OutputStream getOutputStream() {
+            return out;
+        }
+        
+        public synchronized void inputEnded() {
+            inputEnded = true;
+            closeIfDone();
+        }
+        
+        public synchronized void processExited() {
+            processExited = true;
+            closeIfDone();
+        }
+        
+        private void closeIfDone() {
+            if (inputEnded && processExited) {
+                close();
+            }
+        }
+        
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                logger.log(Level.FINE, "Failed to close zygote connection", ex);
+            }
+        }
+        
+        private class ConnectionInputStream extends InputStream {
+            private final InputStream delegate;
+            
+            public ConnectionInputStream(InputStream delegate) {
+                this.delegate = delegate;
+            }
+            
+            private int checkEnd(int result) {
+                if (result < 0) {
+                    inputEnded();
+                }
+                
+                return result;
+            }
+            
+            @Override
+            public int read() throws IOException {
+                if (delegate == null) {
+                    return -1;
+                }
+                
+                return checkEnd(delegate.read());
+            }
+            
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (delegate == null) {
+                    return -1;
+                }
+                
+                return checkEnd(delegate.read(b, off, len));
+            }
+            
+            @Override
+            public int available() throws IOException {
+                return (delegate != null) ? delegate.available() : 0;
+            }
+            
+            @Override
+            public void close() throws IOException {
+                inputEnded();
+            }
+        }
+        
+        private class ConnectionOutputStream extends OutputStream {
+            private final OutputStream delegate;
+            
+            public ConnectionOutputStream(OutputStream delegate) {
+                this.delegate = delegate;
+            }
+            
+            private OutputStream getDelegate() throws IOException {
+                if (delegate == null) {
+                    throw new IOException("connection has been closed");
+                }
+                
+                return delegate;
+            }
+            
+            @Override
+            public void write(int b) throws IOException {
+                getDelegate().write(b);
+            }
+            
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                getDelegate().write(b, off, len);
+            }
+            
+            @Override
+            public void flush() throws IOException {
+                getDelegate().flush();
+            }
+            
+            @Override
+            public void close() throws IOException {
+                synchronized (Connection.this) {
+                    if (!closed && !socket.isOutputShutdown()) {
+                        socket.shutdownOutput();
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * A running zygote; reads its control messages on a dedicated thread.
+     */
+    private class Zygote extends Thread {
+        private final Process process;
+        private final Writer writer;
+        private final Map<String, ForkedProcess> children = new ConcurrentHashMap<>();
+        
+        public Zygote(Process process) {
+            super("Zygote "+name);
+            setDaemon(true);
+            
+            this.process = process;
+            this.writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), charset));
+        }
+        
+        /**
+         * Sends a control message to the zygote.
+         * @param elements message elements
+         * @return sent?
+         */
+        public synchronized boolean send(String... elements) {
+            try {
+                ProtocolCodec.writeArray(writer, elements);
+                writer.write('\n');
+                writer.flush();
+                return true;
+            } catch (IOException ex) {
+                logger.log(Level.FINE, logPrefix+"Failed to send control message to zygote", ex);
+                return false;
+            }
+        }
+        
+        public synchronized void close() {
+            try {
+                writer.close();
+            } catch (IOException ex) {
+                logger.log(Level.FINE, logPrefix+"Failed to close zygote stdin", ex);
+            }
+        }
+        
+        @Override
+        public void run() {
+            ProtocolCodec codec = new ProtocolCodec();
+            ProtocolCodec.Frame msg = new ProtocolCodec.Frame();
+            
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(process.getInputStream(), charset))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    try {
+                        codec.decode(line, msg);
+                    } catch (ProtocolCodec.DecodeException ex) {
+                        logger.log(Level.WARNING, logPrefix+"Zygote sent something which wasn't a valid JSON array ("+ex.getMessage()+"), ignoring message");
+                        continue;
+                    }
+                    
+                    handleMessage(msg);
+                }
+            } catch (IOException ex) {
+                logger.log(Level.FINE, logPrefix+"Reading from zygote caught exception, stopping", ex);
+            }
+            
+            if (!isShutdown) {
+                logger.log(Level.WARNING, "{0}Zygote has exited, it will be restarted on next fork", logPrefix);
+            }
+            
+            // exit codes of remaining children cannot be received anymore
+            for (ForkedProcess child : new ArrayList<>(children.values())) {
+                child.failed("zygote has exited");
+                child.exited(EXIT_CODE_UNKNOWN);
+            }
+        }
+        
+        private void handleMessage(ProtocolCodec.Frame msg) {
+            String keyword = msg.getKeyword();
+            ForkedProcess child = (msg.size() >= 2) ? children.get(msg.getString(1)) : null;
+            
+            if (child == null) {
+                logger.log(Level.FINE, "{0}Zygote sent \"{1}\" for unknown process, ignoring message", new Object[]{logPrefix, keyword});
+                return;
+            }
+            
+            if (KEYWORD_FORKED.equals(keyword)) {
+                logger.log(Level.FINE, "{0}Zygote forked process {1} as PID {2}", new Object[]{logPrefix, child.id, msg.getString(2)});
+                child.forked();
+            } else if (KEYWORD_FAILED.equals(keyword)) {
+                children.remove(child.id);
+                child.failed(msg.getString(2));
+                child.exited(EXIT_CODE_UNKNOWN);
+            } else if (KEYWORD_EXITED.equals(keyword)) {
+                children.remove(child.id);
+                
+                int exitCode = EXIT_CODE_UNKNOWN;
+                try {
+                    exitCode = Integer.parseInt(msg.getString(2));
+                } catch (NumberFormatException | NullPointerException ex) {
+                    logger.log(Level.WARNING, "{0}Zygote sent invalid exit code for process {1}", new Object[]{logPrefix, child.id});
+                }
+                
+                child.exited(exitCode);
+            } else {
+                logger.log(Level.WARNING, "{0}Zygote sent unknown IPC message keyword \"{1}\"", new Object[]{logPrefix, keyword});
+            }
+        }
+    }
+    
+    /**
+     * @param pb ProcessBuilder to start the zygote with; copied, so it is not modified
+     * @param forkTimeout maximum time to wait for a forked process to connect (milliseconds)
+     * @param logStdErr forward zygote stderr to log? (otherwise discarded)
+     * @param eventLoop event loop to read zygote stderr with, null to use a dedicated thread
+     * @param spawnCondition checked before starting the zygote, which is not started unless true
+     * @param name process name used to identify log messages
+     */
+    public ZygoteLauncher(ProcessBuilder pb, int forkTimeout, boolean logStdErr, ProcessIOEventLoop eventLoop, BooleanSupplier spawnCondition, String name) {
+        this.pb = new ProcessBuilder(pb.command());
+        this.pb.directory(pb.directory());
+        this.pb.environment().clear();
+        this.pb.environment().putAll(pb.environment());
+        
+        this.forkTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, forkTimeout));
+        this.logStdErr = logStdErr;
+        this.eventLoop = eventLoop;
+        this.spawnCondition = spawnCondition;
+        this.name = name;
+        this.logPrefix = "Process "+name+": ";
+        
+        handshakeExecutor = Executors.newCachedThreadPool((Runnable r) -> {
+            Thread thread = new Thread(r, "ZygoteLauncher handshake "+name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Starts accepting connections of forked processes and starts the zygote.
+     * @throws IOException if the server socket could not be opened
+     */
+    public void start() throws IOException {
+        synchronized (syncObj) {
+            if (serverSocket != null) {
+                return;
+            }
+            
+            token = new byte[TOKEN_LENGTH];
+            new SecureRandom().nextBytes(token);
+            
+            serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            
+            pb.environment().put(ENV_PORT, Integer.toString(serverSocket.getLocalPort()));
+            pb.environment().put(ENV_TOKEN, toHex(token));
+            
+            if (!logStdErr) {
+                pb.redirectError(new File("/dev/null"));
+            }
+        }
+        
+        Thread acceptThread = new Thread(this::acceptConnections, "ZygoteLauncher "+name);
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        
+        // start zygote early so it can preload while waiting for messages
+        try {
+            getZygote();
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, logPrefix+"Failed to start zygote, retrying on first message:", ex);
+        }
+    }
+    
+    /**
+     * Stops the zygote (by closing its stdin) and stops accepting
+     * connections. Forked processes which are still running are not
+     * affected until the zygote exits.
+     */
+    public void shutdown() {
+        isShutdown = true;
+        
+        synchronized (syncObj) {
+            if (zygote != null) {
+                zygote.close();
+            }
+            
+            if (serverSocket != null) {
+                try {
+                    serverSocket.close();
+                } catch (IOException ex) {
+                    logger.log(Level.FINE, logPrefix+"Failed to close zygote server socket", ex);
+                }
+            }
+        }
+        
+        handshakeExecutor.shutdown();
+    }
+    
+    /**
+     * Returns the running zygote, starting it if necessary.
+     * @return running zygote
+     * @throws IOException if zygote could not be started
+     */
+    private Zygote getZygote() throws IOException {
+        synchronized (syncObj) {
+            if (isShutdown) {
+                throw new IOException("zygote launcher has been shut down");
+            }
+            
+            if ((zygote != null) && zygote.process.isAlive()) {
+                return zygote;
+            }
+            
+            if (!spawnCondition.getAsBoolean()) {
+                throw new IOException("pre-conditions failed, zygote will not be started");
+            }
+            
+            logger.log(Level.INFO, "{0}Starting zygote...", logPrefix);
+            Process process = pb.start();
+            
+            if (logStdErr) {
+                new ProcessStdErrLogForwarder(process, name, eventLoop).start();
+            }
+            
+            zygote = new Zygote(process);
+            zygote.start();
+            
+            return zygote;
+        }
+    }
+    
+    /**
+     * Asks the zygote to fork a new process and waits until it has connected.
+     * @return forked process
+     * @throws IOException if the process could not be forked
+     */
+    public Process fork() throws IOException {
+        Zygote parent = getZygote();
+        
+        String id = Long.toString(lastId.incrementAndGet());
+        ForkedProcess process = new ForkedProcess(id, parent);
+        processes.put(id, process);
+        parent.children.put(id, process);
+        
+        if (!parent.send(KEYWORD_FORK, id)) {
+            process.exited(EXIT_CODE_UNKNOWN);
+            parent.children.remove(id);
+            throw new IOException("Zygote does not accept requests");
+        }
+        
+        try {
+            process.awaitStarted(forkTimeoutNanos);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            process.destroyForcibly();
+            throw new IOException("Interrupted while waiting for zygote to fork", ex);
+        }
+        
+        return process;
+    }
+    
+    private void acceptConnections() {
+        while (!isShutdown) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException ex) {
+                if (!isShutdown) {
+                    logger.log(Level.WARNING, logPrefix+"Zygote server socket failed, forked processes cannot connect anymore:", ex);
+                }
+                return;
+            }
+            
+            try {
+                handshakeExecutor.execute(() -> {
+                    if (!handshake(socket)) {
+                        closeRejected(socket);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // shut down meanwhile
+                closeRejected(socket);
+            }
+        }
+    }
+    
+    private void closeRejected(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            logger.log(Level.FINE, logPrefix+"Failed to close rejected connection", ex);
+        }
+    }
+    
+    /**
+     * Authenticates a new connection and attaches it to its process. Forked
+     * processes first send a line "TOKEN ID STREAM".
+     * @param socket new connection
+     * @return accepted?
+     */
+    private boolean handshake(Socket socket) {
+        String line;
+        try {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+            line = readHandshake(socket.getInputStream());
+            socket.setSoTimeout(0);
+            socket.setTcpNoDelay(true);
+        } catch (SocketTimeoutException ex) {
+            logger.log(Level.WARNING, "{0}Connection to zygote server socket timed out during handshake, rejecting", logPrefix);
+            return false;
+        } catch (IOException ex) {
+            logger.log(Level.FINE, logPrefix+"Handshake of connection to zygote server socket failed", ex);
+            return false;
+        }
+        
+        String[] fields = (line != null) ? line.split(" ") : new String[0];
+        if ((fields.length != 3) || !MessageDigest.isEqual(token, fromHex(fields[0]))) {
+            logger.log(Level.WARNING, "{0}Connection to zygote server socket failed authentication, rejecting", logPrefix);
+            return false;
+        }
+        
+        ForkedProcess process = processes.get(fields[1]);
+        if ((process == null) || !process.connect(fields[2], socket)) {
+            logger.log(Level.WARNING, "{0}Forked process {1} connected for unknown or duplicate stream {2}, rejecting", new Object[]{logPrefix, fields[1], fields[2]});
+            return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Reads the handshake line byte by byte, so no data sent by the process
+     * afterwards is consumed.
+     * @param in stream to read from
+     * @return handshake line, null if invalid
+     * @throws IOException if reading fails
+     */
+    private static String readHandshake(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        while (baos.size() < MAX_HANDSHAKE_LENGTH) {
+            int b = in.read();
+            if (b < 0) {
+                return null;
+            } else if (b == '\n') {
+                return new String(baos.toByteArray(), charset).trim();
+            }
+            
+            baos.write(b);
+        }
+        
+        return null;
+    }
+    
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        
+        return sb.toString();
+    }
+    
+    private static byte[] fromHex(String s) {
+        if ((s.length() % 2) != 0) {
+            return new byte[0];
+        }
+        
+        byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(s.charAt(i * 2), 16);
+            int low = Character.digit(s.charAt(i * 2 + 1), 16);
+            if ((high < 0) || (low < 0)) {
+                return new byte[0];
+            }
+            
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        
+        return bytes;
+    }
+}
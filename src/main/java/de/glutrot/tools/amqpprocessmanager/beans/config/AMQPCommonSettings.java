@@ -10,4 +10,12 @@ public class AMQPCommonSettings {
     public boolean automaticRecoveryEnabled = true;
     public int connectionTimeout = 30000;
     public int requestedHeartbeat = 10;
+    
+    public int sharedConnections = 0; // number of connections shared by all endpoints, 0 opens separate connections per endpoint
+    public int publisherChannels = 10; // maximum number of channels to publish replies on concurrently (shared connections or publisher confirms only)
+    public int channelCheckoutTimeout = 1000; // maximum time to wait for a channel to publish on (milliseconds, shared connections or publisher confirms only)
+    
+    public boolean publisherConfirms = false; // acknowledge requests only after their reply has been confirmed by the AMQP server
+    public int maxUnconfirmedReplies = 1000; // maximum number of replies waiting for a confirm, publishing blocks while reached
+    public int confirmTimeout = 30000; // maximum time to wait for a reply to be confirmed (milliseconds)
 }
@@ -0,0 +1,12 @@
+package de.glutrot.tools.amqpprocessmanager.beans.config;
+
+public class AdmissionSettings {
+    public boolean enabled = false;
+    public double maxLoadAverage = 0; // 1 minute load average, 0 = unlimited
+    public long minAvailableMemory = 0; // bytes, 0 = unlimited
+    public int maxProcesses = 0; // all configured processes, 0 = unlimited
+    public double maxSpawnRate = 0; // processes per second, 0 = unlimited
+    public int spawnBurst = 1; // processes which may be spawned at once
+    public int maxDelay = 5000; // milliseconds, message is requeued afterwards
+    public int sampleInterval = 100; // milliseconds
+}
@@ -5,5 +5,10 @@ import java.util.List;
 
 public class Config {
     public AMQPCommonSettings amqpCommonSettings;
+    public IOSettings ioSettings = new IOSettings();
+    public MetricsSettings metrics = new MetricsSettings();
+    public AdmissionSettings admission = new AdmissionSettings();
+    public ReloadSettings reload = new ReloadSettings();
+    public ShutdownSettings shutdown = new ShutdownSettings();
     public List<ProcessConfiguration> processes = new LinkedList<>();
 }
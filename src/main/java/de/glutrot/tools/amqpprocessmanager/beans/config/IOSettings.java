@@ -0,0 +1,10 @@
+package de.glutrot.tools.amqpprocessmanager.beans.config;
+
+public class IOSettings {
+    public static final String ENGINE_THREADS = "threads";
+    public static final String ENGINE_EVENTLOOP = "eventloop";
+    
+    public String engine = ENGINE_THREADS;
+    public int eventLoopThreads = 0; // 0 = number of available processors
+    public int eventLoopMaxPollInterval = 2; // milliseconds
+}
@@ -0,0 +1,6 @@
+package de.glutrot.tools.amqpprocessmanager.beans.config;
+
+public class MetricsSettings {
+    public int httpPort = 0; // 0 = disabled
+    public String httpBindAddress = "127.0.0.1";
+}
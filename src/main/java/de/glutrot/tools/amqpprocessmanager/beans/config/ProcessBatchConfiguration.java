@@ -0,0 +1,6 @@
+package de.glutrot.tools.amqpprocessmanager.beans.config;
+
+public class ProcessBatchConfiguration {
+    public int maxSize = 1; // 1 = disabled, limited by concurrentConsumers
+    public int maxLinger = 20; // milliseconds
+}
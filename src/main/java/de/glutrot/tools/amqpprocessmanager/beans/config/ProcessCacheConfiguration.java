@@ -0,0 +1,14 @@
+package de.glutrot.tools.amqpprocessmanager.beans.config;
+
+import java.util.LinkedList;
+import java.util.List;
+
+public class ProcessCacheConfiguration {
+    public boolean enabled = false;
+    public int ttl = 300; // seconds
+    public int maxEntries = 1000;
+    public long maxSize = 67108864; // bytes
+    public List<String> keyHeaders = new LinkedList<>(); // in addition to body
+    public String diskDirectory = null; // null = memory only
+    public long diskMaxSize = 1073741824; // bytes
+}
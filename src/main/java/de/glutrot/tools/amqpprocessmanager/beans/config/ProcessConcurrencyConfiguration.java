@@ -0,0 +1,8 @@
+package de.glutrot.tools.amqpprocessmanager.beans.config;
+
+public class ProcessConcurrencyConfiguration {
+    public boolean adaptive = false;
+    public int minConsumers = 1; // maximum is concurrentConsumers
+    public double latencyTolerance = 2.0; // factor of baseline latency, 0 = ignore latency
+    public int adjustInterval = 1000; // milliseconds
+}
@@ -0,0 +1,9 @@
+package de.glutrot.tools.amqpprocessmanager.beans.config;
+
+public class ProcessDeadlineConfiguration {
+    public boolean enabled = false;
+    public String header = "x-deadline"; // absolute time (epoch milliseconds), null = ignore
+    public boolean useExpiration = true; // AMQP expiration relative to timestamp/receipt
+    public long minRemainingTime = 0; // milliseconds
+    public boolean passToProcess = false; // appends remaining milliseconds to message
+}
@@ -6,6 +6,13 @@ import java.util.List;
 import java.util.Map;
 
 public class ProcessExecutionConfiguration {
+    public static final String MODE_SPAWN = "spawn";
+    public static final String MODE_POOLED = "pooled";
+    
+    public static final String PROTOCOL_JSON = "json";
+    public static final String PROTOCOL_BINARY = "binary";
+    
+    public String mode = MODE_SPAWN;
     public String workDir = null;
     public String executable = null;
     public List<String> args = new LinkedList<>();
@@ -13,4 +20,12 @@ public class ProcessExecutionConfiguration {
     public int watchdogTimeout = 30;
     public int watchdogCheckInterval = 200;
     public boolean allowWritableExecutable = false;
+    public boolean multiplexed = false;
+    public String protocol = PROTOCOL_JSON;
+    public ProcessPoolConfiguration pool = new ProcessPoolConfiguration();
+    public ProcessSpoolConfiguration spool = new ProcessSpoolConfiguration();
+    public ProcessBatchConfiguration batch = new ProcessBatchConfiguration();
+    public ProcessDeadlineConfiguration deadline = new ProcessDeadlineConfiguration();
+    public ProcessSafetyCheckConfiguration safetyCheck = new ProcessSafetyCheckConfiguration();
+    public ProcessZygoteConfiguration zygote = new ProcessZygoteConfiguration();
 }
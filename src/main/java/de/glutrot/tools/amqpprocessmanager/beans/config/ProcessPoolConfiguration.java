@@ -0,0 +1,10 @@
+package de.glutrot.tools.amqpprocessmanager.beans.config;
+
+public class ProcessPoolConfiguration {
+    public int minSize = 0;
+    public int maxSize = 0; // 0 = concurrentConsumers
+    public int idleTimeout = 300; // seconds
+    public int maxRequests = 0; // 0 = unlimited
+    public int maxLifetime = 0; // seconds, 0 = unlimited
+    public int maxConcurrentRequests = 1; // only used if multiplexed
+}
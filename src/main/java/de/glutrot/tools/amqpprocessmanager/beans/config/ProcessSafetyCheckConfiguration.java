@@ -0,0 +1,7 @@
+package de.glutrot.tools.amqpprocessmanager.beans.config;
+
+public class ProcessSafetyCheckConfiguration {
+    public int revalidateInterval = 0; // seconds, 0 = check before each execution
+    public boolean watch = true; // check again as soon as workDir/executable changes
+    public boolean pinExecutable = false; // fail if executable content changes
+}
@@ -0,0 +1,6 @@
+package de.glutrot.tools.amqpprocessmanager.beans.config;
+
+public class ProcessSpoolConfiguration {
+    public String directory = null; // null = disabled
+    public int threshold = 1048576; // bytes
+}
@@ -0,0 +1,6 @@
+package de.glutrot.tools.amqpprocessmanager.beans.config;
+
+public class ProcessZygoteConfiguration {
+    public boolean enabled = false; // spawn mode only; executable has to support zygote protocol
+    public int forkTimeout = 10000; // milliseconds, includes zygote startup on first fork
+}
@@ -0,0 +1,7 @@
+package de.glutrot.tools.amqpprocessmanager.beans.config;
+
+public class ReloadSettings {
+    public boolean watch = false; // reload when config file changes (SIGHUP always reloads)
+    public int delay = 1000; // milliseconds to wait for further changes before reloading
+    public int drainTimeout = 300; // seconds to wait for messages of replaced processes to complete
+}
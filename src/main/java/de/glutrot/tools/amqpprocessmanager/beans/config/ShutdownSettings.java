@@ -0,0 +1,6 @@
+package de.glutrot.tools.amqpprocessmanager.beans.config;
+
+public class ShutdownSettings {
+    public int gracePeriod = 300; // seconds to wait for messages being processed to complete
+    public int progressInterval = 10; // seconds between progress reports while draining
+}
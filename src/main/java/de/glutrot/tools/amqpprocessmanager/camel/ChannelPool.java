@@ -0,0 +1,255 @@
+package de.glutrot.tools.amqpprocessmanager.camel;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Recoverable;
+import de.glutrot.tools.amqpprocessmanager.metrics.ConnectionMetrics;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.camel.Service;
+
+/**
+ * Pool of channels for publishing, opened on a lease of a
+ * SharedConnectionFactory. At most maxSize channels are checked out at once;
+ * callers wait up to the configured timeout for a channel to be returned.
+ * Idle channels are kept open and reused most recently returned first, so
+ * channels are only opened when concurrency actually rises. The time spent
+ * waiting for a channel is recorded to ConnectionMetrics. Register with the
+ * CamelContext as service to close the pool when Camel stops.<br />
+ * <br />
+ * If requested, channels are put into confirm mode when opened; messages
+ * published on them can then be tracked by the channel's PublisherConfirms.
+ */
+public class ChannelPool implements Service {
+    private static final Logger logger = Logger.getLogger(ChannelPool.class.getName());
+    
+    private final SharedConnectionFactory connectionFactory;
+    private final long checkoutTimeoutMillis;
+    private final ConnectionMetrics metrics;
+    private final boolean publisherConfirms;
+    
+    private final Semaphore permits;
+    private final Map<Channel, PublisherConfirms> confirms = new ConcurrentHashMap<>();
+    private final Deque<Channel> idleChannels = new LinkedList<>();
+    private Connection connection = null;
+    private boolean closed = false;
+    
+    /**
+     * @param connectionFactory factory to lease a connection from
+     * @param maxSize maximum number of channels checked out at once
+     * @param checkoutTimeout maximum time to wait for a channel (milliseconds)
+     * @param publisherConfirms put channels into confirm mode?
+     * @param metrics metrics to record checkout wait to
+     */
+    public ChannelPool(SharedConnectionFactory connectionFactory, int maxSize, int checkoutTimeout, boolean publisherConfirms, ConnectionMetrics metrics) {
+        this.connectionFactory = connectionFactory;
+        this.checkoutTimeoutMillis = Math.max(0, checkoutTimeout);
+        this.publisherConfirms = publisherConfirms;
+        this.metrics = metrics;
+        this.permits = new Semaphore(Math.max(1, maxSize), true);
+    }
+    
+    @Override
+    public void start() {
+        // channels are opened on demand
+    }
+    
+    @Override
+    public void stop() {
+        close();
+    }
+    
+    /**
+     * Checks out a channel which has to be returned by either release() or
+     * invalidate() after use.
+     * @return open channel
+     * @throws IOException if no channel could be checked out in time or opened
+     */
+    public Channel borrow() throws IOException {
+        long start = System.nanoTime();
+        
+        try {
+            if (!permits.tryAcquire(checkoutTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                metrics.countChannelCheckoutTimeout();
+                throw new IOException("Timed out waiting for a channel to publish on");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a channel to publish on", ex);
+        }
+        
+        try {
+            Channel channel = pollIdleChannel();
+            if (channel == null) {
+                channel = openChannel();
+            }
+            
+            metrics.recordChannelCheckout(System.nanoTime() - start);
+            
+            return channel;
+        } catch (IOException | RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+    
+    /**
+     * @return are channels in confirm mode?
+     */
+    public boolean usesPublisherConfirms() {
+        return publisherConfirms;
+    }
+    
+    /**
+     * Returns the tracker of confirms of given channel.
+     * @param channel channel checked out by borrow()
+     * @return tracker of confirms, null if channels are not in confirm mode
+     */
+    public PublisherConfirms getPublisherConfirms(Channel channel) {
+        return confirms.get(channel);
+    }
+    
+    /**
+     * Returns a channel to the pool for reuse.
+     * @param channel channel checked out by borrow()
+     */
+    public void release(Channel channel) {
+        boolean keep;
+        synchronized (idleChannels) {
+            keep = !closed && channel.isOpen();
+            if (keep) {
+                idleChannels.addFirst(channel);
+            }
+        }
+        
+        if (!keep) {
+            closeQuietly(channel);
+        }
+        
+        permits.release();
+    }
+    
+    /**
+     * Returns a channel which must not be reused, e.g. because publishing
+     * failed on it, and closes it.
+     * @param channel channel checked out by borrow()
+     */
+    public void invalidate(Channel channel) {
+        closeQuietly(channel);
+        permits.release();
+    }
+    
+    /**
+     * Closes all idle channels and releases the leased connection. Channels
+     * still checked out are closed when they are returned.
+     */
+    public void close() {
+        List<Channel> channels;
+        Connection oldConnection;
+        synchronized (idleChannels) {
+            closed = true;
+            channels = new ArrayList<>(idleChannels);
+            idleChannels.clear();
+            oldConnection = connection;
+            connection = null;
+        }
+        
+        for (Channel channel : channels) {
+            closeQuietly(channel);
+        }
+        
+        if (oldConnection != null) {
+            try {
+                oldConnection.close();
+            } catch (IOException | RuntimeException ex) {
+                logger.log(Level.FINE, "Failed to release connection of channel pool", ex);
+            }
+        }
+    }
+    
+    private Channel openChannel() throws IOException {
+        Channel channel = getConnection().createChannel();
+        if (channel == null) {
+            throw new IOException("No channel number available on shared connection");
+        }
+        
+        if (publisherConfirms) {
+            try {
+                channel.confirmSelect();
+            } catch (IOException | RuntimeException ex) {
+                closeQuietly(channel);
+                throw ex;
+            }
+            
+            final PublisherConfirms channelConfirms = new PublisherConfirms();
+            confirms.put(channel, channelConfirms);
+            channel.addConfirmListener(channelConfirms);
+            channel.addShutdownListener(channelConfirms);
+            
+            // recovered channels stay in the pool, closed ones are discarded
+            final Channel closingChannel = channel;
+            channel.addShutdownListener((cause) -> {
+                if (!(cause.isHardError() && (closingChannel instanceof Recoverable) && !cause.isInitiatedByApplication())) {
+                    confirms.remove(closingChannel, channelConfirms);
+                }
+            });
+        }
+        
+        return channel;
+    }
+    
+    private Channel pollIdleChannel() {
+        synchronized (idleChannels) {
+            Channel channel;
+            while ((channel = idleChannels.pollFirst()) != null) {
+                if (channel.isOpen()) {
+                    return channel;
+                }
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Returns the leased connection, renewing the lease if the connection has
+     * been closed meanwhile.
+     * @return leased connection
+     * @throws IOException if no connection could be leased
+     */
+    private Connection getConnection() throws IOException {
+        synchronized (idleChannels) {
+            if (closed) {
+                throw new IOException("Channel pool has been closed");
+            }
+            
+            if ((connection == null) || !connection.isOpen()) {
+                if (connection != null) {
+                    connection.abort();
+                }
+                connection = connectionFactory.newConnection();
+            }
+            
+            return connection;
+        }
+    }
+    
+    private static void closeQuietly(Channel channel) {
+        try {
+            if (channel.isOpen()) {
+                channel.close();
+            }
+        } catch (IOException | RuntimeException ex) {
+            logger.log(Level.FINE, "Failed to close channel", ex);
+        }
+    }
+}
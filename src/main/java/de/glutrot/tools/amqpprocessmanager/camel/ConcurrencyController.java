@@ -0,0 +1,384 @@
+package de.glutrot.tools.amqpprocessmanager.camel;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.camel.component.rabbitmq.RabbitMQEndpoint;
+
+/**
+ * Limits the number of consumers which are allowed to process messages at
+ * the same time and adapts that limit at runtime. All consumers of an
+ * endpoint are started up front (maxLimit) but have to acquire a permit
+ * before processing their message, so consumers exceeding the limit are held
+ * idle with their single prefetched message.<br />
+ * <br />
+ * The limit is adjusted periodically by additive increase/multiplicative
+ * decrease (AIMD):
+ * <ul>
+ * <li>if average execution time exceeded the baseline by more than latencyTolerance, the limit is lowered in proportion to the latency gradient</li>
+ * <li>if all permits had been in use while messages were waiting (in queue or at the gate), the limit is raised by one</li>
+ * <li>if permits had been left unused and no messages were waiting, the limit is lowered by one</li>
+ * </ul>
+ * Execution time alone does not tell whether processes are overloaded, as
+ * it depends on the messages. The baseline is the lowest average execution
+ * time seen, so it reflects processes running without contention. It slowly
+ * follows higher averages so a lasting change of workload is accepted
+ * eventually.<br />
+ * <br />
+ * Queue depth is read by passively declaring the endpoint's queue on a
+ * separate connection. Decisions are logged and exposed as JMX MBean
+ * (see ConcurrencyControllerMBean).
+ */
+public class ConcurrencyController implements ConcurrencyControllerMBean {
+    private static final Logger logger = Logger.getLogger(ConcurrencyController.class.getName());
+    
+    // lowest factor to lower the limit by at once
+    private static final double MIN_GRADIENT = 0.5;
+    
+    // fraction of the difference to a higher average execution time the
+    // baseline follows per adjustment
+    private static final double BASELINE_ADAPTATION = 0.01;
+    
+    private final String name;
+    private final String logPrefix;
+    private final RabbitMQEndpoint endpoint;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double latencyTolerance;
+    private final long adjustIntervalMillis;
+    
+    private final Object syncObj = new Object();
+    private int limit;
+    private int inFlight = 0;
+    private int waiting = 0;
+    private int peakInFlight = 0;
+    private int peakWaiting = 0;
+    private long arrivals = 0;
+    private long completions = 0;
+    private long latencySumNanos = 0;
+    private long baselineLatencyNanos = 0;
+    
+    private volatile int queueDepth = -1;
+    private volatile double arrivalRate = 0.0;
+    private volatile long averageLatencyMillis = 0;
+    private volatile long baselineLatencyMillis = 0;
+    private volatile long increaseCount = 0;
+    private volatile long decreaseCount = 0;
+    
+    private ScheduledExecutorService timer = null;
+    private ExecutorService connectionExecutor = null;
+    private Connection connection = null;
+    private Channel channel = null;
+    private ObjectName objectName = null;
+    
+    /**
+     * @param endpoint endpoint consuming the messages, used to read queue depth (may be null)
+     * @param minLimit minimum number of consumers to allow
+     * @param maxLimit maximum number of consumers to allow (number of consumers started on endpoint)
+     * @param latencyTolerance factor average execution time may exceed the baseline by before lowering the limit (0 = ignore execution time)
+     * @param adjustInterval interval to adjust the limit at (milliseconds)
+     * @param name process name used to identify controller on logs and JMX
+     */
+    public ConcurrencyController(RabbitMQEndpoint endpoint, int minLimit, int maxLimit, double latencyTolerance, int adjustInterval, String name) {
+        this.endpoint = endpoint;
+        this.maxLimit = Math.max(1, maxLimit);
+        this.minLimit = Math.max(1, Math.min(minLimit, this.maxLimit));
+        this.latencyTolerance = (latencyTolerance > 0) ? Math.max(1.0, latencyTolerance) : 0;
+        this.adjustIntervalMillis = Math.max(100, adjustInterval);
+        this.name = name;
+        this.logPrefix = "Concurrency of process "+name+": ";
+        
+        // start low and let demand raise the limit
+        limit = this.minLimit;
+    }
+    
+    /**
+     * Starts periodic adjustment and registers the MBean.
+     */
+    public void start() {
+        synchronized (syncObj) {
+            if (timer != null) {
+                return;
+            }
+            
+            timer = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+                Thread thread = new Thread(r, "ConcurrencyController "+name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        
+        timer.scheduleWithFixedDelay(this::adjust, adjustIntervalMillis, adjustIntervalMillis, TimeUnit.MILLISECONDS);
+        
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("de.glutrot.tools.amqpprocessmanager:type=ConcurrencyController,name="+ObjectName.quote(name));
+            server.registerMBean(this, objectName);
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, logPrefix+"Failed to register MBean:", ex);
+            objectName = null;
+        }
+        
+        logger.log(Level.INFO, "{0}Adapting between {1} and {2} consumers, starting at {3}", new Object[]{logPrefix, minLimit, maxLimit, limit});
+    }
+    
+    /**
+     * Stops adjustment, releases all waiting consumers and closes the
+     * connection used to read queue depth.
+     */
+    public void stop() {
+        ScheduledExecutorService localTimer;
+        synchronized (syncObj) {
+            if (timer == null) {
+                return;
+            }
+            
+            localTimer = timer;
+            timer = null;
+            
+            // let waiting consumers finish during shutdown
+            limit = maxLimit;
+            syncObj.notifyAll();
+        }
+        
+        // wait for a running adjustment to finish before closing connection
+        localTimer.shutdownNow();
+        try {
+            localTimer.awaitTermination(adjustIntervalMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            logger.log(Level.FINE, logPrefix+"Interrupted while waiting for adjustment to finish", ex);
+        }
+        
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception ex) {
+                logger.log(Level.FINE, logPrefix+"Failed to unregister MBean", ex);
+            }
+            objectName = null;
+        }
+        
+        closeConnection();
+    }
+    
+    /**
+     * Blocks until processing of another message is allowed. Each successful
+     * call has to be followed by exactly one call to release(long).
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        synchronized (syncObj) {
+            arrivals++;
+            waiting++;
+            peakWaiting = Math.max(peakWaiting, waiting);
+            
+            try {
+                while (inFlight >= limit) {
+                    syncObj.wait();
+                }
+            } finally {
+                waiting--;
+            }
+            
+            inFlight++;
+            peakInFlight = Math.max(peakInFlight, inFlight);
+        }
+    }
+    
+    /**
+     * Releases a permit after a message has been processed.
+     * @param latencyNanos time it took to process the message (nanoseconds)
+     */
+    public void release(long latencyNanos) {
+        synchronized (syncObj) {
+            inFlight--;
+            completions++;
+            latencySumNanos += latencyNanos;
+            
+            syncObj.notify();
+        }
+    }
+    
+    /**
+     * Adjusts the limit based on statistics collected since last adjustment.
+     */
+    private void adjust() {
+        int depth = readQueueDepth();
+        queueDepth = depth;
+        
+        int oldLimit;
+        int newLimit;
+        String reason = null;
+        
+        synchronized (syncObj) {
+            oldLimit = limit;
+            newLimit = limit;
+            
+            long averageLatencyNanos = (completions > 0) ? latencySumNanos / completions : 0;
+            averageLatencyMillis = TimeUnit.NANOSECONDS.toMillis(averageLatencyNanos);
+            arrivalRate = arrivals * 1000.0 / adjustIntervalMillis;
+            
+            // gradient below 1 if latency has grown beyond tolerance
+            double gradient = 1.0;
+            if (completions > 0) {
+                if ((baselineLatencyNanos == 0) || (averageLatencyNanos < baselineLatencyNanos)) {
+                    baselineLatencyNanos = averageLatencyNanos;
+                } else {
+                    baselineLatencyNanos += (long) ((averageLatencyNanos - baselineLatencyNanos) * BASELINE_ADAPTATION);
+                }
+                
+                if ((latencyTolerance > 0) && (averageLatencyNanos > 0)) {
+                    gradient = latencyTolerance * baselineLatencyNanos / averageLatencyNanos;
+                }
+            }
+            baselineLatencyMillis = TimeUnit.NANOSECONDS.toMillis(baselineLatencyNanos);
+            
+            boolean backlog = (depth > 0) || (peakWaiting > 0);
+            boolean saturated = (peakInFlight >= limit);
+            
+            if (gradient < 1.0) {
+                newLimit = Math.max(minLimit, Math.min(limit - 1, (int) (limit * Math.max(MIN_GRADIENT, gradient))));
+                reason = "average latency grown beyond tolerance";
+            } else if (saturated && backlog) {
+                newLimit = Math.min(maxLimit, limit + 1);
+                reason = "all consumers busy with messages waiting";
+            } else if (!saturated && !backlog) {
+                newLimit = Math.max(minLimit, limit - 1);
+                reason = "consumers idle";
+            }
+            
+            limit = newLimit;
+            if (newLimit > oldLimit) {
+                increaseCount++;
+                syncObj.notifyAll();
+            } else if (newLimit < oldLimit) {
+                decreaseCount++;
+            }
+            
+            // start next window
+            peakInFlight = inFlight;
+            peakWaiting = waiting;
+            arrivals = 0;
+            completions = 0;
+            latencySumNanos = 0;
+        }
+        
+        if (newLimit != oldLimit) {
+            logger.log(Level.INFO, "{0}Limit {1} -> {2}: {3} (queue depth {4}, {5,number,#.#} msgs/s, average latency {6}ms, baseline {7}ms)", new Object[]{logPrefix, oldLimit, newLimit, reason, depth, arrivalRate, averageLatencyMillis, baselineLatencyMillis});
+        }
+    }
+    
+    /**
+     * Reads the number of ready messages by passively declaring the queue.
+     * @return number of messages ready in queue, -1 if unknown
+     */
+    private int readQueueDepth() {
+        if ((endpoint == null) || (endpoint.getQueue() == null)) {
+            return -1;
+        }
+        
+        try {
+            if ((channel == null) || !channel.isOpen()) {
+                if ((connection == null) || !connection.isOpen()) {
+                    if (connectionExecutor == null) {
+                        connectionExecutor = Executors.newSingleThreadExecutor();
+                    }
+                    connection = endpoint.connect(connectionExecutor);
+                }
+                
+                channel = connection.createChannel();
+            }
+            
+            return channel.queueDeclarePassive(endpoint.getQueue()).getMessageCount();
+        } catch (Exception ex) {
+            logger.log(Level.FINE, logPrefix+"Failed to read queue depth", ex);
+            return -1;
+        }
+    }
+    
+    private void closeConnection() {
+        try {
+            if ((connection != null) && connection.isOpen()) {
+                connection.close();
+            }
+        } catch (Exception ex) {
+            logger.log(Level.FINE, logPrefix+"Failed to close connection", ex);
+        }
+        connection = null;
+        channel = null;
+        
+        if (connectionExecutor != null) {
+            connectionExecutor.shutdown();
+            connectionExecutor = null;
+        }
+    }
+    
+    @Override
+    public int getLimit() {
+        synchronized (syncObj) {
+            return limit;
+        }
+    }
+    
+    @Override
+    public int getMinLimit() {
+        return minLimit;
+    }
+    
+    @Override
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+    
+    @Override
+    public int getInFlight() {
+        synchronized (syncObj) {
+            return inFlight;
+        }
+    }
+    
+    @Override
+    public int getWaiting() {
+        synchronized (syncObj) {
+            return waiting;
+        }
+    }
+    
+    @Override
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+    
+    @Override
+    public double getArrivalRate() {
+        return arrivalRate;
+    }
+    
+    @Override
+    public long getAverageLatencyMillis() {
+        return averageLatencyMillis;
+    }
+    
+    @Override
+    public long getBaselineLatencyMillis() {
+        return baselineLatencyMillis;
+    }
+    
+    @Override
+    public long getIncreaseCount() {
+        return increaseCount;
+    }
+    
+    @Override
+    public long getDecreaseCount() {
+        return decreaseCount;
+    }
+}
@@ -0,0 +1,61 @@
+package de.glutrot.tools.amqpprocessmanager.camel;
+
+/**
+ * Management interface of ConcurrencyController, exposed via JMX.
+ */
+public interface ConcurrencyControllerMBean {
+    /**
+     * @return current number of consumers allowed to process messages
+     */
+    int getLimit();
+    
+    /**
+     * @return lower bound of limit
+     */
+    int getMinLimit();
+    
+    /**
+     * @return upper bound of limit (number of consumers)
+     */
+    int getMaxLimit();
+    
+    /**
+     * @return number of messages currently being processed
+     */
+    int getInFlight();
+    
+    /**
+     * @return number of consumers currently waiting to be allowed to process their message
+     */
+    int getWaiting();
+    
+    /**
+     * @return number of messages ready in queue at last adjustment, -1 if unknown
+     */
+    int getQueueDepth();
+    
+    /**
+     * @return messages received per second during last adjustment interval
+     */
+    double getArrivalRate();
+    
+    /**
+     * @return average execution time during last adjustment interval (milliseconds)
+     */
+    long getAverageLatencyMillis();
+    
+    /**
+     * @return lowest average execution time, slowly following higher ones (milliseconds)
+     */
+    long getBaselineLatencyMillis();
+    
+    /**
+     * @return number of times the limit has been raised
+     */
+    long getIncreaseCount();
+    
+    /**
+     * @return number of times the limit has been lowered
+     */
+    long getDecreaseCount();
+}
@@ -1,24 +1,70 @@
 package de.glutrot.tools.amqpprocessmanager.camel;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import de.glutrot.tools.amqpprocessmanager.AdmissionController;
+import de.glutrot.tools.amqpprocessmanager.ProcessIOEventLoop;
 import de.glutrot.tools.amqpprocessmanager.beans.config.AMQPCommonSettings;
+import de.glutrot.tools.amqpprocessmanager.beans.config.AdmissionSettings;
 import de.glutrot.tools.amqpprocessmanager.beans.config.Config;
+import de.glutrot.tools.amqpprocessmanager.beans.config.IOSettings;
 import de.glutrot.tools.amqpprocessmanager.beans.config.ProcessConfiguration;
-import de.glutrot.tools.amqpprocessmanager.camel.processor.RabbitMQReplyMsg;
+import de.glutrot.tools.amqpprocessmanager.beans.config.ReloadSettings;
+import de.glutrot.tools.amqpprocessmanager.beans.config.ShutdownSettings;
 import de.glutrot.tools.amqpprocessmanager.camel.processor.ExternalTaskProcessor;
-import de.glutrot.tools.amqpprocessmanager.camel.processor.RPCBodyReplyProcessor;
+import de.glutrot.tools.amqpprocessmanager.metrics.MetricsRegistry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.apache.camel.CamelContext;
+import org.apache.camel.Route;
 import org.apache.camel.builder.RouteBuilder;
 import org.apache.camel.component.rabbitmq.RabbitMQEndpoint;
+import org.apache.camel.util.ServiceHelper;
 
 public class ProcessManagerRouteBuilder extends RouteBuilder {
+    private static final Logger logger = Logger.getLogger(ProcessManagerRouteBuilder.class.getName());
+    
+    // time to wait for Camel to stop a drained route before forcing it
+    private static final long ROUTE_STOP_TIMEOUT_SECONDS = 10;
+    
+    // how often draining routes are checked for completion
+    private static final long DRAIN_POLL_INTERVAL_MILLIS = 100;
+    
     private Config config = null;
     private CamelContext ctx = null;
     
+    // AMQP settings are kept as started since connections and endpoints
+    // added on reload have to match those already running
+    private AMQPCommonSettings amqpCommonSettings = null;
+    private SharedConnectionFactory sharedConnectionFactory = null;
+    
+    // shared by all processes, also those added on reload
+    private String baseURL = null;
+    private ReplyPublisher replyPublisher = null;
+    private ProcessIOEventLoop eventLoop = null;
+    private AdmissionController admissionController = null;
+    
+    // routes of all running processes by route ID, to be diffed on reload
+    // and drained on shutdown
+    private final Gson gson = new Gson();
+    private final Map<String, ProcessRoute> processRoutes = new LinkedHashMap<>();
+    private boolean reloadable = true;
+    
     public ProcessManagerRouteBuilder(Config config, CamelContext ctx) {
         super(ctx);
         
         this.config = config;
         this.ctx = ctx;
+        this.amqpCommonSettings = config.amqpCommonSettings;
     }
     
     /**
@@ -26,7 +72,7 @@ public class ProcessManagerRouteBuilder extends RouteBuilder {
      * @param endpoint endpoint to configure
      */
     private void configureCommonSettings(RabbitMQEndpoint endpoint) {
-        AMQPCommonSettings common = config.amqpCommonSettings;
+        AMQPCommonSettings common = amqpCommonSettings;
         endpoint.setUsername(common.username);
         endpoint.setPassword(common.password);
         endpoint.setVhost(common.vhost);
@@ -34,6 +80,11 @@ public class ProcessManagerRouteBuilder extends RouteBuilder {
         endpoint.setConnectionTimeout(common.connectionTimeout);
         endpoint.setRequestedHeartbeat(common.requestedHeartbeat);
         
+        // connection settings are taken from factory if connections are shared
+        if (sharedConnectionFactory != null) {
+            endpoint.setConnectionFactory(sharedConnectionFactory);
+        }
+        
         // configure prefetcher as workaround for CAMEL-8308 to avoid locking
         // all messages on server (which prevents message expiration)
         // see: https://issues.apache.org/jira/browse/CAMEL-8308
@@ -41,48 +92,466 @@ public class ProcessManagerRouteBuilder extends RouteBuilder {
         endpoint.setPrefetchCount(1);
     }
     
+    /**
+     * Creates a factory for connections shared by all endpoints if configured.
+     * @return connection factory, null if each endpoint should open its own connections
+     */
+    private SharedConnectionFactory createSharedConnectionFactory() {
+        AMQPCommonSettings common = amqpCommonSettings;
+        if (common.sharedConnections <= 0) {
+            return null;
+        }
+        
+        return createConnectionFactory(common.sharedConnections);
+    }
+    
+    /**
+     * Creates a factory for connections according to common AMQP settings.
+     * @param maxConnections maximum number of connections to share
+     * @return connection factory
+     */
+    private SharedConnectionFactory createConnectionFactory(int maxConnections) {
+        AMQPCommonSettings common = amqpCommonSettings;
+        
+        SharedConnectionFactory factory = new SharedConnectionFactory(maxConnections, MetricsRegistry.getInstance().getConnectionMetrics());
+        factory.setHost(common.hostname);
+        factory.setPort(common.port);
+        if (common.username != null) {
+            factory.setUsername(common.username);
+        }
+        if (common.password != null) {
+            factory.setPassword(common.password);
+        }
+        if (common.vhost != null) {
+            factory.setVirtualHost(common.vhost);
+        }
+        factory.setAutomaticRecoveryEnabled(common.automaticRecoveryEnabled);
+        factory.setConnectionTimeout(common.connectionTimeout);
+        factory.setRequestedHeartbeat(common.requestedHeartbeat);
+        
+        return factory;
+    }
+    
+    /**
+     * Creates a shared event loop for process I/O if configured.
+     * @return event loop, null if processes should use dedicated threads
+     */
+    private ProcessIOEventLoop createEventLoop() {
+        IOSettings ioSettings = config.ioSettings;
+        if ((ioSettings == null) || (ioSettings.engine == null) || IOSettings.ENGINE_THREADS.equals(ioSettings.engine)) {
+            return null;
+        }
+        
+        if (!IOSettings.ENGINE_EVENTLOOP.equals(ioSettings.engine)) {
+            throw new IllegalArgumentException("Unknown I/O engine \""+ioSettings.engine+"\"");
+        }
+        
+        return new ProcessIOEventLoop(ioSettings.eventLoopThreads, ioSettings.eventLoopMaxPollInterval);
+    }
+    
+    /**
+     * Creates a shared admission controller if configured.
+     * @return admission controller, null if processes should be spawned without checking resources
+     */
+    private AdmissionController createAdmissionController() {
+        AdmissionSettings admission = config.admission;
+        if ((admission == null) || !admission.enabled) {
+            return null;
+        }
+        
+        return new AdmissionController(admission.maxLoadAverage, admission.minAvailableMemory, admission.maxProcesses, admission.maxSpawnRate, admission.spawnBurst, admission.maxDelay, admission.sampleInterval);
+    }
+    
     @Override
     public void configure() throws Exception {
-        String baseURL = "rabbitmq://"+config.amqpCommonSettings.hostname+":"+Integer.toString(config.amqpCommonSettings.port)+"/";
+        baseURL = "rabbitmq://"+amqpCommonSettings.hostname+":"+Integer.toString(amqpCommonSettings.port)+"/";
+        
+        // all endpoints multiplex their channels over a few connections if
+        // configured; connections are closed when Camel stops
+        sharedConnectionFactory = createSharedConnectionFactory();
+        if (sharedConnectionFactory != null) {
+            ctx.addService(sharedConnectionFactory);
+        }
+        
+        // replies are published by the task processors as soon as results
+        // are available, directly to the common endpoint or on a pool of
+        // channels of the shared connections; confirms require our own
+        // channels, so replies get a dedicated connection if not shared
+        AMQPCommonSettings common = amqpCommonSettings;
+        SharedConnectionFactory replyConnectionFactory = sharedConnectionFactory;
+        if ((replyConnectionFactory == null) && common.publisherConfirms) {
+            replyConnectionFactory = createConnectionFactory(1);
+            ctx.addService(replyConnectionFactory);
+        }
+        
+        if (replyConnectionFactory != null) {
+            ChannelPool channelPool = new ChannelPool(replyConnectionFactory, common.publisherChannels, common.channelCheckoutTimeout, common.publisherConfirms, MetricsRegistry.getInstance().getConnectionMetrics());
+            ctx.addService(channelPool);
+            replyPublisher = new ReplyPublisher(channelPool, common.maxUnconfirmedReplies, common.confirmTimeout, MetricsRegistry.getInstance().getConnectionMetrics());
+        } else {
+            // define common endpoint for sending all replies
+            // NOTE: default exchange currently cannot be declared in URL (CAMEL-8270)
+            RabbitMQEndpoint amqpOut = (RabbitMQEndpoint) ctx.getEndpoint(baseURL+"amq.direct");
+            configureCommonSettings(amqpOut);
+            amqpOut.setDeclare(false);
+            amqpOut.setExchangeType("direct");
+            
+            replyPublisher = new ReplyPublisher(ctx, amqpOut);
+        }
+        
+        // all processes share a single event loop for I/O if configured
+        eventLoop = createEventLoop();
         
-        // define common endpoint for sending all replies
-        // NOTE: default exchange currently cannot be declared in URL (CAMEL-8270)
-        RabbitMQEndpoint amqpOut = (RabbitMQEndpoint) ctx.getEndpoint(baseURL+"amq.direct");
-        configureCommonSettings(amqpOut);
-        amqpOut.setDeclare(false);
-        amqpOut.setExchangeType("direct");
+        // spawning processes is limited by resources of the whole host
+        admissionController = createAdmissionController();
         
-        // use a common processor to set headers for reply messages
-        RabbitMQReplyMsg headerReplyProcessor = RabbitMQReplyMsg.getInstance();
-        RPCBodyReplyProcessor rpcBodyReplyProcessor = new RPCBodyReplyProcessor();
+        // processes are identified by name on reload
+        Set<String> names = new HashSet<>();
+        for (ProcessConfiguration procConfig : config.processes) {
+            if (!names.add(procConfig.name)) {
+                logger.log(Level.WARNING, "Process name \"{0}\" is not unique, configuration can not be reloaded", procConfig.name);
+                reloadable = false;
+            }
+        }
         
         // define dedicated endpoints for each processor defined in config
         for (ProcessConfiguration procConfig : config.processes) {
-            // configure AMQP channel(s)
-            // Maximum number of concurrent process execution is managed by
-            // setting the ConcurrentConsumers property so we only accept N
-            // messages for processing at a time.
-            RabbitMQEndpoint amqpIn = (RabbitMQEndpoint) ctx.getEndpoint(baseURL+procConfig.amqp.exchange);
-            configureCommonSettings(amqpIn);
-            amqpIn.setExchangeType(procConfig.amqp.exchangeType);
-            amqpIn.setConcurrentConsumers(procConfig.concurrentConsumers);
-            amqpIn.setDeclare(true);
-            amqpIn.setAutoAck(false); // only lock message on AMQP - if we crash, shutdown or loose connection, processing should be retried
-            amqpIn.setAutoDelete(false);
+            ProcessRoute route = addProcessRoute(this, procConfig, createRouteId(procConfig.name));
+            processRoutes.put(route.routeId, route);
+        }
+    }
+    
+    /**
+     * Creates a route ID for a process which is unique even if process names
+     * are not. Processes with unique names get the same route ID on reload.
+     * @param name name of process
+     * @return route ID
+     */
+    private String createRouteId(String name) {
+        String routeId = "process-"+name;
+        for (int i = 2; processRoutes.containsKey(routeId); i++) {
+            routeId = "process-"+name+"-"+Integer.toString(i);
+        }
+        
+        return routeId;
+    }
+    
+    /**
+     * Defines the route of a process on given builder.
+     * @param builder builder to define route on
+     * @param procConfig configuration of process
+     * @param routeId ID of route
+     * @return defined route
+     * @throws Exception if the endpoint could not be created
+     */
+    private ProcessRoute addProcessRoute(RouteBuilder builder, ProcessConfiguration procConfig, String routeId) throws Exception {
+        // configure AMQP channel(s)
+        // Maximum number of concurrent process execution is managed by
+        // setting the ConcurrentConsumers property so we only accept N
+        // messages for processing at a time.
+        // NOTE: endpoints are not shared by URI as processes on the same
+        //       exchange (or a reloaded process) need their own settings
+        RabbitMQEndpoint amqpIn = (RabbitMQEndpoint) ctx.getComponent("rabbitmq").createEndpoint(baseURL+procConfig.amqp.exchange);
+        configureCommonSettings(amqpIn);
+        amqpIn.setExchangeType(procConfig.amqp.exchangeType);
+        amqpIn.setConcurrentConsumers(procConfig.concurrentConsumers);
+        amqpIn.setDeclare(true);
+        amqpIn.setAutoAck(false); // only lock message on AMQP - if we crash, shutdown or loose connection, processing should be retried
+        amqpIn.setAutoDelete(false);
+        
+        if (procConfig.amqp.routingKey != null) {
+            amqpIn.setRoutingKey(procConfig.amqp.routingKey);
+        }
+        
+        if (procConfig.amqp.queue != null) {
+            amqpIn.setQueue(procConfig.amqp.queue);
+        }
+        
+        // all consumers are started but limited at runtime if concurrency
+        // should be adapted to load
+        ConcurrencyController concurrencyController = null;
+        if ((procConfig.concurrency != null) && procConfig.concurrency.adaptive) {
+            concurrencyController = new ConcurrencyController(amqpIn, procConfig.concurrency.minConsumers, procConfig.concurrentConsumers, procConfig.concurrency.latencyTolerance, procConfig.concurrency.adjustInterval, procConfig.name);
+        }
+        
+        // configure processor to run external task
+        ExternalTaskProcessor taskProcessor = new ExternalTaskProcessor(procConfig, eventLoop, replyPublisher, concurrencyController, admissionController);
+        
+        // wire it up
+        // NOTE: replies are not sent by this route as they may be
+        //       published before the exchange completes
+        builder.from(amqpIn).routeId(routeId).process(taskProcessor);
+        
+        return new ProcessRoute(procConfig.name, routeId, gson.toJson(procConfig), taskProcessor);
+    }
+    
+    /**
+     * Applies a reloaded configuration to the running context. Processes are
+     * matched by name; only routes of processes which have been added,
+     * removed or changed are affected. Routes to be removed or replaced are
+     * drained (see drainRoutes()) before they are removed, up to the
+     * configured drain timeout; replacements are started afterwards. Reload
+     * and shutdown settings apply from the next drain on; changes to other
+     * settings are only applied on restart.
+     * @param newConfig reloaded configuration
+     * @throws InterruptedException if interrupted while draining
+     */
+    public synchronized void reload(Config newConfig) throws InterruptedException {
+        if (!reloadable) {
+            logger.log(Level.WARNING, "Process names are not unique, ignoring reloaded configuration");
+            return;
+        }
+        
+        if (!withRestartSettings(config).equals(withRestartSettings(newConfig))) {
+            logger.log(Level.WARNING, "Changes to AMQP, I/O, metrics and admission settings require a restart");
+        }
+        
+        Map<String, ProcessConfiguration> newProcesses = new LinkedHashMap<>();
+        List<ProcessConfiguration> newProcessList = (newConfig.processes != null) ? newConfig.processes : Collections.<ProcessConfiguration>emptyList();
+        for (ProcessConfiguration procConfig : newProcessList) {
+            if (newProcesses.put(procConfig.name, procConfig) != null) {
+                logger.log(Level.WARNING, "Process name \"{0}\" is not unique, ignoring reloaded configuration", procConfig.name);
+                return;
+            }
+        }
+        
+        // diff by name and configuration
+        Set<String> runningNames = new HashSet<>();
+        List<ProcessRoute> removed = new ArrayList<>();
+        List<ProcessConfiguration> added = new ArrayList<>();
+        for (ProcessRoute route : processRoutes.values()) {
+            runningNames.add(route.name);
             
-            if (procConfig.amqp.routingKey != null) {
-                amqpIn.setRoutingKey(procConfig.amqp.routingKey);
+            ProcessConfiguration procConfig = newProcesses.get(route.name);
+            if (procConfig == null) {
+                logger.log(Level.INFO, "Process {0}: removed from configuration", route.name);
+                removed.add(route);
+            } else if (!gson.toJson(procConfig).equals(route.configJson)) {
+                logger.log(Level.INFO, "Process {0}: configuration changed, replacing route", route.name);
+                removed.add(route);
+                added.add(procConfig);
+            }
+        }
+        
+        for (ProcessConfiguration procConfig : newProcesses.values()) {
+            if (!runningNames.contains(procConfig.name)) {
+                logger.log(Level.INFO, "Process {0}: added to configuration", procConfig.name);
+                added.add(procConfig);
+            }
+        }
+        
+        if (removed.isEmpty() && added.isEmpty()) {
+            logger.log(Level.INFO, "Configuration of processes has not changed");
+            config = newConfig;
+            return;
+        }
+        
+        // routes are replaced only after draining so concurrency and
+        // resources stay within limits and names are free to be registered
+        ReloadSettings reloadSettings = (config.reload != null) ? config.reload : new ReloadSettings();
+        drainRoutes(removed, reloadSettings.drainTimeout, true);
+        
+        for (ProcessConfiguration procConfig : added) {
+            addProcessRouteToContext(procConfig);
+        }
+        
+        // later reloads are compared to this one
+        config = newConfig;
+    }
+    
+    /**
+     * Drains all process routes before Camel is stopped, so messages being
+     * processed are completed and replied to instead of being redelivered.
+     * Waits up to the configured grace period (see drainRoutes()); Camel has
+     * to be stopped afterwards.
+     * @throws InterruptedException if interrupted while draining
+     */
+    public synchronized void drain() throws InterruptedException {
+        ShutdownSettings shutdownSettings = (config.shutdown != null) ? config.shutdown : new ShutdownSettings();
+        drainRoutes(new ArrayList<>(processRoutes.values()), shutdownSettings.gracePeriod, false);
+    }
+    
+    /**
+     * Drains given routes: all routes stop taking new messages at once, then
+     * each route is stopped as soon as its messages being processed have
+     * completed. Messages received meanwhile are held and requeued when the
+     * route is stopped (see ExternalTaskProcessor.beginDrain()). Messages
+     * still being processed after the timeout are requeued. Progress is
+     * logged regularly.
+     * @param routes routes to drain
+     * @param timeoutSeconds maximum time to wait for messages being processed
+     * @param remove remove routes after stopping them?
+     * @throws InterruptedException if interrupted while draining
+     */
+    private void drainRoutes(List<ProcessRoute> routes, int timeoutSeconds, boolean remove) throws InterruptedException {
+        if (routes.isEmpty()) {
+            return;
+        }
+        
+        ShutdownSettings shutdownSettings = (config.shutdown != null) ? config.shutdown : new ShutdownSettings();
+        long startNanos = System.nanoTime();
+        long deadlineNanos = startNanos + TimeUnit.SECONDS.toNanos(Math.max(0, timeoutSeconds));
+        long progressIntervalNanos = TimeUnit.SECONDS.toNanos(Math.max(1, shutdownSettings.progressInterval));
+        long nextProgressNanos = startNanos + progressIntervalNanos;
+        
+        int activeJobs = 0;
+        for (ProcessRoute route : routes) {
+            route.processor.beginDrain();
+            activeJobs += route.processor.getActiveJobs();
+        }
+        logger.log(Level.INFO, "Draining {0} process(es), waiting up to {1} seconds for {2} message(s) being processed", new Object[]{routes.size(), timeoutSeconds, activeJobs});
+        
+        List<ProcessRoute> pending = new ArrayList<>(routes);
+        while (true) {
+            Iterator<ProcessRoute> it = pending.iterator();
+            while (it.hasNext()) {
+                ProcessRoute route = it.next();
+                if (route.processor.getActiveJobs() == 0) {
+                    it.remove();
+                    stopRoute(route, remove);
+                    logger.log(Level.INFO, "Process {0}: drained after {1} ms", new Object[]{route.name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)});
+                }
             }
             
-            if (procConfig.amqp.queue != null) {
-                amqpIn.setQueue(procConfig.amqp.queue);
+            long nowNanos = System.nanoTime();
+            if (pending.isEmpty() || (nowNanos - deadlineNanos >= 0)) {
+                break;
             }
             
-            // configure processor to run external task
-            ExternalTaskProcessor taskProcessor = new ExternalTaskProcessor(procConfig);
+            if (nowNanos - nextProgressNanos >= 0) {
+                nextProgressNanos += progressIntervalNanos;
+                logProgress(pending, deadlineNanos - nowNanos);
+            }
             
-            // wire it up
-            from(amqpIn).process(taskProcessor).process(rpcBodyReplyProcessor).process(headerReplyProcessor).to(amqpOut);
+            Thread.sleep(Math.min(DRAIN_POLL_INTERVAL_MILLIS, Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - nowNanos))));
+        }
+        
+        // remaining messages are redelivered, preferably to another instance
+        for (ProcessRoute route : pending) {
+            stopConsumers(route);
+            int aborted = route.processor.abortActive();
+            logger.log(Level.WARNING, "Process {0}: requeued {1} message(s) still being processed after {2} seconds", new Object[]{route.name, aborted, timeoutSeconds});
+            stopRoute(route, remove);
+        }
+    }
+    
+    private void logProgress(List<ProcessRoute> pending, long remainingNanos) {
+        StringBuilder sb = new StringBuilder();
+        int activeJobs = 0;
+        for (ProcessRoute route : pending) {
+            int routeJobs = route.processor.getActiveJobs();
+            activeJobs += routeJobs;
+            
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(route.name).append(": ").append(routeJobs);
+        }
+        
+        logger.log(Level.INFO, "Draining: waiting for {0} message(s) being processed ({1}), {2} seconds left", new Object[]{activeJobs, sb, TimeUnit.NANOSECONDS.toSeconds(remainingNanos)});
+    }
+    
+    /**
+     * Stops a drained route, requeueing messages held while draining.
+     * @param route route to stop
+     * @param remove remove route from context afterwards?
+     */
+    private void stopRoute(ProcessRoute route, boolean remove) {
+        // Camel waits for held messages when stopping the route, so they are
+        // released in between, once no more messages can be received
+        stopConsumers(route);
+        route.processor.finishDrain();
+        
+        try {
+            ctx.stopRoute(route.routeId, ROUTE_STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (remove) {
+                ctx.removeRoute(route.routeId);
+                processRoutes.remove(route.routeId);
+            }
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "Process "+route.name+": failed to stop route:", ex);
+        }
+    }
+    
+    /**
+     * Stops the consumers of a route without waiting for messages in flight,
+     * which Camel would do when stopping the route. Messages requeued while
+     * consumers are still running would only be redelivered to them; once
+     * their channels are closed, all unacknowledged messages are returned to
+     * the queue by the broker.
+     * @param route route to stop consumers of
+     */
+    private void stopConsumers(ProcessRoute route) {
+        Route camelRoute = ctx.getRoute(route.routeId);
+        if (camelRoute == null) {
+            return;
+        }
+        
+        try {
+            ServiceHelper.stopService(camelRoute.getConsumer());
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "Process "+route.name+": failed to stop consumers:", ex);
+        }
+    }
+    
+    /**
+     * Adds and starts the route of a process added on reload. Failures are
+     * logged; the process is then missing until it is reloaded again.
+     * @param procConfig configuration of process
+     */
+    private void addProcessRouteToContext(final ProcessConfiguration procConfig) {
+        final String routeId = createRouteId(procConfig.name);
+        final ProcessRoute[] route = new ProcessRoute[1];
+        try {
+            ctx.addRoutes(new RouteBuilder(ctx) {
+                @Override
+                public void configure() throws Exception {
+                    route[0] = addProcessRoute(this, procConfig, routeId);
+                }
+            });
+        } catch (Exception ex) {
+            logger.log(Level.SEVERE, "Process "+procConfig.name+": failed to start route, process is not running until reloaded again:", ex);
+            
+            if (ctx.getRoute(routeId) != null) {
+                try {
+                    ctx.stopRoute(routeId, ROUTE_STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    ctx.removeRoute(routeId);
+                } catch (Exception ex2) {
+                    logger.log(Level.WARNING, "Process "+procConfig.name+": failed to remove route which failed to start:", ex2);
+                }
+            }
+            
+            return;
+        }
+        
+        processRoutes.put(routeId, route[0]);
+    }
+    
+    /**
+     * Strips all settings from given configuration which are applied on
+     * reload.
+     * @param config configuration to strip
+     * @return remaining settings which require a restart
+     */
+    private JsonObject withRestartSettings(Config config) {
+        JsonObject json = gson.toJsonTree(config).getAsJsonObject();
+        json.remove("processes");
+        json.remove("reload");
+        json.remove("shutdown");
+        return json;
+    }
+    
+    private static class ProcessRoute {
+        final String name;
+        final String routeId;
+        final String configJson;
+        final ExternalTaskProcessor processor;
+        
+        ProcessRoute(String name, String routeId, String configJson, ExternalTaskProcessor processor) {
+            this.name = name;
+            this.routeId = routeId;
+            this.configJson = configJson;
+            this.processor = processor;
         }
     }
 }
@@ -0,0 +1,78 @@
+package de.glutrot.tools.amqpprocessmanager.camel;
+
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Tracks messages published on a channel in confirm mode by their sequence
+ * number until the AMQP server confirms them. Confirms acknowledging multiple
+ * messages at once complete all outstanding messages up to the given sequence
+ * number. If the channel is shut down, all outstanding messages fail as their
+ * confirms will never arrive.
+ */
+public class PublisherConfirms implements ConfirmListener, ShutdownListener {
+    private final ConcurrentNavigableMap<Long, CompletableFuture<Void>> outstanding = new ConcurrentSkipListMap<>();
+    
+    /**
+     * Registers a message about to be published. Must be called before
+     * publishing, as the confirm may arrive before publishing returns.
+     * @param sequenceNumber sequence number of message, see Channel.getNextPublishSeqNo()
+     * @return future completed when the message has been confirmed, completed exceptionally if rejected or the channel has been shut down
+     */
+    public CompletableFuture<Void> register(long sequenceNumber) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        outstanding.put(sequenceNumber, future);
+        return future;
+    }
+    
+    @Override
+    public void handleAck(long deliveryTag, boolean multiple) {
+        for (CompletableFuture<Void> future : remove(deliveryTag, multiple)) {
+            future.complete(null);
+        }
+    }
+    
+    @Override
+    public void handleNack(long deliveryTag, boolean multiple) {
+        for (CompletableFuture<Void> future : remove(deliveryTag, multiple)) {
+            future.completeExceptionally(new IOException("Message has been rejected by AMQP server"));
+        }
+    }
+    
+    @Override
+    public void shutdownCompleted(ShutdownSignalException cause) {
+        for (Long sequenceNumber : outstanding.keySet()) {
+            CompletableFuture<Void> future = outstanding.remove(sequenceNumber);
+            if (future != null) {
+                future.completeExceptionally(new IOException("Channel has been shut down before message was confirmed", cause));
+            }
+        }
+    }
+    
+    private List<CompletableFuture<Void>> remove(long deliveryTag, boolean multiple) {
+        if (!multiple) {
+            CompletableFuture<Void> future = outstanding.remove(deliveryTag);
+            return (future != null) ? Collections.singletonList(future) : Collections.emptyList();
+        }
+        
+        NavigableMap<Long, CompletableFuture<Void>> confirmed = outstanding.headMap(deliveryTag, true);
+        List<CompletableFuture<Void>> futures = new ArrayList<>(confirmed.size());
+        for (Map.Entry<Long, CompletableFuture<Void>> entry : confirmed.entrySet()) {
+            if (outstanding.remove(entry.getKey(), entry.getValue())) {
+                futures.add(entry.getValue());
+            }
+        }
+        
+        return futures;
+    }
+}
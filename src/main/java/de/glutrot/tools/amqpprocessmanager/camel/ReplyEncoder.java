@@ -0,0 +1,194 @@
+package de.glutrot.tools.amqpprocessmanager.camel;
+
+/**
+ * Encodes the JSON envelope of RPC replies directly to UTF-8 bytes:<br />
+ * <br />
+ * <code>{"state":STATE,"sequence":SEQUENCE,"output":OUTPUT}</code><br />
+ * <br />
+ * where sequence is only present for partial results and output is the
+ * process output as JSON string (or null if execution failed). Strings are
+ * escaped like ProtocolCodec does. The encoded length is determined in a
+ * first pass so the output can be written into an array of exact size which
+ * is handed to the AMQP producer as is, without any intermediate String,
+ * JSON object or buffer copies.
+ */
+public class ReplyEncoder {
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+    
+    private static final byte[] PREFIX_STATE = "{\"state\":".getBytes();
+    private static final byte[] PREFIX_SEQUENCE = ",\"sequence\":".getBytes();
+    private static final byte[] PREFIX_OUTPUT = ",\"output\":".getBytes();
+    private static final byte[] NULL = "null".getBytes();
+    
+    /**
+     * Encodes a reply envelope.
+     * @param state reply state
+     * @param sequence sequence number of partial result, negative to omit
+     * @param output process output, null if execution failed
+     * @return encoded envelope
+     */
+    public static byte[] encode(String state, long sequence, String output) {
+        String sequenceString = (sequence >= 0) ? Long.toString(sequence) : null;
+        
+        int length = PREFIX_STATE.length + encodedLength(state) + PREFIX_OUTPUT.length + encodedLength(output) + 1;
+        if (sequenceString != null) {
+            length += PREFIX_SEQUENCE.length + sequenceString.length();
+        }
+        
+        byte[] out = new byte[length];
+        int pos = put(out, 0, PREFIX_STATE);
+        pos = writeString(out, pos, state);
+        
+        if (sequenceString != null) {
+            pos = put(out, pos, PREFIX_SEQUENCE);
+            for (int i = 0; i < sequenceString.length(); i++) {
+                out[pos++] = (byte) sequenceString.charAt(i);
+            }
+        }
+        
+        pos = put(out, pos, PREFIX_OUTPUT);
+        pos = writeString(out, pos, output);
+        out[pos] = '}';
+        
+        return out;
+    }
+    
+    private static int put(byte[] out, int pos, byte[] bytes) {
+        System.arraycopy(bytes, 0, out, pos, bytes.length);
+        return pos + bytes.length;
+    }
+    
+    /**
+     * Determines the number of bytes needed to encode given string as JSON
+     * string including quotes.
+     * @param s string to encode, null for JSON null
+     * @return encoded length (bytes)
+     */
+    private static int encodedLength(String s) {
+        if (s == null) {
+            return NULL.length;
+        }
+        
+        int length = 2;
+        int stringLength = s.length();
+        for (int i = 0; i < stringLength; i++) {
+            char ch = s.charAt(i);
+            if (ch < 0x80) {
+                if ((ch >= 0x20) && (ch != '"') && (ch != '\\')) {
+                    length++;
+                } else {
+                    length += escapedLength(ch);
+                }
+            } else if (ch < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(ch) && (i + 1 < stringLength) && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(ch)) {
+                // unpaired surrogates are replaced like String.getBytes does
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        
+        return length;
+    }
+    
+    private static int escapedLength(char ch) {
+        switch (ch) {
+            case '"':
+            case '\\':
+            case '\b':
+            case '\f':
+            case '\n':
+            case '\r':
+            case '\t':
+                return 2;
+            
+            default:
+                return 6;
+        }
+    }
+    
+    /**
+     * Writes given string as JSON string, UTF-8 encoded.
+     * @param out array to write to, must be large enough
+     * @param pos position to start writing at
+     * @param s string to encode, null for JSON null
+     * @return position after encoded string
+     */
+    private static int writeString(byte[] out, int pos, String s) {
+        if (s == null) {
+            return put(out, pos, NULL);
+        }
+        
+        out[pos++] = '"';
+        
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char ch = s.charAt(i);
+            if (ch < 0x80) {
+                if ((ch >= 0x20) && (ch != '"') && (ch != '\\')) {
+                    out[pos++] = (byte) ch;
+                } else {
+                    pos = writeEscaped(out, pos, ch);
+                }
+            } else if (ch < 0x800) {
+                out[pos++] = (byte) (0xC0 | (ch >> 6));
+                out[pos++] = (byte) (0x80 | (ch & 0x3F));
+            } else if (Character.isHighSurrogate(ch) && (i + 1 < length) && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(ch, s.charAt(++i));
+                out[pos++] = (byte) (0xF0 | (codePoint >> 18));
+                out[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                out[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(ch)) {
+                out[pos++] = '?';
+            } else {
+                out[pos++] = (byte) (0xE0 | (ch >> 12));
+                out[pos++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+                out[pos++] = (byte) (0x80 | (ch & 0x3F));
+            }
+        }
+        
+        out[pos++] = '"';
+        
+        return pos;
+    }
+    
+    private static int writeEscaped(byte[] out, int pos, char ch) {
+        out[pos++] = '\\';
+        
+        switch (ch) {
+            case '"':   out[pos++] = '"';
+                        break;
+            
+            case '\\':  out[pos++] = '\\';
+                        break;
+            
+            case '\b':  out[pos++] = 'b';
+                        break;
+            
+            case '\f':  out[pos++] = 'f';
+                        break;
+            
+            case '\n':  out[pos++] = 'n';
+                        break;
+            
+            case '\r':  out[pos++] = 'r';
+                        break;
+            
+            case '\t':  out[pos++] = 't';
+                        break;
+            
+            default:    out[pos++] = 'u';
+                        out[pos++] = '0';
+                        out[pos++] = '0';
+                        out[pos++] = HEX_DIGITS[ch >> 4];
+                        out[pos++] = HEX_DIGITS[ch & 0xF];
+        }
+        
+        return pos;
+    }
+}
@@ -0,0 +1,473 @@
+package de.glutrot.tools.amqpprocessmanager.camel;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import de.glutrot.tools.amqpprocessmanager.ProcessCommunicator;
+import de.glutrot.tools.amqpprocessmanager.metrics.ConnectionMetrics;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Endpoint;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.ProducerTemplate;
+
+/**
+ * Publishes replies to RPC callers independent of the completion of the
+ * incoming exchange, so results can be delivered as soon as they are
+ * available while the process may still be running. Replies are constructed
+ * in a single step: headers of the request are copied once and adjusted for
+ * replying, JSON replies are encoded directly to bytes by ReplyEncoder and
+ * the message is sent synchronously to the AMQP reply endpoint, so replies of
+ * a single request are published in order.<br />
+ * <br />
+ * If AMQP connections are shared, replies are published directly on a
+ * channel checked out from a ChannelPool instead of going through Camel's
+ * producer. Message properties are mapped from headers the same way as by
+ * camel-rabbitmq. If the pool's channels are in confirm mode, a reply only
+ * counts as published once the AMQP server has confirmed it. Publishing does
+ * not wait for the confirm; channels are returned to the pool immediately, so
+ * further replies are published while earlier ones are still unconfirmed and
+ * the server can confirm them in batches. Callers are notified
+ * asynchronously when the confirm arrives. The number of unconfirmed replies
+ * is limited; while the limit is reached, further replies are queued and
+ * published in order by a dedicated thread once confirms arrive, so callers
+ * never wait for the AMQP server.
+ */
+public class ReplyPublisher {
+    private static final Logger logger = Logger.getLogger(ReplyPublisher.class.getName());
+    
+    /**
+     * Header holding the sequence number of partial results.
+     */
+    public static final String HEADER_SEQUENCE = "sequence";
+    
+    /**
+     * Header holding the state of replies to binary protocol requests.
+     */
+    public static final String HEADER_STATE = "state";
+    
+    public static final String STATE_PARTIAL = "partial";
+    public static final String STATE_SUCCESS = "success";
+    public static final String STATE_ERROR = "error";
+    
+    private static final String CONTENT_TYPE_BINARY = "application/octet-stream";
+    private static final String CONTENT_TYPE_JSON = "application/json";
+    
+    private static final byte[] EMPTY_DATA = new byte[0];
+    
+    private final ProducerTemplate template;
+    private final Endpoint replyEndpoint;
+    private final ChannelPool channelPool;
+    
+    // only used if publisher confirms are enabled
+    private final Semaphore unconfirmedPermits;
+    private final long confirmTimeoutMillis;
+    private final ConnectionMetrics metrics;
+    private final ScheduledExecutorService confirmTimer;
+    private final ExecutorService confirmExecutor;
+    private final ExecutorService permitExecutor;
+    private final Object permitLock = new Object();
+    private int permitWaiters = 0; // guarded by permitLock
+    
+    /**
+     * @param ctx Camel context
+     * @param replyEndpoint AMQP endpoint to publish replies to
+     */
+    public ReplyPublisher(CamelContext ctx, Endpoint replyEndpoint) {
+        template = ctx.createProducerTemplate();
+        this.replyEndpoint = replyEndpoint;
+        this.channelPool = null;
+        
+        this.unconfirmedPermits = null;
+        this.confirmTimeoutMillis = 0;
+        this.metrics = null;
+        this.confirmTimer = null;
+        this.confirmExecutor = null;
+        this.permitExecutor = null;
+    }
+    
+    /**
+     * @param channelPool pool of channels to publish replies on
+     * @param maxUnconfirmed maximum number of replies waiting for a confirm (only used if pool uses publisher confirms)
+     * @param confirmTimeout maximum time to wait for a confirm (milliseconds, only used if pool uses publisher confirms)
+     * @param metrics metrics to record confirms to
+     */
+    public ReplyPublisher(ChannelPool channelPool, int maxUnconfirmed, int confirmTimeout, ConnectionMetrics metrics) {
+        this.template = null;
+        this.replyEndpoint = null;
+        this.channelPool = channelPool;
+        this.metrics = metrics;
+        
+        if (!channelPool.usesPublisherConfirms()) {
+            this.unconfirmedPermits = null;
+            this.confirmTimeoutMillis = 0;
+            this.confirmTimer = null;
+            this.confirmExecutor = null;
+            this.permitExecutor = null;
+            return;
+        }
+        
+        this.unconfirmedPermits = new Semaphore(Math.max(1, maxUnconfirmed));
+        this.confirmTimeoutMillis = Math.max(1, confirmTimeout);
+        
+        this.confirmTimer = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            Thread thread = new Thread(r, "ReplyPublisher confirm timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        // confirms are received on the connection's thread which must not
+        // be blocked by completing exchanges
+        this.confirmExecutor = Executors.newCachedThreadPool((Runnable r) -> {
+            Thread thread = new Thread(r, "ReplyPublisher confirm");
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        // replies waiting for a permit are published one by one in order
+        this.permitExecutor = Executors.newSingleThreadExecutor((Runnable r) -> {
+            Thread thread = new Thread(r, "ReplyPublisher permit");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Creates the headers of a reply to given request. All headers of the
+     * request are kept except for those unsuitable for replies, the reply is
+     * addressed to the queue requested by REPLY_TO via default exchange.
+     * @param request original request message
+     * @param contentType content type of reply
+     * @return headers for reply message
+     */
+    static Map<String, Object> createReplyHeaders(Message request, String contentType) {
+        Map<String, Object> headers = new HashMap<>(request.getHeaders());
+        
+        // remove headers unsuitable for replies
+        Object replyTo = headers.remove("rabbitmq.REPLY_TO");
+        headers.remove("rabbitmq.EXPIRATION");
+        
+        // force default exchange, workaround for bug CAMEL-8270
+        headers.put("rabbitmq.EXCHANGE_NAME", "");
+        
+        // default exchange routes messages to queue = routing_key
+        headers.put("rabbitmq.ROUTING_KEY", replyTo);
+        
+        headers.put("rabbitmq.CONTENT_TYPE", contentType);
+        
+        return headers;
+    }
+    
+    /**
+     * Sends a reply to the AMQP endpoint.
+     * @param headers headers of reply, see createReplyHeaders
+     * @param body body of reply
+     * @return future resolving to the exception if reply could not be published (or was not confirmed), null on success
+     */
+    private CompletableFuture<Exception> send(final Map<String, Object> headers, final byte[] body) {
+        if (channelPool != null) {
+            return publish(headers, body);
+        }
+        
+        Exchange reply = template.send(replyEndpoint, (Exchange exchange) -> {
+            Message msg = exchange.getIn();
+            msg.setHeaders(headers);
+            msg.setBody(body);
+        });
+        
+        return CompletableFuture.completedFuture(reply.getException());
+    }
+    
+    /**
+     * Publishes a reply on a channel of the pool.
+     * @param headers headers of reply, see createReplyHeaders
+     * @param body body of reply
+     * @return future resolving to the exception if reply could not be published (or was not confirmed), null on success
+     */
+    private CompletableFuture<Exception> publish(Map<String, Object> headers, byte[] body) {
+        Object exchangeName = headers.get("rabbitmq.EXCHANGE_NAME");
+        Object routingKey = headers.get("rabbitmq.ROUTING_KEY");
+        
+        AMQP.BasicProperties properties;
+        try {
+            properties = buildProperties(headers);
+        } catch (RuntimeException ex) {
+            return CompletableFuture.completedFuture(ex);
+        }
+        
+        if (unconfirmedPermits == null) {
+            return publish(exchangeName, routingKey, properties, body, false);
+        }
+        
+        // replies must not overtake those already waiting for a permit
+        boolean acquired;
+        synchronized (permitLock) {
+            acquired = (permitWaiters == 0) && unconfirmedPermits.tryAcquire();
+            if (!acquired) {
+                permitWaiters++;
+            }
+        }
+        
+        if (acquired) {
+            return publish(exchangeName, routingKey, properties, body, true);
+        }
+        
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                acquireUnconfirmedPermit();
+                return publish(exchangeName, routingKey, properties, body, true);
+            } catch (IOException ex) {
+                return CompletableFuture.<Exception>completedFuture(ex);
+            } finally {
+                synchronized (permitLock) {
+                    permitWaiters--;
+                }
+            }
+        }, permitExecutor).thenCompose((future) -> future);
+    }
+    
+    /**
+     * Publishes a reply on a channel of the pool. A permit for an unconfirmed
+     * reply has to be held already if confirms are used; it is released once
+     * the confirm has been received or publishing failed.
+     * @param exchangeName name of exchange to publish to
+     * @param routingKey routing key
+     * @param properties message properties
+     * @param body body of reply
+     * @param confirm wait for confirm?
+     * @return future resolving to the exception if reply could not be published (or was not confirmed), null on success
+     */
+    private CompletableFuture<Exception> publish(Object exchangeName, Object routingKey, AMQP.BasicProperties properties, byte[] body, boolean confirm) {
+        Channel channel;
+        try {
+            channel = channelPool.borrow();
+        } catch (IOException ex) {
+            if (confirm) {
+                unconfirmedPermits.release();
+            }
+            return CompletableFuture.completedFuture(ex);
+        }
+        
+        CompletableFuture<Void> confirmed = null;
+        try {
+            // register before publishing as confirm may arrive any time after
+            if (confirm) {
+                confirmed = trackConfirm(channelPool.getPublisherConfirms(channel).register(channel.getNextPublishSeqNo()));
+            }
+            
+            channel.basicPublish((exchangeName != null) ? exchangeName.toString() : "", (routingKey != null) ? routingKey.toString() : "", properties, body);
+        } catch (IOException | RuntimeException ex) {
+            channelPool.invalidate(channel);
+            if (confirmed != null) {
+                confirmed.completeExceptionally(ex);
+            } else if (confirm) {
+                unconfirmedPermits.release();
+            }
+            return CompletableFuture.completedFuture(ex);
+        }
+        
+        // channel can be reused while waiting for the confirm
+        channelPool.release(channel);
+        
+        if (!confirm) {
+            return CompletableFuture.completedFuture(null);
+        }
+        
+        return confirmed.handleAsync((v, ex) -> {
+            if ((ex instanceof CompletionException) && (ex.getCause() != null)) {
+                ex = ex.getCause();
+            }
+            
+            if ((ex == null) || (ex instanceof Exception)) {
+                return (Exception) ex;
+            }
+            
+            return new IOException(ex);
+        }, confirmExecutor);
+    }
+    
+    /**
+     * Blocks until another reply may be published without exceeding the
+     * limit of unconfirmed replies. Only called on the permit thread.
+     * @throws IOException if no reply has been confirmed in time
+     */
+    private void acquireUnconfirmedPermit() throws IOException {
+        try {
+            if (!unconfirmedPermits.tryAcquire(confirmTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for unconfirmed replies to be confirmed");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for unconfirmed replies to be confirmed", ex);
+        }
+    }
+    
+    /**
+     * Fails the given confirm if it does not arrive in time and releases the
+     * permit acquired for it once completed.
+     * @param confirmed future completed by confirm
+     * @return given future
+     */
+    private CompletableFuture<Void> trackConfirm(CompletableFuture<Void> confirmed) {
+        final long startTimeNanos = System.nanoTime();
+        metrics.replyUnconfirmed();
+        
+        final ScheduledFuture<?> timeout = confirmTimer.schedule(() -> {
+            confirmed.completeExceptionally(new TimeoutException("Reply has not been confirmed within "+Long.toString(confirmTimeoutMillis)+"ms"));
+        }, confirmTimeoutMillis, TimeUnit.MILLISECONDS);
+        
+        confirmed.whenComplete((v, ex) -> {
+            timeout.cancel(false);
+            unconfirmedPermits.release();
+            
+            metrics.replyConfirmCompleted();
+            if (ex == null) {
+                metrics.recordReplyConfirm(System.nanoTime() - startTimeNanos);
+            } else {
+                metrics.countReplyConfirmFailure();
+            }
+        });
+        
+        return confirmed;
+    }
+    
+    /**
+     * Maps headers to AMQP message properties like camel-rabbitmq does:
+     * rabbitmq.* headers set the corresponding properties and all headers of
+     * types supported by AMQP are copied as message headers. Unlike
+     * camel-rabbitmq, timestamps may also be given as Date (as they are set on
+     * received messages).
+     * @param headers headers of reply, see createReplyHeaders
+     * @return message properties
+     */
+    static AMQP.BasicProperties buildProperties(Map<String, Object> headers) {
+        AMQP.BasicProperties.Builder builder = new AMQP.BasicProperties.Builder();
+        
+        builder.contentType(getHeaderString(headers, "rabbitmq.CONTENT_TYPE"));
+        builder.messageId(getHeaderString(headers, "rabbitmq.MESSAGE_ID"));
+        builder.clusterId(getHeaderString(headers, "rabbitmq.CLUSTERID"));
+        builder.replyTo(getHeaderString(headers, "rabbitmq.REPLY_TO"));
+        builder.correlationId(getHeaderString(headers, "rabbitmq.CORRELATIONID"));
+        builder.userId(getHeaderString(headers, "rabbitmq.USERID"));
+        builder.type(getHeaderString(headers, "rabbitmq.TYPE"));
+        builder.contentEncoding(getHeaderString(headers, "rabbitmq.CONTENT_ENCODING"));
+        builder.expiration(getHeaderString(headers, "rabbitmq.EXPIRATION"));
+        builder.appId(getHeaderString(headers, "rabbitmq.APP_ID"));
+        
+        String priority = getHeaderString(headers, "rabbitmq.PRIORITY");
+        if (priority != null) {
+            builder.priority(Integer.parseInt(priority));
+        }
+        
+        String deliveryMode = getHeaderString(headers, "rabbitmq.DELIVERY_MODE");
+        if (deliveryMode != null) {
+            builder.deliveryMode(Integer.parseInt(deliveryMode));
+        }
+        
+        Object timestamp = headers.get("rabbitmq.TIMESTAMP");
+        if (timestamp instanceof Date) {
+            builder.timestamp((Date) timestamp);
+        } else if (timestamp != null) {
+            builder.timestamp(new Date(Long.parseLong(timestamp.toString())));
+        }
+        
+        Map<String, Object> amqpHeaders = new HashMap<>();
+        for (Map.Entry<String, Object> entry : headers.entrySet()) {
+            Object value = entry.getValue();
+            if ((value instanceof String) || (value instanceof BigDecimal) || (value instanceof Number) || (value instanceof Boolean) || (value instanceof Date) || (value instanceof byte[])) {
+                amqpHeaders.put(entry.getKey(), value);
+            }
+        }
+        builder.headers(amqpHeaders);
+        
+        return builder.build();
+    }
+    
+    private static String getHeaderString(Map<String, Object> headers, String name) {
+        Object value = headers.get(name);
+        return (value != null) ? value.toString() : null;
+    }
+    
+    /**
+     * Publishes a partial result as reply to given request. Partial results
+     * are wrapped in a JSON object like final replies but with state "partial"
+     * and a sequence number which is also set as header. Partial results of
+     * the binary protocol are published as raw data, marked by state header.
+     * @param request original request message (used to address reply)
+     * @param sequence sequence number of this partial result, starting at 0
+     * @param partialResult chunk of output
+     * @param binary publish raw data of binary protocol?
+     */
+    public void publishPartial(final Message request, final long sequence, ProcessCommunicator.Result partialResult, final boolean binary) {
+        if (request.getHeader("rabbitmq.REPLY_TO") == null) {
+            logger.log(Level.FINE, "Request has no reply address, dropping partial result {0}", sequence);
+            return;
+        }
+        
+        Map<String, Object> headers;
+        byte[] body;
+        if (binary) {
+            headers = createReplyHeaders(request, CONTENT_TYPE_BINARY);
+            headers.put(HEADER_STATE, STATE_PARTIAL);
+            body = (partialResult.getData() != null) ? partialResult.getData() : EMPTY_DATA;
+        } else {
+            headers = createReplyHeaders(request, CONTENT_TYPE_JSON);
+            body = ReplyEncoder.encode(STATE_PARTIAL, sequence, partialResult.getOutput());
+        }
+        headers.put(HEADER_SEQUENCE, sequence);
+        
+        // partial results are not awaited, even if confirms are enabled
+        send(headers, body).thenAccept((ex) -> {
+            if (ex != null) {
+                logger.log(Level.WARNING, "Failed to publish partial result "+sequence+":", ex);
+            }
+        });
+    }
+    
+    /**
+     * Publishes the final result as reply to given request. Results of the
+     * binary protocol are published as raw data without being wrapped; their
+     * state is only set as header.
+     * @param request original request message (used to address reply)
+     * @param result process result, null if execution failed
+     * @param binary publish raw data of binary protocol?
+     * @return future resolving to the exception if reply could not be published (or was not confirmed), null on success; already resolved unless publisher confirms are enabled
+     */
+    public CompletableFuture<Exception> publishResult(final Message request, final ProcessCommunicator.Result result, boolean binary) {
+        Map<String, Object> headers;
+        byte[] body;
+        if (binary) {
+            headers = createReplyHeaders(request, CONTENT_TYPE_BINARY);
+            headers.put(HEADER_STATE, (result != null) ? STATE_SUCCESS : STATE_ERROR);
+            body = ((result != null) && (result.getData() != null)) ? result.getData() : EMPTY_DATA;
+        } else {
+            // missing output is reported as error
+            String output = (result != null) ? result.getOutput() : null;
+            headers = createReplyHeaders(request, CONTENT_TYPE_JSON);
+            body = ReplyEncoder.encode((output != null) ? STATE_SUCCESS : STATE_ERROR, -1, output);
+        }
+        
+        return send(headers, body).thenApply((ex) -> {
+            if (ex != null) {
+                logger.log(Level.WARNING, "Failed to publish result:", ex);
+            }
+            
+            return ex;
+        });
+    }
+}
@@ -0,0 +1,357 @@
+package de.glutrot.tools.amqpprocessmanager.camel;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.ShutdownListener;
+import de.glutrot.tools.amqpprocessmanager.metrics.ConnectionMetrics;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.camel.Service;
+
+/**
+ * Connection factory multiplexing all connections requested from it over a
+ * small number of shared AMQP connections. Each call to newConnection()
+ * returns a lease on the shared connection with the fewest leases (opening
+ * another one while less than the configured number is open). Channels are
+ * created on the shared connection; closing a lease closes all channels which
+ * are still open on it and releases the lease. A shared connection is closed
+ * when its last lease has been released.<br />
+ * <br />
+ * Deliveries of all consumers are dispatched by a thread pool of the factory
+ * instead of the executor passed by callers, as that executor is bound to
+ * a single caller's lifecycle. Consumers blocking their delivery thread (like
+ * ExternalTaskProcessor) thus do not starve each other.<br />
+ * <br />
+ * Register with the CamelContext as service to close all shared connections
+ * when Camel stops.
+ */
+public class SharedConnectionFactory extends ConnectionFactory implements Service {
+    private static final Logger logger = Logger.getLogger(SharedConnectionFactory.class.getName());
+    
+    private final int maxConnections;
+    private final ConnectionMetrics metrics;
+    private final List<SharedConnection> connections = new ArrayList<>();
+    private final ExecutorService consumerExecutor;
+    
+    /**
+     * @param maxConnections maximum number of connections to open
+     * @param metrics metrics to record connections and channel churn to
+     */
+    public SharedConnectionFactory(int maxConnections, ConnectionMetrics metrics) {
+        this.maxConnections = Math.max(1, maxConnections);
+        this.metrics = metrics;
+        
+        final AtomicInteger threadNumber = new AtomicInteger();
+        consumerExecutor = Executors.newCachedThreadPool((Runnable r) -> {
+            Thread thread = new Thread(r, "SharedConnectionFactory consumer "+threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Returns a lease on a shared connection. The given executor is ignored.
+     * @param executor ignored
+     * @param addrs addresses to connect to if a new connection is opened
+     * @return lease on shared connection
+     * @throws IOException if a new connection could not be opened
+     */
+    @Override
+    public Connection newConnection(ExecutorService executor, Address[] addrs) throws IOException {
+        SharedConnection shared;
+        synchronized (connections) {
+            shared = selectConnection(addrs);
+            shared.leases++;
+        }
+        
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, new Lease(shared));
+    }
+    
+    /**
+     * Selects the connection to lease, opening a new one if all open
+     * connections are already leased and the limit has not been reached.
+     * Must be called while holding lock on connections.
+     * @param addrs addresses to connect to if a new connection is opened
+     * @return shared connection
+     * @throws IOException if a new connection could not be opened
+     */
+    private SharedConnection selectConnection(Address[] addrs) throws IOException {
+        SharedConnection selected = null;
+        
+        Iterator<SharedConnection> it = connections.iterator();
+        while (it.hasNext()) {
+            SharedConnection shared = it.next();
+            
+            // connections without automatic recovery will never come back
+            if (!shared.connection.isOpen() && !(shared.connection instanceof Recoverable)) {
+                logger.log(Level.FINE, "Retiring closed shared connection {0}", shared.connection);
+                it.remove();
+                shared.retire();
+                continue;
+            }
+            
+            if ((selected == null) || (shared.leases < selected.leases)) {
+                selected = shared;
+            }
+        }
+        
+        if ((selected == null) || ((selected.leases > 0) && (connections.size() < maxConnections))) {
+            selected = new SharedConnection(super.newConnection(consumerExecutor, addrs));
+            connections.add(selected);
+            metrics.connectionOpened();
+            
+            logger.log(Level.INFO, "Opened shared connection {0} of {1}", new Object[]{connections.size(), maxConnections});
+        }
+        
+        return selected;
+    }
+    
+    /**
+     * Releases a lease, closing the shared connection if it was the last one.
+     * @param shared leased connection
+     * @param close closes/aborts the underlying connection
+     */
+    private void release(SharedConnection shared, ConnectionCloser close) throws IOException {
+        synchronized (connections) {
+            shared.leases--;
+            if (shared.leases > 0) {
+                return;
+            }
+            
+            connections.remove(shared);
+            if (!shared.retire()) {
+                return;
+            }
+        }
+        
+        if (shared.connection.isOpen()) {
+            close.close(shared.connection);
+        } else {
+            // stop recovery
+            shared.connection.abort();
+        }
+    }
+    
+    @Override
+    public void start() {
+        // connections are opened on demand
+    }
+    
+    @Override
+    public void stop() {
+        shutdown();
+    }
+    
+    /**
+     * Closes all shared connections and stops the dispatch thread pool.
+     */
+    public void shutdown() {
+        List<Connection> remaining = new ArrayList<>();
+        synchronized (connections) {
+            for (SharedConnection shared : connections) {
+                if (shared.retire()) {
+                    remaining.add(shared.connection);
+                }
+            }
+            connections.clear();
+        }
+        
+        for (Connection connection : remaining) {
+            connection.abort();
+        }
+        
+        consumerExecutor.shutdown();
+    }
+    
+    private interface ConnectionCloser {
+        void close(Connection connection) throws IOException;
+    }
+    
+    private class SharedConnection {
+        final Connection connection;
+        int leases = 0;
+        boolean retired = false;
+        
+        SharedConnection(Connection connection) {
+            this.connection = connection;
+        }
+        
+        /**
+         * Marks the connection as no longer being shared. Must be called
+         * while holding lock on connections.
+         * @return true if connection has not been retired before
+         */
+        boolean retire() {
+            if (retired) {
+                return false;
+            }
+            
+            retired = true;
+            metrics.connectionClosed();
+            return true;
+        }
+    }
+    
+    /**
+     * Handles calls to a leased connection.
+     */
+    private class Lease implements InvocationHandler {
+        private final SharedConnection shared;
+        private final Set<Channel> channels = new HashSet<>();
+        private final List<ShutdownListener> shutdownListeners = new ArrayList<>();
+        private boolean released = false;
+        
+        Lease(SharedConnection shared) {
+            this.shared = shared;
+        }
+        
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "lease on "+shared.connection;
+                case "isOpen":
+                    return !isReleased() && shared.connection.isOpen();
+                case "close":
+                    releaseLease(false, (Connection connection) -> delegate(connection, method, args));
+                    return null;
+                case "abort":
+                    try {
+                        releaseLease(true, (Connection connection) -> delegate(connection, method, args));
+                    } catch (IOException ex) {
+                        logger.log(Level.FINE, "Failed to abort shared connection", ex);
+                    }
+                    return null;
+                case "createChannel":
+                    return createChannel((Channel) delegate(shared.connection, method, args));
+                case "addShutdownListener":
+                    synchronized (this) {
+                        shutdownListeners.add((ShutdownListener) args[0]);
+                    }
+                    return delegate(shared.connection, method, args);
+                case "removeShutdownListener":
+                    synchronized (this) {
+                        shutdownListeners.remove((ShutdownListener) args[0]);
+                    }
+                    return delegate(shared.connection, method, args);
+                default:
+                    return delegate(shared.connection, method, args);
+            }
+        }
+        
+        private synchronized boolean isReleased() {
+            return released;
+        }
+        
+        private Channel createChannel(final Channel channel) throws IOException {
+            // no channel number available
+            if (channel == null) {
+                return null;
+            }
+            
+            synchronized (this) {
+                if (released) {
+                    channel.abort();
+                    throw new IOException("Lease on shared connection has already been closed");
+                }
+                
+                channels.add(channel);
+            }
+            metrics.countChannelOpened();
+            
+            channel.addShutdownListener((cause) -> {
+                // channels with automatic recovery reopen after connection errors
+                if (cause.isHardError() && (channel instanceof Recoverable) && !cause.isInitiatedByApplication()) {
+                    return;
+                }
+                
+                boolean wasOpen;
+                synchronized (Lease.this) {
+                    wasOpen = channels.remove(channel);
+                }
+                if (wasOpen) {
+                    metrics.countChannelClosed();
+                }
+            });
+            
+            return channel;
+        }
+        
+        /**
+         * Closes all channels still open on this lease and releases it.
+         * Releasing an already released lease has no effect.
+         * @param abort abort instead of closing channels?
+         * @param close closes/aborts the underlying connection if this was its last lease
+         */
+        private void releaseLease(boolean abort, ConnectionCloser close) throws IOException {
+            List<Channel> remainingChannels;
+            List<ShutdownListener> listeners;
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                
+                remainingChannels = new ArrayList<>(channels);
+                listeners = new ArrayList<>(shutdownListeners);
+                shutdownListeners.clear();
+            }
+            
+            for (Channel channel : remainingChannels) {
+                try {
+                    if (abort) {
+                        channel.abort();
+                    } else if (channel.isOpen()) {
+                        channel.close();
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    logger.log(Level.FINE, "Failed to close channel of released lease", ex);
+                }
+            }
+            
+            for (ShutdownListener listener : listeners) {
+                shared.connection.removeShutdownListener(listener);
+            }
+            
+            release(shared, close);
+        }
+        
+        private Object delegate(Connection connection, Method method, Object[] args) throws IOException {
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            } catch (IllegalAccessException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+}
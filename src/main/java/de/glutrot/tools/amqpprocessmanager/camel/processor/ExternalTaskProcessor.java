@@ -1,38 +1,139 @@
 package de.glutrot.tools.amqpprocessmanager.camel.processor;
 
+import de.glutrot.tools.amqpprocessmanager.AdmissionController;
+import de.glutrot.tools.amqpprocessmanager.PooledProcess;
 import de.glutrot.tools.amqpprocessmanager.ProcessCommunicator;
+import de.glutrot.tools.amqpprocessmanager.ProcessIOEventLoop;
+import de.glutrot.tools.amqpprocessmanager.ProcessPool;
 import de.glutrot.tools.amqpprocessmanager.ProcessStdErrLogForwarder;
 import de.glutrot.tools.amqpprocessmanager.ProcessWatchdog;
+import de.glutrot.tools.amqpprocessmanager.ResultCache;
+import de.glutrot.tools.amqpprocessmanager.SafeExecutionCheckCache;
+import de.glutrot.tools.amqpprocessmanager.SpoolDirectory;
+import de.glutrot.tools.amqpprocessmanager.ZygoteLauncher;
+import de.glutrot.tools.amqpprocessmanager.beans.config.ProcessCacheConfiguration;
 import de.glutrot.tools.amqpprocessmanager.beans.config.ProcessConfiguration;
+import de.glutrot.tools.amqpprocessmanager.beans.config.ProcessDeadlineConfiguration;
+import de.glutrot.tools.amqpprocessmanager.beans.config.ProcessExecutionConfiguration;
+import de.glutrot.tools.amqpprocessmanager.beans.config.ProcessPoolConfiguration;
+import de.glutrot.tools.amqpprocessmanager.beans.config.ProcessSafetyCheckConfiguration;
+import de.glutrot.tools.amqpprocessmanager.beans.config.ProcessZygoteConfiguration;
+import de.glutrot.tools.amqpprocessmanager.camel.ConcurrencyController;
+import de.glutrot.tools.amqpprocessmanager.camel.ReplyPublisher;
+import de.glutrot.tools.amqpprocessmanager.metrics.MetricsRegistry;
+import de.glutrot.tools.amqpprocessmanager.metrics.ProcessMetrics;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.AsyncProcessor;
 import org.apache.camel.Exchange;
 import org.apache.camel.Message;
-import org.apache.camel.Processor;
+import org.apache.camel.Service;
+import org.apache.camel.util.AsyncProcessorHelper;
 
-public class ExternalTaskProcessor implements Processor {
+public class ExternalTaskProcessor implements AsyncProcessor, Service {
     private static final Logger logger = Logger.getLogger(ExternalTaskProcessor.class.getName());
     
     private static final CharSequence PLACEHOLDER_ENV_ORIGINAL_VALUE = "%%%ORIGINAL_VALUE%%%";
+    private static final String ENV_SPOOL_DIR = "AMQP_PROCESS_MANAGER_SPOOL_DIR";
+    private static final String PROPERTY_CACHE_KEY = "amqpprocessmanager.cacheKey";
+    private static final String PROPERTY_DEADLINE = "amqpprocessmanager.deadline";
+    private static final String PROPERTY_PARTIALS = "amqpprocessmanager.partials";
+    private static final String HEADER_REQUEUE = "rabbitmq.REQUEUE";
     
     private boolean logStdErr = false;
     private boolean allowWritableExecutable = false;
+    private boolean binary = false;
+    private boolean rawInput = false;
+    private boolean passDeadline = false;
     private boolean isConfigured = false;
     private ProcessBuilder pb = null;
-        
+    
     private String name = null;
     
     private int watchdogTimeout = 0;
     private int watchdogCheckInterval = 0;
     
-    public ExternalTaskProcessor(ProcessConfiguration config) {
+    private ProcessPool pool = null;
+    private ZygoteLauncher zygote = null;
+    private MessageBatcher batcher = null;
+    private SpoolDirectory spool = null;
+    private ResultCache cache = null;
+    private MessageDeadline deadline = null;
+    private SafeExecutionCheckCache safetyCheck = null;
+    private ProcessIOEventLoop eventLoop = null;
+    private final ReplyPublisher replyPublisher;
+    private ConcurrencyController concurrencyController = null;
+    private AdmissionController admissionController = null;
+    private ProcessMetrics metrics = null;
+    
+    // results are handled and replied to on threads of our own, so threads
+    // completing results (such as shared I/O event loops) are never blocked
+    private final ExecutorService completionExecutor;
+    
+    // messages being processed by this instance, to wait for when draining
+    // and to requeue if they do not complete in time
+    private final AtomicInteger activeJobs = new AtomicInteger();
+    private final Map<Exchange, ActiveExchange> activeExchanges = new ConcurrentHashMap<>();
+    private final Object drainLock = new Object();
+    private volatile boolean draining = false;
+    private boolean drained = false;
+    
+    /**
+     * State of a message being processed.
+     */
+    private static class ActiveExchange {
+        private final AsyncCallback callback;
+        private volatile boolean replied = false;
+        
+        private ActiveExchange(AsyncCallback callback) {
+            this.callback = callback;
+        }
+    }
+    
+    /**
+     * @param config process configuration
+     * @param replyPublisher publishes replies as soon as results are available
+     */
+    public ExternalTaskProcessor(ProcessConfiguration config, ReplyPublisher replyPublisher) {
+        this(config, null, replyPublisher, null, null);
+    }
+    
+    /**
+     * @param config process configuration
+     * @param eventLoop event loop to handle process I/O with, null to use dedicated threads per process
+     * @param replyPublisher publishes replies as soon as results are available
+     * @param concurrencyController limits the number of messages processed at the same time, null to process all messages received by consumers
+     * @param admissionController decides if processes may be spawned (not used for pooled processes), null to spawn without checking resources
+     */
+    public ExternalTaskProcessor(ProcessConfiguration config, ProcessIOEventLoop eventLoop, ReplyPublisher replyPublisher, ConcurrencyController concurrencyController, AdmissionController admissionController) {
         name = config.name;
+        metrics = MetricsRegistry.getInstance().getProcessMetrics(name);
+        this.eventLoop = eventLoop;
+        this.replyPublisher = replyPublisher;
+        this.concurrencyController = concurrencyController;
+        this.admissionController = admissionController;
+        
+        completionExecutor = Executors.newCachedThreadPool((Runnable r) -> {
+            Thread thread = new Thread(r, "ExternalTaskProcessor "+name);
+            thread.setDaemon(true);
+            return thread;
+        });
         
         watchdogTimeout = config.execution.watchdogTimeout;
         watchdogCheckInterval = config.execution.watchdogCheckInterval;
@@ -80,13 +181,260 @@ public class ExternalTaskProcessor implements Processor {
             environment.put(key, value);
         }
         
-        if (!checkSafeExecution()) {
+        String protocol = config.execution.protocol;
+        if (ProcessExecutionConfiguration.PROTOCOL_BINARY.equals(protocol)) {
+            binary = true;
+        } else if ((protocol != null) && !ProcessExecutionConfiguration.PROTOCOL_JSON.equals(protocol)) {
+            logger.log(Level.SEVERE, "Process {0}: Unknown protocol \"{1}\"!", new Object[]{name, protocol});
+            isConfigured = false;
+        }
+        
+        // large messages are handed over by files if requested; processes
+        // find the directory for result files in their environment
+        String spoolDirectory = config.execution.spool.directory;
+        if (spoolDirectory != null) {
+            try {
+                spool = new SpoolDirectory(new File(spoolDirectory), config.execution.spool.threshold, name);
+                environment.put(ENV_SPOOL_DIR, spool.getDirectory().getPath());
+            } catch (IOException ex) {
+                logger.log(Level.SEVERE, "Process "+name+": Spool directory cannot be used!", ex);
+                isConfigured = false;
+            }
+        }
+        
+        // results of identical requests are cached if requested
+        ProcessCacheConfiguration cacheConfig = config.cache;
+        if ((cacheConfig != null) && cacheConfig.enabled) {
+            File cacheDirectory = (cacheConfig.diskDirectory != null) ? new File(cacheConfig.diskDirectory) : null;
+            try {
+                cache = new ResultCache(cacheConfig.ttl, cacheConfig.maxEntries, cacheConfig.maxSize, cacheConfig.keyHeaders, cacheDirectory, cacheConfig.diskMaxSize, name);
+            } catch (IOException ex) {
+                logger.log(Level.SEVERE, "Process "+name+": Cache directory cannot be used!", ex);
+                isConfigured = false;
+            }
+        }
+        
+        // messages are dropped once their caller stopped waiting if requested
+        ProcessDeadlineConfiguration deadlineConfig = config.execution.deadline;
+        if ((deadlineConfig != null) && deadlineConfig.enabled) {
+            deadline = new MessageDeadline(deadlineConfig.header, deadlineConfig.useExpiration, deadlineConfig.minRemainingTime, name);
+            passDeadline = deadlineConfig.passToProcess;
+            
+            if (passDeadline && binary) {
+                logger.log(Level.WARNING, "Process {0}: Deadlines cannot be passed to processes using the binary protocol", name);
+            }
+        }
+        
+        // message size needs to be known to decide about spooling
+        rawInput = binary || (spool != null);
+        
+        // messages of concurrent consumers are collected into batches if
+        // requested; each consumer only holds a single message at a time
+        int maxBatchSize = config.execution.batch.maxSize;
+        if (maxBatchSize > config.concurrentConsumers) {
+            logger.log(Level.WARNING, "Process {0}: Batches cannot be larger than number of concurrent consumers, limiting batch size to {1}", new Object[]{name, config.concurrentConsumers});
+            maxBatchSize = config.concurrentConsumers;
+        }
+        
+        boolean batched = (maxBatchSize > 1);
+        if (batched) {
+            batcher = new MessageBatcher(maxBatchSize, config.execution.batch.maxLinger, this::runBatch, name);
+        }
+        
+        // long-lived processes are held in a pool if requested
+        String mode = config.execution.mode;
+        boolean multiplexed = config.execution.multiplexed;
+        if (ProcessExecutionConfiguration.MODE_POOLED.equals(mode)) {
+            ProcessPoolConfiguration poolConfig = config.execution.pool;
+            
+            // by default, spawn just enough processes to serve all consumers
+            // (a whole batch only needs a single request slot)
+            int maxConcurrentRequests = multiplexed ? Math.max(1, poolConfig.maxConcurrentRequests) : 1;
+            int requestsPerSlot = batched ? maxBatchSize : 1;
+            int maxSize = (poolConfig.maxSize > 0) ? poolConfig.maxSize : (config.concurrentConsumers + maxConcurrentRequests * requestsPerSlot - 1) / (maxConcurrentRequests * requestsPerSlot);
+            
+            // batch items are addressed by request IDs like multiplexed requests
+            pool = new ProcessPool(pb, poolConfig.minSize, maxSize, poolConfig.idleTimeout, poolConfig.maxRequests, poolConfig.maxLifetime, maxConcurrentRequests, watchdogTimeout, watchdogCheckInterval, logStdErr, multiplexed || batched, binary, spool, eventLoop, this::isSafeToExecute, name);
+        } else if ((mode != null) && !ProcessExecutionConfiguration.MODE_SPAWN.equals(mode)) {
+            logger.log(Level.SEVERE, "Process {0}: Unknown execution mode \"{1}\"!", new Object[]{name, mode});
+            isConfigured = false;
+        } else if (multiplexed) {
+            logger.log(Level.SEVERE, "Process {0}: Multiplexed protocol requires pooled execution mode!", name);
+            isConfigured = false;
+        }
+        
+        // processes are forked by a zygote instead of being spawned if
+        // requested, pooled processes are long-lived anyway
+        ProcessZygoteConfiguration zygoteConfig = config.execution.zygote;
+        if ((zygoteConfig != null) && zygoteConfig.enabled) {
+            if (pool != null) {
+                logger.log(Level.WARNING, "Process {0}: Zygote is only used in spawn mode, ignoring", name);
+            } else {
+                zygote = new ZygoteLauncher(pb, zygoteConfig.forkTimeout, logStdErr, eventLoop, this::isSafeToExecute, name);
+            }
+        }
+        
+        // pre-condition checks are only repeated after changes if requested
+        ProcessSafetyCheckConfiguration safetyCheckConfig = config.execution.safetyCheck;
+        if ((safetyCheckConfig != null) && (safetyCheckConfig.revalidateInterval > 0) && isConfigured) {
+            File workdir = pb.directory();
+            safetyCheck = new SafeExecutionCheckCache(this::checkSafeExecution, workdir, new File(workdir, executable), safetyCheckConfig.revalidateInterval, safetyCheckConfig.watch, safetyCheckConfig.pinExecutable, name);
+        }
+        
+        if (!isSafeToExecute()) {
             logger.warning("Process "+name+": One or more pre-conditions have been violated, no execution will happen until you fix these issues!");
         } else {
             logger.info("Process "+name+": Pre-conditions verified.");
         }
     }
     
+    @Override
+    public void start() throws Exception {
+        if (safetyCheck != null) {
+            safetyCheck.start();
+        }
+        
+        if (concurrencyController != null) {
+            concurrencyController.start();
+        }
+        
+        if (pool != null) {
+            pool.start();
+        }
+        
+        if (zygote != null) {
+            zygote.start();
+        }
+    }
+    
+    @Override
+    public void stop() throws Exception {
+        // release consumers holding messages received while draining
+        finishDrain();
+        
+        // release consumers waiting for their turn
+        if (concurrencyController != null) {
+            concurrencyController.stop();
+        }
+        
+        if (batcher != null) {
+            batcher.shutdown();
+        }
+        
+        if (pool != null) {
+            pool.shutdown();
+        }
+        
+        if (zygote != null) {
+            zygote.shutdown();
+        }
+        
+        if (safetyCheck != null) {
+            safetyCheck.stop();
+        }
+    }
+    
+    /**
+     * Stops processing new messages, e.g. before the route is replaced.
+     * Messages received from now on are held (so they are not redelivered to
+     * this route right away) until finishDrain() is called and then requeued.
+     * Messages already being processed continue, see getActiveJobs().
+     */
+    public void beginDrain() {
+        draining = true;
+    }
+    
+    /**
+     * @return number of messages being processed
+     */
+    public int getActiveJobs() {
+        return activeJobs.get();
+    }
+    
+    /**
+     * Requeues all messages which are still being processed, e.g. because
+     * they did not complete within the time allowed for draining. Their
+     * processes keep running but results are neither replied nor cached, as
+     * the messages will be redelivered. Messages which have already been
+     * replied to (but whose process has not terminated yet) are completed
+     * instead, so they are not run again.
+     * @return number of requeued messages
+     */
+    public int abortActive() {
+        int aborted = 0;
+        for (Map.Entry<Exchange, ActiveExchange> entry : activeExchanges.entrySet()) {
+            Exchange exchange = entry.getKey();
+            ActiveExchange active = entry.getValue();
+            if (!activeExchanges.remove(exchange, active)) {
+                continue;
+            }
+            
+            if (active.replied) {
+                logger.log(Level.FINE, "Process {0}: Completing message which has already been replied to without waiting for its process", name);
+                jobFinished();
+                active.callback.done(false);
+                continue;
+            }
+            
+            abandonCache(exchange);
+            markRequeued(exchange);
+            jobFinished();
+            active.callback.done(false);
+            aborted++;
+        }
+        
+        return aborted;
+    }
+    
+    /**
+     * Requeues all messages held while draining as well as all messages
+     * received from now on. Should be called once the consumers of the route
+     * have been stopped, as requeued messages would be redelivered to them
+     * otherwise, but before the route is stopped.
+     */
+    public void finishDrain() {
+        synchronized (drainLock) {
+            drained = true;
+            drainLock.notifyAll();
+        }
+    }
+    
+    private void awaitDrained() {
+        synchronized (drainLock) {
+            while (!drained) {
+                try {
+                    drainLock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+    
+    private void jobStarted() {
+        activeJobs.incrementAndGet();
+        metrics.jobStarted();
+    }
+    
+    private void jobFinished() {
+        metrics.jobFinished();
+        activeJobs.decrementAndGet();
+    }
+    
+    /**
+     * Checks pre-conditions for execution, reusing the result of an earlier
+     * check as long as no changes have been noticed if configured.
+     * @return safe to execute?
+     */
+    boolean isSafeToExecute() {
+        if (safetyCheck != null) {
+            return safetyCheck.isSafe();
+        }
+        
+        return checkSafeExecution();
+    }
+    
     /**
      * Checks if execution of given command is considered "safe" by multiple
      * criteria.
@@ -95,7 +443,7 @@ public class ExternalTaskProcessor implements Processor {
      * (accidental) faults which can be made.
      * @return safe to execute?
      */
-    private boolean checkSafeExecution() {
+    boolean checkSafeExecution() {
         boolean isSafe = true;
         
         if (!isConfigured) {
@@ -113,7 +461,7 @@ public class ExternalTaskProcessor implements Processor {
                     logger.log(Level.WARNING, "Process {0}: What was selected as a working directory is no directory or does not exist: {1}", new Object[]{name, workdir.getCanonicalPath()});
                     isSafe = false;
                 }
-
+                
                 if (!(workdir.canRead() && workdir.canWrite() && workdir.canExecute())) {
                     logger.log(Level.WARNING, "Process {0}: Working directory has to be readable, writeable and executable: {1}", new Object[]{name, workdir.getCanonicalPath()});
                     isSafe = false;
@@ -137,7 +485,7 @@ public class ExternalTaskProcessor implements Processor {
                 logger.log(Level.WARNING, "Process "+name+": Executable does not exist or is no file: "+executableFile.getCanonicalPath());
                 isSafe = false;
             }
-
+            
             if (!executableFile.canExecute()) {
                 logger.log(Level.WARNING, "Process "+name+": Executable is not set executable: "+executableFile.getCanonicalPath());
                 isSafe = false;
@@ -168,83 +516,787 @@ public class ExternalTaskProcessor implements Processor {
             isSafe = false;
         } 
         
+        if (!isSafe) {
+            metrics.countPreconditionFailure();
+        }
+        
         return isSafe;
     }
     
     @Override
     public void process(Exchange exchange) throws Exception {
-        boolean success = true;
+        AsyncProcessorHelper.process(this, exchange);
+    }
+    
+    /**
+     * Runs the process for given exchange without blocking. The reply is
+     * published as soon as the result is available. The callback will be notified once the result is
+     * available and (unless pooled) the process has terminated, so the
+     * incoming message stays unacknowledged and occupies its consumer until
+     * then.
+     * @param exchange exchange to process
+     * @param callback notified when processing has completed
+     * @return true if completed synchronously, false if callback will be notified asynchronously
+     */
+    @Override
+    public boolean process(final Exchange exchange, final AsyncCallback originalCallback) {
+        activeExchanges.put(exchange, new ActiveExchange(originalCallback));
+        jobStarted();
+        
+        // messages received while draining are held until draining has
+        // finished, as requeueing them right away would only have them
+        // redelivered to this route again
+        if (draining) {
+            // held messages are not active, unless aborted meanwhile
+            if (activeExchanges.remove(exchange) == null) {
+                return true;
+            }
+            jobFinished();
+            
+            awaitDrained();
+            
+            activeExchanges.put(exchange, new ActiveExchange(originalCallback));
+            jobStarted();
+            requeue(exchange, originalCallback, true);
+            return true;
+        }
         
         // check pre-conditions again in case executable or workdir has changed
         // since program start
-        if (!checkSafeExecution()) {
+        if (!isSafeToExecute()) {
             logger.log(Level.WARNING, "Process "+name+": pre-conditions failed, executable will not be run");
-            success = false;
+            complete(exchange, null, false, originalCallback, true);
+            return true;
         }
         
-        // start process
-        ProcessCommunicator.Result result = null;
-        if (success) {
-            logger.log(Level.INFO, "Process "+name+": Starting...");
-            
-            try {
-                // start process
-                Process p = pb.start();
-                
-                // monitor process by watchdog
-                ProcessWatchdog wd = new ProcessWatchdog(p, watchdogTimeout, watchdogCheckInterval, name);
-                wd.start();
-                
-                // setup communiction with process
-                ProcessCommunicator comm = new ProcessCommunicator(p, wd, name);
-                comm.start();
-                
-                // start stderr logging if requested
-                if (logStdErr) {
-                    ProcessStdErrLogForwarder stdErrLogger = new ProcessStdErrLogForwarder(p, name);
-                    stdErrLogger.start();
+        // drop messages whose caller has already stopped waiting before
+        // spending any resources on them
+        if (deadline != null) {
+            exchange.setProperty(PROPERTY_DEADLINE, deadline.getDeadline(exchange.getIn(), System.currentTimeMillis()));
+            if (hasExpired(exchange)) {
+                dropExpired(exchange, originalCallback, true);
+                return true;
+            }
+        }
+        
+        // identical requests are answered from cache or wait for a running
+        // execution to finish
+        if (cache != null) {
+            CompletableFuture<ProcessCommunicator.Result> cachedResult = lookupCache(exchange);
+            if (cachedResult != null) {
+                // execution we waited for may have been abandoned, e.g. as
+                // its message has been requeued; requeue as well, so we get
+                // executed on redelivery
+                if (cachedResult.isDone()) {
+                    if (cachedResult.isCompletedExceptionally()) {
+                        requeue(exchange, originalCallback, true);
+                    } else {
+                        complete(exchange, cachedResult.join(), false, originalCallback, true);
+                    }
+                    return true;
                 }
                 
-                // forward input message to process
-                if (!comm.sendPlainMessage(exchange.getIn().getBody(String.class))) {
-                    // if forwarding failed, kill process and return immediately with an error message
-                    logger.log(Level.WARNING, "Process "+name+": Failed to forward input from message to process, terminating process!");
-                    p.destroyForcibly();
-                    success = false;
+                cachedResult.whenCompleteAsync((result, ex) -> {
+                    if (ex != null) {
+                        requeue(exchange, originalCallback, false);
+                    } else {
+                        complete(exchange, result, false, originalCallback, false);
+                    }
+                }, completionExecutor);
+                return false;
+            }
+        }
+        
+        // wait until concurrency limit allows processing
+        final AsyncCallback callback;
+        if (concurrencyController != null) {
+            try {
+                callback = acquireConcurrencyPermit(originalCallback);
+            } catch (InterruptedException ex) {
+                logger.log(Level.WARNING, "Process "+name+": Interrupted while waiting for concurrency limit", ex);
+                complete(exchange, null, false, originalCallback, true);
+                return true;
+            }
+        } else {
+            callback = originalCallback;
+        }
+        
+        // draining may have begun while waiting for concurrency limit
+        if (draining) {
+            requeue(exchange, callback, true);
+            return true;
+        }
+        
+        // deadline may have passed while waiting for concurrency limit
+        if (hasExpired(exchange)) {
+            dropExpired(exchange, callback, true);
+            return true;
+        }
+        
+        // batches are run once complete
+        if (batcher != null) {
+            batcher.add(exchange, callback);
+            return false;
+        }
+        
+        // run process
+        long startTimeNanos = System.nanoTime();
+        try {
+            if (pool != null) {
+                runPooled(exchange, startTimeNanos, callback);
+            } else {
+                runSpawned(exchange, startTimeNanos, callback);
+            }
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "Process "+name+": Execution failed with exception:", ex);
+            complete(exchange, null, false, callback, true);
+            return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Looks up the result for given exchange in cache. If the request has to
+     * be executed, its cache key is remembered on the exchange so the result
+     * can be reported to the cache when replying.
+     * @param exchange exchange to look up
+     * @return future resolving to the result, null if request has to be executed
+     */
+    private CompletableFuture<ProcessCommunicator.Result> lookupCache(Exchange exchange) {
+        Message in = exchange.getIn();
+        String key = cache.createKey(in.getBody(byte[].class), in.getHeaders());
+        
+        CompletableFuture<ProcessCommunicator.Result> cachedResult = cache.lookup(key);
+        if (cachedResult == null) {
+            exchange.setProperty(PROPERTY_CACHE_KEY, key);
+        }
+        
+        return cachedResult;
+    }
+    
+    /**
+     * Returns the deadline determined for given exchange.
+     * @param exchange exchange to check
+     * @return deadline (epoch milliseconds), 0 if none
+     */
+    private long getDeadline(Exchange exchange) {
+        Long messageDeadline = exchange.getProperty(PROPERTY_DEADLINE, Long.class);
+        return (messageDeadline != null) ? messageDeadline : 0;
+    }
+    
+    /**
+     * Checks if the deadline of given exchange has passed.
+     * @param exchange exchange to check
+     * @return expired?
+     */
+    private boolean hasExpired(Exchange exchange) {
+        return (deadline != null) && deadline.hasExpired(getDeadline(exchange), System.currentTimeMillis());
+    }
+    
+    /**
+     * Completes an expired exchange without running the process or replying,
+     * so the message gets acknowledged and dropped. Requests waiting for the
+     * same result in cache are requeued.
+     * @param exchange exchange to drop
+     * @param callback callback to notify
+     * @param doneSync completed synchronously?
+     */
+    private void dropExpired(Exchange exchange, AsyncCallback callback, boolean doneSync) {
+        logger.log(Level.INFO, "Process {0}: Dropping message as its deadline has passed", name);
+        metrics.countExpired();
+        
+        abandonCache(exchange);
+        complete(exchange, null, true, callback, doneSync);
+    }
+    
+    /**
+     * Completes an exchange without running the process or replying, marking
+     * it as fault to be rejected and requeued by the consumer. Requests
+     * waiting for the same result in cache are requeued as well.
+     * @param exchange exchange to requeue
+     * @param callback callback to notify
+     * @param doneSync completed synchronously?
+     */
+    private void requeue(Exchange exchange, AsyncCallback callback, boolean doneSync) {
+        // exchange may already have been aborted
+        if (activeExchanges.remove(exchange) == null) {
+            return;
+        }
+        
+        abandonCache(exchange);
+        markRequeued(exchange);
+        
+        jobFinished();
+        callback.done(doneSync);
+    }
+    
+    private void markRequeued(Exchange exchange) {
+        // a fault fails the exchange without raising an exception, which
+        // would be logged as error by Camel
+        Message msg = exchange.getOut();
+        msg.setFault(true);
+        msg.setHeader(HEADER_REQUEUE, true);
+    }
+    
+    /**
+     * Blocks until the concurrency controller permits processing another
+     * message.
+     * @param callback callback to wrap
+     * @return callback releasing the permit before notifying the given callback
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private AsyncCallback acquireConcurrencyPermit(final AsyncCallback callback) throws InterruptedException {
+        concurrencyController.acquire();
+        
+        final long startTimeNanos = System.nanoTime();
+        return (boolean doneSync) -> {
+            concurrencyController.release(System.nanoTime() - startTimeNanos);
+            callback.done(doneSync);
+        };
+    }
+    
+    /**
+     * Publishes the reply for given result. If the reply cannot be published
+     * (or is not confirmed), the exchange will fail. If the request has been executed for the cache, the
+     * result is reported to it.
+     * @param exchange exchange to reply to
+     * @param result process result, null if execution failed
+     * @return future completed once the reply has been published (and confirmed if enabled), never completes exceptionally
+     */
+    private CompletableFuture<Void> reply(Exchange exchange, ProcessCommunicator.Result result) {
+        boolean success = (result != null) && !result.hasFailed();
+        
+        // aborted messages will be redelivered; once replied to, messages
+        // must not be requeued any more
+        ActiveExchange active = activeExchanges.computeIfPresent(exchange, (key, value) -> {
+            value.replied = true;
+            return value;
+        });
+        if (active == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        
+        reportToCache(exchange, success ? result : null);
+        
+        // final reply must not overtake partial results
+        CompletableFuture<?> partials = exchange.getProperty(PROPERTY_PARTIALS, CompletableFuture.class);
+        if (partials == null) {
+            partials = CompletableFuture.completedFuture(null);
+        }
+        
+        return partials.thenCompose((v) -> {
+            final long startTimeNanos = System.nanoTime();
+            return replyPublisher.publishResult(exchange.getIn(), success ? result : null, binary).thenApply((ex) -> {
+                metrics.recordReplyPublish(System.nanoTime() - startTimeNanos);
+                return ex;
+            });
+        }).thenAccept((ex) -> {
+            if (ex != null) {
+                exchange.setException(ex);
+            }
+        });
+    }
+    
+    /**
+     * Reports the result of an executed request to cache and waiting
+     * requests. Does nothing if the request has not been executed for the
+     * cache.
+     * @param exchange exchange holding the request
+     * @param result successful result, null if execution failed
+     */
+    private void reportToCache(Exchange exchange, ProcessCommunicator.Result result) {
+        String cacheKey = (cache != null) ? exchange.getProperty(PROPERTY_CACHE_KEY, String.class) : null;
+        if (cacheKey != null) {
+            exchange.removeProperty(PROPERTY_CACHE_KEY);
+            cache.complete(cacheKey, result);
+        }
+    }
+    
+    /**
+     * Abandons the execution of given request for the cache without a
+     * result, so requests waiting for it are not failed but requeued. Does
+     * nothing if the request has not been executed for the cache.
+     * @param exchange exchange holding the request
+     */
+    private void abandonCache(Exchange exchange) {
+        String cacheKey = (cache != null) ? exchange.getProperty(PROPERTY_CACHE_KEY, String.class) : null;
+        if (cacheKey != null) {
+            exchange.removeProperty(PROPERTY_CACHE_KEY);
+            cache.abandon(cacheKey);
+        }
+    }
+    
+    /**
+     * Publishes the reply unless already done, then sets the output message
+     * on given exchange and notifies the callback.
+     * @param exchange exchange to complete
+     * @param result process result, null if execution failed
+     * @param replied has the reply already been published?
+     * @param callback callback to notify
+     * @param doneSync completed synchronously?
+     */
+    private void complete(final Exchange exchange, final ProcessCommunicator.Result result, boolean replied, final AsyncCallback callback, boolean doneSync) {
+        CompletableFuture<Void> futureReplied = replied ? CompletableFuture.completedFuture(null) : reply(exchange, result);
+        
+        // incoming message is only acknowledged after the reply has been
+        // confirmed; callback must be notified before returning if completed
+        // synchronously
+        if (doneSync) {
+            futureReplied.join();
+            finish(exchange, result, callback, true);
+        } else {
+            futureReplied.thenRun(() -> finish(exchange, result, callback, false));
+        }
+    }
+    
+    /**
+     * Sets the output message on given exchange after the reply has been
+     * published and notifies the callback.
+     * @param exchange exchange to complete
+     * @param result process result, null if execution failed
+     * @param callback callback to notify
+     * @param doneSync completed synchronously?
+     */
+    private void finish(Exchange exchange, ProcessCommunicator.Result result, AsyncCallback callback, boolean doneSync) {
+        // exchange may already have been aborted
+        if (activeExchanges.remove(exchange) == null) {
+            return;
+        }
+        
+        // result replaces the request body instead of copying the message,
+        // replies have already been published with their own headers
+        Message msg = exchange.getIn();
+        boolean success = (result != null) && !result.hasFailed();
+        if (success) {
+            msg.setBody(binary ? result.getData() : result.getOutput());
+        } else {
+            msg.setBody(null);
+        }
+        
+        jobFinished();
+        callback.done(doneSync);
+    }
+    
+    /**
+     * Creates a handler publishing partial results as replies to the request
+     * of given exchange. Partial results are published one after another on
+     * the completion executor, so they keep their order without blocking the
+     * thread reading from the process; the final reply is only published
+     * after all of them (see reply()).
+     * @param exchange exchange holding the request
+     * @return handler for partial results
+     */
+    private Consumer<ProcessCommunicator.Result> createPartialResultHandler(final Exchange exchange) {
+        final Message request = exchange.getIn();
+        final AtomicLong sequence = new AtomicLong();
+        
+        // completed once all partial results so far have been published
+        exchange.setProperty(PROPERTY_PARTIALS, CompletableFuture.completedFuture(null));
+        
+        return (partialResult) -> {
+            // aborted messages will be redelivered
+            if (!activeExchanges.containsKey(exchange)) {
+                return;
+            }
+            
+            // handler is only called by the reader of a single process
+            final long partialSequence = sequence.getAndIncrement();
+            CompletableFuture<?> previous = exchange.getProperty(PROPERTY_PARTIALS, CompletableFuture.class);
+            exchange.setProperty(PROPERTY_PARTIALS, previous.thenRunAsync(() -> publishPartial(exchange, request, partialSequence, partialResult), completionExecutor));
+        };
+    }
+    
+    private void publishPartial(Exchange exchange, Message request, long sequence, ProcessCommunicator.Result partialResult) {
+        // aborted messages will be redelivered
+        if (!activeExchanges.containsKey(exchange)) {
+            return;
+        }
+        
+        long startTimeNanos = System.nanoTime();
+        try {
+            replyPublisher.publishPartial(request, sequence, partialResult, binary);
+        } catch (RuntimeException ex) {
+            logger.log(Level.WARNING, "Process "+name+": Failed to publish partial result "+sequence+":", ex);
+        }
+        metrics.recordReplyPublish(System.nanoTime() - startTimeNanos);
+    }
+    
+    /**
+     * Spawns a new process just for the given input. The reply is published
+     * as soon as the result has been received but the exchange will only be
+     * completed after the process has terminated.
+     * @param exchange exchange to complete, holding message to forward to process
+     * @param startTimeNanos time processing started at, based on System.nanoTime()
+     * @param callback notified when exchange has been completed
+     * @throws Exception if process could not be started
+     */
+    private void runSpawned(final Exchange exchange, final long startTimeNanos, final AsyncCallback callback) throws Exception {
+        logger.log(Level.INFO, "Process "+name+": Starting...");
+        
+        // start process unless resources are exhausted; deadline may have
+        // passed while waiting for admission
+        final Process p = startProcess(Collections.singletonList(exchange));
+        if (p == null) {
+            if (hasExpired(exchange)) {
+                dropExpired(exchange, callback, false);
+            } else {
+                requeue(exchange, callback, false);
+            }
+            return;
+        }
+        
+        // monitor process by watchdog; there is no point in running any
+        // longer than the caller waits for the result
+        long messageDeadline = getDeadline(exchange);
+        ProcessWatchdog wd = new ProcessWatchdog(p, watchdogTimeout, watchdogCheckInterval, name);
+        if (messageDeadline > 0) {
+            wd.setDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(messageDeadline - System.currentTimeMillis()));
+        }
+        wd.start();
+        
+        // setup communiction with process
+        ProcessCommunicator comm = new ProcessCommunicator(p, wd, name, false, binary, spool, eventLoop);
+        comm.setPartialResultHandler(createPartialResultHandler(exchange));
+        comm.start();
+        
+        // start stderr logging if requested
+        if (logStdErr) {
+            ProcessStdErrLogForwarder stdErrLogger = new ProcessStdErrLogForwarder(p, name, eventLoop);
+            stdErrLogger.start();
+        }
+        
+        // forward input message to process
+        final CompletableFuture<ProcessCommunicator.Result> futureResult;
+        long passedDeadline = passDeadline ? messageDeadline : 0;
+        boolean sent = rawInput ? comm.sendPlainMessage(exchange.getIn().getBody(byte[].class), passedDeadline) : comm.sendPlainMessage(exchange.getIn().getBody(String.class), passedDeadline);
+        if (!sent) {
+            // if forwarding failed, kill process and return with an error message
+            logger.log(Level.WARNING, "Process "+name+": Failed to forward input from message to process, terminating process!");
+            p.destroyForcibly();
+            futureResult = CompletableFuture.completedFuture(null);
+        } else {
+            futureResult = comm.getFutureResult();
+        }
+        
+        // reply as soon as the result is available, so callers do not have
+        // to wait for processes to clean up
+        final long[] replyTimeNanos = new long[1];
+        final CompletableFuture<ProcessCommunicator.Result> futureReplied = futureResult.handleAsync((result, ex) -> {
+            if (ex != null) {
+                logger.log(Level.WARNING, "Process "+name+": Execution failed with exception:", ex);
+                result = null;
+            }
+            
+            recordResult(result, startTimeNanos);
+            
+            return result;
+        }, completionExecutor).thenCompose((result) -> reply(exchange, result).thenApply((v) -> {
+            replyTimeNanos[0] = System.nanoTime();
+            return result;
+        }));
+        
+        // complete exchange only after process has terminated to avoid
+        // accepting the next task too early
+        final CompletableFuture<Void> futureExit = new CompletableFuture<>();
+        wd.addShutdownCallback(() -> {
+            futureExit.complete(null);
+            return null;
+        });
+        
+        futureReplied.thenCombine(futureExit, (result, exit) -> result).whenCompleteAsync((result, ex) -> {
+            long endTimeNanos = System.nanoTime();
+            logger.log(Level.INFO, "Process {0}: Shut down (replied after {1,number,#}ms, held consumer for {2,number,#}ms)", new Object[]{name, TimeUnit.NANOSECONDS.toMillis(replyTimeNanos[0] - startTimeNanos), TimeUnit.NANOSECONDS.toMillis(endTimeNanos - startTimeNanos)});
+            
+            complete(exchange, result, true, callback, false);
+        }, completionExecutor);
+    }
+    
+    /**
+     * Forwards the given input to a long-lived process from the pool. Exchange
+     * will be completed as soon as the result has been received.
+     * @param exchange exchange to complete, holding message to forward to process
+     * @param startTimeNanos time processing started at, based on System.nanoTime()
+     * @param callback notified when exchange has been completed
+     * @throws Exception if no process could be acquired from pool
+     */
+    private void runPooled(final Exchange exchange, final long startTimeNanos, final AsyncCallback callback) throws Exception {
+        // read input before acquiring a process, so conversion failures do
+        // not hold on to it
+        byte[] data = rawInput ? exchange.getIn().getBody(byte[].class) : null;
+        String input = rawInput ? null : exchange.getIn().getBody(String.class);
+        long passedDeadline = passDeadline ? getDeadline(exchange) : 0;
+        
+        final PooledProcess process = pool.acquire();
+        
+        logger.log(Level.FINE, "Process "+name+": Forwarding message to pooled process...");
+        
+        Consumer<ProcessCommunicator.Result> partialResultHandler = createPartialResultHandler(exchange);
+        CompletableFuture<ProcessCommunicator.Result> futureResult = rawInput ? process.sendRequest(data, partialResultHandler, passedDeadline) : process.sendRequest(input, partialResultHandler, passedDeadline);
+        
+        futureResult.whenCompleteAsync((result, ex) -> {
+            if (ex != null) {
+                logger.log(Level.WARNING, "Process "+name+": Execution failed with exception:", ex);
+            }
+            
+            logger.log(Level.FINE, "Process {0}: Future returned after {1,number,#}ms", new Object[]{name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTimeNanos)});
+            recordResult(result, startTimeNanos);
+            
+            boolean healthy = (result != null) && !result.hasFailed();
+            pool.release(process, healthy);
+            
+            complete(exchange, result, false, callback, false);
+        }, completionExecutor);
+    }
+    
+    /**
+     * Runs a single process for a whole batch of exchanges. Each exchange is
+     * replied to and completed individually as soon as its result is
+     * available (unless pooled, after the process has terminated). Expired
+     * exchanges are dropped before.
+     * @param lingeredBatch exchanges to process
+     */
+    private void runBatch(List<MessageBatcher.Item> lingeredBatch) {
+        long startTimeNanos = System.nanoTime();
+        
+        // deadlines may have passed while lingering for the batch to fill up
+        List<MessageBatcher.Item> batch = new ArrayList<>(lingeredBatch.size());
+        for (MessageBatcher.Item item : lingeredBatch) {
+            if (hasExpired(item.getExchange())) {
+                dropExpired(item.getExchange(), item.getCallback(), false);
+            } else {
+                batch.add(item);
+            }
+        }
+        
+        if (batch.isEmpty()) {
+            return;
+        }
+        
+        try {
+            List<byte[]> items = new ArrayList<>(batch.size());
+            List<Consumer<ProcessCommunicator.Result>> partialResultHandlers = new ArrayList<>(batch.size());
+            for (MessageBatcher.Item item : batch) {
+                items.add(item.getExchange().getIn().getBody(byte[].class));
+                partialResultHandlers.add(createPartialResultHandler(item.getExchange()));
+            }
+            
+            if (pool != null) {
+                runPooledBatch(batch, items, partialResultHandlers, startTimeNanos);
+            } else {
+                runSpawnedBatch(batch, items, partialResultHandlers, startTimeNanos);
+            }
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "Process "+name+": Batch execution failed with exception:", ex);
+            
+            for (MessageBatcher.Item item : batch) {
+                complete(item.getExchange(), null, false, item.getCallback(), false);
+            }
+        }
+    }
+    
+    /**
+     * Spawns a new process just for the given batch, see runSpawned.
+     * @param batch exchanges to complete
+     * @param items messages to forward to process, in order of batch
+     * @param partialResultHandlers partial result handlers, in order of batch
+     * @param startTimeNanos time processing started at, based on System.nanoTime()
+     * @throws Exception if process could not be started
+     */
+    private void runSpawnedBatch(final List<MessageBatcher.Item> batch, List<byte[]> items, List<Consumer<ProcessCommunicator.Result>> partialResultHandlers, final long startTimeNanos) throws Exception {
+        logger.log(Level.INFO, "Process {0}: Starting for batch of {1} messages...", new Object[]{name, batch.size()});
+        
+        // start process unless resources are exhausted; deadlines may have
+        // passed while waiting for admission
+        List<Exchange> exchanges = new ArrayList<>(batch.size());
+        for (MessageBatcher.Item item : batch) {
+            exchanges.add(item.getExchange());
+        }
+        
+        final Process p = startProcess(exchanges);
+        if (p == null) {
+            for (MessageBatcher.Item item : batch) {
+                if (hasExpired(item.getExchange())) {
+                    dropExpired(item.getExchange(), item.getCallback(), false);
+                } else {
+                    requeue(item.getExchange(), item.getCallback(), false);
                 }
-                
-                if (success) {
-                    Future<ProcessCommunicator.Result> futureResult = comm.getFutureResult();
-                    result = futureResult.get(); // QUESTION: don't block?
-                    logger.log(Level.FINE, "Process "+name+": Future returned");
+            }
+            return;
+        }
+        
+        // monitor process by watchdog; there is no point in running any
+        // longer than the last caller waits for its result, unless any of
+        // them waits indefinitely
+        long batchDeadline = 0;
+        for (Exchange exchange : exchanges) {
+            long messageDeadline = getDeadline(exchange);
+            if (messageDeadline <= 0) {
+                batchDeadline = 0;
+                break;
+            }
+            batchDeadline = Math.max(batchDeadline, messageDeadline);
+        }
+        
+        ProcessWatchdog wd = new ProcessWatchdog(p, watchdogTimeout, watchdogCheckInterval, name);
+        if (batchDeadline > 0) {
+            wd.setDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchDeadline - System.currentTimeMillis()));
+        }
+        wd.start();
+        
+        // setup communication with process; batch items carry request IDs
+        ProcessCommunicator comm = new ProcessCommunicator(p, wd, name, true, binary, spool, eventLoop);
+        comm.start();
+        
+        // start stderr logging if requested
+        if (logStdErr) {
+            ProcessStdErrLogForwarder stdErrLogger = new ProcessStdErrLogForwarder(p, name, eventLoop);
+            stdErrLogger.start();
+        }
+        
+        // complete exchanges only after process has terminated to avoid
+        // accepting the next tasks too early
+        final CompletableFuture<Void> futureExit = new CompletableFuture<>();
+        wd.addShutdownCallback(() -> {
+            futureExit.complete(null);
+            return null;
+        });
+        
+        // forward batch to process; if forwarding failed, all Futures have
+        // already been resolved as failed
+        List<CompletableFuture<ProcessCommunicator.Result>> futureResults = comm.sendBatch(items, partialResultHandlers);
+        if (futureResults.stream().allMatch((futureResult) -> futureResult.isDone() && !isSuccessful(futureResult))) {
+            logger.log(Level.WARNING, "Process "+name+": Failed to forward batch to process, terminating process!");
+            p.destroyForcibly();
+        }
+        
+        // reply to each message as soon as its result is available
+        List<CompletableFuture<ProcessCommunicator.Result>> futureCompletions = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            final MessageBatcher.Item item = batch.get(i);
+            
+            final CompletableFuture<ProcessCommunicator.Result> futureReplied = futureResults.get(i).handleAsync((result, ex) -> {
+                if (ex != null) {
+                    logger.log(Level.WARNING, "Process "+name+": Execution failed with exception:", ex);
+                    result = null;
                 }
                 
-                // QUESTION: Is it possible to dispatch the output message to
-                //           next processor/endpoint in Camel for faster delivery
-                //           of result to client while still blocking the input
-                //           until the process terminates to avoid getting
-                //           flooded/accepting expiring new tasks?
+                recordResult(result, startTimeNanos);
                 
-                // wait until process terminates before accepting next task
-                while (p.isAlive()) {
-                    Thread.yield();
+                return result;
+            }, completionExecutor).thenCompose((result) -> reply(item.getExchange(), result).thenApply((v) -> result));
+            
+            futureCompletions.add(futureReplied.thenCombine(futureExit, (result, exit) -> result));
+        }
+        
+        futureExit.thenRun(() -> {
+            long endTimeNanos = System.nanoTime();
+            logger.log(Level.INFO, "Process {0}: Shut down after batch of {1} messages (held consumers for {2,number,#}ms)", new Object[]{name, batch.size(), TimeUnit.NANOSECONDS.toMillis(endTimeNanos - startTimeNanos)});
+        });
+        
+        for (int i = 0; i < batch.size(); i++) {
+            final MessageBatcher.Item item = batch.get(i);
+            futureCompletions.get(i).whenCompleteAsync((result, ex) -> complete(item.getExchange(), result, true, item.getCallback(), false), completionExecutor);
+        }
+    }
+    
+    /**
+     * Forwards the given batch to a long-lived process from the pool. The
+     * batch occupies a single request slot of the process; each exchange is
+     * completed as soon as its result has been received.
+     * @param batch exchanges to complete
+     * @param items messages to forward to process, in order of batch
+     * @param partialResultHandlers partial result handlers, in order of batch
+     * @param startTimeNanos time processing started at, based on System.nanoTime()
+     * @throws Exception if no process could be acquired from pool
+     */
+    private void runPooledBatch(final List<MessageBatcher.Item> batch, List<byte[]> items, List<Consumer<ProcessCommunicator.Result>> partialResultHandlers, final long startTimeNanos) throws Exception {
+        final PooledProcess process = pool.acquire();
+        
+        logger.log(Level.FINE, "Process {0}: Forwarding batch of {1} messages to pooled process...", new Object[]{name, batch.size()});
+        
+        List<CompletableFuture<ProcessCommunicator.Result>> futureResults = process.sendBatch(items, partialResultHandlers);
+        
+        // release process once all results have been received
+        CompletableFuture.allOf(futureResults.toArray(new CompletableFuture<?>[futureResults.size()])).whenCompleteAsync((v, ex) -> {
+            logger.log(Level.FINE, "Process {0}: Batch returned after {1,number,#}ms", new Object[]{name, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTimeNanos)});
+            
+            boolean healthy = futureResults.stream().allMatch(ExternalTaskProcessor::isSuccessful);
+            pool.release(process, healthy);
+        }, completionExecutor);
+        
+        for (int i = 0; i < batch.size(); i++) {
+            final MessageBatcher.Item item = batch.get(i);
+            
+            futureResults.get(i).whenCompleteAsync((result, ex) -> {
+                if (ex != null) {
+                    logger.log(Level.WARNING, "Process "+name+": Execution failed with exception:", ex);
                 }
                 
-                logger.log(Level.INFO, "Process "+name+": Shut down...");
-            } catch (Exception ex) {
-                logger.log(Level.WARNING, "Process "+name+": Execution failed with exception:", ex);
-                success = false;
+                recordResult(result, startTimeNanos);
+                complete(item.getExchange(), result, false, item.getCallback(), false);
+            }, completionExecutor);
+        }
+    }
+    
+    /**
+     * Starts a new process, recording how long it took. If admission control
+     * is enabled, waits until resources allow spawning another process.
+     * @param exchanges exchanges to be processed by the process; the process will not be started if all of them expire while waiting for admission
+     * @return started process, null if not admitted
+     * @throws IOException if process could not be started
+     * @throws InterruptedException if interrupted while waiting for admission
+     */
+    private Process startProcess(List<Exchange> exchanges) throws IOException, InterruptedException {
+        if (admissionController == null) {
+            return startProcess();
+        }
+        
+        if (!admissionController.acquire(metrics, name)) {
+            return null;
+        }
+        
+        try {
+            if (exchanges.stream().allMatch(this::hasExpired)) {
+                return null;
             }
+            
+            return startProcess();
+        } finally {
+            admissionController.release();
         }
+    }
+    
+    private Process startProcess() throws IOException {
+        long startTimeNanos = System.nanoTime();
+        Process p = (zygote != null) ? zygote.fork() : pb.start();
+        metrics.recordSpawn(System.nanoTime() - startTimeNanos);
         
-        // prepare output message
-        Message out = exchange.getIn().copy();
-        success &= (result != null) && !result.hasFailed();
-        if (success) {
-            out.setBody(result.getOutput());
-        } else {
-            out.setBody(null);
+        return p;
+    }
+    
+    /**
+     * Records the time until a result has been received.
+     * @param result process result, null if execution failed (not recorded)
+     * @param startTimeNanos time processing started at, based on System.nanoTime()
+     */
+    private void recordResult(ProcessCommunicator.Result result, long startTimeNanos) {
+        if (result != null) {
+            metrics.recordResult(System.nanoTime() - startTimeNanos);
         }
-        exchange.setOut(out);
+    }
+    
+    /**
+     * Checks if the given Future has been resolved to a successful Result.
+     * @param futureResult Future to check
+     * @return resolved successfully?
+     */
+    private static boolean isSuccessful(CompletableFuture<ProcessCommunicator.Result> futureResult) {
+        if (!futureResult.isDone() || futureResult.isCompletedExceptionally()) {
+            return false;
+        }
+        
+        ProcessCommunicator.Result result = futureResult.join();
+        return (result != null) && !result.hasFailed();
     }
 }
@@ -0,0 +1,167 @@
+package de.glutrot.tools.amqpprocessmanager.camel.processor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.Exchange;
+
+/**
+ * Collects exchanges received by concurrent consumers into batches. A batch
+ * is dispatched as soon as it reaches maxSize or maxLinger has passed since
+ * its first exchange has been added, whichever happens first. Full batches
+ * are dispatched on the thread adding the last exchange. Lingering batches
+ * are flushed by a timer but dispatched on threads of their own, as
+ * dispatching may block (e.g. waiting for admission) and must not delay
+ * flushing further batches.<br />
+ * <br />
+ * Each exchange keeps its own callback, so exchanges are still completed
+ * (and thus acknowledged) individually.
+ */
+public class MessageBatcher {
+    private static final Logger logger = Logger.getLogger(MessageBatcher.class.getName());
+    
+    /**
+     * Exchange waiting to be processed as part of a batch.
+     */
+    public static class Item {
+        private final Exchange exchange;
+        private final AsyncCallback callback;
+        
+        public Item(Exchange exchange, AsyncCallback callback) {
+            this.exchange = exchange;
+            this.callback = callback;
+        }
+        
+        public Exchange getExchange() {
+            return exchange;
+        }
+        
+        public AsyncCallback getCallback() {
+            return callback;
+        }
+    }
+    
+    private final int maxSize;
+    private final long maxLingerMillis;
+    private final Consumer<List<Item>> dispatcher;
+    private final String logPrefix;
+    
+    private final ScheduledExecutorService timer;
+    private final ExecutorService lingerDispatcher;
+    private List<Item> currentBatch = new ArrayList<>();
+    private ScheduledFuture<?> lingerTimeout = null;
+    
+    /**
+     * @param maxSize maximum number of exchanges per batch
+     * @param maxLinger maximum time to wait for further exchanges after the first one (milliseconds)
+     * @param dispatcher processes dispatched batches
+     * @param name process name used to identify batcher on logs
+     */
+    public MessageBatcher(int maxSize, long maxLinger, Consumer<List<Item>> dispatcher, final String name) {
+        this.maxSize = Math.max(1, maxSize);
+        this.maxLingerMillis = Math.max(0, maxLinger);
+        this.dispatcher = dispatcher;
+        this.logPrefix = "Batcher for process "+name+": ";
+        
+        timer = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            Thread thread = new Thread(r, "MessageBatcher "+name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        lingerDispatcher = Executors.newCachedThreadPool((Runnable r) -> {
+            Thread thread = new Thread(r, "MessageBatcher dispatch "+name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Adds an exchange to the current batch, dispatching the batch if full.
+     * @param exchange exchange to add
+     * @param callback notified when the exchange has been completed
+     */
+    public void add(Exchange exchange, AsyncCallback callback) {
+        List<Item> fullBatch = null;
+        
+        synchronized (this) {
+            currentBatch.add(new Item(exchange, callback));
+            
+            if (currentBatch.size() >= maxSize) {
+                fullBatch = takeCurrentBatch();
+            } else if (currentBatch.size() == 1) {
+                final List<Item> lingeringBatch = currentBatch;
+                lingerTimeout = timer.schedule(() -> flush(lingeringBatch), maxLingerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        
+        if (fullBatch != null) {
+            dispatch(fullBatch);
+        }
+    }
+    
+    /**
+     * Dispatches the given batch if it is still being collected.
+     * @param batch batch whose linger time has passed
+     */
+    private void flush(List<Item> batch) {
+        synchronized (this) {
+            if (batch != currentBatch) {
+                return;
+            }
+            
+            takeCurrentBatch();
+        }
+        
+        try {
+            lingerDispatcher.execute(() -> dispatch(batch));
+        } catch (RejectedExecutionException ex) {
+            // shutting down
+            dispatch(batch);
+        }
+    }
+    
+    private List<Item> takeCurrentBatch() {
+        List<Item> batch = currentBatch;
+        currentBatch = new ArrayList<>();
+        
+        if (lingerTimeout != null) {
+            lingerTimeout.cancel(false);
+            lingerTimeout = null;
+        }
+        
+        return batch;
+    }
+    
+    private void dispatch(List<Item> batch) {
+        logger.log(Level.FINE, "{0}Dispatching batch of {1} messages", new Object[]{logPrefix, batch.size()});
+        
+        dispatcher.accept(batch);
+    }
+    
+    /**
+     * Dispatches any pending exchanges and stops the timer.
+     */
+    public void shutdown() {
+        List<Item> batch;
+        synchronized (this) {
+            batch = takeCurrentBatch();
+        }
+        
+        if (!batch.isEmpty()) {
+            dispatch(batch);
+        }
+        
+        timer.shutdown();
+        lingerDispatcher.shutdown();
+    }
+}
@@ -0,0 +1,121 @@
+package de.glutrot.tools.amqpprocessmanager.camel.processor;
+
+import java.util.Date;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.camel.Message;
+
+/**
+ * Determines the time until which the caller of a request waits for its
+ * reply. Two sources are supported; if both are present, the earlier
+ * deadline applies:
+ * <ul>
+ * <li>a custom header holding the absolute deadline in milliseconds since
+ * epoch (as number or string)</li>
+ * <li>the AMQP expiration (milliseconds) counted from the AMQP timestamp of
+ * the message or, if missing, from the time the message has been
+ * received</li>
+ * </ul>
+ * As AMQP timestamps only have a resolution of seconds, the expiration is
+ * counted from the end of that second. Timestamps later than the time of
+ * receipt (clock skew) are ignored.
+ */
+public class MessageDeadline {
+    private static final Logger logger = Logger.getLogger(MessageDeadline.class.getName());
+    
+    private static final String HEADER_EXPIRATION = "rabbitmq.EXPIRATION";
+    private static final String HEADER_TIMESTAMP = "rabbitmq.TIMESTAMP";
+    private static final long TIMESTAMP_RESOLUTION = 1000;
+    
+    private final String header;
+    private final boolean useExpiration;
+    private final long minRemainingTime;
+    private final String logPrefix;
+    
+    /**
+     * @param header name of header holding the absolute deadline (epoch milliseconds), null to ignore
+     * @param useExpiration derive deadline from AMQP expiration?
+     * @param minRemainingTime messages are considered expired if less time remains (milliseconds)
+     * @param name process name used to identify log messages
+     */
+    public MessageDeadline(String header, boolean useExpiration, long minRemainingTime, String name) {
+        this.header = header;
+        this.useExpiration = useExpiration;
+        this.minRemainingTime = Math.max(0, minRemainingTime);
+        this.logPrefix = "Process "+name+": ";
+    }
+    
+    /**
+     * Determines the deadline of given message.
+     * @param msg message to check
+     * @param receivedTime time the message has been received at (epoch milliseconds)
+     * @return deadline (epoch milliseconds), 0 if message has no deadline
+     */
+    public long getDeadline(Message msg, long receivedTime) {
+        long deadline = 0;
+        
+        if (header != null) {
+            deadline = parseDeadline(msg.getHeader(header));
+        }
+        
+        if (useExpiration) {
+            long expirationDeadline = getExpirationDeadline(msg, receivedTime);
+            if ((expirationDeadline > 0) && ((deadline <= 0) || (expirationDeadline < deadline))) {
+                deadline = expirationDeadline;
+            }
+        }
+        
+        return deadline;
+    }
+    
+    /**
+     * Checks if not enough time remains until given deadline.
+     * @param deadline deadline (epoch milliseconds), 0 if none
+     * @param currentTime current time (epoch milliseconds)
+     * @return expired?
+     */
+    public boolean hasExpired(long deadline, long currentTime) {
+        return (deadline > 0) && (deadline - currentTime <= minRemainingTime);
+    }
+    
+    private long parseDeadline(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        
+        try {
+            return Long.parseLong(value.toString().trim());
+        } catch (NumberFormatException ex) {
+            logger.log(Level.WARNING, "{0}Ignoring invalid deadline header: {1}", new Object[]{logPrefix, value});
+            return 0;
+        }
+    }
+    
+    private long getExpirationDeadline(Message msg, long receivedTime) {
+        Object expiration = msg.getHeader(HEADER_EXPIRATION);
+        if (expiration == null) {
+            return 0;
+        }
+        
+        long ttl;
+        try {
+            ttl = Long.parseLong(expiration.toString().trim());
+        } catch (NumberFormatException ex) {
+            logger.log(Level.WARNING, "{0}Ignoring invalid expiration: {1}", new Object[]{logPrefix, expiration});
+            return 0;
+        }
+        
+        long baseTime = receivedTime;
+        Object timestamp = msg.getHeader(HEADER_TIMESTAMP);
+        if (timestamp instanceof Date) {
+            baseTime = Math.min(receivedTime, ((Date) timestamp).getTime() + TIMESTAMP_RESOLUTION - 1);
+        }
+        
+        // deadline 0 means none, so an already expired message needs at least 1
+        return Math.max(1, baseTime + ttl);
+    }
+}
@@ -0,0 +1,118 @@
+package de.glutrot.tools.amqpprocessmanager.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics collected for AMQP connections shared by all processes. Get the
+ * instance from MetricsRegistry.
+ */
+public class ConnectionMetrics implements ConnectionMetricsMXBean {
+    private final LatencyHistogram channelCheckoutLatency = new LatencyHistogram();
+    private final LatencyHistogram replyConfirmLatency = new LatencyHistogram();
+    
+    private final AtomicLong channelCheckoutTimeoutCount = new AtomicLong();
+    private final AtomicLong channelsOpened = new AtomicLong();
+    private final AtomicLong channelsClosed = new AtomicLong();
+    private final AtomicLong replyConfirmFailureCount = new AtomicLong();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger unconfirmedReplies = new AtomicInteger();
+    
+    ConnectionMetrics() {
+    }
+    
+    public void recordChannelCheckout(long nanos) {
+        channelCheckoutLatency.record(nanos);
+    }
+    
+    public void countChannelCheckoutTimeout() {
+        channelCheckoutTimeoutCount.incrementAndGet();
+    }
+    
+    public void countChannelOpened() {
+        channelsOpened.incrementAndGet();
+    }
+    
+    public void countChannelClosed() {
+        channelsClosed.incrementAndGet();
+    }
+    
+    public void connectionOpened() {
+        connections.incrementAndGet();
+    }
+    
+    public void connectionClosed() {
+        connections.decrementAndGet();
+    }
+    
+    /**
+     * Counts a reply as waiting for its confirm until replyConfirmCompleted()
+     * is called.
+     */
+    public void replyUnconfirmed() {
+        unconfirmedReplies.incrementAndGet();
+    }
+    
+    public void replyConfirmCompleted() {
+        unconfirmedReplies.decrementAndGet();
+    }
+    
+    public void recordReplyConfirm(long nanos) {
+        replyConfirmLatency.record(nanos);
+    }
+    
+    /**
+     * Counts a reply which has been rejected or not been confirmed in time.
+     */
+    public void countReplyConfirmFailure() {
+        replyConfirmFailureCount.incrementAndGet();
+    }
+    
+    LatencyHistogram getChannelCheckoutLatencyHistogram() {
+        return channelCheckoutLatency;
+    }
+    
+    @Override
+    public LatencySnapshot getChannelCheckoutLatency() {
+        return channelCheckoutLatency.getSnapshot();
+    }
+    
+    LatencyHistogram getReplyConfirmLatencyHistogram() {
+        return replyConfirmLatency;
+    }
+    
+    @Override
+    public LatencySnapshot getReplyConfirmLatency() {
+        return replyConfirmLatency.getSnapshot();
+    }
+    
+    @Override
+    public long getReplyConfirmFailureCount() {
+        return replyConfirmFailureCount.get();
+    }
+    
+    @Override
+    public int getUnconfirmedReplies() {
+        return unconfirmedReplies.get();
+    }
+    
+    @Override
+    public long getChannelCheckoutTimeoutCount() {
+        return channelCheckoutTimeoutCount.get();
+    }
+    
+    @Override
+    public long getChannelsOpened() {
+        return channelsOpened.get();
+    }
+    
+    @Override
+    public long getChannelsClosed() {
+        return channelsClosed.get();
+    }
+    
+    @Override
+    public int getConnections() {
+        return connections.get();
+    }
+}
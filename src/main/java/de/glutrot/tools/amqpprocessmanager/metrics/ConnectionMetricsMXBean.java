@@ -0,0 +1,47 @@
+package de.glutrot.tools.amqpprocessmanager.metrics;
+
+/**
+ * Management interface of ConnectionMetrics, exposed via JMX. Latencies are
+ * summarized in milliseconds since program start.
+ */
+public interface ConnectionMetricsMXBean {
+    /**
+     * @return time it took to check out a channel for publishing
+     */
+    LatencySnapshot getChannelCheckoutLatency();
+    
+    /**
+     * @return number of channel checkouts which timed out
+     */
+    long getChannelCheckoutTimeoutCount();
+    
+    /**
+     * @return number of channels opened on shared connections
+     */
+    long getChannelsOpened();
+    
+    /**
+     * @return number of channels closed on shared connections
+     */
+    long getChannelsClosed();
+    
+    /**
+     * @return number of shared connections currently open
+     */
+    int getConnections();
+    
+    /**
+     * @return time from publishing a reply until it has been confirmed
+     */
+    LatencySnapshot getReplyConfirmLatency();
+    
+    /**
+     * @return number of replies which have been rejected or not been confirmed in time
+     */
+    long getReplyConfirmFailureCount();
+    
+    /**
+     * @return number of replies currently waiting for a confirm
+     */
+    int getUnconfirmedReplies();
+}
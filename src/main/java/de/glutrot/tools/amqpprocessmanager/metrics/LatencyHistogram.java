@@ -0,0 +1,143 @@
+package de.glutrot.tools.amqpprocessmanager.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram in the style of HdrHistogram: values are
+ * recorded in microseconds into buckets of exponentially growing magnitude,
+ * each split into 16 linear sub-buckets, so percentiles are accurate to
+ * about 6% over the whole range (1 microsecond up to about 12 days; larger
+ * values are clamped) at a fixed memory footprint.<br />
+ * <br />
+ * Recording only increments a few atomic counters. Reads are not atomic
+ * across buckets, so values read while recording is in progress may be
+ * slightly inconsistent which is acceptable for monitoring.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_COUNT = 32;
+    private static final int HALF_SUB_BUCKET_COUNT = SUB_BUCKET_COUNT / 2;
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int MAX_VALUE_BITS = 40;
+    private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (MAX_VALUE_BITS - SUB_BUCKET_BITS) * HALF_SUB_BUCKET_COUNT;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+    
+    /**
+     * Records a single value.
+     * @param nanos value to record (nanoseconds), negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        long micros = Math.min(MAX_VALUE, Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos)));
+        
+        counts.incrementAndGet(indexOf(micros));
+        totalCount.incrementAndGet();
+        sumMicros.addAndGet(micros);
+        
+        long max;
+        while ((max = maxMicros.get()) < micros) {
+            if (maxMicros.compareAndSet(max, micros)) {
+                break;
+            }
+        }
+    }
+    
+    private static int indexOf(long micros) {
+        if (micros < SUB_BUCKET_COUNT) {
+            return (int) micros;
+        }
+        
+        // shift value so it fits into the upper half of sub-buckets
+        int shift = (63 - Long.numberOfLeadingZeros(micros)) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKET_COUNT + (shift - 1) * HALF_SUB_BUCKET_COUNT + (int) ((micros >> shift) - HALF_SUB_BUCKET_COUNT);
+    }
+    
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        
+        int shift = (index - SUB_BUCKET_COUNT) / HALF_SUB_BUCKET_COUNT + 1;
+        long subBucket = (index - SUB_BUCKET_COUNT) % HALF_SUB_BUCKET_COUNT + HALF_SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+    
+    /**
+     * @return number of recorded values
+     */
+    public long getCount() {
+        return totalCount.get();
+    }
+    
+    /**
+     * @return sum of all recorded values (nanoseconds)
+     */
+    public long getSumNanos() {
+        return TimeUnit.MICROSECONDS.toNanos(sumMicros.get());
+    }
+    
+    /**
+     * @return highest recorded value (nanoseconds)
+     */
+    public long getMaxNanos() {
+        return TimeUnit.MICROSECONDS.toNanos(maxMicros.get());
+    }
+    
+    /**
+     * @return average of all recorded values (nanoseconds), 0 if nothing has been recorded
+     */
+    public long getMeanNanos() {
+        long count = totalCount.get();
+        return (count > 0) ? TimeUnit.MICROSECONDS.toNanos(sumMicros.get() / count) : 0;
+    }
+    
+    /**
+     * Returns the value below which the given percentage of recorded values
+     * fall, rounded up to the end of its bucket.
+     * @param percentile percentile to return (0.0 - 100.0)
+     * @return value at percentile (nanoseconds), 0 if nothing has been recorded
+     */
+    public long getPercentileNanos(double percentile) {
+        long count = totalCount.get();
+        if (count <= 0) {
+            return 0;
+        }
+        
+        long threshold = Math.max(1, (long) Math.ceil(count * Math.min(100.0, Math.max(0.0, percentile)) / 100.0));
+        long max = maxMicros.get();
+        
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= threshold) {
+                return TimeUnit.MICROSECONDS.toNanos(Math.min(max, highestValueOf(i)));
+            }
+        }
+        
+        return TimeUnit.MICROSECONDS.toNanos(max);
+    }
+    
+    /**
+     * @return summary of current state in milliseconds
+     */
+    public LatencySnapshot getSnapshot() {
+        return new LatencySnapshot(
+            getCount(),
+            toMillis(getMeanNanos()),
+            toMillis(getPercentileNanos(50.0)),
+            toMillis(getPercentileNanos(90.0)),
+            toMillis(getPercentileNanos(99.0)),
+            toMillis(getPercentileNanos(99.9)),
+            toMillis(getMaxNanos())
+        );
+    }
+    
+    private static double toMillis(long nanos) {
+        return nanos / 1000000.0;
+    }
+}
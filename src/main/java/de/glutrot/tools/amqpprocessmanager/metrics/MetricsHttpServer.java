@@ -0,0 +1,206 @@
+package de.glutrot.tools.amqpprocessmanager.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lightweight HTTP server exposing all process metrics at /metrics in
+ * Prometheus text format. Latency histograms are exported as summaries (in
+ * seconds) with quantiles 0.5, 0.9, 0.99 and 0.999.
+ */
+public class MetricsHttpServer {
+    private static final Logger logger = Logger.getLogger(MetricsHttpServer.class.getName());
+    
+    private static final String PATH = "/metrics";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String PREFIX = "amqpprocessmanager_";
+    private static final double[] QUANTILES = new double[]{0.5, 0.9, 0.99, 0.999};
+    
+    private final static Charset charset = Charset.forName("UTF-8");
+    
+    private final MetricsRegistry registry;
+    private final InetSocketAddress address;
+    private HttpServer server = null;
+    private ExecutorService executor = null;
+    
+    /**
+     * @param registry registry to export metrics from
+     * @param bindAddress address to listen on
+     * @param port port to listen on
+     */
+    public MetricsHttpServer(MetricsRegistry registry, String bindAddress, int port) {
+        this.registry = registry;
+        this.address = new InetSocketAddress(bindAddress, port);
+    }
+    
+    /**
+     * Starts listening for requests.
+     * @throws IOException if server could not be started
+     */
+    public void start() throws IOException {
+        server = HttpServer.create(address, 0);
+        server.createContext(PATH, this::handle);
+        
+        executor = Executors.newSingleThreadExecutor((Runnable r) -> {
+            Thread thread = new Thread(r, "MetricsHttpServer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.start();
+        
+        logger.log(Level.INFO, "Serving metrics at http://{0}:{1,number,#}{2}", new Object[]{address.getHostString(), server.getAddress().getPort(), PATH});
+    }
+    
+    /**
+     * Stops the server.
+     */
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+    
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            
+            byte[] body = export(registry.getAllProcessMetrics(), registry.getConnectionMetrics()).getBytes(charset);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    /**
+     * Formats the given metrics in Prometheus text format.
+     * @param allMetrics metrics to format
+     * @param connectionMetrics metrics of shared connections to format
+     * @return formatted metrics
+     */
+    static String export(Collection<ProcessMetrics> allMetrics, ConnectionMetrics connectionMetrics) {
+        StringBuilder sb = new StringBuilder();
+        
+        appendSummary(sb, allMetrics, "spawn_seconds", "Time it took to start processes.", ProcessMetrics::getSpawnLatencyHistogram);
+        appendSummary(sb, allMetrics, "first_output_seconds", "Time from sending a message until the process sent anything regarding it.", ProcessMetrics::getFirstOutputLatencyHistogram);
+        appendSummary(sb, allMetrics, "result_seconds", "Time from starting to process a message until its result was available.", ProcessMetrics::getResultLatencyHistogram);
+        appendSummary(sb, allMetrics, "process_lifetime_seconds", "Time from process start until it has been seen terminated.", ProcessMetrics::getProcessLifetimeHistogram);
+        appendSummary(sb, allMetrics, "reply_publish_seconds", "Time it took to publish replies.", ProcessMetrics::getReplyPublishLatencyHistogram);
+        
+        appendValues(sb, allMetrics, "heartbeats_total", "counter", "Heartbeats received from processes.", ProcessMetrics::getHeartbeatCount);
+        appendValues(sb, allMetrics, "watchdog_terminations_total", "counter", "Processes the watchdog had to terminate.", ProcessMetrics::getWatchdogTerminationCount);
+        appendValues(sb, allMetrics, "precondition_failures_total", "counter", "Failed pre-condition checks.", ProcessMetrics::getPreconditionFailureCount);
+        appendValues(sb, allMetrics, "cache_hits_total", "counter", "Requests answered from result cache.", ProcessMetrics::getCacheHitCount);
+        appendValues(sb, allMetrics, "cache_misses_total", "counter", "Requests executed despite result cache.", ProcessMetrics::getCacheMissCount);
+        appendValues(sb, allMetrics, "cache_coalesced_total", "counter", "Requests attached to an identical request being executed.", ProcessMetrics::getCacheCoalescedCount);
+        appendValues(sb, allMetrics, "expired_total", "counter", "Messages dropped because their deadline had passed.", ProcessMetrics::getExpiredCount);
+        appendValues(sb, allMetrics, "admission_delayed_total", "counter", "Messages which had to wait for admission control.", ProcessMetrics::getAdmissionDelayedCount);
+        appendValues(sb, allMetrics, "admission_shed_total", "counter", "Messages requeued by admission control.", ProcessMetrics::getAdmissionShedCount);
+        appendValues(sb, allMetrics, "in_flight", "gauge", "Messages currently being processed.", ProcessMetrics::getInFlight);
+        appendValues(sb, allMetrics, "processes", "gauge", "Processes currently running.", ProcessMetrics::getRunningProcesses);
+        
+        // shared connections are not related to any single process
+        appendGlobalSummary(sb, "channel_checkout_seconds", "Time it took to check out a channel for publishing.", connectionMetrics.getChannelCheckoutLatencyHistogram());
+        appendGlobalSummary(sb, "reply_confirm_seconds", "Time from publishing a reply until it has been confirmed.", connectionMetrics.getReplyConfirmLatencyHistogram());
+        
+        appendValue(sb, "channel_checkout_timeouts_total", "counter", "Channel checkouts which timed out.", connectionMetrics.getChannelCheckoutTimeoutCount());
+        appendValue(sb, "channels_opened_total", "counter", "Channels opened on shared connections.", connectionMetrics.getChannelsOpened());
+        appendValue(sb, "channels_closed_total", "counter", "Channels closed on shared connections.", connectionMetrics.getChannelsClosed());
+        appendValue(sb, "connections", "gauge", "Shared connections currently open.", connectionMetrics.getConnections());
+        appendValue(sb, "reply_confirm_failures_total", "counter", "Replies which have been rejected or not been confirmed in time.", connectionMetrics.getReplyConfirmFailureCount());
+        appendValue(sb, "unconfirmed_replies", "gauge", "Replies currently waiting for a confirm.", connectionMetrics.getUnconfirmedReplies());
+        
+        return sb.toString();
+    }
+    
+    private interface HistogramGetter {
+        LatencyHistogram get(ProcessMetrics metrics);
+    }
+    
+    private interface ValueGetter {
+        long get(ProcessMetrics metrics);
+    }
+    
+    private static void appendSummary(StringBuilder sb, Collection<ProcessMetrics> allMetrics, String name, String help, HistogramGetter getter) {
+        appendHeader(sb, name, "summary", help);
+        
+        for (ProcessMetrics metrics : allMetrics) {
+            LatencyHistogram histogram = getter.get(metrics);
+            String label = "process=\""+escape(metrics.getName())+"\"";
+            
+            for (double quantile : QUANTILES) {
+                appendSample(sb, name, label+",quantile=\""+quantile+"\"", toSeconds(histogram.getPercentileNanos(quantile * 100.0)));
+            }
+            
+            appendSample(sb, name+"_sum", label, toSeconds(histogram.getSumNanos()));
+            appendSample(sb, name+"_count", label, Long.toString(histogram.getCount()));
+        }
+    }
+    
+    private static void appendValues(StringBuilder sb, Collection<ProcessMetrics> allMetrics, String name, String type, String help, ValueGetter getter) {
+        appendHeader(sb, name, type, help);
+        
+        for (ProcessMetrics metrics : allMetrics) {
+            appendSample(sb, name, "process=\""+escape(metrics.getName())+"\"", Long.toString(getter.get(metrics)));
+        }
+    }
+    
+    private static void appendGlobalSummary(StringBuilder sb, String name, String help, LatencyHistogram histogram) {
+        appendHeader(sb, name, "summary", help);
+        
+        for (double quantile : QUANTILES) {
+            appendSample(sb, name, "quantile=\""+quantile+"\"", toSeconds(histogram.getPercentileNanos(quantile * 100.0)));
+        }
+        
+        appendSample(sb, name+"_sum", null, toSeconds(histogram.getSumNanos()));
+        appendSample(sb, name+"_count", null, Long.toString(histogram.getCount()));
+    }
+    
+    private static void appendValue(StringBuilder sb, String name, String type, String help, long value) {
+        appendHeader(sb, name, type, help);
+        appendSample(sb, name, null, Long.toString(value));
+    }
+    
+    private static void appendHeader(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+    
+    private static void appendSample(StringBuilder sb, String name, String labels, String value) {
+        sb.append(PREFIX).append(name);
+        if (labels != null) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+    
+    private static String toSeconds(long nanos) {
+        return Double.toString(nanos / 1000000000.0);
+    }
+    
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,107 @@
+package de.glutrot.tools.amqpprocessmanager.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.ObjectName;
+
+/**
+ * Holds the ProcessMetrics of all configured processes. Metrics are created
+ * on first access and registered as JMX MXBean
+ * de.glutrot.tools.amqpprocessmanager:type=ProcessMetrics,name=...
+ * Metrics of shared AMQP connections are registered as
+ * de.glutrot.tools.amqpprocessmanager:type=ConnectionMetrics<br />
+ * <br />
+ * Use MetricsRegistry.getInstance() to get the shared instance.
+ */
+public class MetricsRegistry {
+    private static final Logger logger = Logger.getLogger(MetricsRegistry.class.getName());
+    
+    private static Object lockObj = new Object();
+    private static MetricsRegistry instance = null;
+    
+    private final Map<String, ProcessMetrics> processMetrics = new ConcurrentHashMap<>();
+    private final ConnectionMetrics connectionMetrics = new ConnectionMetrics();
+    
+    private MetricsRegistry() {
+        try {
+            ObjectName objectName = new ObjectName("de.glutrot.tools.amqpprocessmanager:type=ConnectionMetrics");
+            ManagementFactory.getPlatformMBeanServer().registerMBean(connectionMetrics, objectName);
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "Failed to register connection metrics with JMX:", ex);
+        }
+    }
+    
+    /**
+     * Returns a single shared instance of the registry.
+     * @return shared instance
+     */
+    public static MetricsRegistry getInstance() {
+        synchronized (lockObj) {
+            if (instance == null) {
+                instance = new MetricsRegistry();
+            }
+        }
+        
+        return instance;
+    }
+    
+    /**
+     * Returns the metrics of given process, creating them if necessary.
+     * @param name process name
+     * @return metrics of process
+     */
+    public ProcessMetrics getProcessMetrics(String name) {
+        String key = (name != null) ? name : "";
+        
+        ProcessMetrics metrics = processMetrics.get(key);
+        if (metrics != null) {
+            return metrics;
+        }
+        
+        return processMetrics.computeIfAbsent(key, (k) -> {
+            ProcessMetrics created = new ProcessMetrics(k);
+            register(created);
+            return created;
+        });
+    }
+    
+    /**
+     * @return metrics of shared AMQP connections
+     */
+    public ConnectionMetrics getConnectionMetrics() {
+        return connectionMetrics;
+    }
+    
+    /**
+     * @return metrics of all processes
+     */
+    public Collection<ProcessMetrics> getAllProcessMetrics() {
+        return new ArrayList<>(processMetrics.values());
+    }
+    
+    /**
+     * @return number of processes currently running for all processes
+     */
+    public int getRunningProcessCount() {
+        int count = 0;
+        for (ProcessMetrics metrics : processMetrics.values()) {
+            count += metrics.getRunningProcesses();
+        }
+        
+        return count;
+    }
+    
+    private void register(ProcessMetrics metrics) {
+        try {
+            ObjectName objectName = new ObjectName("de.glutrot.tools.amqpprocessmanager:type=ProcessMetrics,name="+ObjectName.quote(metrics.getName()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+        } catch (Exception ex) {
+            logger.log(Level.WARNING, "Failed to register metrics of process "+metrics.getName()+" with JMX:", ex);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package de.glutrot.tools.amqpprocessmanager.metrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics collected for all instances of a single configured process. Get
+ * instances from MetricsRegistry.
+ */
+public class ProcessMetrics implements ProcessMetricsMXBean {
+    private final String name;
+    
+    private final LatencyHistogram spawnLatency = new LatencyHistogram();
+    private final LatencyHistogram firstOutputLatency = new LatencyHistogram();
+    private final LatencyHistogram resultLatency = new LatencyHistogram();
+    private final LatencyHistogram processLifetime = new LatencyHistogram();
+    private final LatencyHistogram replyPublishLatency = new LatencyHistogram();
+    
+    private final AtomicLong heartbeatCount = new AtomicLong();
+    private final AtomicLong watchdogTerminationCount = new AtomicLong();
+    private final AtomicLong preconditionFailureCount = new AtomicLong();
+    private final AtomicLong cacheHitCount = new AtomicLong();
+    private final AtomicLong cacheMissCount = new AtomicLong();
+    private final AtomicLong cacheCoalescedCount = new AtomicLong();
+    private final AtomicLong expiredCount = new AtomicLong();
+    private final AtomicLong admissionDelayedCount = new AtomicLong();
+    private final AtomicLong admissionShedCount = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger runningProcesses = new AtomicInteger();
+    
+    ProcessMetrics(String name) {
+        this.name = name;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    /**
+     * Records the time it took to start a process and counts the process as
+     * running until processExited() is called.
+     * @param nanos time it took to start the process
+     */
+    public void recordSpawn(long nanos) {
+        spawnLatency.record(nanos);
+        runningProcesses.incrementAndGet();
+    }
+    
+    public void processExited() {
+        runningProcesses.decrementAndGet();
+    }
+    
+    public void recordFirstOutput(long nanos) {
+        firstOutputLatency.record(nanos);
+    }
+    
+    public void recordResult(long nanos) {
+        resultLatency.record(nanos);
+    }
+    
+    public void recordProcessLifetime(long nanos) {
+        processLifetime.record(nanos);
+    }
+    
+    public void recordReplyPublish(long nanos) {
+        replyPublishLatency.record(nanos);
+    }
+    
+    public void countHeartbeat() {
+        heartbeatCount.incrementAndGet();
+    }
+    
+    public void countWatchdogTermination() {
+        watchdogTerminationCount.incrementAndGet();
+    }
+    
+    public void countPreconditionFailure() {
+        preconditionFailureCount.incrementAndGet();
+    }
+    
+    public void countCacheHit() {
+        cacheHitCount.incrementAndGet();
+    }
+    
+    public void countCacheMiss() {
+        cacheMissCount.incrementAndGet();
+    }
+    
+    public void countCacheCoalesced() {
+        cacheCoalescedCount.incrementAndGet();
+    }
+    
+    public void countExpired() {
+        expiredCount.incrementAndGet();
+    }
+    
+    public void countAdmissionDelayed() {
+        admissionDelayedCount.incrementAndGet();
+    }
+    
+    public void countAdmissionShed() {
+        admissionShedCount.incrementAndGet();
+    }
+    
+    /**
+     * Counts a message as being processed until jobFinished() is called.
+     */
+    public void jobStarted() {
+        inFlight.incrementAndGet();
+    }
+    
+    public void jobFinished() {
+        inFlight.decrementAndGet();
+    }
+    
+    LatencyHistogram getSpawnLatencyHistogram() {
+        return spawnLatency;
+    }
+    
+    LatencyHistogram getFirstOutputLatencyHistogram() {
+        return firstOutputLatency;
+    }
+    
+    LatencyHistogram getResultLatencyHistogram() {
+        return resultLatency;
+    }
+    
+    LatencyHistogram getProcessLifetimeHistogram() {
+        return processLifetime;
+    }
+    
+    LatencyHistogram getReplyPublishLatencyHistogram() {
+        return replyPublishLatency;
+    }
+    
+    @Override
+    public LatencySnapshot getSpawnLatency() {
+        return spawnLatency.getSnapshot();
+    }
+    
+    @Override
+    public LatencySnapshot getFirstOutputLatency() {
+        return firstOutputLatency.getSnapshot();
+    }
+    
+    @Override
+    public LatencySnapshot getResultLatency() {
+        return resultLatency.getSnapshot();
+    }
+    
+    @Override
+    public LatencySnapshot getProcessLifetime() {
+        return processLifetime.getSnapshot();
+    }
+    
+    @Override
+    public LatencySnapshot getReplyPublishLatency() {
+        return replyPublishLatency.getSnapshot();
+    }
+    
+    @Override
+    public long getHeartbeatCount() {
+        return heartbeatCount.get();
+    }
+    
+    @Override
+    public long getWatchdogTerminationCount() {
+        return watchdogTerminationCount.get();
+    }
+    
+    @Override
+    public long getPreconditionFailureCount() {
+        return preconditionFailureCount.get();
+    }
+    
+    @Override
+    public long getCacheHitCount() {
+        return cacheHitCount.get();
+    }
+    
+    @Override
+    public long getCacheMissCount() {
+        return cacheMissCount.get();
+    }
+    
+    @Override
+    public long getCacheCoalescedCount() {
+        return cacheCoalescedCount.get();
+    }
+    
+    @Override
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+    
+    @Override
+    public long getAdmissionDelayedCount() {
+        return admissionDelayedCount.get();
+    }
+    
+    @Override
+    public long getAdmissionShedCount() {
+        return admissionShedCount.get();
+    }
+    
+    @Override
+    public int getInFlight() {
+        return inFlight.get();
+    }
+    
+    @Override
+    public int getRunningProcesses() {
+        return runningProcesses.get();
+    }
+}
@@ -0,0 +1,87 @@
+package de.glutrot.tools.amqpprocessmanager.metrics;
+
+/**
+ * Management interface of ProcessMetrics, exposed via JMX. Latencies are
+ * summarized in milliseconds since program start.
+ */
+public interface ProcessMetricsMXBean {
+    /**
+     * @return time it took to start processes
+     */
+    LatencySnapshot getSpawnLatency();
+    
+    /**
+     * @return time from sending a message until the process sent anything regarding it
+     */
+    LatencySnapshot getFirstOutputLatency();
+    
+    /**
+     * @return time from starting to process a message until its result was available
+     */
+    LatencySnapshot getResultLatency();
+    
+    /**
+     * @return time from process start until it has been seen terminated
+     */
+    LatencySnapshot getProcessLifetime();
+    
+    /**
+     * @return time it took to publish replies
+     */
+    LatencySnapshot getReplyPublishLatency();
+    
+    /**
+     * @return number of heartbeats received from processes
+     */
+    long getHeartbeatCount();
+    
+    /**
+     * @return number of processes the watchdog had to terminate
+     */
+    long getWatchdogTerminationCount();
+    
+    /**
+     * @return number of failed pre-condition checks
+     */
+    long getPreconditionFailureCount();
+    
+    /**
+     * @return number of requests answered from result cache
+     */
+    long getCacheHitCount();
+    
+    /**
+     * @return number of requests which had to be executed despite result cache
+     */
+    long getCacheMissCount();
+    
+    /**
+     * @return number of requests attached to an identical request being executed
+     */
+    long getCacheCoalescedCount();
+    
+    /**
+     * @return number of messages dropped because their deadline had passed
+     */
+    long getExpiredCount();
+    
+    /**
+     * @return number of messages which had to wait for admission control
+     */
+    long getAdmissionDelayedCount();
+    
+    /**
+     * @return number of messages requeued by admission control
+     */
+    long getAdmissionShedCount();
+    
+    /**
+     * @return number of messages currently being processed
+     */
+    int getInFlight();
+    
+    /**
+     * @return number of processes currently running
+     */
+    int getRunningProcesses();
+}
@@ -0,0 +1,163 @@
+package de.glutrot.tools.amqpprocessmanager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class BinaryFrameCodecTest {
+    private final List<String> frames = new ArrayList<>();
+    private String error = null;
+    private int endOfStreamCount = 0;
+    
+    private final BinaryFrameCodec.Decoder decoder = new BinaryFrameCodec.Decoder(new BinaryFrameCodec.FrameHandler() {
+        @Override
+        public void handleFrame(byte type, int requestId, byte[] payload) {
+            frames.add((char) type+" "+Integer.toUnsignedString(requestId)+" "+new String(payload, StandardCharsets.UTF_8));
+        }
+        
+        @Override
+        public void handleProtocolError(String message) {
+            assertNull("protocol error reported twice", error);
+            error = message;
+        }
+        
+        @Override
+        public void handleEndOfStream() {
+            endOfStreamCount++;
+        }
+    });
+    
+    private static byte[] frame(byte type, int requestId, String payload) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryFrameCodec.writeFrame(out, type, requestId, payload.getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+    
+    private static byte[] header(byte type, int requestId, int length) {
+        return new byte[]{ type, (byte) (requestId >>> 24), (byte) (requestId >>> 16), (byte) (requestId >>> 8), (byte) requestId, (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length };
+    }
+    
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            out.write(array, 0, array.length);
+        }
+        return out.toByteArray();
+    }
+    
+    private void feed(byte[] data) {
+        decoder.handleData(data, data.length);
+    }
+    
+    @Test
+    public void testWriteFrame() throws Exception {
+        byte[] data = frame(BinaryFrameCodec.TYPE_MESSAGE, 0x01020304, "abc");
+        
+        assertEquals(BinaryFrameCodec.HEADER_LENGTH + 3, data.length);
+        assertArrayEquals(new byte[]{ 'M', 1, 2, 3, 4, 0, 0, 0, 3, 'a', 'b', 'c' }, data);
+    }
+    
+    @Test
+    public void testDecodeFrames() throws Exception {
+        feed(concat(frame(BinaryFrameCodec.TYPE_RESULT, 1, "first"), frame(BinaryFrameCodec.TYPE_HEARTBEAT, 0, ""), frame(BinaryFrameCodec.TYPE_PARTIAL, -1, "ä")));
+        decoder.handleEndOfStream();
+        
+        assertEquals(Arrays.asList("R 1 first", "H 0 ", "P 4294967295 ä"), frames);
+        assertNull(error);
+        assertEquals(1, endOfStreamCount);
+    }
+    
+    @Test
+    public void testDecodeSplitFrames() throws Exception {
+        byte[] data = concat(frame(BinaryFrameCodec.TYPE_RESULT, 7, "split payload"), frame(BinaryFrameCodec.TYPE_RESULT, 8, "next"));
+        
+        // pass data byte by byte, also splitting headers
+        for (int i = 0; i < data.length; i++) {
+            decoder.handleData(new byte[]{ data[i], 'x' }, 1);
+        }
+        decoder.handleEndOfStream();
+        
+        assertEquals(Arrays.asList("R 7 split payload", "R 8 next"), frames);
+        assertNull(error);
+    }
+    
+    @Test
+    public void testDecodeInvalidLength() {
+        feed(concat(header(BinaryFrameCodec.TYPE_RESULT, 1, -1), new byte[16]));
+        
+        assertNotNull(error);
+        assertTrue(frames.isEmpty());
+        
+        // decoder stays failed
+        feed(header(BinaryFrameCodec.TYPE_RESULT, 1, 0));
+        decoder.handleEndOfStream();
+        
+        assertTrue(frames.isEmpty());
+        assertEquals(1, endOfStreamCount);
+    }
+    
+    @Test
+    public void testDecodeExceedingLength() {
+        feed(header(BinaryFrameCodec.TYPE_RESULT, 1, BinaryFrameCodec.MAX_PAYLOAD_LENGTH + 1));
+        
+        assertNotNull(error);
+        assertTrue(frames.isEmpty());
+    }
+    
+    @Test
+    public void testDecodeLengthShorterThanPayload() {
+        // excess payload is read as header of next frame, claiming "ghij" bytes
+        feed(concat(header(BinaryFrameCodec.TYPE_RESULT, 1, 2), "abcdefghijk".getBytes(StandardCharsets.UTF_8)));
+        
+        assertEquals(Arrays.asList("R 1 ab"), frames);
+        assertNotNull(error);
+    }
+    
+    @Test
+    public void testDecodeTruncatedHeader() {
+        feed(Arrays.copyOf(header(BinaryFrameCodec.TYPE_RESULT, 1, 3), 5));
+        decoder.handleEndOfStream();
+        
+        assertTrue(frames.isEmpty());
+        assertNotNull(error);
+        assertEquals(1, endOfStreamCount);
+    }
+    
+    @Test
+    public void testDecodeTruncatedPayload() throws Exception {
+        feed(frame(BinaryFrameCodec.TYPE_RESULT, 1, "complete"));
+        feed(Arrays.copyOf(frame(BinaryFrameCodec.TYPE_RESULT, 2, "truncated"), BinaryFrameCodec.HEADER_LENGTH + 4));
+        decoder.handleEndOfStream();
+        
+        assertEquals(Arrays.asList("R 1 complete"), frames);
+        assertNotNull(error);
+        assertEquals(1, endOfStreamCount);
+    }
+    
+    @Test
+    public void testDecodeEndOfStreamBetweenFrames() throws Exception {
+        feed(frame(BinaryFrameCodec.TYPE_RESULT, 1, "complete"));
+        decoder.handleEndOfStream();
+        
+        assertNull(error);
+        assertEquals(1, endOfStreamCount);
+    }
+    
+    @Test
+    public void testWriteBatchItems() throws Exception {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        BinaryFrameCodec.writeBatchItem(batch, 1, "a".getBytes(StandardCharsets.UTF_8));
+        BinaryFrameCodec.writeBatchItem(batch, 2, new byte[0]);
+        
+        assertArrayEquals(new byte[]{ 0, 0, 0, 1, 0, 0, 0, 1, 'a', 0, 0, 0, 2, 0, 0, 0, 0 }, batch.toByteArray());
+    }
+}
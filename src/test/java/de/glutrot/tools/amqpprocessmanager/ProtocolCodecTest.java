@@ -0,0 +1,145 @@
+package de.glutrot.tools.amqpprocessmanager;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.io.StringWriter;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class ProtocolCodecTest {
+    private final ProtocolCodec codec = new ProtocolCodec();
+    private final ProtocolCodec.Frame frame = new ProtocolCodec.Frame();
+    
+    private String[] decode(String line) throws ProtocolCodec.DecodeException {
+        codec.decode(line, frame);
+        
+        String[] elements = new String[frame.size()];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = frame.getString(i);
+        }
+        
+        return elements;
+    }
+    
+    private void assertMalformed(String line) {
+        try {
+            codec.decode(line, frame);
+            fail("decoded malformed line: "+line);
+        } catch (ProtocolCodec.DecodeException ex) {
+            // expected
+        }
+    }
+    
+    private static String encode(String... elements) throws IOException {
+        StringWriter writer = new StringWriter();
+        ProtocolCodec.writeArray(writer, elements);
+        return writer.toString();
+    }
+    
+    @Test
+    public void testDecodeSimpleMessages() throws Exception {
+        assertArrayEquals(new String[0], decode("[]"));
+        assertArrayEquals(new String[]{ "heartbeat" }, decode("[\"heartbeat\"]"));
+        assertArrayEquals(new String[]{ "result", "1", "out" }, decode(" [ \"result\" ,\"1\",\t\"out\" ] \r"));
+    }
+    
+    @Test
+    public void testDecodeReturnsKeywordConstants() throws Exception {
+        decode("[\"heartbeat\"]");
+        assertSame(ProtocolCodec.KEYWORD_HEARTBEAT, frame.getKeyword());
+        
+        decode("[\"res\\u0075lt\",\"x\"]");
+        assertEquals(ProtocolCodec.KEYWORD_RESULT, frame.getKeyword());
+    }
+    
+    @Test
+    public void testDecodeReusesFrame() throws Exception {
+        decode("[\"result\",\"1\",\"out\"]");
+        decode("[\"heartbeat\"]");
+        
+        assertEquals(1, frame.size());
+        assertNull(frame.getString(1));
+    }
+    
+    @Test
+    public void testDecodeEscapes() throws Exception {
+        assertArrayEquals(new String[]{ "\"\\/\b\f\n\r\t" }, decode("[\"\\\"\\\\\\/\\b\\f\\n\\r\\t\"]"));
+        assertArrayEquals(new String[]{ "a\u0000b\u001fcä€" }, decode("[\"a\\u0000b\\u001Fc\\u00e4\\u20AC\"]"));
+        assertArrayEquals(new String[]{ "plain", "esc\"aped" }, decode("[\"plain\",\"esc\\\"aped\"]"));
+    }
+    
+    @Test
+    public void testDecodeSurrogates() throws Exception {
+        String emoji = new String(Character.toChars(0x1F600));
+        
+        assertArrayEquals(new String[]{ emoji }, decode("[\"\\ud83d\\ude00\"]"));
+        assertArrayEquals(new String[]{ "x"+emoji+"y" }, decode("[\"x"+emoji+"y\"]"));
+    }
+    
+    @Test
+    public void testDecodeNonStringElements() throws Exception {
+        String[] elements = decode("[\"partial\", 1, -2.5e3, true, false, null, {\"a\": [1, \"]\", \"\\\"}\"]}, [[], {}], \"last\"]");
+        
+        assertArrayEquals(new String[]{ "partial", null, null, null, null, null, null, null, "last" }, elements);
+        assertNull(decode("[1,\"result\"]")[0]);
+        assertNull(frame.getKeyword());
+    }
+    
+    @Test
+    public void testDecodeMalformed() {
+        assertMalformed("");
+        assertMalformed("   ");
+        assertMalformed("\"result\"");
+        assertMalformed("{\"result\": 1}");
+        
+        // trailing data
+        assertMalformed("[\"result\",\"x\"] x");
+        assertMalformed("[\"result\"][]");
+        
+        // missing elements
+        assertMalformed("[,]");
+        assertMalformed("[\"a\",]");
+        assertMalformed("[\"a\",,\"b\"]");
+        assertMalformed("[\"a\" \"b\"]");
+        assertMalformed("[1 2]");
+        
+        // truncated lines
+        assertMalformed("[");
+        assertMalformed("[\"result\"");
+        assertMalformed("[\"result\",");
+        assertMalformed("[\"resu");
+        assertMalformed("[\"result\\");
+        assertMalformed("[\"result\\u00");
+        assertMalformed("[{\"a\": 1");
+        assertMalformed("[[1, 2]");
+        
+        // invalid strings
+        assertMalformed("[\"a\\x\"]");
+        assertMalformed("[\"a\\u00zz\"]");
+        assertMalformed("[\"a\tb\"]");
+    }
+    
+    @Test
+    public void testEncodeEscapes() throws Exception {
+        assertEquals("[]", encode());
+        assertEquals("[\"message\",null]", encode("message", null));
+        assertEquals("[\"\\\"\\\\/\\b\\f\\n\\r\\t\"]", encode("\"\\/\b\f\n\r\t"));
+        assertEquals("[\"a\\u0000b\\u001fcä\"]", encode("a\u0000b\u001fcä"));
+    }
+    
+    @Test
+    public void testRoundTrip() throws Exception {
+        Gson gson = new Gson();
+        String[] elements = new String[]{ "message", "", "plain", "quote\" backslash\\ slash/", "\u0000\u0001\u001f\u007f", "line\nbreak\r\n", "äöü€", new String(Character.toChars(0x1F600)), "\ud800 lone surrogate" };
+        
+        String line = encode(elements);
+        
+        assertArrayEquals(elements, decode(line));
+        assertArrayEquals(elements, gson.fromJson(line, String[].class));
+        assertArrayEquals(elements, decode(gson.toJson(elements)));
+    }
+}
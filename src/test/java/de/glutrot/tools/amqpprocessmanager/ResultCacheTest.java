@@ -0,0 +1,149 @@
+package de.glutrot.tools.amqpprocessmanager;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ResultCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private static ResultCache createCache(int maxEntries) throws Exception {
+        return new ResultCache(60, maxEntries, 1024 * 1024, null, null, 0, "test");
+    }
+    
+    private static ProcessCommunicator.Result success(String output) {
+        return new ProcessCommunicator.Result(output, false);
+    }
+    
+    @Test
+    public void testSingleFlight() throws Exception {
+        ResultCache cache = createCache(10);
+        
+        // first request executes, identical requests wait for it
+        assertNull(cache.lookup("a"));
+        CompletableFuture<ProcessCommunicator.Result> first = cache.lookup("a");
+        CompletableFuture<ProcessCommunicator.Result> second = cache.lookup("a");
+        assertNotNull(first);
+        assertSame(first, second);
+        assertFalse(first.isDone());
+        
+        // other requests are not affected
+        assertNull(cache.lookup("b"));
+        
+        ProcessCommunicator.Result result = success("out");
+        cache.complete("a", result);
+        assertSame(result, first.get());
+        
+        // further requests are served from cache
+        CompletableFuture<ProcessCommunicator.Result> cached = cache.lookup("a");
+        assertTrue(cached.isDone());
+        assertSame(result, cached.get());
+    }
+    
+    @Test
+    public void testFailedResultIsPassedButNotCached() throws Exception {
+        ResultCache cache = createCache(10);
+        
+        assertNull(cache.lookup("a"));
+        CompletableFuture<ProcessCommunicator.Result> waiting = cache.lookup("a");
+        
+        ProcessCommunicator.Result failed = new ProcessCommunicator.Result("error", true);
+        cache.complete("a", failed);
+        assertSame(failed, waiting.get());
+        
+        // next request executes again
+        assertNull(cache.lookup("a"));
+        cache.complete("a", null);
+        assertNull(cache.lookup("a"));
+    }
+    
+    @Test
+    public void testAbandon() throws Exception {
+        ResultCache cache = createCache(10);
+        
+        assertNull(cache.lookup("a"));
+        CompletableFuture<ProcessCommunicator.Result> waiting = cache.lookup("a");
+        
+        cache.abandon("a");
+        assertTrue(waiting.isCompletedExceptionally());
+        try {
+            waiting.get();
+            fail("abandoned execution resolved waiting request");
+        } catch (CancellationException ex) {
+            // expected
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof CancellationException);
+        }
+        
+        // next request registers a new execution which is waited for again
+        assertNull(cache.lookup("a"));
+        CompletableFuture<ProcessCommunicator.Result> next = cache.lookup("a");
+        assertNotNull(next);
+        assertFalse(next.isDone());
+        
+        ProcessCommunicator.Result result = success("out");
+        cache.complete("a", result);
+        assertSame(result, next.get());
+    }
+    
+    @Test
+    public void testAbandonWithoutExecution() throws Exception {
+        ResultCache cache = createCache(10);
+        
+        cache.abandon("a");
+        
+        ProcessCommunicator.Result result = success("out");
+        assertNull(cache.lookup("a"));
+        cache.complete("a", result);
+        
+        // abandoning does not remove cached results
+        cache.abandon("a");
+        assertSame(result, cache.lookup("a").get());
+    }
+    
+    @Test
+    public void testEvictionToDisk() throws Exception {
+        ResultCache cache = new ResultCache(60, 1, 1024 * 1024, null, folder.getRoot(), 1024 * 1024, "test");
+        
+        assertNull(cache.lookup("a"));
+        cache.complete("a", success("first"));
+        assertNull(cache.lookup("b"));
+        cache.complete("b", success("second"));
+        
+        // least recently used entry has been moved to disk
+        assertEquals(1, folder.getRoot().list().length);
+        assertEquals("first", cache.lookup("a").get().getOutput());
+        assertEquals("second", cache.lookup("b").get().getOutput());
+    }
+    
+    @Test
+    public void testCreateKey() throws Exception {
+        ResultCache cache = new ResultCache(60, 10, 1024 * 1024, Arrays.asList("lang"), null, 0, "test");
+        
+        Map<String, Object> headers = new HashMap<>();
+        headers.put("lang", "de");
+        headers.put("other", "ignored");
+        
+        String key = cache.createKey("body".getBytes("UTF-8"), headers);
+        assertTrue(key.matches("[0-9a-f]{64}"));
+        assertEquals(key, cache.createKey("body".getBytes("UTF-8"), Collections.<String, Object>singletonMap("lang", "de")));
+        assertFalse(key.equals(cache.createKey("body".getBytes("UTF-8"), Collections.<String, Object>singletonMap("lang", "en"))));
+        assertFalse(key.equals(cache.createKey("other body".getBytes("UTF-8"), headers)));
+        assertFalse(key.equals(cache.createKey("body".getBytes("UTF-8"), null)));
+    }
+}
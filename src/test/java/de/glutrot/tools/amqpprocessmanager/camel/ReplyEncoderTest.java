@@ -0,0 +1,66 @@
+package de.glutrot.tools.amqpprocessmanager.camel;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.nio.charset.StandardCharsets;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ReplyEncoderTest {
+    private static String encode(String state, long sequence, String output) {
+        return new String(ReplyEncoder.encode(state, sequence, output), StandardCharsets.UTF_8);
+    }
+    
+    private static JsonObject parse(byte[] encoded) {
+        return new JsonParser().parse(new String(encoded, StandardCharsets.UTF_8)).getAsJsonObject();
+    }
+    
+    @Test
+    public void testEncodeEnvelope() {
+        assertEquals("{\"state\":\"success\",\"output\":\"out\"}", encode("success", -1, "out"));
+        assertEquals("{\"state\":\"partial\",\"sequence\":42,\"output\":\"\"}", encode("partial", 42, ""));
+        assertEquals("{\"state\":\"error\",\"output\":null}", encode("error", -1, null));
+    }
+    
+    @Test
+    public void testEncodeEscapes() {
+        assertEquals("{\"state\":\"s\",\"output\":\"\\\"\\\\/\\b\\f\\n\\r\\t\"}", encode("s", -1, "\"\\/\b\f\n\r\t"));
+        assertEquals("{\"state\":\"s\",\"output\":\"a\\u0000b\\u001fc\"}", encode("s", -1, "a\u0000b\u001fc"));
+    }
+    
+    @Test
+    public void testEncodeUnpairedSurrogates() {
+        assertEquals("{\"state\":\"s\",\"output\":\"a?b?\"}", encode("s", -1, "a\ud800b\udc00"));
+    }
+    
+    @Test
+    public void testRoundTrip() {
+        String[] outputs = new String[]{ "", "plain", "quote\" backslash\\ slash/", "\u0000\u0001\u001f\u007f", "line\nbreak\r\n", "äöü€", new String(Character.toChars(0x1F600)), "<html> & 'quotes' =" };
+        
+        for (String output : outputs) {
+            JsonObject json = parse(ReplyEncoder.encode(ReplyPublisher.STATE_SUCCESS, -1, output));
+            
+            assertEquals(ReplyPublisher.STATE_SUCCESS, json.get("state").getAsString());
+            assertFalse(json.has("sequence"));
+            assertEquals(output, json.get("output").getAsString());
+        }
+    }
+    
+    @Test
+    public void testRoundTripPartial() {
+        JsonObject json = parse(ReplyEncoder.encode(ReplyPublisher.STATE_PARTIAL, Long.MAX_VALUE, "chunk "));
+        
+        assertEquals(ReplyPublisher.STATE_PARTIAL, json.get("state").getAsString());
+        assertEquals(Long.MAX_VALUE, json.get("sequence").getAsLong());
+        assertEquals("chunk ", json.get("output").getAsString());
+    }
+    
+    @Test
+    public void testRoundTripError() {
+        JsonObject json = parse(ReplyEncoder.encode(ReplyPublisher.STATE_ERROR, -1, null));
+        
+        assertTrue(json.get("output").isJsonNull());
+    }
+}
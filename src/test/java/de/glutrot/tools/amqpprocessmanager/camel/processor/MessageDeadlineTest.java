@@ -0,0 +1,98 @@
+package de.glutrot.tools.amqpprocessmanager.camel.processor;
+
+import java.util.Date;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.apache.camel.Message;
+import org.apache.camel.impl.DefaultMessage;
+import org.junit.Test;
+
+public class MessageDeadlineTest {
+    private static final String HEADER = "x-deadline";
+    private static final long RECEIVED = 1500000000000L;
+    
+    private final MessageDeadline deadline = new MessageDeadline(HEADER, true, 0, "test");
+    
+    private static Message message(Object deadlineHeader, String expiration, Date timestamp) {
+        Message msg = new DefaultMessage();
+        if (deadlineHeader != null) {
+            msg.setHeader(HEADER, deadlineHeader);
+        }
+        if (expiration != null) {
+            msg.setHeader("rabbitmq.EXPIRATION", expiration);
+        }
+        if (timestamp != null) {
+            msg.setHeader("rabbitmq.TIMESTAMP", timestamp);
+        }
+        return msg;
+    }
+    
+    @Test
+    public void testNoDeadline() {
+        assertEquals(0, deadline.getDeadline(message(null, null, null), RECEIVED));
+        assertEquals(0, deadline.getDeadline(message(null, null, new Date(RECEIVED)), RECEIVED));
+    }
+    
+    @Test
+    public void testDeadlineHeader() {
+        assertEquals(RECEIVED + 5000, deadline.getDeadline(message(RECEIVED + 5000, null, null), RECEIVED));
+        assertEquals(RECEIVED + 5000, deadline.getDeadline(message(" "+(RECEIVED + 5000)+" ", null, null), RECEIVED));
+        assertEquals(0, deadline.getDeadline(message("tomorrow", null, null), RECEIVED));
+    }
+    
+    @Test
+    public void testExpirationFromReceipt() {
+        assertEquals(RECEIVED + 3000, deadline.getDeadline(message(null, "3000", null), RECEIVED));
+        assertEquals(0, deadline.getDeadline(message(null, "soon", null), RECEIVED));
+    }
+    
+    @Test
+    public void testExpirationFromTimestamp() {
+        // timestamps are truncated to seconds, so the end of that second is used
+        Date timestamp = new Date(RECEIVED - 10000);
+        assertEquals(RECEIVED - 10000 + 999 + 3000, deadline.getDeadline(message(null, "3000", timestamp), RECEIVED));
+        
+        // timestamps in the future are caused by clock skew
+        assertEquals(RECEIVED + 3000, deadline.getDeadline(message(null, "3000", new Date(RECEIVED + 60000)), RECEIVED));
+        
+        // messages expired long ago still have a deadline
+        assertEquals(1, deadline.getDeadline(message(null, "0", new Date(-RECEIVED)), RECEIVED));
+    }
+    
+    @Test
+    public void testEarlierDeadlineTakesPrecedence() {
+        Date timestamp = new Date(RECEIVED - 999);
+        
+        // expiration ends earlier than header
+        assertEquals(RECEIVED + 3000, deadline.getDeadline(message(RECEIVED + 5000, "3000", timestamp), RECEIVED));
+        
+        // header ends earlier than expiration
+        assertEquals(RECEIVED + 2000, deadline.getDeadline(message(RECEIVED + 2000, "3000", timestamp), RECEIVED));
+        
+        // invalid values do not take precedence
+        assertEquals(RECEIVED + 3000, deadline.getDeadline(message("invalid", "3000", timestamp), RECEIVED));
+        assertEquals(RECEIVED + 5000, deadline.getDeadline(message(RECEIVED + 5000, "invalid", timestamp), RECEIVED));
+    }
+    
+    @Test
+    public void testSourcesCanBeDisabled() {
+        Message msg = message(RECEIVED + 2000, "3000", null);
+        
+        assertEquals(RECEIVED + 3000, new MessageDeadline(null, true, 0, "test").getDeadline(msg, RECEIVED));
+        assertEquals(RECEIVED + 2000, new MessageDeadline(HEADER, false, 0, "test").getDeadline(msg, RECEIVED));
+        assertEquals(0, new MessageDeadline(null, false, 0, "test").getDeadline(msg, RECEIVED));
+    }
+    
+    @Test
+    public void testHasExpired() {
+        assertFalse(deadline.hasExpired(0, RECEIVED));
+        assertFalse(deadline.hasExpired(RECEIVED + 1, RECEIVED));
+        assertTrue(deadline.hasExpired(RECEIVED, RECEIVED));
+        assertTrue(deadline.hasExpired(1, RECEIVED));
+        
+        MessageDeadline withMinRemaining = new MessageDeadline(HEADER, true, 500, "test");
+        assertFalse(withMinRemaining.hasExpired(RECEIVED + 501, RECEIVED));
+        assertTrue(withMinRemaining.hasExpired(RECEIVED + 500, RECEIVED));
+    }
+}
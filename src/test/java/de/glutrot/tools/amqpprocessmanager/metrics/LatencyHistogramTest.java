@@ -0,0 +1,89 @@
+package de.glutrot.tools.amqpprocessmanager.metrics;
+
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+    private static final long MICROS = TimeUnit.MICROSECONDS.toNanos(1);
+    
+    private static void assertWithinBucket(long expectedMicros, long actualNanos) {
+        long actualMicros = TimeUnit.NANOSECONDS.toMicros(actualNanos);
+        assertTrue("value "+actualMicros+" below "+expectedMicros, actualMicros >= expectedMicros);
+        assertTrue("value "+actualMicros+" exceeds bucket of "+expectedMicros, actualMicros <= expectedMicros + expectedMicros / 16);
+    }
+    
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMeanNanos());
+        assertEquals(0, histogram.getMaxNanos());
+        assertEquals(0, histogram.getPercentileNanos(50.0));
+    }
+    
+    @Test
+    public void testSmallValuesAreExact() {
+        for (long micros = 0; micros < 32; micros++) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(micros * MICROS);
+            histogram.record(TimeUnit.SECONDS.toNanos(1));
+            
+            assertEquals(micros * MICROS, histogram.getPercentileNanos(50.0));
+        }
+    }
+    
+    @Test
+    public void testPercentileBucketBounds() {
+        for (long micros = 32; micros < (1L << 39); micros += 1 + micros / 7) {
+            // a higher value keeps the percentile from being capped by max;
+            // values are clamped to 40 bits
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(micros * MICROS);
+            histogram.record(2 * micros * MICROS);
+            
+            assertWithinBucket(micros, histogram.getPercentileNanos(50.0));
+            assertEquals(2 * micros * MICROS, histogram.getMaxNanos());
+        }
+    }
+    
+    @Test
+    public void testPercentilesAreCappedByMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000 * MICROS);
+        
+        assertEquals(1000 * MICROS, histogram.getPercentileNanos(50.0));
+        assertEquals(1000 * MICROS, histogram.getPercentileNanos(100.0));
+    }
+    
+    @Test
+    public void testPercentilesOfDistribution() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long millis = 1; millis <= 1000; millis++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+        
+        assertEquals(1000, histogram.getCount());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(500500), histogram.getMeanNanos());
+        assertWithinBucket(1000, histogram.getPercentileNanos(0.0));
+        assertWithinBucket(500000, histogram.getPercentileNanos(50.0));
+        assertWithinBucket(900000, histogram.getPercentileNanos(90.0));
+        assertWithinBucket(990000, histogram.getPercentileNanos(99.0));
+        assertWithinBucket(999000, histogram.getPercentileNanos(99.9));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1000), histogram.getPercentileNanos(100.0));
+    }
+    
+    @Test
+    public void testClampedValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-1);
+        histogram.record(Long.MAX_VALUE);
+        
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getPercentileNanos(50.0));
+        assertEquals(((1L << 40) - 1) * MICROS, histogram.getMaxNanos());
+        assertEquals(((1L << 40) - 1) * MICROS, histogram.getPercentileNanos(100.0));
+    }
+}